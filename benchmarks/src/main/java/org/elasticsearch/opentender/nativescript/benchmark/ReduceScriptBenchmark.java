@@ -0,0 +1,87 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.benchmark;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.node.settings.NodeSettingsService;
+import org.elasticsearch.opentender.nativescript.script.weightedavg.ReduceScriptFactory;
+import org.elasticsearch.opentender.nativescript.stats.OpentenderStatsService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the weighted_avg_reduce script over many shard results, in the list
+ * and in the compact {@code double[]} form of the combine script.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ReduceScriptBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int shards;
+
+    @Param({"false", "true"})
+    public boolean compact;
+
+    private final ReduceScriptFactory factory = new ReduceScriptFactory(
+            new OpentenderStatsService(Settings.EMPTY, new NodeSettingsService(Settings.EMPTY)));
+    private List<Object> aggs;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(shards);
+        aggs = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            double count = random.nextInt(10000);
+            double sum = count * random.nextDouble() * 100;
+            if (compact) {
+                aggs.add(new double[]{sum, count});
+            } else {
+                List<Double> result = new ArrayList<>(2);
+                result.add(sum);
+                result.add(count);
+                aggs.add(result);
+            }
+        }
+    }
+
+    @Benchmark
+    public Object reduce() {
+        Map<String, Object> params = new HashMap<>();
+        params.put("_aggs", aggs);
+        return factory.newScript(params).run();
+    }
+}
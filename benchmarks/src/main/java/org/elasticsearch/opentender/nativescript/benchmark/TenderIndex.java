@@ -0,0 +1,195 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.benchmark;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.IOUtils;
+import org.elasticsearch.common.lucene.Lucene;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.IndexService;
+import org.elasticsearch.index.mapper.DocumentMapper;
+import org.elasticsearch.index.mapper.ParsedDocument;
+import org.elasticsearch.indices.IndicesService;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.node.settings.NodeSettingsService;
+import org.elasticsearch.opentender.nativescript.profile.WeightProfileService;
+import org.elasticsearch.opentender.nativescript.script.WeightedAvgRangeScript;
+import org.elasticsearch.opentender.nativescript.script.weightedavg.CombineScriptFactory;
+import org.elasticsearch.opentender.nativescript.script.weightedavg.InitScriptFactory;
+import org.elasticsearch.opentender.nativescript.script.weightedavg.MapScriptFactory;
+import org.elasticsearch.opentender.nativescript.script.weightedavg.ReduceScriptFactory;
+import org.elasticsearch.opentender.nativescript.stats.OpentenderStatsService;
+import org.elasticsearch.script.CompiledScript;
+import org.elasticsearch.script.ExecutableScript;
+import org.elasticsearch.script.NativeScriptEngineService;
+import org.elasticsearch.script.NativeScriptFactory;
+import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.script.SearchScript;
+import org.elasticsearch.search.lookup.SearchLookup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * In-memory Lucene index of synthetic tender documents.
+ *
+ * A local node is only started to get the mappings and the field data of the
+ * indicator fields, the documents are parsed by the real mapper but written to
+ * a {@link RAMDirectory} that is searched without going through the node.
+ */
+public final class TenderIndex implements Closeable {
+
+    public static final String INDEX = "tenders";
+    public static final String TYPE = "tender";
+
+    private final Path home;
+    private final Node node;
+    private final RAMDirectory directory;
+    private final DirectoryReader reader;
+    private final SearchLookup lookup;
+    private final NativeScriptEngineService scriptEngine;
+    private final List<String> fields;
+
+    /**
+     * @param numDocs        the number of tender documents
+     * @param fieldCount     the number of indicator fields
+     * @param missingDensity the probability that a document does not have an indicator
+     * @param multiValued    whether the indicators have between one and three values
+     */
+    public TenderIndex(int numDocs, int fieldCount, double missingDensity, boolean multiValued) throws IOException {
+        this.home = Files.createTempDirectory("opentender-benchmark");
+        this.node = new Node(Settings.builder()
+                .put("path.home", home.toString())
+                .put("cluster.name", "opentender-benchmark")
+                .put("node.local", true)
+                .put(Node.HTTP_ENABLED, false)
+                .build()).start();
+        this.fields = new ArrayList<>(fieldCount);
+        for (int i = 0; i < fieldCount; i++) {
+            fields.add("indicator_" + i);
+        }
+
+        node.client().admin().indices().prepareCreate(INDEX)
+                .setSettings(Settings.builder().put("index.number_of_shards", 1).put("index.number_of_replicas", 0))
+                .addMapping(TYPE, mapping())
+                .get();
+        node.client().admin().cluster().prepareHealth(INDEX).setWaitForGreenStatus().get();
+        IndexService indexService = node.injector().getInstance(IndicesService.class).indexServiceSafe(INDEX);
+        DocumentMapper mapper = indexService.mapperService().documentMapper(TYPE);
+
+        this.directory = new RAMDirectory();
+        Random random = new Random(fieldCount * 31 + numDocs);
+        try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(Lucene.STANDARD_ANALYZER))) {
+            for (int i = 0; i < numDocs; i++) {
+                ParsedDocument doc = mapper.parse(INDEX, TYPE, String.valueOf(i), tender(random, missingDensity, multiValued).bytes());
+                writer.addDocuments(doc.docs());
+            }
+            writer.forceMerge(1);
+        }
+        this.reader = DirectoryReader.open(directory);
+        this.lookup = new SearchLookup(indexService.mapperService(), indexService.fieldData(), new String[]{TYPE});
+
+        NodeSettingsService nodeSettingsService = new NodeSettingsService(Settings.EMPTY);
+        WeightProfileService profileService = new WeightProfileService(Settings.EMPTY, nodeSettingsService);
+        OpentenderStatsService statsService = new OpentenderStatsService(Settings.EMPTY, nodeSettingsService);
+        Map<String, NativeScriptFactory> factories = new HashMap<>();
+        factories.put(WeightedAvgRangeScript.SCRIPT_NAME, new WeightedAvgRangeScript.Factory(profileService, statsService));
+        factories.put(InitScriptFactory.SCRIPT_NAME, new InitScriptFactory(statsService));
+        factories.put(MapScriptFactory.SCRIPT_NAME, new MapScriptFactory(profileService, statsService));
+        factories.put(CombineScriptFactory.SCRIPT_NAME, new CombineScriptFactory(statsService));
+        factories.put(ReduceScriptFactory.SCRIPT_NAME, new ReduceScriptFactory(statsService));
+        this.scriptEngine = new NativeScriptEngineService(Settings.EMPTY, factories);
+    }
+
+    private XContentBuilder mapping() throws IOException {
+        XContentBuilder mapping = XContentFactory.jsonBuilder().startObject().startObject(TYPE).startObject("properties");
+        for (String field : fields) {
+            mapping.startObject(field).field("type", "double").endObject();
+        }
+        return mapping.endObject().endObject().endObject();
+    }
+
+    private XContentBuilder tender(Random random, double missingDensity, boolean multiValued) throws IOException {
+        XContentBuilder source = XContentFactory.jsonBuilder().startObject();
+        for (String field : fields) {
+            if (random.nextDouble() < missingDensity) {
+                continue;
+            }
+            if (multiValued) {
+                source.startArray(field);
+                for (int v = random.nextInt(3); v >= 0; v--) {
+                    source.value(random.nextInt(101));
+                }
+                source.endArray();
+            } else {
+                source.field(field, random.nextInt(101));
+            }
+        }
+        return source.endObject();
+    }
+
+    public DirectoryReader reader() {
+        return reader;
+    }
+
+    public SearchLookup lookup() {
+        return lookup;
+    }
+
+    /**
+     * @return the names of the indicator fields
+     */
+    public List<String> fields() {
+        return fields;
+    }
+
+    /**
+     * Creates the search script the same way as a search request with an inline native script.
+     */
+    public SearchScript searchScript(String name, Map<String, Object> params) {
+        CompiledScript compiled = new CompiledScript(ScriptService.ScriptType.INLINE, name, NativeScriptEngineService.NAME,
+                scriptEngine.compile(name, null));
+        return scriptEngine.search(compiled, lookup, params);
+    }
+
+    /**
+     * Creates an executable script, such as the init script of the scripted metric aggregation.
+     */
+    public ExecutableScript executableScript(String name, Map<String, Object> params) {
+        CompiledScript compiled = new CompiledScript(ScriptService.ScriptType.INLINE, name, NativeScriptEngineService.NAME,
+                scriptEngine.compile(name, null));
+        return scriptEngine.executable(compiled, params);
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+        directory.close();
+        node.close();
+        IOUtils.rm(home);
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.benchmark;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.elasticsearch.opentender.nativescript.script.WeightedAvgRangeScript;
+import org.elasticsearch.opentender.nativescript.script.weightedavg.IndicatorBlock;
+import org.elasticsearch.opentender.nativescript.script.weightedavg.IndicatorValues;
+import org.elasticsearch.opentender.nativescript.script.weightedavg.InitScriptFactory;
+import org.elasticsearch.opentender.nativescript.script.weightedavg.MapScriptFactory;
+import org.elasticsearch.opentender.nativescript.script.weightedavg.MultiValueMode;
+import org.elasticsearch.script.LeafSearchScript;
+import org.elasticsearch.script.SearchScript;
+import org.elasticsearch.search.lookup.LeafDocLookup;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per document cost of the weighted average scripts, every invocation scores
+ * all documents of the index.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class WeightedAvgScriptBenchmark {
+
+    @Param({"100000"})
+    public int numDocs;
+
+    @Param({"4", "16"})
+    public int fieldCount;
+
+    @Param({"0.0", "0.5", "0.9"})
+    public double missingDensity;
+
+    @Param({"false", "true"})
+    public boolean multiValued;
+
+    private TenderIndex index;
+    private ArrayList<String> fields;
+    private ArrayList<Number> weights;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        index = new TenderIndex(numDocs, fieldCount, missingDensity, multiValued);
+        fields = new ArrayList<>(index.fields());
+        weights = new ArrayList<>(fieldCount);
+        for (int i = 0; i < fieldCount; i++) {
+            weights.add(1.0 + i % 3);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        index.close();
+    }
+
+    private Map<String, Object> params() {
+        Map<String, Object> params = new HashMap<>();
+        params.put("fields", fields);
+        params.put("weights", weights);
+        return params;
+    }
+
+    @Benchmark
+    public void calculateWeightedAverage(Blackhole blackhole) {
+        for (LeafReaderContext ctx : index.reader().leaves()) {
+            LeafDocLookup doc = index.lookup().getLeafSearchLookup(ctx).doc();
+            for (int i = 0; i < ctx.reader().maxDoc(); i++) {
+                doc.setDocument(i);
+                blackhole.consume(MapScriptFactory.calculateWeightedAverage(doc, fields, weights));
+            }
+        }
+    }
+
+    @Benchmark
+    public Object mapScript() throws IOException {
+        Map<String, Object> params = params();
+        index.executableScript(InitScriptFactory.SCRIPT_NAME, params).run();
+        SearchScript script = index.searchScript(MapScriptFactory.SCRIPT_NAME, params);
+        for (LeafReaderContext ctx : index.reader().leaves()) {
+            LeafSearchScript leafScript = script.getLeafSearchScript(ctx);
+            for (int i = 0; i < ctx.reader().maxDoc(); i++) {
+                leafScript.setDocument(i);
+                leafScript.run();
+            }
+        }
+        return params.get("_agg");
+    }
+
+    @Benchmark
+    public int rangeScript() throws IOException {
+        Map<String, Object> params = params();
+        params.put("gte", 40);
+        params.put("lte", 60);
+        SearchScript script = index.searchScript(WeightedAvgRangeScript.SCRIPT_NAME, params);
+        int matches = 0;
+        for (LeafReaderContext ctx : index.reader().leaves()) {
+            LeafSearchScript leafScript = script.getLeafSearchScript(ctx);
+            for (int i = 0; i < ctx.reader().maxDoc(); i++) {
+                leafScript.setDocument(i);
+                if ((Boolean) leafScript.run()) {
+                    matches++;
+                }
+            }
+        }
+        return matches;
+    }
+
+    @Benchmark
+    public double indicatorValues() {
+        final double[] weightArray = weightArray();
+        double sum = 0;
+        for (LeafReaderContext ctx : index.reader().leaves()) {
+            IndicatorValues values = IndicatorValues.bind(index.lookup().getLeafSearchLookup(ctx).doc(), fieldArray(),
+                    MultiValueMode.FIRST);
+            for (int i = 0; i < ctx.reader().maxDoc(); i++) {
+                double value = values.weightedAverage(i, weightArray);
+                if (!Double.isNaN(value)) {
+                    sum += value;
+                }
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public double indicatorBlock() {
+        final double[] weightArray = weightArray();
+        final IndicatorBlock block = new IndicatorBlock();
+        double sum = 0;
+        for (LeafReaderContext ctx : index.reader().leaves()) {
+            IndicatorValues values = IndicatorValues.bind(index.lookup().getLeafSearchLookup(ctx).doc(), fieldArray(),
+                    MultiValueMode.FIRST);
+            for (int i = 0; i < ctx.reader().maxDoc(); i++) {
+                if (block.add(i) || i == ctx.reader().maxDoc() - 1) {
+                    block.evaluate(values, weightArray);
+                    for (int j = 0; j < block.size(); j++) {
+                        double value = block.average(j);
+                        if (!Double.isNaN(value)) {
+                            sum += value;
+                        }
+                    }
+                    block.clear();
+                }
+            }
+        }
+        return sum;
+    }
+
+    private String[] fieldArray() {
+        return fields.toArray(new String[fields.size()]);
+    }
+
+    private double[] weightArray() {
+        double[] weightArray = new double[weights.size()];
+        for (int i = 0; i < weightArray.length; i++) {
+            weightArray[i] = weights.get(i).doubleValue();
+        }
+        return weightArray;
+    }
+}
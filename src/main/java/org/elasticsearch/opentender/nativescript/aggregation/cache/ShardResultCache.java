@@ -0,0 +1,189 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.opentender.nativescript.aggregation.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Query;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.lucene.index.ElasticsearchDirectoryReader;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.opentender.nativescript.script.weightedavg.MultiValueMode;
+import org.elasticsearch.search.internal.SearchContext;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Caches the shard level state of top level weighted average aggregations.
+ *
+ * An entry is keyed by the shard, the core cache key of its reader, the query and
+ * the indicator settings of the aggregation. Any change of the shard, a refresh with
+ * new documents, deletes or merges, opens a new reader, so a stale entry is never
+ * returned. A close listener drops the entries of a reader when it is closed, after
+ * a refresh as well as when the shard is closed or its index deleted. The cache holds
+ * at most {@value #SIZE_SETTING} entries and evicts the least recently used ones.
+ *
+ * Requests with {@code min_score} or {@code terminate_after}, requests that timed
+ * out and requests that use {@code now}, like a date range relative to the current
+ * time, are not cached.
+ */
+public class ShardResultCache extends AbstractComponent {
+
+    public static final String SIZE_SETTING = "opentender.result_cache.size";
+
+    private final Cache<Key, double[]> cache;
+    private final ConcurrentMap<Object, Boolean> registeredReaders = new ConcurrentHashMap<>();
+    private final CounterMetric hits = new CounterMetric();
+    private final CounterMetric misses = new CounterMetric();
+
+    @Inject
+    public ShardResultCache(Settings settings) {
+        super(settings);
+        final int size = settings.getAsInt(SIZE_SETTING, 1000);
+        this.cache = size > 0 ? CacheBuilder.newBuilder().maximumSize(size).<Key, double[]>build() : null;
+    }
+
+    /**
+     * @return the cache key of an aggregation or {@code null} if the request cannot be cached
+     */
+    public Key key(SearchContext context, String type, String[] fields, double[] weights, MultiValueMode mode) {
+        if (cache == null || context.minimumScore() != null || context.terminateAfter() != SearchContext.DEFAULT_TERMINATE_AFTER
+                || context.nowInMillisUsed()) {
+            return null;
+        }
+        final IndexReader reader = context.searcher().getIndexReader();
+        if ((reader instanceof DirectoryReader) == false) {
+            return null;
+        }
+        final Object readerKey = reader.getCoreCacheKey();
+        if (registeredReaders.putIfAbsent(readerKey, Boolean.TRUE) == null) {
+            try {
+                ElasticsearchDirectoryReader.addReaderCloseListener((DirectoryReader) reader, new IndexReader.ReaderClosedListener() {
+                    @Override
+                    public void onClose(IndexReader closed) {
+                        invalidate(readerKey);
+                    }
+                });
+            } catch (IllegalArgumentException e) {
+                // not a reader of a shard, its entries could not be dropped
+                registeredReaders.remove(readerKey);
+                return null;
+            }
+        }
+        return new Key(context.indexShard().shardId(), readerKey, type, context.query(), fields, weights, mode);
+    }
+
+    /**
+     * @return the cached shard state or {@code null}
+     */
+    public double[] get(Key key) {
+        final double[] state = cache.getIfPresent(key);
+        if (state == null) {
+            misses.inc();
+        } else {
+            hits.inc();
+        }
+        return state;
+    }
+
+    /**
+     * Caches the state of a shard that collected all matching documents, the state must not be modified afterwards.
+     */
+    public void put(Key key, SearchContext context, double[] state) {
+        // date ranges relative to now are only resolved while the query runs
+        if (context.queryResult().searchTimedOut() == false && context.nowInMillisUsed() == false
+                && registeredReaders.containsKey(key.readerKey)) {
+            cache.put(key, state);
+        }
+    }
+
+    public long hits() {
+        return hits.count();
+    }
+
+    public long misses() {
+        return misses.count();
+    }
+
+    public long size() {
+        return cache == null ? 0 : cache.size();
+    }
+
+    private void invalidate(Object readerKey) {
+        registeredReaders.remove(readerKey);
+        for (Iterator<Key> keys = cache.asMap().keySet().iterator(); keys.hasNext(); ) {
+            if (keys.next().readerKey == readerKey) {
+                keys.remove();
+            }
+        }
+    }
+
+    public static final class Key {
+
+        private final ShardId shardId;
+        private final Object readerKey;
+        private final String type;
+        private final Query query;
+        private final String[] fields;
+        private final double[] weights;
+        private final MultiValueMode mode;
+        private final int hashCode;
+
+        Key(ShardId shardId, Object readerKey, String type, Query query, String[] fields, double[] weights, MultiValueMode mode) {
+            this.shardId = shardId;
+            this.readerKey = readerKey;
+            this.type = type;
+            this.query = query;
+            this.fields = fields;
+            this.weights = weights;
+            this.mode = mode;
+            int result = Objects.hash(shardId, System.identityHashCode(readerKey), type, query, mode);
+            result = 31 * result + Arrays.hashCode(fields);
+            result = 31 * result + Arrays.hashCode(weights);
+            this.hashCode = result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return readerKey == other.readerKey
+                    && shardId.equals(other.shardId)
+                    && type.equals(other.type)
+                    && mode == other.mode
+                    && Arrays.equals(fields, other.fields)
+                    && Arrays.equals(weights, other.weights)
+                    && Objects.equals(query, other.query);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
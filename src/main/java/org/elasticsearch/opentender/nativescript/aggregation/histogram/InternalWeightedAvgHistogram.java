@@ -0,0 +1,335 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.aggregation.histogram;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.search.aggregations.AggregationStreams;
+import org.elasticsearch.search.aggregations.Aggregations;
+import org.elasticsearch.search.aggregations.InternalAggregation;
+import org.elasticsearch.search.aggregations.InternalAggregations;
+import org.elasticsearch.search.aggregations.InternalMultiBucketAggregation;
+import org.elasticsearch.search.aggregations.pipeline.PipelineAggregator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Shard and reduced result of the weighted_avg_histogram aggregation.
+ *
+ * Fixed width histograms only contain the buckets that were hit on a shard and
+ * are merged by their lower bound, the empty buckets between them are added in
+ * the reduce phase when {@code min_doc_count} is 0. Explicit ranges always contain
+ * every range in the requested order and are merged by position.
+ */
+public class InternalWeightedAvgHistogram
+        extends InternalMultiBucketAggregation<InternalWeightedAvgHistogram, InternalWeightedAvgHistogram.Bucket>
+        implements WeightedAvgHistogram {
+
+    public final static Type TYPE = new Type("weighted_avg_histogram");
+
+    public final static AggregationStreams.Stream STREAM = new AggregationStreams.Stream() {
+        @Override
+        public InternalWeightedAvgHistogram readResult(StreamInput in) throws IOException {
+            InternalWeightedAvgHistogram result = new InternalWeightedAvgHistogram();
+            result.readFrom(in);
+            return result;
+        }
+    };
+
+    public static void registerStreams() {
+        AggregationStreams.registerStream(STREAM, TYPE.stream());
+    }
+
+    public static class Bucket extends InternalMultiBucketAggregation.InternalBucket implements WeightedAvgHistogram.Bucket {
+
+        private final transient boolean keyed;
+        private final String key;
+        private final double from;
+        private final double to;
+        private final long docCount;
+        private final InternalAggregations aggregations;
+
+        /**
+         * @param key the key of an explicit range or {@code null} to use the lower bound as numeric key
+         */
+        public Bucket(String key, double from, double to, long docCount, InternalAggregations aggregations, boolean keyed) {
+            this.key = key;
+            this.from = from;
+            this.to = to;
+            this.docCount = docCount;
+            this.aggregations = aggregations;
+            this.keyed = keyed;
+        }
+
+        @Override
+        public Object getKey() {
+            return key != null ? key : from;
+        }
+
+        @Override
+        public String getKeyAsString() {
+            return key != null ? key : String.valueOf(from);
+        }
+
+        @Override
+        public double getFrom() {
+            return from;
+        }
+
+        @Override
+        public double getTo() {
+            return to;
+        }
+
+        @Override
+        public long getDocCount() {
+            return docCount;
+        }
+
+        @Override
+        public Aggregations getAggregations() {
+            return aggregations;
+        }
+
+        Bucket reduce(List<Bucket> buckets, ReduceContext context) {
+            long docCount = 0;
+            List<InternalAggregations> aggregationsList = new ArrayList<>(buckets.size());
+            for (Bucket bucket : buckets) {
+                docCount += bucket.docCount;
+                aggregationsList.add(bucket.aggregations);
+            }
+            return new Bucket(key, from, to, docCount, InternalAggregations.reduce(aggregationsList, context), keyed);
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            if (keyed) {
+                builder.startObject(getKeyAsString());
+            } else {
+                builder.startObject();
+                if (key != null) {
+                    builder.field(CommonFields.KEY, key);
+                } else {
+                    builder.field(CommonFields.KEY, from);
+                }
+            }
+            if (!Double.isInfinite(from)) {
+                builder.field(CommonFields.FROM, from);
+            }
+            if (!Double.isInfinite(to)) {
+                builder.field(CommonFields.TO, to);
+            }
+            builder.field(CommonFields.DOC_COUNT, docCount);
+            aggregations.toXContentInternal(builder, params);
+            builder.endObject();
+            return builder;
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            // buckets are read by the aggregation
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            // buckets are written by the aggregation
+        }
+    }
+
+    private List<Bucket> buckets;
+    private double interval;
+    private double offset;
+    private long minDocCount;
+    private InternalAggregations emptySubAggregations;
+    private boolean keyed;
+
+    InternalWeightedAvgHistogram() {
+    } // for serialization
+
+    /**
+     * @param interval             the bucket width, 0 for explicit ranges
+     * @param emptySubAggregations sub aggregations of the empty buckets added in the reduce phase,
+     *                             only needed for fixed width histograms with {@code min_doc_count} 0
+     */
+    public InternalWeightedAvgHistogram(String name, List<Bucket> buckets, double interval, double offset, long minDocCount,
+                                        InternalAggregations emptySubAggregations, boolean keyed,
+                                        List<PipelineAggregator> pipelineAggregators, Map<String, Object> metaData) {
+        super(name, pipelineAggregators, metaData);
+        this.buckets = buckets;
+        this.interval = interval;
+        this.offset = offset;
+        this.minDocCount = minDocCount;
+        this.emptySubAggregations = emptySubAggregations;
+        this.keyed = keyed;
+    }
+
+    @Override
+    public Type type() {
+        return TYPE;
+    }
+
+    @Override
+    public List<Bucket> getBuckets() {
+        return buckets;
+    }
+
+    @Override
+    public Bucket getBucketByKey(String key) {
+        for (Bucket bucket : buckets) {
+            if (bucket.getKeyAsString().equals(key)) {
+                return bucket;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public InternalWeightedAvgHistogram create(List<Bucket> buckets) {
+        return new InternalWeightedAvgHistogram(name, buckets, interval, offset, minDocCount, emptySubAggregations, keyed,
+                pipelineAggregators(), metaData);
+    }
+
+    @Override
+    public Bucket createBucket(InternalAggregations aggregations, Bucket prototype) {
+        return new Bucket(prototype.key, prototype.from, prototype.to, prototype.docCount, aggregations, prototype.keyed);
+    }
+
+    @Override
+    public InternalAggregation doReduce(List<InternalAggregation> aggregations, ReduceContext reduceContext) {
+        List<Bucket> reduced = interval > 0 ? reduceHistogram(aggregations, reduceContext) : reduceRanges(aggregations, reduceContext);
+        return new InternalWeightedAvgHistogram(name, reduced, interval, offset, minDocCount, emptySubAggregations, keyed,
+                pipelineAggregators(), getMetaData());
+    }
+
+    private List<Bucket> reduceRanges(List<InternalAggregation> aggregations, ReduceContext reduceContext) {
+        List<List<Bucket>> rangeList = new ArrayList<>(buckets.size());
+        for (int i = 0; i < buckets.size(); i++) {
+            rangeList.add(new ArrayList<Bucket>(aggregations.size()));
+        }
+        for (InternalAggregation aggregation : aggregations) {
+            List<Bucket> ranges = ((InternalWeightedAvgHistogram) aggregation).buckets;
+            for (int i = 0; i < ranges.size(); i++) {
+                rangeList.get(i).add(ranges.get(i));
+            }
+        }
+        List<Bucket> reduced = new ArrayList<>(buckets.size());
+        for (List<Bucket> ranges : rangeList) {
+            reduced.add(ranges.get(0).reduce(ranges, reduceContext));
+        }
+        return reduced;
+    }
+
+    private List<Bucket> reduceHistogram(List<InternalAggregation> aggregations, ReduceContext reduceContext) {
+        TreeMap<Long, List<Bucket>> bucketsByIndex = new TreeMap<>();
+        for (InternalAggregation aggregation : aggregations) {
+            for (Bucket bucket : ((InternalWeightedAvgHistogram) aggregation).buckets) {
+                long index = bucketIndex(bucket.from);
+                List<Bucket> sameIndex = bucketsByIndex.get(index);
+                if (sameIndex == null) {
+                    sameIndex = new ArrayList<>(aggregations.size());
+                    bucketsByIndex.put(index, sameIndex);
+                }
+                sameIndex.add(bucket);
+            }
+        }
+
+        List<Bucket> reduced = new ArrayList<>(bucketsByIndex.size());
+        Long previousIndex = null;
+        for (Map.Entry<Long, List<Bucket>> entry : bucketsByIndex.entrySet()) {
+            Bucket bucket = entry.getValue().get(0).reduce(entry.getValue(), reduceContext);
+            if (minDocCount == 0 && previousIndex != null) {
+                // fill the gap to the previous bucket
+                for (long index = previousIndex + 1; index < entry.getKey(); index++) {
+                    double from = offset + index * interval;
+                    reduced.add(new Bucket(null, from, from + interval, 0, emptySubAggregations, keyed));
+                }
+            }
+            if (bucket.docCount >= minDocCount) {
+                reduced.add(bucket);
+            }
+            previousIndex = entry.getKey();
+        }
+        return reduced;
+    }
+
+    private long bucketIndex(double from) {
+        return Math.round((from - offset) / interval);
+    }
+
+    @Override
+    protected void doReadFrom(StreamInput in) throws IOException {
+        interval = in.readDouble();
+        offset = in.readDouble();
+        minDocCount = in.readVLong();
+        keyed = in.readBoolean();
+        if (in.readBoolean()) {
+            emptySubAggregations = InternalAggregations.readAggregations(in);
+        }
+        int size = in.readVInt();
+        buckets = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            String key = in.readOptionalString();
+            double from = in.readDouble();
+            double to = in.readDouble();
+            long docCount = in.readVLong();
+            buckets.add(new Bucket(key, from, to, docCount, InternalAggregations.readAggregations(in), keyed));
+        }
+    }
+
+    @Override
+    protected void doWriteTo(StreamOutput out) throws IOException {
+        out.writeDouble(interval);
+        out.writeDouble(offset);
+        out.writeVLong(minDocCount);
+        out.writeBoolean(keyed);
+        if (emptySubAggregations != null) {
+            out.writeBoolean(true);
+            emptySubAggregations.writeTo(out);
+        } else {
+            out.writeBoolean(false);
+        }
+        out.writeVInt(buckets.size());
+        for (Bucket bucket : buckets) {
+            out.writeOptionalString(bucket.key);
+            out.writeDouble(bucket.from);
+            out.writeDouble(bucket.to);
+            out.writeVLong(bucket.docCount);
+            bucket.aggregations.writeTo(out);
+        }
+    }
+
+    @Override
+    public XContentBuilder doXContentBody(XContentBuilder builder, Params params) throws IOException {
+        if (keyed) {
+            builder.startObject(CommonFields.BUCKETS);
+        } else {
+            builder.startArray(CommonFields.BUCKETS);
+        }
+        for (Bucket bucket : buckets) {
+            bucket.toXContent(builder, params);
+        }
+        if (keyed) {
+            builder.endObject();
+        } else {
+            builder.endArray();
+        }
+        return builder;
+    }
+}
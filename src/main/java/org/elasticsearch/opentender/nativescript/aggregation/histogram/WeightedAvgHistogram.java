@@ -0,0 +1,43 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.aggregation.histogram;
+
+import org.elasticsearch.search.aggregations.bucket.MultiBucketsAggregation;
+
+import java.util.List;
+
+/**
+ * Distribution of the per document weighted averages of the indicator fields.
+ */
+public interface WeightedAvgHistogram extends MultiBucketsAggregation {
+
+    interface Bucket extends MultiBucketsAggregation.Bucket {
+
+        /**
+         * @return the inclusive lower bound of the bucket
+         */
+        double getFrom();
+
+        /**
+         * @return the exclusive upper bound of the bucket
+         */
+        double getTo();
+    }
+
+    @Override
+    List<? extends Bucket> getBuckets();
+
+    Bucket getBucketByKey(String key);
+}
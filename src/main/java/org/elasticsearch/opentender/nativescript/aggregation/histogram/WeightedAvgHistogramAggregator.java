@@ -0,0 +1,223 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.aggregation.histogram;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.util.CollectionUtil;
+import org.elasticsearch.common.lease.Releasables;
+import org.elasticsearch.common.util.LongHash;
+import org.elasticsearch.index.fielddata.IndexNumericFieldData;
+import org.elasticsearch.opentender.nativescript.aggregation.weightedavg.WeightedAvgAggregator;
+import org.elasticsearch.opentender.nativescript.script.weightedavg.IndicatorValues;
+import org.elasticsearch.opentender.nativescript.script.weightedavg.MultiValueMode;
+import org.elasticsearch.search.aggregations.Aggregator;
+import org.elasticsearch.search.aggregations.AggregatorFactories;
+import org.elasticsearch.search.aggregations.AggregatorFactory;
+import org.elasticsearch.search.aggregations.InternalAggregation;
+import org.elasticsearch.search.aggregations.InternalAggregations;
+import org.elasticsearch.search.aggregations.LeafBucketCollector;
+import org.elasticsearch.search.aggregations.LeafBucketCollectorBase;
+import org.elasticsearch.search.aggregations.bucket.BucketsAggregator;
+import org.elasticsearch.search.aggregations.pipeline.PipelineAggregator;
+import org.elasticsearch.search.aggregations.support.AggregationContext;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Computes the weighted average of every collected document once and places it
+ * into fixed width buckets or into explicit ranges.
+ */
+public class WeightedAvgHistogramAggregator extends BucketsAggregator {
+
+    private final IndexNumericFieldData[] fieldData;
+    private final double[] weights;
+    private final MultiValueMode mode;
+    private final double interval;
+    private final double offset;
+    private final long minDocCount;
+    private final List<Range> ranges;
+    private final boolean keyed;
+    private final LongHash bucketOrds;
+
+    public WeightedAvgHistogramAggregator(String name, AggregatorFactories factories, IndexNumericFieldData[] fieldData,
+                                          double[] weights, MultiValueMode mode, double interval, double offset, long minDocCount,
+                                          List<Range> ranges, boolean keyed, AggregationContext context, Aggregator parent,
+                                          List<PipelineAggregator> pipelineAggregators, Map<String, Object> metaData) throws IOException {
+        super(name, factories, context, parent, pipelineAggregators, metaData);
+        this.fieldData = fieldData;
+        this.weights = weights;
+        this.mode = mode;
+        this.interval = interval;
+        this.offset = offset;
+        this.minDocCount = minDocCount;
+        this.ranges = ranges;
+        this.keyed = keyed;
+        this.bucketOrds = ranges == null ? new LongHash(1, context.bigArrays()) : null;
+    }
+
+    @Override
+    public LeafBucketCollector getLeafCollector(LeafReaderContext ctx, final LeafBucketCollector sub) throws IOException {
+        final IndicatorValues values = IndicatorValues.load(ctx, fieldData, mode);
+        if (values.isEmpty()) {
+            return LeafBucketCollector.NO_OP_COLLECTOR;
+        }
+        return new LeafBucketCollectorBase(sub, null) {
+            @Override
+            public void collect(int doc, long bucket) throws IOException {
+                assert bucket == 0 : bucket;
+                final double value = values.weightedAverage(doc, weights);
+                if (Double.isNaN(value)) {
+                    return;
+                }
+                if (ranges == null) {
+                    long bucketOrd = bucketOrds.add((long) Math.floor((value - offset) / interval));
+                    if (bucketOrd < 0) {
+                        collectExistingBucket(sub, doc, -1 - bucketOrd);
+                    } else {
+                        collectBucket(sub, doc, bucketOrd);
+                    }
+                } else {
+                    for (int i = 0; i < ranges.size(); i++) {
+                        if (ranges.get(i).matches(value)) {
+                            collectBucket(sub, doc, i);
+                        }
+                    }
+                }
+            }
+        };
+    }
+
+    @Override
+    public InternalAggregation buildAggregation(long owningBucketOrdinal) throws IOException {
+        assert owningBucketOrdinal == 0;
+        final List<InternalWeightedAvgHistogram.Bucket> buckets;
+        if (ranges == null) {
+            buckets = new ArrayList<>((int) bucketOrds.size());
+            for (long i = 0; i < bucketOrds.size(); i++) {
+                double from = offset + bucketOrds.get(i) * interval;
+                buckets.add(new InternalWeightedAvgHistogram.Bucket(null, from, from + interval, bucketDocCount(i),
+                        bucketAggregations(i), keyed));
+            }
+            CollectionUtil.introSort(buckets, new Comparator<InternalWeightedAvgHistogram.Bucket>() {
+                @Override
+                public int compare(InternalWeightedAvgHistogram.Bucket o1, InternalWeightedAvgHistogram.Bucket o2) {
+                    return Double.compare(o1.getFrom(), o2.getFrom());
+                }
+            });
+        } else {
+            buckets = new ArrayList<>(ranges.size());
+            for (int i = 0; i < ranges.size(); i++) {
+                Range range = ranges.get(i);
+                buckets.add(new InternalWeightedAvgHistogram.Bucket(range.key, range.from, range.to, bucketDocCount(i),
+                        bucketAggregations(i), keyed));
+            }
+        }
+        return new InternalWeightedAvgHistogram(name, buckets, interval, offset, minDocCount, emptySubAggregations(), keyed,
+                pipelineAggregators(), metaData());
+    }
+
+    @Override
+    public InternalAggregation buildEmptyAggregation() {
+        final List<InternalWeightedAvgHistogram.Bucket> buckets;
+        if (ranges == null) {
+            buckets = Collections.emptyList();
+        } else {
+            buckets = new ArrayList<>(ranges.size());
+            for (Range range : ranges) {
+                buckets.add(new InternalWeightedAvgHistogram.Bucket(range.key, range.from, range.to, 0,
+                        buildEmptySubAggregations(), keyed));
+            }
+        }
+        return new InternalWeightedAvgHistogram(name, buckets, interval, offset, minDocCount, emptySubAggregations(), keyed,
+                pipelineAggregators(), metaData());
+    }
+
+    private InternalAggregations emptySubAggregations() {
+        return ranges == null && minDocCount == 0 ? buildEmptySubAggregations() : null;
+    }
+
+    @Override
+    protected void doClose() {
+        Releasables.close(bucketOrds);
+    }
+
+    /**
+     * An explicit range, {@code from} is inclusive and {@code to} exclusive.
+     */
+    public static class Range {
+
+        private final String key;
+        private final double from;
+        private final double to;
+
+        public Range(String key, double from, double to) {
+            this.key = key != null ? key : generateKey(from, to);
+            this.from = from;
+            this.to = to;
+        }
+
+        boolean matches(double value) {
+            return value >= from && value < to;
+        }
+
+        private static String generateKey(double from, double to) {
+            return (Double.isInfinite(from) ? "*" : String.valueOf(from)) + "-" + (Double.isInfinite(to) ? "*" : String.valueOf(to));
+        }
+    }
+
+    public static class Factory extends AggregatorFactory {
+
+        private final String[] fields;
+        private final double[] weights;
+        private final MultiValueMode mode;
+        private final double interval;
+        private final double offset;
+        private final long minDocCount;
+        private final List<Range> ranges;
+        private final boolean keyed;
+
+        /**
+         * @param ranges the explicit ranges or {@code null} for fixed width buckets of the given interval
+         */
+        public Factory(String name, String[] fields, double[] weights, MultiValueMode mode, double interval, double offset,
+                       long minDocCount, List<Range> ranges, boolean keyed) {
+            super(name, InternalWeightedAvgHistogram.TYPE.name());
+            this.fields = fields;
+            this.weights = weights;
+            this.mode = mode;
+            this.interval = interval;
+            this.offset = offset;
+            this.minDocCount = minDocCount;
+            this.ranges = ranges;
+            this.keyed = keyed;
+        }
+
+        @Override
+        protected Aggregator createInternal(AggregationContext context, Aggregator parent, boolean collectsFromSingleBucket,
+                                            List<PipelineAggregator> pipelineAggregators, Map<String, Object> metaData) throws IOException {
+            if (collectsFromSingleBucket == false) {
+                return asMultiBucketAggregator(this, context, parent);
+            }
+            return new WeightedAvgHistogramAggregator(name, factories,
+                    WeightedAvgAggregator.resolveFieldData(context.searchContext(), name, fields), weights, mode, interval, offset,
+                    minDocCount, ranges, keyed, context, parent, pipelineAggregators, metaData);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.aggregation.histogram;
+
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.opentender.nativescript.aggregation.weightedavg.IndicatorsParser;
+import org.elasticsearch.search.aggregations.AggregationBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builder for the weighted_avg_histogram aggregation
+ */
+public class WeightedAvgHistogramBuilder extends AggregationBuilder<WeightedAvgHistogramBuilder> {
+
+    private String[] fields;
+    private double[] weights;
+    private String profile;
+    private String multiValueMode;
+    private Double interval;
+    private Double offset;
+    private Long minDocCount;
+    private Boolean keyed;
+    private List<Range> ranges;
+
+    public WeightedAvgHistogramBuilder(String name) {
+        super(name, InternalWeightedAvgHistogram.TYPE.name());
+    }
+
+    /**
+     * Sets the indicator fields the weighted average is computed from.
+     */
+    public WeightedAvgHistogramBuilder fields(String... fields) {
+        this.fields = fields;
+        return this;
+    }
+
+    /**
+     * Sets the weights of the indicator fields, in the same order as the fields.
+     */
+    public WeightedAvgHistogramBuilder weights(double... weights) {
+        this.weights = weights;
+        return this;
+    }
+
+    /**
+     * Sets the name of a registered weight profile to use instead of the fields and weights.
+     */
+    public WeightedAvgHistogramBuilder profile(String profile) {
+        this.profile = profile;
+        return this;
+    }
+
+    /**
+     * Sets how the value of multi-valued indicator fields is selected: first (default), min, max, avg or sum.
+     */
+    public WeightedAvgHistogramBuilder multiValueMode(String multiValueMode) {
+        this.multiValueMode = multiValueMode;
+        return this;
+    }
+
+    /**
+     * Sets the width of the fixed width buckets.
+     */
+    public WeightedAvgHistogramBuilder interval(double interval) {
+        this.interval = interval;
+        return this;
+    }
+
+    /**
+     * Shifts the fixed width buckets by the given offset.
+     */
+    public WeightedAvgHistogramBuilder offset(double offset) {
+        this.offset = offset;
+        return this;
+    }
+
+    /**
+     * Sets the minimum document count of the returned fixed width buckets, 0 fills the gaps between buckets.
+     */
+    public WeightedAvgHistogramBuilder minDocCount(long minDocCount) {
+        this.minDocCount = minDocCount;
+        return this;
+    }
+
+    /**
+     * Returns the buckets as object keyed by the bucket key instead of an array.
+     */
+    public WeightedAvgHistogramBuilder keyed(boolean keyed) {
+        this.keyed = keyed;
+        return this;
+    }
+
+    /**
+     * Adds an explicit range, {@code from} is inclusive and {@code to} exclusive.
+     *
+     * @param key  the key of the range or {@code null} to generate it from the bounds
+     * @param from the lower bound or {@code null} for an unbounded range
+     * @param to   the upper bound or {@code null} for an unbounded range
+     */
+    public WeightedAvgHistogramBuilder addRange(String key, Double from, Double to) {
+        if (ranges == null) {
+            ranges = new ArrayList<>();
+        }
+        ranges.add(new Range(key, from, to));
+        return this;
+    }
+
+    public WeightedAvgHistogramBuilder addRange(Double from, Double to) {
+        return addRange(null, from, to);
+    }
+
+    @Override
+    protected XContentBuilder internalXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject();
+        if (fields != null) {
+            builder.array(IndicatorsParser.FIELDS_FIELD.getPreferredName(), fields);
+        }
+        if (weights != null) {
+            builder.startArray(IndicatorsParser.WEIGHTS_FIELD.getPreferredName());
+            for (double weight : weights) {
+                builder.value(weight);
+            }
+            builder.endArray();
+        }
+        if (profile != null) {
+            builder.field(IndicatorsParser.PROFILE_FIELD.getPreferredName(), profile);
+        }
+        if (multiValueMode != null) {
+            builder.field(IndicatorsParser.MULTI_VALUE_MODE_FIELD.getPreferredName(), multiValueMode);
+        }
+        if (interval != null) {
+            builder.field(WeightedAvgHistogramParser.INTERVAL_FIELD.getPreferredName(), interval);
+        }
+        if (offset != null) {
+            builder.field(WeightedAvgHistogramParser.OFFSET_FIELD.getPreferredName(), offset);
+        }
+        if (minDocCount != null) {
+            builder.field(WeightedAvgHistogramParser.MIN_DOC_COUNT_FIELD.getPreferredName(), minDocCount);
+        }
+        if (keyed != null) {
+            builder.field(WeightedAvgHistogramParser.KEYED_FIELD.getPreferredName(), keyed);
+        }
+        if (ranges != null) {
+            builder.startArray(WeightedAvgHistogramParser.RANGES_FIELD.getPreferredName());
+            for (Range range : ranges) {
+                builder.startObject();
+                if (range.key != null) {
+                    builder.field(WeightedAvgHistogramParser.KEY_FIELD.getPreferredName(), range.key);
+                }
+                if (range.from != null) {
+                    builder.field(WeightedAvgHistogramParser.FROM_FIELD.getPreferredName(), range.from);
+                }
+                if (range.to != null) {
+                    builder.field(WeightedAvgHistogramParser.TO_FIELD.getPreferredName(), range.to);
+                }
+                builder.endObject();
+            }
+            builder.endArray();
+        }
+        return builder.endObject();
+    }
+
+    private static class Range {
+
+        private final String key;
+        private final Double from;
+        private final Double to;
+
+        Range(String key, Double from, Double to) {
+            this.key = key;
+            this.from = from;
+            this.to = to;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.aggregation.histogram;
+
+import org.elasticsearch.common.ParseField;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.opentender.nativescript.aggregation.weightedavg.IndicatorsParser;
+import org.elasticsearch.opentender.nativescript.profile.WeightProfileService;
+import org.elasticsearch.search.SearchParseException;
+import org.elasticsearch.search.aggregations.Aggregator;
+import org.elasticsearch.search.aggregations.AggregatorFactory;
+import org.elasticsearch.search.internal.SearchContext;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses the weighted_avg_histogram aggregation, either with fixed width buckets:
+ *
+ * <pre>
+ * "weighted_avg_histogram": {
+ *     "fields": ["value1", "value2"],
+ *     "weights": [0.5, 1.0],
+ *     "interval": 10,
+ *     "offset": 0,
+ *     "min_doc_count": 0
+ * }
+ * </pre>
+ *
+ * or with explicit ranges, {@code from} is inclusive and {@code to} exclusive:
+ *
+ * <pre>
+ * "weighted_avg_histogram": {
+ *     "profile": "integrity_v3",
+ *     "ranges": [{"to": 50}, {"from": 50, "to": 80}, {"from": 80, "key": "high"}]
+ * }
+ * </pre>
+ */
+public class WeightedAvgHistogramParser implements Aggregator.Parser {
+
+    public static final ParseField INTERVAL_FIELD = new ParseField("interval");
+    public static final ParseField OFFSET_FIELD = new ParseField("offset");
+    public static final ParseField MIN_DOC_COUNT_FIELD = new ParseField("min_doc_count");
+    public static final ParseField KEYED_FIELD = new ParseField("keyed");
+    public static final ParseField RANGES_FIELD = new ParseField("ranges");
+    public static final ParseField FROM_FIELD = new ParseField("from");
+    public static final ParseField TO_FIELD = new ParseField("to");
+    public static final ParseField KEY_FIELD = new ParseField("key");
+
+    private final WeightProfileService profileService;
+
+    @Inject
+    public WeightedAvgHistogramParser(WeightProfileService profileService) {
+        this.profileService = profileService;
+    }
+
+    @Override
+    public String type() {
+        return InternalWeightedAvgHistogram.TYPE.name();
+    }
+
+    @Override
+    public AggregatorFactory parse(String aggregationName, XContentParser parser, SearchContext context) throws IOException {
+        IndicatorsParser indicatorsParser = new IndicatorsParser(aggregationName, context, profileService);
+        double interval = 0;
+        double offset = 0;
+        long minDocCount = 0;
+        boolean keyed = false;
+        List<WeightedAvgHistogramAggregator.Range> ranges = null;
+
+        XContentParser.Token token;
+        String currentFieldName = null;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                currentFieldName = parser.currentName();
+            } else if (indicatorsParser.token(currentFieldName, token, parser)) {
+                continue;
+            } else if (token.isValue()) {
+                if (context.parseFieldMatcher().match(currentFieldName, INTERVAL_FIELD)) {
+                    interval = parser.doubleValue();
+                } else if (context.parseFieldMatcher().match(currentFieldName, OFFSET_FIELD)) {
+                    offset = parser.doubleValue();
+                } else if (context.parseFieldMatcher().match(currentFieldName, MIN_DOC_COUNT_FIELD)) {
+                    minDocCount = parser.longValue();
+                } else if (context.parseFieldMatcher().match(currentFieldName, KEYED_FIELD)) {
+                    keyed = parser.booleanValue();
+                } else {
+                    throw new SearchParseException(context, "Unknown key for a " + token + " in [" + aggregationName + "]: ["
+                            + currentFieldName + "].", parser.getTokenLocation());
+                }
+            } else if (token == XContentParser.Token.START_ARRAY
+                    && context.parseFieldMatcher().match(currentFieldName, RANGES_FIELD)) {
+                ranges = new ArrayList<>();
+                while ((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
+                    ranges.add(parseRange(aggregationName, parser, context));
+                }
+            } else {
+                throw new SearchParseException(context, "Unexpected token " + token + " in [" + aggregationName + "].",
+                        parser.getTokenLocation());
+            }
+        }
+
+        indicatorsParser.resolve(parser);
+        if (ranges == null) {
+            if (interval <= 0) {
+                throw new SearchParseException(context, "Missing required positive field [" + INTERVAL_FIELD.getPreferredName()
+                        + "] or field [" + RANGES_FIELD.getPreferredName() + "] for aggregation [" + aggregationName + "]",
+                        parser.getTokenLocation());
+            }
+        } else {
+            if (interval != 0) {
+                throw new SearchParseException(context, "[" + INTERVAL_FIELD.getPreferredName() + "] and [" + RANGES_FIELD.getPreferredName()
+                        + "] cannot be used together in aggregation [" + aggregationName + "]", parser.getTokenLocation());
+            }
+            if (ranges.isEmpty()) {
+                throw new SearchParseException(context, "No [" + RANGES_FIELD.getPreferredName() + "] specified for aggregation ["
+                        + aggregationName + "]", parser.getTokenLocation());
+            }
+        }
+        if (minDocCount < 0) {
+            throw new SearchParseException(context, "[" + MIN_DOC_COUNT_FIELD.getPreferredName() + "] of aggregation [" + aggregationName
+                    + "] must be greater than or equal to 0", parser.getTokenLocation());
+        }
+        return new WeightedAvgHistogramAggregator.Factory(aggregationName, indicatorsParser.fields(), indicatorsParser.weights(),
+                indicatorsParser.mode(), interval, offset, minDocCount, ranges, keyed);
+    }
+
+    private WeightedAvgHistogramAggregator.Range parseRange(String aggregationName, XContentParser parser,
+                                                            SearchContext context) throws IOException {
+        double from = Double.NEGATIVE_INFINITY;
+        double to = Double.POSITIVE_INFINITY;
+        String key = null;
+        XContentParser.Token token;
+        String currentFieldName = null;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                currentFieldName = parser.currentName();
+            } else if (token == XContentParser.Token.VALUE_NULL) {
+                continue;
+            } else if (token.isValue() && context.parseFieldMatcher().match(currentFieldName, FROM_FIELD)) {
+                from = parser.doubleValue();
+            } else if (token.isValue() && context.parseFieldMatcher().match(currentFieldName, TO_FIELD)) {
+                to = parser.doubleValue();
+            } else if (token.isValue() && context.parseFieldMatcher().match(currentFieldName, KEY_FIELD)) {
+                key = parser.text();
+            } else {
+                throw new SearchParseException(context, "Unknown key for a " + token + " in [" + aggregationName + "]: ["
+                        + currentFieldName + "].", parser.getTokenLocation());
+            }
+        }
+        return new WeightedAvgHistogramAggregator.Range(key, from, to);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.aggregation.parallel;
+
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The bounded thread pool evaluating the segments of {@code parallel} weighted average aggregations.
+ *
+ * The pool has {@value #THREADS_SETTING} threads, by default the number of processors,
+ * and a queue of {@value #QUEUE_SIZE_SETTING} tasks. A task that is rejected because the
+ * queue is full is run by the search thread itself, so a busy pool degrades to the
+ * sequential evaluation instead of failing the request. {@code 0} threads disable the pool.
+ */
+public class SegmentEvaluationService extends AbstractLifecycleComponent<SegmentEvaluationService> {
+
+    public static final String THREADS_SETTING = "opentender.parallel.threads";
+    public static final String QUEUE_SIZE_SETTING = "opentender.parallel.queue_size";
+
+    private final int threads;
+    private final int queueSize;
+
+    private volatile ExecutorService executor;
+
+    @Inject
+    public SegmentEvaluationService(Settings settings) {
+        super(settings);
+        this.threads = settings.getAsInt(THREADS_SETTING, EsExecutors.boundedNumberOfProcessors(settings));
+        this.queueSize = settings.getAsInt(QUEUE_SIZE_SETTING, 1000);
+    }
+
+    @Override
+    protected void doStart() {
+        if (threads > 0) {
+            executor = EsExecutors.newFixed("opentender_parallel", threads, queueSize,
+                    EsExecutors.daemonThreadFactory(settings, "opentender_parallel"));
+        }
+    }
+
+    @Override
+    protected void doStop() {
+    }
+
+    @Override
+    protected void doClose() {
+        final ExecutorService executor = this.executor;
+        this.executor = null;
+        if (executor != null) {
+            executor.shutdownNow();
+            try {
+                executor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return the number of threads of the pool, {@code 0} if it is disabled
+     */
+    public int threads() {
+        return executor == null ? 0 : threads;
+    }
+
+    /**
+     * Submits a task to the pool.
+     *
+     * @return the future of the task or {@code null} if the pool is disabled or rejected the task,
+     *         the caller runs the task itself then
+     */
+    public <T> Future<T> submit(Callable<T> task) {
+        final ExecutorService executor = this.executor;
+        if (executor == null) {
+            return null;
+        }
+        try {
+            return executor.submit(task);
+        } catch (EsRejectedExecutionException e) {
+            logger.trace("segment evaluation rejected, evaluating on the search thread", e);
+            return null;
+        }
+    }
+}
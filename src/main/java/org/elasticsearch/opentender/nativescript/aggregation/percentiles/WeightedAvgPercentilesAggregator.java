@@ -0,0 +1,177 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.aggregation.percentiles;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.elasticsearch.common.lease.Releasables;
+import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.common.util.ObjectArray;
+import org.elasticsearch.index.fielddata.IndexNumericFieldData;
+import org.elasticsearch.opentender.nativescript.aggregation.weightedavg.WeightedAvgAggregator;
+import org.elasticsearch.opentender.nativescript.script.weightedavg.IndicatorValues;
+import org.elasticsearch.opentender.nativescript.script.weightedavg.MultiValueMode;
+import org.elasticsearch.search.aggregations.Aggregator;
+import org.elasticsearch.search.aggregations.AggregatorFactory;
+import org.elasticsearch.search.aggregations.InternalAggregation;
+import org.elasticsearch.search.aggregations.LeafBucketCollector;
+import org.elasticsearch.search.aggregations.LeafBucketCollectorBase;
+import org.elasticsearch.search.aggregations.metrics.NumericMetricsAggregator;
+import org.elasticsearch.search.aggregations.metrics.percentiles.tdigest.InternalTDigestPercentiles;
+import org.elasticsearch.search.aggregations.metrics.percentiles.tdigest.TDigestState;
+import org.elasticsearch.search.aggregations.pipeline.PipelineAggregator;
+import org.elasticsearch.search.aggregations.support.AggregationContext;
+import org.elasticsearch.search.aggregations.support.format.ValueFormatter;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Feeds the weighted average of every collected document into a t-digest sketch.
+ *
+ * The sketch has a bounded size that only depends on the compression, it is
+ * streamed as centroids and merged in the reduce phase. The result is a regular
+ * {@code tdigest_percentiles} aggregation, so it can be read as
+ * {@link org.elasticsearch.search.aggregations.metrics.percentiles.Percentiles}.
+ */
+public class WeightedAvgPercentilesAggregator extends NumericMetricsAggregator.MultiValue {
+
+    public static final InternalAggregation.Type TYPE = new InternalAggregation.Type("weighted_avg_percentiles");
+
+    private final IndexNumericFieldData[] fieldData;
+    private final double[] weights;
+    private final MultiValueMode mode;
+    private final double[] keys;
+    private final double compression;
+    private final boolean keyed;
+
+    private ObjectArray<TDigestState> states;
+
+    public WeightedAvgPercentilesAggregator(String name, IndexNumericFieldData[] fieldData, double[] weights, MultiValueMode mode,
+                                            double[] keys, double compression, boolean keyed, AggregationContext context, Aggregator parent,
+                                            List<PipelineAggregator> pipelineAggregators, Map<String, Object> metaData) throws IOException {
+        super(name, context, parent, pipelineAggregators, metaData);
+        this.fieldData = fieldData;
+        this.weights = weights;
+        this.mode = mode;
+        this.keys = keys;
+        this.compression = compression;
+        this.keyed = keyed;
+        this.states = context.bigArrays().newObjectArray(1);
+    }
+
+    @Override
+    public boolean needsScores() {
+        return false;
+    }
+
+    @Override
+    public LeafBucketCollector getLeafCollector(LeafReaderContext ctx, final LeafBucketCollector sub) throws IOException {
+        final IndicatorValues values = IndicatorValues.load(ctx, fieldData, mode);
+        if (values.isEmpty()) {
+            return LeafBucketCollector.NO_OP_COLLECTOR;
+        }
+        final BigArrays bigArrays = context.bigArrays();
+        return new LeafBucketCollectorBase(sub, null) {
+            @Override
+            public void collect(int doc, long bucket) throws IOException {
+                double value = values.weightedAverage(doc, weights);
+                if (Double.isNaN(value)) {
+                    return;
+                }
+                states = bigArrays.grow(states, bucket + 1);
+                TDigestState state = states.get(bucket);
+                if (state == null) {
+                    state = new TDigestState(compression);
+                    states.set(bucket, state);
+                }
+                state.add(value);
+            }
+        };
+    }
+
+    private TDigestState getState(long bucketOrd) {
+        if (bucketOrd >= states.size()) {
+            return null;
+        }
+        return states.get(bucketOrd);
+    }
+
+    @Override
+    public boolean hasMetric(String name) {
+        return Arrays.binarySearch(keys, Double.parseDouble(name)) >= 0;
+    }
+
+    @Override
+    public double metric(String name, long bucketOrd) {
+        TDigestState state = getState(bucketOrd);
+        if (state == null) {
+            return Double.NaN;
+        }
+        return state.quantile(Double.parseDouble(name) / 100);
+    }
+
+    @Override
+    public InternalAggregation buildAggregation(long owningBucketOrdinal) {
+        TDigestState state = getState(owningBucketOrdinal);
+        if (state == null) {
+            return buildEmptyAggregation();
+        }
+        return new InternalTDigestPercentiles(name, keys, state, keyed, ValueFormatter.RAW, pipelineAggregators(), metaData());
+    }
+
+    @Override
+    public InternalAggregation buildEmptyAggregation() {
+        return new InternalTDigestPercentiles(name, keys, new TDigestState(compression), keyed, ValueFormatter.RAW,
+                pipelineAggregators(), metaData());
+    }
+
+    @Override
+    protected void doClose() {
+        Releasables.close(states);
+    }
+
+    public static class Factory extends AggregatorFactory {
+
+        private final String[] fields;
+        private final double[] weights;
+        private final MultiValueMode mode;
+        private final double[] keys;
+        private final double compression;
+        private final boolean keyed;
+
+        /**
+         * @param keys the sorted percents to return
+         */
+        public Factory(String name, String[] fields, double[] weights, MultiValueMode mode, double[] keys, double compression,
+                       boolean keyed) {
+            super(name, TYPE.name());
+            this.fields = fields;
+            this.weights = weights;
+            this.mode = mode;
+            this.keys = keys;
+            this.compression = compression;
+            this.keyed = keyed;
+        }
+
+        @Override
+        protected Aggregator createInternal(AggregationContext context, Aggregator parent, boolean collectsFromSingleBucket,
+                                            List<PipelineAggregator> pipelineAggregators, Map<String, Object> metaData) throws IOException {
+            return new WeightedAvgPercentilesAggregator(name, WeightedAvgAggregator.resolveFieldData(context.searchContext(), name, fields),
+                    weights, mode, keys, compression, keyed, context, parent, pipelineAggregators, metaData);
+        }
+    }
+}
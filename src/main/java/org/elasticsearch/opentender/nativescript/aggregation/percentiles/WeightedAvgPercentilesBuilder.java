@@ -0,0 +1,128 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.aggregation.percentiles;
+
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.opentender.nativescript.aggregation.weightedavg.IndicatorsParser;
+import org.elasticsearch.search.aggregations.metrics.MetricsAggregationBuilder;
+
+import java.io.IOException;
+
+/**
+ * Builder for the weighted_avg_percentiles aggregation
+ */
+public class WeightedAvgPercentilesBuilder extends MetricsAggregationBuilder<WeightedAvgPercentilesBuilder> {
+
+    private String[] fields;
+    private double[] weights;
+    private String profile;
+    private String multiValueMode;
+    private double[] percents;
+    private Double compression;
+    private Boolean keyed;
+
+    public WeightedAvgPercentilesBuilder(String name) {
+        super(name, WeightedAvgPercentilesAggregator.TYPE.name());
+    }
+
+    /**
+     * Sets the indicator fields the weighted average is computed from.
+     */
+    public WeightedAvgPercentilesBuilder fields(String... fields) {
+        this.fields = fields;
+        return this;
+    }
+
+    /**
+     * Sets the weights of the indicator fields, in the same order as the fields.
+     */
+    public WeightedAvgPercentilesBuilder weights(double... weights) {
+        this.weights = weights;
+        return this;
+    }
+
+    /**
+     * Sets the name of a registered weight profile to use instead of the fields and weights.
+     */
+    public WeightedAvgPercentilesBuilder profile(String profile) {
+        this.profile = profile;
+        return this;
+    }
+
+    /**
+     * Sets how the value of multi-valued indicator fields is selected: first (default), min, max, avg or sum.
+     */
+    public WeightedAvgPercentilesBuilder multiValueMode(String multiValueMode) {
+        this.multiValueMode = multiValueMode;
+        return this;
+    }
+
+    /**
+     * Sets the percents to return, between 0 and 100.
+     */
+    public WeightedAvgPercentilesBuilder percents(double... percents) {
+        this.percents = percents;
+        return this;
+    }
+
+    /**
+     * Sets the t-digest compression, higher values are more accurate and use more memory.
+     */
+    public WeightedAvgPercentilesBuilder compression(double compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    /**
+     * Returns the percentiles as object keyed by the percent instead of an array.
+     */
+    public WeightedAvgPercentilesBuilder keyed(boolean keyed) {
+        this.keyed = keyed;
+        return this;
+    }
+
+    @Override
+    protected void internalXContent(XContentBuilder builder, Params params) throws IOException {
+        if (fields != null) {
+            builder.array(IndicatorsParser.FIELDS_FIELD.getPreferredName(), fields);
+        }
+        if (weights != null) {
+            builder.startArray(IndicatorsParser.WEIGHTS_FIELD.getPreferredName());
+            for (double weight : weights) {
+                builder.value(weight);
+            }
+            builder.endArray();
+        }
+        if (profile != null) {
+            builder.field(IndicatorsParser.PROFILE_FIELD.getPreferredName(), profile);
+        }
+        if (multiValueMode != null) {
+            builder.field(IndicatorsParser.MULTI_VALUE_MODE_FIELD.getPreferredName(), multiValueMode);
+        }
+        if (percents != null) {
+            builder.startArray(WeightedAvgPercentilesParser.PERCENTS_FIELD.getPreferredName());
+            for (double percent : percents) {
+                builder.value(percent);
+            }
+            builder.endArray();
+        }
+        if (compression != null) {
+            builder.field(WeightedAvgPercentilesParser.COMPRESSION_FIELD.getPreferredName(), compression);
+        }
+        if (keyed != null) {
+            builder.field(WeightedAvgPercentilesParser.KEYED_FIELD.getPreferredName(), keyed);
+        }
+    }
+}
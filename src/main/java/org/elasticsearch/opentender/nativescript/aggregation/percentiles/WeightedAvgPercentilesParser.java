@@ -0,0 +1,118 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.aggregation.percentiles;
+
+import org.elasticsearch.common.ParseField;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.opentender.nativescript.aggregation.weightedavg.IndicatorsParser;
+import org.elasticsearch.opentender.nativescript.profile.WeightProfileService;
+import org.elasticsearch.search.SearchParseException;
+import org.elasticsearch.search.aggregations.Aggregator;
+import org.elasticsearch.search.aggregations.AggregatorFactory;
+import org.elasticsearch.search.internal.SearchContext;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Parses the weighted_avg_percentiles aggregation:
+ *
+ * <pre>
+ * "weighted_avg_percentiles": {
+ *     "fields": ["value1", "value2"],
+ *     "weights": [0.5, 1.0],
+ *     "percents": [50, 90, 99],
+ *     "compression": 100
+ * }
+ * </pre>
+ */
+public class WeightedAvgPercentilesParser implements Aggregator.Parser {
+
+    public static final ParseField PERCENTS_FIELD = new ParseField("percents");
+    public static final ParseField COMPRESSION_FIELD = new ParseField("compression");
+    public static final ParseField KEYED_FIELD = new ParseField("keyed");
+
+    public static final double[] DEFAULT_PERCENTS = new double[]{1, 5, 25, 50, 75, 95, 99};
+    public static final double DEFAULT_COMPRESSION = 100;
+
+    private final WeightProfileService profileService;
+
+    @Inject
+    public WeightedAvgPercentilesParser(WeightProfileService profileService) {
+        this.profileService = profileService;
+    }
+
+    @Override
+    public String type() {
+        return WeightedAvgPercentilesAggregator.TYPE.name();
+    }
+
+    @Override
+    public AggregatorFactory parse(String aggregationName, XContentParser parser, SearchContext context) throws IOException {
+        IndicatorsParser indicatorsParser = new IndicatorsParser(aggregationName, context, profileService);
+        double[] percents = DEFAULT_PERCENTS;
+        double compression = DEFAULT_COMPRESSION;
+        boolean keyed = true;
+
+        XContentParser.Token token;
+        String currentFieldName = null;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                currentFieldName = parser.currentName();
+            } else if (indicatorsParser.token(currentFieldName, token, parser)) {
+                continue;
+            } else if (token.isValue()) {
+                if (context.parseFieldMatcher().match(currentFieldName, COMPRESSION_FIELD)) {
+                    compression = parser.doubleValue();
+                } else if (context.parseFieldMatcher().match(currentFieldName, KEYED_FIELD)) {
+                    keyed = parser.booleanValue();
+                } else {
+                    throw new SearchParseException(context, "Unknown key for a " + token + " in [" + aggregationName + "]: ["
+                            + currentFieldName + "].", parser.getTokenLocation());
+                }
+            } else if (token == XContentParser.Token.START_ARRAY
+                    && context.parseFieldMatcher().match(currentFieldName, PERCENTS_FIELD)) {
+                List<Double> values = new ArrayList<>();
+                while ((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
+                    double value = parser.doubleValue();
+                    if (value < 0 || value > 100) {
+                        throw new SearchParseException(context, "the percents in the percentiles aggregation [" + aggregationName
+                                + "] must be in the [0, 100] range", parser.getTokenLocation());
+                    }
+                    values.add(value);
+                }
+                percents = new double[values.size()];
+                for (int i = 0; i < percents.length; i++) {
+                    percents[i] = values.get(i);
+                }
+                Arrays.sort(percents);
+            } else {
+                throw new SearchParseException(context, "Unexpected token " + token + " in [" + aggregationName + "].",
+                        parser.getTokenLocation());
+            }
+        }
+
+        indicatorsParser.resolve(parser);
+        if (compression <= 0) {
+            throw new SearchParseException(context, "[" + COMPRESSION_FIELD.getPreferredName() + "] of aggregation [" + aggregationName
+                    + "] must be greater than 0", parser.getTokenLocation());
+        }
+        return new WeightedAvgPercentilesAggregator.Factory(aggregationName, indicatorsParser.fields(), indicatorsParser.weights(),
+                indicatorsParser.mode(), percents, compression, keyed);
+    }
+}
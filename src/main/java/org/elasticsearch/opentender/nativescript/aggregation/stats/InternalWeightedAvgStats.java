@@ -0,0 +1,278 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.aggregation.stats;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.search.aggregations.AggregationStreams;
+import org.elasticsearch.search.aggregations.InternalAggregation;
+import org.elasticsearch.search.aggregations.metrics.InternalNumericMetricsAggregation;
+import org.elasticsearch.search.aggregations.metrics.stats.extended.ExtendedStats;
+import org.elasticsearch.search.aggregations.pipeline.PipelineAggregator;
+import org.elasticsearch.search.aggregations.support.format.ValueFormatter;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shard and reduced result of the weighted_avg_stats aggregation.
+ *
+ * The variance is kept as mean and sum of squared differences from the mean
+ * (Welford), shard results are merged with the parallel formula of Chan et al.
+ * instead of subtracting large sums of squares.
+ */
+public class InternalWeightedAvgStats extends InternalNumericMetricsAggregation.MultiValue implements ExtendedStats {
+
+    public final static Type TYPE = new Type("weighted_avg_stats");
+
+    public final static AggregationStreams.Stream STREAM = new AggregationStreams.Stream() {
+        @Override
+        public InternalWeightedAvgStats readResult(StreamInput in) throws IOException {
+            InternalWeightedAvgStats result = new InternalWeightedAvgStats();
+            result.readFrom(in);
+            return result;
+        }
+    };
+
+    public static void registerStreams() {
+        AggregationStreams.registerStream(STREAM, TYPE.stream());
+    }
+
+    enum Metrics {
+        count, sum, min, max, avg, sum_of_squares, variance, std_deviation, std_upper, std_lower
+    }
+
+    private long count;
+    private double sum;
+    private double min;
+    private double max;
+    private double mean;
+    private double m2;
+    private double sigma;
+
+    InternalWeightedAvgStats() {
+        this.valueFormatter = ValueFormatter.RAW;
+    } // for serialization
+
+    /**
+     * @param mean the mean of the values
+     * @param m2   the sum of the squared differences from the mean
+     */
+    public InternalWeightedAvgStats(String name, long count, double sum, double min, double max, double mean, double m2,
+                                    double sigma, List<PipelineAggregator> pipelineAggregators, Map<String, Object> metaData) {
+        super(name, pipelineAggregators, metaData);
+        this.count = count;
+        this.sum = sum;
+        this.min = min;
+        this.max = max;
+        this.mean = mean;
+        this.m2 = m2;
+        this.sigma = sigma;
+        this.valueFormatter = ValueFormatter.RAW;
+    }
+
+    @Override
+    public Type type() {
+        return TYPE;
+    }
+
+    @Override
+    public double value(String name) {
+        switch (Metrics.valueOf(name)) {
+            case count:
+                return count;
+            case sum:
+                return sum;
+            case min:
+                return min;
+            case max:
+                return max;
+            case avg:
+                return getAvg();
+            case sum_of_squares:
+                return getSumOfSquares();
+            case variance:
+                return getVariance();
+            case std_deviation:
+                return getStdDeviation();
+            case std_upper:
+                return getStdDeviationBound(Bounds.UPPER);
+            case std_lower:
+                return getStdDeviationBound(Bounds.LOWER);
+            default:
+                throw new IllegalArgumentException("Unknown value [" + name + "] in weighted_avg_stats aggregation");
+        }
+    }
+
+    @Override
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public double getMin() {
+        return min;
+    }
+
+    @Override
+    public double getMax() {
+        return max;
+    }
+
+    @Override
+    public double getAvg() {
+        return sum / count;
+    }
+
+    @Override
+    public double getSum() {
+        return sum;
+    }
+
+    @Override
+    public double getSumOfSquares() {
+        return m2 + count * mean * mean;
+    }
+
+    @Override
+    public double getVariance() {
+        return m2 / count;
+    }
+
+    @Override
+    public double getStdDeviation() {
+        return Math.sqrt(getVariance());
+    }
+
+    @Override
+    public double getStdDeviationBound(Bounds bound) {
+        if (bound == Bounds.UPPER) {
+            return getAvg() + getStdDeviation() * sigma;
+        }
+        return getAvg() - getStdDeviation() * sigma;
+    }
+
+    @Override
+    public String getCountAsString() {
+        return valueAsString(Metrics.count.name());
+    }
+
+    @Override
+    public String getMinAsString() {
+        return valueAsString(Metrics.min.name());
+    }
+
+    @Override
+    public String getMaxAsString() {
+        return valueAsString(Metrics.max.name());
+    }
+
+    @Override
+    public String getAvgAsString() {
+        return valueAsString(Metrics.avg.name());
+    }
+
+    @Override
+    public String getSumAsString() {
+        return valueAsString(Metrics.sum.name());
+    }
+
+    @Override
+    public String getSumOfSquaresAsString() {
+        return valueAsString(Metrics.sum_of_squares.name());
+    }
+
+    @Override
+    public String getVarianceAsString() {
+        return valueAsString(Metrics.variance.name());
+    }
+
+    @Override
+    public String getStdDeviationAsString() {
+        return valueAsString(Metrics.std_deviation.name());
+    }
+
+    @Override
+    public String getStdDeviationBoundAsString(Bounds bound) {
+        return valueAsString(bound == Bounds.UPPER ? Metrics.std_upper.name() : Metrics.std_lower.name());
+    }
+
+    @Override
+    public InternalWeightedAvgStats doReduce(List<InternalAggregation> aggregations, ReduceContext reduceContext) {
+        long count = 0;
+        double sum = 0;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        double mean = 0;
+        double m2 = 0;
+        for (InternalAggregation aggregation : aggregations) {
+            InternalWeightedAvgStats stats = (InternalWeightedAvgStats) aggregation;
+            if (stats.count == 0) {
+                continue;
+            }
+            long total = count + stats.count;
+            double delta = stats.mean - mean;
+            mean += delta * stats.count / total;
+            m2 += stats.m2 + delta * delta * count * stats.count / total;
+            count = total;
+            sum += stats.sum;
+            min = Math.min(min, stats.min);
+            max = Math.max(max, stats.max);
+        }
+        return new InternalWeightedAvgStats(getName(), count, sum, min, max, mean, m2, sigma, pipelineAggregators(), getMetaData());
+    }
+
+    @Override
+    protected void doReadFrom(StreamInput in) throws IOException {
+        count = in.readVLong();
+        sum = in.readDouble();
+        min = in.readDouble();
+        max = in.readDouble();
+        mean = in.readDouble();
+        m2 = in.readDouble();
+        sigma = in.readDouble();
+    }
+
+    @Override
+    protected void doWriteTo(StreamOutput out) throws IOException {
+        out.writeVLong(count);
+        out.writeDouble(sum);
+        out.writeDouble(min);
+        out.writeDouble(max);
+        out.writeDouble(mean);
+        out.writeDouble(m2);
+        out.writeDouble(sigma);
+    }
+
+    @Override
+    public XContentBuilder doXContentBody(XContentBuilder builder, Params params) throws IOException {
+        final boolean empty = count == 0;
+        builder.field(Metrics.count.name(), count);
+        builder.field(Metrics.min.name(), empty ? null : min);
+        builder.field(Metrics.max.name(), empty ? null : max);
+        builder.field(Metrics.avg.name(), empty ? null : getAvg());
+        builder.field(Metrics.sum.name(), empty ? null : sum);
+        builder.field(Metrics.sum_of_squares.name(), empty ? null : getSumOfSquares());
+        builder.field(Metrics.variance.name(), empty ? null : getVariance());
+        builder.field(Metrics.std_deviation.name(), empty ? null : getStdDeviation());
+        builder.startObject("std_deviation_bounds")
+                .field("upper", empty ? null : getStdDeviationBound(Bounds.UPPER))
+                .field("lower", empty ? null : getStdDeviationBound(Bounds.LOWER))
+                .endObject();
+        return builder;
+    }
+}
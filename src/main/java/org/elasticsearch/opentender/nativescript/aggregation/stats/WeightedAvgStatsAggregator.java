@@ -0,0 +1,215 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.aggregation.stats;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.elasticsearch.common.lease.Releasables;
+import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.common.util.DoubleArray;
+import org.elasticsearch.common.util.LongArray;
+import org.elasticsearch.index.fielddata.IndexNumericFieldData;
+import org.elasticsearch.opentender.nativescript.aggregation.cache.ShardResultCache;
+import org.elasticsearch.opentender.nativescript.aggregation.weightedavg.WeightedAvgAggregator;
+import org.elasticsearch.opentender.nativescript.script.weightedavg.IndicatorValues;
+import org.elasticsearch.opentender.nativescript.script.weightedavg.MultiValueMode;
+import org.elasticsearch.search.aggregations.Aggregator;
+import org.elasticsearch.search.aggregations.AggregatorFactory;
+import org.elasticsearch.search.aggregations.InternalAggregation;
+import org.elasticsearch.search.aggregations.LeafBucketCollector;
+import org.elasticsearch.search.aggregations.LeafBucketCollectorBase;
+import org.elasticsearch.search.aggregations.metrics.NumericMetricsAggregator;
+import org.elasticsearch.search.aggregations.pipeline.PipelineAggregator;
+import org.elasticsearch.search.aggregations.support.AggregationContext;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Computes count, sum, min, max and the variance of the per document weighted
+ * averages in a single pass, the state of every owning bucket is kept in
+ * primitive big arrays.
+ *
+ * A top level aggregation keeps its shard level state in the {@link ShardResultCache},
+ * a repeated request on an unchanged shard takes it from the cache and skips the
+ * evaluation of the documents.
+ */
+public class WeightedAvgStatsAggregator extends NumericMetricsAggregator.MultiValue {
+
+    private final IndexNumericFieldData[] fieldData;
+    private final double[] weights;
+    private final MultiValueMode mode;
+    private final double sigma;
+    private final ShardResultCache cache;
+    private final ShardResultCache.Key cacheKey;
+    private final boolean cached;
+
+    private LongArray counts;
+    private DoubleArray sums;
+    private DoubleArray mins;
+    private DoubleArray maxes;
+    private DoubleArray means;
+    private DoubleArray m2s;
+
+    public WeightedAvgStatsAggregator(String name, String[] fields, IndexNumericFieldData[] fieldData, double[] weights,
+                                      MultiValueMode mode, double sigma, ShardResultCache cache, AggregationContext context,
+                                      Aggregator parent, List<PipelineAggregator> pipelineAggregators,
+                                      Map<String, Object> metaData) throws IOException {
+        super(name, context, parent, pipelineAggregators, metaData);
+        this.fieldData = fieldData;
+        this.weights = weights;
+        this.mode = mode;
+        this.sigma = sigma;
+        final BigArrays bigArrays = context.bigArrays();
+        this.counts = bigArrays.newLongArray(1, true);
+        this.sums = bigArrays.newDoubleArray(1, true);
+        this.mins = bigArrays.newDoubleArray(1, false);
+        this.mins.fill(0, mins.size(), Double.POSITIVE_INFINITY);
+        this.maxes = bigArrays.newDoubleArray(1, false);
+        this.maxes.fill(0, maxes.size(), Double.NEGATIVE_INFINITY);
+        this.means = bigArrays.newDoubleArray(1, true);
+        this.m2s = bigArrays.newDoubleArray(1, true);
+        this.cache = cache;
+        this.cacheKey = cache == null ? null
+                : cache.key(context.searchContext(), InternalWeightedAvgStats.TYPE.name(), fields, weights, mode);
+        final double[] state = cacheKey == null ? null : cache.get(cacheKey);
+        this.cached = state != null;
+        if (cached) {
+            counts.set(0, (long) state[0]);
+            sums.set(0, state[1]);
+            mins.set(0, state[2]);
+            maxes.set(0, state[3]);
+            means.set(0, state[4]);
+            m2s.set(0, state[5]);
+        }
+    }
+
+    @Override
+    public boolean needsScores() {
+        return false;
+    }
+
+    @Override
+    public LeafBucketCollector getLeafCollector(LeafReaderContext ctx, final LeafBucketCollector sub) throws IOException {
+        if (cached) {
+            return LeafBucketCollector.NO_OP_COLLECTOR;
+        }
+        final IndicatorValues values = IndicatorValues.load(ctx, fieldData, mode);
+        if (values.isEmpty()) {
+            return LeafBucketCollector.NO_OP_COLLECTOR;
+        }
+        final BigArrays bigArrays = context.bigArrays();
+        return new LeafBucketCollectorBase(sub, null) {
+            @Override
+            public void collect(int doc, long bucket) throws IOException {
+                final double value = values.weightedAverage(doc, weights);
+                if (Double.isNaN(value)) {
+                    return;
+                }
+                if (bucket >= counts.size()) {
+                    final long from = counts.size();
+                    final long overSize = BigArrays.overSize(bucket + 1);
+                    counts = bigArrays.resize(counts, overSize);
+                    sums = bigArrays.resize(sums, overSize);
+                    mins = bigArrays.resize(mins, overSize);
+                    mins.fill(from, overSize, Double.POSITIVE_INFINITY);
+                    maxes = bigArrays.resize(maxes, overSize);
+                    maxes.fill(from, overSize, Double.NEGATIVE_INFINITY);
+                    means = bigArrays.resize(means, overSize);
+                    m2s = bigArrays.resize(m2s, overSize);
+                }
+                final long count = counts.increment(bucket, 1);
+                sums.increment(bucket, value);
+                mins.set(bucket, Math.min(mins.get(bucket), value));
+                maxes.set(bucket, Math.max(maxes.get(bucket), value));
+                final double mean = means.get(bucket);
+                final double delta = value - mean;
+                final double newMean = mean + delta / count;
+                means.set(bucket, newMean);
+                m2s.increment(bucket, delta * (value - newMean));
+            }
+        };
+    }
+
+    @Override
+    protected void doPostCollection() throws IOException {
+        if (cacheKey != null && cached == false) {
+            cache.put(cacheKey, context.searchContext(), new double[]{counts.get(0), sums.get(0), mins.get(0), maxes.get(0),
+                    means.get(0), m2s.get(0)});
+        }
+    }
+
+    @Override
+    public boolean hasMetric(String name) {
+        try {
+            InternalWeightedAvgStats.Metrics.valueOf(name);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public double metric(String name, long owningBucketOrd) {
+        return ((InternalWeightedAvgStats) buildAggregation(owningBucketOrd)).value(name);
+    }
+
+    @Override
+    public InternalAggregation buildAggregation(long owningBucketOrdinal) {
+        if (owningBucketOrdinal >= counts.size() || counts.get(owningBucketOrdinal) == 0) {
+            return buildEmptyAggregation();
+        }
+        return new InternalWeightedAvgStats(name, counts.get(owningBucketOrdinal), sums.get(owningBucketOrdinal),
+                mins.get(owningBucketOrdinal), maxes.get(owningBucketOrdinal), means.get(owningBucketOrdinal),
+                m2s.get(owningBucketOrdinal), sigma, pipelineAggregators(), metaData());
+    }
+
+    @Override
+    public InternalAggregation buildEmptyAggregation() {
+        return new InternalWeightedAvgStats(name, 0, 0, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, 0, 0, sigma,
+                pipelineAggregators(), metaData());
+    }
+
+    @Override
+    protected void doClose() {
+        Releasables.close(counts, sums, mins, maxes, means, m2s);
+    }
+
+    public static class Factory extends AggregatorFactory {
+
+        private final String[] fields;
+        private final double[] weights;
+        private final MultiValueMode mode;
+        private final double sigma;
+        private final ShardResultCache cache;
+
+        public Factory(String name, String[] fields, double[] weights, MultiValueMode mode, double sigma, ShardResultCache cache) {
+            super(name, InternalWeightedAvgStats.TYPE.name());
+            this.fields = fields;
+            this.weights = weights;
+            this.mode = mode;
+            this.sigma = sigma;
+            this.cache = cache;
+        }
+
+        @Override
+        protected Aggregator createInternal(AggregationContext context, Aggregator parent, boolean collectsFromSingleBucket,
+                                            List<PipelineAggregator> pipelineAggregators, Map<String, Object> metaData) throws IOException {
+            return new WeightedAvgStatsAggregator(name, fields,
+                    WeightedAvgAggregator.resolveFieldData(context.searchContext(), name, fields), weights, mode, sigma,
+                    parent == null ? cache : null, context, parent, pipelineAggregators, metaData);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.aggregation.stats;
+
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.opentender.nativescript.aggregation.weightedavg.IndicatorsParser;
+import org.elasticsearch.search.aggregations.metrics.MetricsAggregationBuilder;
+
+import java.io.IOException;
+
+/**
+ * Builder for the weighted_avg_stats aggregation
+ */
+public class WeightedAvgStatsBuilder extends MetricsAggregationBuilder<WeightedAvgStatsBuilder> {
+
+    private String[] fields;
+    private double[] weights;
+    private String profile;
+    private String multiValueMode;
+    private Double sigma;
+
+    public WeightedAvgStatsBuilder(String name) {
+        super(name, InternalWeightedAvgStats.TYPE.name());
+    }
+
+    /**
+     * Sets the indicator fields the weighted average is computed from.
+     */
+    public WeightedAvgStatsBuilder fields(String... fields) {
+        this.fields = fields;
+        return this;
+    }
+
+    /**
+     * Sets the weights of the indicator fields, in the same order as the fields.
+     */
+    public WeightedAvgStatsBuilder weights(double... weights) {
+        this.weights = weights;
+        return this;
+    }
+
+    /**
+     * Sets the name of a registered weight profile to use instead of the fields and weights.
+     */
+    public WeightedAvgStatsBuilder profile(String profile) {
+        this.profile = profile;
+        return this;
+    }
+
+    /**
+     * Sets how the value of multi-valued indicator fields is selected: first (default), min, max, avg or sum.
+     */
+    public WeightedAvgStatsBuilder multiValueMode(String multiValueMode) {
+        this.multiValueMode = multiValueMode;
+        return this;
+    }
+
+    /**
+     * Sets the number of standard deviations of the bounds around the average.
+     */
+    public WeightedAvgStatsBuilder sigma(double sigma) {
+        this.sigma = sigma;
+        return this;
+    }
+
+    @Override
+    protected void internalXContent(XContentBuilder builder, Params params) throws IOException {
+        if (fields != null) {
+            builder.array(IndicatorsParser.FIELDS_FIELD.getPreferredName(), fields);
+        }
+        if (weights != null) {
+            builder.startArray(IndicatorsParser.WEIGHTS_FIELD.getPreferredName());
+            for (double weight : weights) {
+                builder.value(weight);
+            }
+            builder.endArray();
+        }
+        if (profile != null) {
+            builder.field(IndicatorsParser.PROFILE_FIELD.getPreferredName(), profile);
+        }
+        if (multiValueMode != null) {
+            builder.field(IndicatorsParser.MULTI_VALUE_MODE_FIELD.getPreferredName(), multiValueMode);
+        }
+        if (sigma != null) {
+            builder.field(WeightedAvgStatsParser.SIGMA_FIELD.getPreferredName(), sigma);
+        }
+    }
+}
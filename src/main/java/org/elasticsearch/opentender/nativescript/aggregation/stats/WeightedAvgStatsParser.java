@@ -0,0 +1,87 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.aggregation.stats;
+
+import org.elasticsearch.common.ParseField;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.opentender.nativescript.aggregation.cache.ShardResultCache;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.opentender.nativescript.aggregation.weightedavg.IndicatorsParser;
+import org.elasticsearch.opentender.nativescript.profile.WeightProfileService;
+import org.elasticsearch.search.SearchParseException;
+import org.elasticsearch.search.aggregations.Aggregator;
+import org.elasticsearch.search.aggregations.AggregatorFactory;
+import org.elasticsearch.search.internal.SearchContext;
+
+import java.io.IOException;
+
+/**
+ * Parses the weighted_avg_stats aggregation:
+ *
+ * <pre>
+ * "weighted_avg_stats": {
+ *     "fields": ["value1", "value2"],
+ *     "weights": [0.5, 1.0],
+ *     "sigma": 2
+ * }
+ * </pre>
+ */
+public class WeightedAvgStatsParser implements Aggregator.Parser {
+
+    public static final ParseField SIGMA_FIELD = new ParseField("sigma");
+
+    private final WeightProfileService profileService;
+    private final ShardResultCache cache;
+
+    @Inject
+    public WeightedAvgStatsParser(WeightProfileService profileService, ShardResultCache cache) {
+        this.profileService = profileService;
+        this.cache = cache;
+    }
+
+    @Override
+    public String type() {
+        return InternalWeightedAvgStats.TYPE.name();
+    }
+
+    @Override
+    public AggregatorFactory parse(String aggregationName, XContentParser parser, SearchContext context) throws IOException {
+        IndicatorsParser indicatorsParser = new IndicatorsParser(aggregationName, context, profileService);
+        double sigma = 2.0;
+
+        XContentParser.Token token;
+        String currentFieldName = null;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                currentFieldName = parser.currentName();
+            } else if (indicatorsParser.token(currentFieldName, token, parser)) {
+                continue;
+            } else if (token.isValue() && context.parseFieldMatcher().match(currentFieldName, SIGMA_FIELD)) {
+                sigma = parser.doubleValue();
+            } else {
+                throw new SearchParseException(context, "Unexpected token " + token + " in [" + aggregationName + "].",
+                        parser.getTokenLocation());
+            }
+        }
+
+        indicatorsParser.resolve(parser);
+        if (sigma < 0) {
+            throw new SearchParseException(context, "[" + SIGMA_FIELD.getPreferredName() + "] of aggregation [" + aggregationName
+                    + "] must be greater than or equal to 0", parser.getTokenLocation());
+        }
+        return new WeightedAvgStatsAggregator.Factory(aggregationName, indicatorsParser.fields(), indicatorsParser.weights(),
+                indicatorsParser.mode(), sigma, cache);
+    }
+}
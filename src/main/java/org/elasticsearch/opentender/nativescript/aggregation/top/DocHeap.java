@@ -0,0 +1,133 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.aggregation.top;
+
+import org.apache.lucene.util.ArrayUtil;
+
+import java.util.Arrays;
+
+/**
+ * Bounded min heap of doc ids keyed by primitive double scores, keeps the
+ * documents with the highest keys.
+ *
+ * The root is the weakest document, of equal keys the one with the higher doc id,
+ * so with documents offered in doc id order the earlier documents win ties. The
+ * arrays start small and grow up to the capacity.
+ */
+final class DocHeap {
+
+    private final int capacity;
+    private double[] keys;
+    private int[] docs;
+    private int size;
+
+    DocHeap(int capacity) {
+        this.capacity = capacity;
+        final int initial = Math.min(capacity, 16);
+        this.keys = new double[initial];
+        this.docs = new int[initial];
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return {@code true} if a document with the key would be added
+     */
+    boolean competitive(double key) {
+        return size < capacity || key > keys[0];
+    }
+
+    /**
+     * Adds the document if it is competitive, replacing the weakest one of a full heap.
+     */
+    void offer(double key, int doc) {
+        if (size < capacity) {
+            if (size == keys.length) {
+                final int length = Math.min(capacity, ArrayUtil.oversize(size + 1, 8));
+                keys = Arrays.copyOf(keys, length);
+                docs = Arrays.copyOf(docs, length);
+            }
+            keys[size] = key;
+            docs[size] = doc;
+            upHeap(size++);
+        } else if (key > keys[0]) {
+            keys[0] = key;
+            docs[0] = doc;
+            downHeap(0);
+        }
+    }
+
+    /**
+     * Empties the heap into the arrays, best document first.
+     *
+     * @return the number of documents
+     */
+    int drain(double[] sortedKeys, int[] sortedDocs) {
+        final int count = size;
+        for (int i = count - 1; i >= 0; i--) {
+            sortedKeys[i] = keys[0];
+            sortedDocs[i] = docs[0];
+            size--;
+            if (size > 0) {
+                keys[0] = keys[size];
+                docs[0] = docs[size];
+                downHeap(0);
+            }
+        }
+        return count;
+    }
+
+    private boolean lessThan(int a, int b) {
+        return keys[a] < keys[b] || (keys[a] == keys[b] && docs[a] > docs[b]);
+    }
+
+    private void upHeap(int i) {
+        while (i > 0) {
+            final int parent = (i - 1) >>> 1;
+            if (lessThan(i, parent) == false) {
+                return;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void downHeap(int i) {
+        while (true) {
+            final int left = 2 * i + 1;
+            if (left >= size) {
+                return;
+            }
+            final int right = left + 1;
+            final int child = right < size && lessThan(right, left) ? right : left;
+            if (lessThan(child, i) == false) {
+                return;
+            }
+            swap(i, child);
+            i = child;
+        }
+    }
+
+    private void swap(int a, int b) {
+        final double key = keys[a];
+        keys[a] = keys[b];
+        keys[b] = key;
+        final int doc = docs[a];
+        docs[a] = docs[b];
+        docs[b] = doc;
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.aggregation.top;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.search.aggregations.AggregationStreams;
+import org.elasticsearch.search.aggregations.InternalAggregation;
+import org.elasticsearch.search.aggregations.metrics.InternalMetricsAggregation;
+import org.elasticsearch.search.aggregations.pipeline.PipelineAggregator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shard and reduced result of the top_weighted_avg aggregation.
+ *
+ * Every shard sends at most {@code size} documents, the reduce merges them and
+ * keeps the best {@code size}. Documents with the same weighted average are ordered
+ * by index, type and id, so the result does not depend on the order of the shards.
+ */
+public class InternalTopWeightedAvg extends InternalMetricsAggregation implements TopWeightedAvg {
+
+    public final static Type TYPE = new Type("top_weighted_avg");
+
+    public final static AggregationStreams.Stream STREAM = new AggregationStreams.Stream() {
+        @Override
+        public InternalTopWeightedAvg readResult(StreamInput in) throws IOException {
+            InternalTopWeightedAvg result = new InternalTopWeightedAvg();
+            result.readFrom(in);
+            return result;
+        }
+    };
+
+    public static void registerStreams() {
+        AggregationStreams.registerStream(STREAM, TYPE.stream());
+    }
+
+    private int size;
+    private boolean ascending;
+    private List<Hit> hits;
+
+    InternalTopWeightedAvg() {
+    } // for serialization
+
+    public InternalTopWeightedAvg(String name, int size, boolean ascending, List<Hit> hits,
+                                  List<PipelineAggregator> pipelineAggregators, Map<String, Object> metaData) {
+        super(name, pipelineAggregators, metaData);
+        this.size = size;
+        this.ascending = ascending;
+        this.hits = hits;
+    }
+
+    @Override
+    public List<TopWeightedAvg.Hit> getHits() {
+        return Collections.<TopWeightedAvg.Hit>unmodifiableList(hits);
+    }
+
+    @Override
+    public Type type() {
+        return TYPE;
+    }
+
+    @Override
+    public InternalTopWeightedAvg doReduce(List<InternalAggregation> aggregations, ReduceContext reduceContext) {
+        final List<Hit> merged = new ArrayList<>();
+        for (InternalAggregation aggregation : aggregations) {
+            merged.addAll(((InternalTopWeightedAvg) aggregation).hits);
+        }
+        Collections.sort(merged, comparator(ascending));
+        return new InternalTopWeightedAvg(getName(), size, ascending,
+                new ArrayList<>(merged.subList(0, Math.min(size, merged.size()))), pipelineAggregators(), getMetaData());
+    }
+
+    static Comparator<Hit> comparator(final boolean ascending) {
+        return new Comparator<Hit>() {
+            @Override
+            public int compare(Hit a, Hit b) {
+                int cmp = ascending ? Double.compare(a.value, b.value) : Double.compare(b.value, a.value);
+                if (cmp == 0) {
+                    cmp = a.index.compareTo(b.index);
+                }
+                if (cmp == 0) {
+                    cmp = a.type.compareTo(b.type);
+                }
+                if (cmp == 0) {
+                    cmp = a.id.compareTo(b.id);
+                }
+                return cmp;
+            }
+        };
+    }
+
+    @Override
+    public Object getProperty(List<String> path) {
+        if (path.isEmpty()) {
+            return this;
+        }
+        throw new IllegalArgumentException("path not supported for [" + getName() + "]: " + path);
+    }
+
+    @Override
+    protected void doReadFrom(StreamInput in) throws IOException {
+        size = in.readVInt();
+        ascending = in.readBoolean();
+        final int count = in.readVInt();
+        hits = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            hits.add(new Hit(in.readString(), in.readString(), in.readString(), in.readDouble()));
+        }
+    }
+
+    @Override
+    protected void doWriteTo(StreamOutput out) throws IOException {
+        out.writeVInt(size);
+        out.writeBoolean(ascending);
+        out.writeVInt(hits.size());
+        for (Hit hit : hits) {
+            out.writeString(hit.index);
+            out.writeString(hit.type);
+            out.writeString(hit.id);
+            out.writeDouble(hit.value);
+        }
+    }
+
+    @Override
+    public XContentBuilder doXContentBody(XContentBuilder builder, Params params) throws IOException {
+        builder.startArray("hits");
+        for (Hit hit : hits) {
+            builder.startObject();
+            builder.field("_index", hit.index);
+            builder.field("_type", hit.type);
+            builder.field("_id", hit.id);
+            builder.field(CommonFields.VALUE, hit.value);
+            builder.endObject();
+        }
+        builder.endArray();
+        return builder;
+    }
+
+    public static final class Hit implements TopWeightedAvg.Hit {
+
+        private final String index;
+        private final String type;
+        private final String id;
+        private final double value;
+
+        public Hit(String index, String type, String id, double value) {
+            this.index = index;
+            this.type = type;
+            this.id = id;
+            this.value = value;
+        }
+
+        @Override
+        public String getIndex() {
+            return index;
+        }
+
+        @Override
+        public String getType() {
+            return type;
+        }
+
+        @Override
+        public String getId() {
+            return id;
+        }
+
+        @Override
+        public double getValue() {
+            return value;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.aggregation.top;
+
+import org.elasticsearch.search.aggregations.Aggregation;
+
+import java.util.List;
+
+/**
+ * The documents with the highest (or lowest) weighted averages of a set of indicator fields
+ */
+public interface TopWeightedAvg extends Aggregation {
+
+    /**
+     * @return the top documents, best first
+     */
+    List<Hit> getHits();
+
+    /**
+     * A top document and its weighted average
+     */
+    interface Hit {
+
+        String getIndex();
+
+        String getType();
+
+        String getId();
+
+        /**
+         * @return the weighted average of the document
+         */
+        double getValue();
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.aggregation.top;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.LeafReaderContext;
+import org.elasticsearch.common.lease.Releasables;
+import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.common.util.ObjectArray;
+import org.elasticsearch.index.fielddata.IndexNumericFieldData;
+import org.elasticsearch.index.mapper.MappedFieldType;
+import org.elasticsearch.index.mapper.Uid;
+import org.elasticsearch.index.mapper.internal.UidFieldMapper;
+import org.elasticsearch.opentender.nativescript.aggregation.weightedavg.WeightedAvgAggregator;
+import org.elasticsearch.opentender.nativescript.mapper.IndicatorVectorFieldData;
+import org.elasticsearch.opentender.nativescript.script.weightedavg.IndicatorBlock;
+import org.elasticsearch.opentender.nativescript.script.weightedavg.IndicatorValues;
+import org.elasticsearch.opentender.nativescript.script.weightedavg.MultiValueMode;
+import org.elasticsearch.opentender.nativescript.script.weightedavg.SegmentBounds;
+import org.elasticsearch.search.aggregations.AggregationExecutionException;
+import org.elasticsearch.search.aggregations.Aggregator;
+import org.elasticsearch.search.aggregations.AggregatorFactory;
+import org.elasticsearch.search.aggregations.InternalAggregation;
+import org.elasticsearch.search.aggregations.LeafBucketCollector;
+import org.elasticsearch.search.aggregations.LeafBucketCollectorBase;
+import org.elasticsearch.search.aggregations.metrics.MetricsAggregator;
+import org.elasticsearch.search.aggregations.pipeline.PipelineAggregator;
+import org.elasticsearch.search.aggregations.support.AggregationContext;
+import org.elasticsearch.search.internal.SearchContext;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps the {@code size} documents with the highest (or lowest) weighted averages
+ * per owning bucket.
+ *
+ * The weighted averages are computed like in
+ * {@link org.elasticsearch.opentender.nativescript.script.weightedavg.MapScriptFactory#calculateWeightedAverage}
+ * in blocks of {@value IndicatorBlock#SIZE} documents and offered to a bounded
+ * primitive {@link DocHeap} of the bucket, the ids of the documents are only loaded
+ * for the final top documents of the shard.
+ *
+ * The {@link SegmentBounds} of a segment bound the averages of all its documents.
+ * A document is not evaluated if the bound cannot beat the weakest document of the
+ * full heap of its bucket, and a top level aggregation skips a whole segment if its
+ * bound cannot beat the heap.
+ */
+public class TopWeightedAvgAggregator extends MetricsAggregator {
+
+    private static final Set<String> UID_FIELDS = Collections.singleton(UidFieldMapper.NAME);
+
+    private final IndexNumericFieldData[] fieldData;
+    private final MappedFieldType[] fieldTypes;
+    private final double[] weights;
+    private final MultiValueMode mode;
+    private final int size;
+    private final boolean ascending;
+
+    private final IndicatorBlock block = new IndicatorBlock();
+    private final long[] blockBuckets = new long[IndicatorBlock.SIZE];
+    private IndicatorValues blockValues;
+    private int blockDocBase;
+
+    private ObjectArray<DocHeap> heaps;
+
+    public TopWeightedAvgAggregator(String name, IndexNumericFieldData[] fieldData, MappedFieldType[] fieldTypes, double[] weights,
+                                    MultiValueMode mode, int size, boolean ascending, AggregationContext context, Aggregator parent,
+                                    List<PipelineAggregator> pipelineAggregators, Map<String, Object> metaData) throws IOException {
+        super(name, context, parent, pipelineAggregators, metaData);
+        this.fieldData = fieldData;
+        this.fieldTypes = fieldTypes;
+        this.weights = weights;
+        this.mode = mode;
+        this.size = size;
+        this.ascending = ascending;
+        this.heaps = context.bigArrays().newObjectArray(1);
+    }
+
+    @Override
+    public boolean needsScores() {
+        return false;
+    }
+
+    @Override
+    public LeafBucketCollector getLeafCollector(LeafReaderContext ctx, final LeafBucketCollector sub) throws IOException {
+        flushBlock();
+        final double[] bounds = SegmentBounds.of(ctx.reader(), fieldTypes, weights, mode);
+        // the best key any document of the segment can reach
+        final double bestKey = bounds == null ? Double.POSITIVE_INFINITY : ascending ? -bounds[0] : bounds[1];
+        if (parent == null && heaps.get(0) != null && heaps.get(0).competitive(bestKey) == false) {
+            return LeafBucketCollector.NO_OP_COLLECTOR;
+        }
+        final IndicatorValues values = IndicatorValues.load(ctx, fieldData, mode);
+        if (values.isEmpty()) {
+            return LeafBucketCollector.NO_OP_COLLECTOR;
+        }
+        blockValues = values;
+        blockDocBase = ctx.docBase;
+        return new LeafBucketCollectorBase(sub, null) {
+            @Override
+            public void collect(int doc, long bucket) throws IOException {
+                if (bucket < heaps.size()) {
+                    final DocHeap heap = heaps.get(bucket);
+                    if (heap != null && heap.competitive(bestKey) == false) {
+                        return;
+                    }
+                }
+                blockBuckets[block.size()] = bucket;
+                if (block.add(doc)) {
+                    flushBlock();
+                }
+            }
+        };
+    }
+
+    @Override
+    protected void doPostCollection() throws IOException {
+        flushBlock();
+    }
+
+    private void flushBlock() {
+        final int blockSize = block.size();
+        if (blockSize == 0) {
+            return;
+        }
+        block.evaluate(blockValues, weights);
+        for (int i = 0; i < blockSize; i++) {
+            final double value = block.average(i);
+            if (Double.isNaN(value)) {
+                continue;
+            }
+            final long bucket = blockBuckets[i];
+            if (bucket >= heaps.size()) {
+                heaps = context.bigArrays().grow(heaps, bucket + 1);
+            }
+            DocHeap heap = heaps.get(bucket);
+            if (heap == null) {
+                heap = new DocHeap(size);
+                heaps.set(bucket, heap);
+            }
+            heap.offer(ascending ? -value : value, blockDocBase + block.doc(i));
+        }
+        block.clear();
+    }
+
+    @Override
+    public InternalAggregation buildAggregation(long owningBucketOrdinal) throws IOException {
+        final DocHeap heap = owningBucketOrdinal < heaps.size() ? heaps.get(owningBucketOrdinal) : null;
+        if (heap == null) {
+            return buildEmptyAggregation();
+        }
+        final double[] keys = new double[heap.size()];
+        final int[] docs = new int[heap.size()];
+        final int count = heap.drain(keys, docs);
+        heaps.set(owningBucketOrdinal, null);
+        final SearchContext searchContext = context.searchContext();
+        final String index = searchContext.indexShard().shardId().getIndex();
+        final List<InternalTopWeightedAvg.Hit> hits = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final Document document = searchContext.searcher().doc(docs[i], UID_FIELDS);
+            final String uid = document.get(UidFieldMapper.NAME);
+            if (uid == null) {
+                throw new AggregationExecutionException("document [" + docs[i] + "] of aggregation [" + name + "] has no ["
+                        + UidFieldMapper.NAME + "]");
+            }
+            final Uid parsed = Uid.createUid(uid);
+            hits.add(new InternalTopWeightedAvg.Hit(index, parsed.type(), parsed.id(), ascending ? -keys[i] : keys[i]));
+        }
+        return new InternalTopWeightedAvg(name, size, ascending, hits, pipelineAggregators(), metaData());
+    }
+
+    @Override
+    public InternalAggregation buildEmptyAggregation() {
+        return new InternalTopWeightedAvg(name, size, ascending, new ArrayList<InternalTopWeightedAvg.Hit>(), pipelineAggregators(),
+                metaData());
+    }
+
+    @Override
+    protected void doClose() {
+        Releasables.close(heaps);
+    }
+
+    public static class Factory extends AggregatorFactory {
+
+        private final String[] fields;
+        private final double[] weights;
+        private final MultiValueMode mode;
+        private final int size;
+        private final boolean ascending;
+
+        public Factory(String name, String[] fields, double[] weights, MultiValueMode mode, int size, boolean ascending) {
+            super(name, InternalTopWeightedAvg.TYPE.name());
+            this.fields = fields;
+            this.weights = weights;
+            this.mode = mode;
+            this.size = size;
+            this.ascending = ascending;
+        }
+
+        @Override
+        protected Aggregator createInternal(AggregationContext context, Aggregator parent, boolean collectsFromSingleBucket,
+                                            List<PipelineAggregator> pipelineAggregators, Map<String, Object> metaData) throws IOException {
+            final SearchContext searchContext = context.searchContext();
+            final IndexNumericFieldData[] fieldData = WeightedAvgAggregator.resolveFieldData(searchContext, name, fields);
+            final MappedFieldType[] fieldTypes = new MappedFieldType[fields.length];
+            for (int i = 0; i < fields.length; i++) {
+                // indicators of vector fields are bounded by the vector field, which has no terms
+                fieldTypes[i] = fieldData[i] instanceof IndicatorVectorFieldData
+                        ? ((IndicatorVectorFieldData) fieldData[i]).vectorFieldType() : searchContext.smartNameFieldType(fields[i]);
+            }
+            return new TopWeightedAvgAggregator(name, fieldData, fieldTypes, weights, mode, size, ascending, context, parent,
+                    pipelineAggregators, metaData);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.aggregation.top;
+
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.opentender.nativescript.aggregation.weightedavg.IndicatorsParser;
+import org.elasticsearch.search.aggregations.metrics.MetricsAggregationBuilder;
+
+import java.io.IOException;
+
+/**
+ * Builder for the top_weighted_avg aggregation
+ */
+public class TopWeightedAvgBuilder extends MetricsAggregationBuilder<TopWeightedAvgBuilder> {
+
+    private String[] fields;
+    private double[] weights;
+    private String profile;
+    private String multiValueMode;
+    private Integer size;
+    private String order;
+
+    public TopWeightedAvgBuilder(String name) {
+        super(name, InternalTopWeightedAvg.TYPE.name());
+    }
+
+    /**
+     * Sets the indicator fields the weighted average is computed from.
+     */
+    public TopWeightedAvgBuilder fields(String... fields) {
+        this.fields = fields;
+        return this;
+    }
+
+    /**
+     * Sets the weights of the indicator fields, in the same order as the fields.
+     */
+    public TopWeightedAvgBuilder weights(double... weights) {
+        this.weights = weights;
+        return this;
+    }
+
+    /**
+     * Sets the name of a registered weight profile to use instead of the fields and weights.
+     */
+    public TopWeightedAvgBuilder profile(String profile) {
+        this.profile = profile;
+        return this;
+    }
+
+    /**
+     * Sets how the value of multi-valued indicator fields is selected: first (default), min, max, avg or sum.
+     */
+    public TopWeightedAvgBuilder multiValueMode(String multiValueMode) {
+        this.multiValueMode = multiValueMode;
+        return this;
+    }
+
+    /**
+     * Sets the number of documents to return, 10 by default.
+     */
+    public TopWeightedAvgBuilder size(int size) {
+        this.size = size;
+        return this;
+    }
+
+    /**
+     * Sets whether the documents with the highest ({@code desc}, the default) or lowest ({@code asc}) averages are returned.
+     */
+    public TopWeightedAvgBuilder order(String order) {
+        this.order = order;
+        return this;
+    }
+
+    @Override
+    protected void internalXContent(XContentBuilder builder, Params params) throws IOException {
+        if (fields != null) {
+            builder.array(IndicatorsParser.FIELDS_FIELD.getPreferredName(), fields);
+        }
+        if (weights != null) {
+            builder.startArray(IndicatorsParser.WEIGHTS_FIELD.getPreferredName());
+            for (double weight : weights) {
+                builder.value(weight);
+            }
+            builder.endArray();
+        }
+        if (profile != null) {
+            builder.field(IndicatorsParser.PROFILE_FIELD.getPreferredName(), profile);
+        }
+        if (multiValueMode != null) {
+            builder.field(IndicatorsParser.MULTI_VALUE_MODE_FIELD.getPreferredName(), multiValueMode);
+        }
+        if (size != null) {
+            builder.field(TopWeightedAvgParser.SIZE_FIELD.getPreferredName(), size);
+        }
+        if (order != null) {
+            builder.field(TopWeightedAvgParser.ORDER_FIELD.getPreferredName(), order);
+        }
+    }
+}
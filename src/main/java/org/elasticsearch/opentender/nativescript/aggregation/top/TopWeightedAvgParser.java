@@ -0,0 +1,102 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.aggregation.top;
+
+import org.elasticsearch.common.ParseField;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.opentender.nativescript.aggregation.weightedavg.IndicatorsParser;
+import org.elasticsearch.opentender.nativescript.profile.WeightProfileService;
+import org.elasticsearch.search.SearchParseException;
+import org.elasticsearch.search.aggregations.Aggregator;
+import org.elasticsearch.search.aggregations.AggregatorFactory;
+import org.elasticsearch.search.internal.SearchContext;
+
+import java.io.IOException;
+
+/**
+ * Parses the top_weighted_avg aggregation:
+ *
+ * <pre>
+ * "top_weighted_avg": {
+ *     "fields": ["value1", "value2"],
+ *     "weights": [0.5, 1.0],
+ *     "size": 100,
+ *     "order": "desc"
+ * }
+ * </pre>
+ *
+ * {@code size} defaults to 10 and is limited to {@value #MAX_SIZE}, {@code order} is
+ * {@code desc} (highest averages first, the default) or {@code asc}.
+ */
+public class TopWeightedAvgParser implements Aggregator.Parser {
+
+    public static final ParseField SIZE_FIELD = new ParseField("size");
+    public static final ParseField ORDER_FIELD = new ParseField("order");
+
+    public static final int MAX_SIZE = 10000;
+
+    private final WeightProfileService profileService;
+
+    @Inject
+    public TopWeightedAvgParser(WeightProfileService profileService) {
+        this.profileService = profileService;
+    }
+
+    @Override
+    public String type() {
+        return InternalTopWeightedAvg.TYPE.name();
+    }
+
+    @Override
+    public AggregatorFactory parse(String aggregationName, XContentParser parser, SearchContext context) throws IOException {
+        IndicatorsParser indicatorsParser = new IndicatorsParser(aggregationName, context, profileService);
+        int size = 10;
+        boolean ascending = false;
+
+        XContentParser.Token token;
+        String currentFieldName = null;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                currentFieldName = parser.currentName();
+            } else if (indicatorsParser.token(currentFieldName, token, parser)) {
+                continue;
+            } else if (token.isValue() && context.parseFieldMatcher().match(currentFieldName, SIZE_FIELD)) {
+                size = parser.intValue();
+            } else if (token == XContentParser.Token.VALUE_STRING && context.parseFieldMatcher().match(currentFieldName, ORDER_FIELD)) {
+                final String order = parser.text();
+                if ("asc".equals(order)) {
+                    ascending = true;
+                } else if ("desc".equals(order)) {
+                    ascending = false;
+                } else {
+                    throw new SearchParseException(context, "unknown [" + ORDER_FIELD.getPreferredName() + "] [" + order
+                            + "] in aggregation [" + aggregationName + "], expected [asc] or [desc]", parser.getTokenLocation());
+                }
+            } else {
+                throw new SearchParseException(context, "Unexpected token " + token + " in [" + aggregationName + "].",
+                        parser.getTokenLocation());
+            }
+        }
+
+        indicatorsParser.resolve(parser);
+        if (size < 1 || size > MAX_SIZE) {
+            throw new SearchParseException(context, "[" + SIZE_FIELD.getPreferredName() + "] of aggregation [" + aggregationName
+                    + "] must be between 1 and " + MAX_SIZE + ", got [" + size + "]", parser.getTokenLocation());
+        }
+        return new TopWeightedAvgAggregator.Factory(aggregationName, indicatorsParser.fields(), indicatorsParser.weights(),
+                indicatorsParser.mode(), size, ascending);
+    }
+}
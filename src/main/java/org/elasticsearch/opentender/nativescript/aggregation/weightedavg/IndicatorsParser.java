@@ -0,0 +1,155 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.aggregation.weightedavg;
+
+import org.elasticsearch.common.ParseField;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.opentender.nativescript.profile.WeightProfile;
+import org.elasticsearch.opentender.nativescript.profile.WeightProfileService;
+import org.elasticsearch.opentender.nativescript.script.weightedavg.MultiValueMode;
+import org.elasticsearch.search.SearchParseException;
+import org.elasticsearch.search.internal.SearchContext;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Parses the indicator settings shared by the weighted average aggregations,
+ * either {@code fields} with optional {@code weights} or a weight {@code profile},
+ * and the {@code multi_value_mode} of multi-valued indicator fields.
+ *
+ * Aggregation parsers pass every token to {@link #token} and call {@link #resolve}
+ * once the aggregation object has been read.
+ */
+public class IndicatorsParser {
+
+    public static final ParseField FIELDS_FIELD = new ParseField("fields");
+    public static final ParseField WEIGHTS_FIELD = new ParseField("weights");
+    public static final ParseField PROFILE_FIELD = new ParseField("profile");
+    public static final ParseField MULTI_VALUE_MODE_FIELD = new ParseField("multi_value_mode");
+
+    private final String aggName;
+    private final SearchContext context;
+    private final WeightProfileService profileService;
+
+    private List<String> fields;
+    private List<Double> weights;
+    private String profileName;
+    private MultiValueMode mode = MultiValueMode.FIRST;
+
+    private String[] resolvedFields;
+    private double[] resolvedWeights;
+
+    public IndicatorsParser(String aggName, SearchContext context, WeightProfileService profileService) {
+        this.aggName = aggName;
+        this.context = context;
+        this.profileService = profileService;
+    }
+
+    /**
+     * @return {@code true} if the token belongs to the indicator settings and was consumed
+     */
+    public boolean token(String currentFieldName, XContentParser.Token token, XContentParser parser) throws IOException {
+        if (token == XContentParser.Token.START_ARRAY) {
+            if (context.parseFieldMatcher().match(currentFieldName, FIELDS_FIELD)) {
+                fields = new ArrayList<>();
+                while ((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
+                    fields.add(parser.text());
+                }
+                return true;
+            } else if (context.parseFieldMatcher().match(currentFieldName, WEIGHTS_FIELD)) {
+                weights = new ArrayList<>();
+                while ((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
+                    weights.add(parser.doubleValue());
+                }
+                return true;
+            }
+        } else if (token == XContentParser.Token.VALUE_STRING) {
+            if (context.parseFieldMatcher().match(currentFieldName, PROFILE_FIELD)) {
+                profileName = parser.text();
+                return true;
+            } else if (context.parseFieldMatcher().match(currentFieldName, MULTI_VALUE_MODE_FIELD)) {
+                try {
+                    mode = MultiValueMode.fromString(parser.text());
+                } catch (IllegalArgumentException e) {
+                    throw new SearchParseException(context, "Invalid [" + MULTI_VALUE_MODE_FIELD.getPreferredName() + "] in aggregation ["
+                            + aggName + "]: " + e.getMessage(), parser.getTokenLocation());
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Validates the parsed settings and resolves the referenced weight profile.
+     */
+    public void resolve(XContentParser parser) {
+        if (profileName != null) {
+            if (fields != null || weights != null) {
+                throw new SearchParseException(context, "[" + FIELDS_FIELD.getPreferredName() + "] and [" + WEIGHTS_FIELD.getPreferredName()
+                        + "] cannot be used together with [" + PROFILE_FIELD.getPreferredName() + "] in aggregation [" + aggName
+                        + "]", parser.getTokenLocation());
+            }
+            WeightProfile profile = profileService.getProfile(profileName);
+            if (profile == null) {
+                throw new SearchParseException(context, "Unknown weight profile [" + profileName + "] in aggregation [" + aggName
+                        + "]", parser.getTokenLocation());
+            }
+            resolvedFields = profile.fields();
+            resolvedWeights = profile.weights();
+            return;
+        }
+        if (fields == null || fields.isEmpty()) {
+            throw new SearchParseException(context, "Missing required field [" + FIELDS_FIELD.getPreferredName() + "] for aggregation ["
+                    + aggName + "]", parser.getTokenLocation());
+        }
+        if (weights != null && weights.size() != fields.size()) {
+            throw new SearchParseException(context, "[" + FIELDS_FIELD.getPreferredName() + "] and [" + WEIGHTS_FIELD.getPreferredName()
+                    + "] of aggregation [" + aggName + "] must have the same length", parser.getTokenLocation());
+        }
+
+        resolvedFields = fields.toArray(new String[fields.size()]);
+        resolvedWeights = new double[resolvedFields.length];
+        if (weights == null) {
+            Arrays.fill(resolvedWeights, 1);
+        } else {
+            for (int i = 0; i < resolvedWeights.length; i++) {
+                resolvedWeights[i] = weights.get(i);
+            }
+        }
+    }
+
+    public String[] fields() {
+        return resolvedFields;
+    }
+
+    public double[] weights() {
+        return resolvedWeights;
+    }
+
+    public MultiValueMode mode() {
+        return mode;
+    }
+
+    /**
+     * @return {@code true} if the fields and weights are those of a registered weight profile
+     */
+    public boolean isProfile() {
+        return profileName != null;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.aggregation.weightedavg;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.search.aggregations.AggregationStreams;
+import org.elasticsearch.search.aggregations.InternalAggregation;
+import org.elasticsearch.search.aggregations.metrics.InternalNumericMetricsAggregation;
+import org.elasticsearch.search.aggregations.pipeline.PipelineAggregator;
+import org.elasticsearch.search.aggregations.support.format.ValueFormatter;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shard and reduced result of the weighted_avg aggregation.
+ *
+ * Only the sum of the per document weighted averages and the number of
+ * contributing documents are sent over the wire.
+ */
+public class InternalWeightedAvg extends InternalNumericMetricsAggregation.SingleValue implements WeightedAvg {
+
+    public final static Type TYPE = new Type("weighted_avg");
+
+    public final static AggregationStreams.Stream STREAM = new AggregationStreams.Stream() {
+        @Override
+        public InternalWeightedAvg readResult(StreamInput in) throws IOException {
+            InternalWeightedAvg result = new InternalWeightedAvg();
+            result.readFrom(in);
+            return result;
+        }
+    };
+
+    public static void registerStreams() {
+        AggregationStreams.registerStream(STREAM, TYPE.stream());
+    }
+
+    private double sum;
+    private long count;
+
+    InternalWeightedAvg() {
+        this.valueFormatter = ValueFormatter.RAW;
+    } // for serialization
+
+    public InternalWeightedAvg(String name, double sum, long count, List<PipelineAggregator> pipelineAggregators,
+                               Map<String, Object> metaData) {
+        super(name, pipelineAggregators, metaData);
+        this.sum = sum;
+        this.count = count;
+        this.valueFormatter = ValueFormatter.RAW;
+    }
+
+    @Override
+    public double value() {
+        return getValue();
+    }
+
+    @Override
+    public double getValue() {
+        return sum / count;
+    }
+
+    @Override
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public Type type() {
+        return TYPE;
+    }
+
+    @Override
+    public InternalWeightedAvg doReduce(List<InternalAggregation> aggregations, ReduceContext reduceContext) {
+        double sum = 0;
+        long count = 0;
+        for (InternalAggregation aggregation : aggregations) {
+            InternalWeightedAvg avg = (InternalWeightedAvg) aggregation;
+            sum += avg.sum;
+            count += avg.count;
+        }
+        return new InternalWeightedAvg(getName(), sum, count, pipelineAggregators(), getMetaData());
+    }
+
+    @Override
+    protected void doReadFrom(StreamInput in) throws IOException {
+        sum = in.readDouble();
+        count = in.readVLong();
+    }
+
+    @Override
+    protected void doWriteTo(StreamOutput out) throws IOException {
+        out.writeDouble(sum);
+        out.writeVLong(count);
+    }
+
+    @Override
+    public XContentBuilder doXContentBody(XContentBuilder builder, Params params) throws IOException {
+        builder.field(CommonFields.VALUE, count != 0 ? getValue() : null);
+        return builder;
+    }
+}
@@ -0,0 +1,449 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.aggregation.weightedavg;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.DocIdSetBuilder;
+import org.elasticsearch.common.lease.Releasables;
+import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.common.util.DoubleArray;
+import org.elasticsearch.common.util.LongArray;
+import org.elasticsearch.index.fielddata.IndexFieldData;
+import org.elasticsearch.index.fielddata.IndexNumericFieldData;
+import org.elasticsearch.index.mapper.MappedFieldType;
+import org.elasticsearch.opentender.nativescript.aggregation.cache.ShardResultCache;
+import org.elasticsearch.opentender.nativescript.aggregation.parallel.SegmentEvaluationService;
+import org.elasticsearch.opentender.nativescript.mapper.IndicatorVectorFieldData;
+import org.elasticsearch.opentender.nativescript.script.weightedavg.IndicatorBlock;
+import org.elasticsearch.opentender.nativescript.script.weightedavg.IndicatorValues;
+import org.elasticsearch.opentender.nativescript.script.weightedavg.MultiValueMode;
+import org.elasticsearch.opentender.nativescript.script.weightedavg.ScoreColumnCache;
+import org.elasticsearch.search.aggregations.AggregationExecutionException;
+import org.elasticsearch.search.aggregations.Aggregator;
+import org.elasticsearch.search.aggregations.AggregatorFactory;
+import org.elasticsearch.search.aggregations.InternalAggregation;
+import org.elasticsearch.search.aggregations.LeafBucketCollector;
+import org.elasticsearch.search.aggregations.LeafBucketCollectorBase;
+import org.elasticsearch.search.aggregations.metrics.NumericMetricsAggregator;
+import org.elasticsearch.search.aggregations.pipeline.PipelineAggregator;
+import org.elasticsearch.search.aggregations.support.AggregationContext;
+import org.elasticsearch.search.internal.SearchContext;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Native replacement of the weighted_avg_init/map/combine/reduce scripted metric chain.
+ *
+ * For every collected document the weighted average of the configured indicator
+ * fields is computed the same way as in
+ * {@link org.elasticsearch.opentender.nativescript.script.weightedavg.MapScriptFactory#calculateWeightedAverage},
+ * and the per document averages are accumulated in primitive sum/count big arrays
+ * indexed by the owning bucket, so a single aggregator serves all buckets of a
+ * parent aggregation and its state is accounted by the request circuit breaker.
+ *
+ * The collected documents are evaluated in blocks of {@value IndicatorBlock#SIZE}
+ * documents by an {@link IndicatorBlock}, a block is flushed when it is full, when
+ * the next segment starts and after the collection. The owning bucket of every
+ * document of the block is kept next to it.
+ *
+ * An aggregation of a weight profile reads the weighted averages of a segment from
+ * the {@link ScoreColumnCache} if the column of the segment is cached or can be built,
+ * the collected documents are then accumulated directly.
+ *
+ * A top level aggregation keeps its shard level sum and count in the
+ * {@link ShardResultCache}, a repeated request on an unchanged shard takes them
+ * from the cache and skips the evaluation of the documents.
+ *
+ * A top level aggregation in {@code parallel} mode only records the collected doc ids
+ * of a segment on the search thread. When the next segment starts the segment is split
+ * into doc id ranges that are evaluated as {@link SegmentTask}s on the
+ * {@link SegmentEvaluationService} pool, every task with its own values, block and
+ * sum/count. The search thread merges the task results after the collection. Closing
+ * the aggregator stops the tasks at the next block and waits for the running ones, so
+ * no task reads the segments of a released searcher.
+ */
+public class WeightedAvgAggregator extends NumericMetricsAggregator.SingleValue {
+
+    /**
+     * The minimum number of collected documents of a segment per parallel task.
+     */
+    static final int MIN_TASK_DOCS = 16 * 1024;
+
+    private final String[] fields;
+    private final IndexNumericFieldData[] fieldData;
+    private final double[] weights;
+    private final MultiValueMode mode;
+    private final ScoreColumnCache columnCache;
+
+    private final IndicatorBlock block = new IndicatorBlock();
+    private final long[] blockBuckets = new long[IndicatorBlock.SIZE];
+    private IndicatorValues blockValues;
+
+    private final ShardResultCache cache;
+    private final ShardResultCache.Key cacheKey;
+    private final boolean cached;
+
+    private final SegmentEvaluationService parallel;
+    private final List<Future<double[]>> pending = new ArrayList<>();
+    private final AtomicBoolean cancelled = new AtomicBoolean();
+    private LeafReaderContext segment;
+    private DocIdSetBuilder segmentDocs;
+    private int segmentDocCount;
+
+    private DoubleArray sums;
+    private LongArray counts;
+
+    public WeightedAvgAggregator(String name, String[] fields, IndexNumericFieldData[] fieldData, double[] weights,
+                                 MultiValueMode mode, ShardResultCache cache, SegmentEvaluationService parallel, ScoreColumnCache columnCache,
+                                 AggregationContext context, Aggregator parent, List<PipelineAggregator> pipelineAggregators,
+                                 Map<String, Object> metaData) throws IOException {
+        super(name, context, parent, pipelineAggregators, metaData);
+        this.fields = fields;
+        this.fieldData = fieldData;
+        this.weights = weights;
+        this.mode = mode;
+        this.columnCache = columnCache;
+        this.cache = cache;
+        this.parallel = parallel;
+        this.sums = context.bigArrays().newDoubleArray(1, true);
+        this.counts = context.bigArrays().newLongArray(1, true);
+        this.cacheKey = cache == null ? null : cache.key(context.searchContext(), InternalWeightedAvg.TYPE.name(), fields, weights, mode);
+        final double[] state = cacheKey == null ? null : cache.get(cacheKey);
+        this.cached = state != null;
+        if (cached) {
+            sums.set(0, state[0]);
+            counts.set(0, (long) state[1]);
+        }
+    }
+
+    @Override
+    public boolean needsScores() {
+        return false;
+    }
+
+    @Override
+    public LeafBucketCollector getLeafCollector(LeafReaderContext ctx, final LeafBucketCollector sub) throws IOException {
+        flushBlock();
+        dispatchSegment();
+        if (cached) {
+            return LeafBucketCollector.NO_OP_COLLECTOR;
+        }
+        final IndicatorValues values = IndicatorValues.load(ctx, fieldData, mode);
+        if (values.isEmpty()) {
+            return LeafBucketCollector.NO_OP_COLLECTOR;
+        }
+        final double[] column = columnCache == null ? null : columnCache.column(ctx.reader(), values, fields, weights, mode);
+        if (column != null) {
+            return new LeafBucketCollectorBase(sub, null) {
+                @Override
+                public void collect(int doc, long bucket) throws IOException {
+                    final double value = column[doc];
+                    if (!Double.isNaN(value)) {
+                        grow(bucket);
+                        sums.increment(bucket, value);
+                        counts.increment(bucket, 1);
+                    }
+                }
+            };
+        }
+        if (parallel != null) {
+            segment = ctx;
+            segmentDocs = new DocIdSetBuilder(ctx.reader().maxDoc());
+            segmentDocCount = 0;
+            return new LeafBucketCollectorBase(sub, null) {
+                @Override
+                public void collect(int doc, long bucket) throws IOException {
+                    assert bucket == 0 : bucket;
+                    segmentDocs.add(doc);
+                    segmentDocCount++;
+                }
+            };
+        }
+        blockValues = values;
+        return new LeafBucketCollectorBase(sub, null) {
+            @Override
+            public void collect(int doc, long bucket) throws IOException {
+                blockBuckets[block.size()] = bucket;
+                if (block.add(doc)) {
+                    flushBlock();
+                }
+            }
+        };
+    }
+
+    @Override
+    protected void doPostCollection() throws IOException {
+        flushBlock();
+        dispatchSegment();
+        awaitSegments();
+        if (cacheKey != null && cached == false) {
+            cache.put(cacheKey, context.searchContext(), new double[]{sums.get(0), counts.get(0)});
+        }
+    }
+
+    private void flushBlock() {
+        final int size = block.size();
+        if (size == 0) {
+            return;
+        }
+        block.evaluate(blockValues, weights);
+        for (int i = 0; i < size; i++) {
+            final double value = block.average(i);
+            if (!Double.isNaN(value)) {
+                final long bucket = blockBuckets[i];
+                grow(bucket);
+                sums.increment(bucket, value);
+                counts.increment(bucket, 1);
+            }
+        }
+        block.clear();
+    }
+
+    private void grow(long bucket) {
+        if (bucket >= counts.size()) {
+            final BigArrays bigArrays = context.bigArrays();
+            final long overSize = BigArrays.overSize(bucket + 1);
+            sums = bigArrays.resize(sums, overSize);
+            counts = bigArrays.resize(counts, overSize);
+        }
+    }
+
+    /**
+     * Splits the collected documents of the current segment into doc id ranges of at least
+     * {@value #MIN_TASK_DOCS} documents, at most one per thread of the pool, and submits them.
+     * Small segments and rejected tasks are evaluated on the search thread.
+     */
+    private void dispatchSegment() throws IOException {
+        if (segmentDocs == null) {
+            return;
+        }
+        final DocIdSet docs = segmentDocs.build();
+        final int maxDoc = segment.reader().maxDoc();
+        final int tasks = Math.max(1, Math.min(parallel.threads(), segmentDocCount / MIN_TASK_DOCS));
+        final long step = ((long) maxDoc + tasks - 1) / tasks;
+        for (long from = 0; from < maxDoc; from += step) {
+            final SegmentTask task = new SegmentTask(segment, docs, (int) from, (int) Math.min(maxDoc, from + step),
+                    fieldData, weights, mode, cancelled);
+            final Future<double[]> future = segmentDocCount < IndicatorBlock.SIZE ? null : parallel.submit(task);
+            if (future == null) {
+                merge(task.call());
+            } else {
+                pending.add(future);
+            }
+        }
+        segment = null;
+        segmentDocs = null;
+        segmentDocCount = 0;
+    }
+
+    private void awaitSegments() throws IOException {
+        try {
+            for (Future<double[]> future : pending) {
+                merge(future.get());
+            }
+            pending.clear();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AggregationExecutionException("interrupted while evaluating the segments of [" + name + "]", e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new AggregationExecutionException("failed to evaluate the segments of [" + name + "]", cause);
+        }
+    }
+
+    private void merge(double[] state) {
+        sums.increment(0, state[0]);
+        counts.increment(0, (long) state[1]);
+    }
+
+    @Override
+    protected void doClose() {
+        // Future#cancel does not wait for a running task, the tasks stop on the flag and are awaited instead
+        cancelled.set(true);
+        try {
+            for (Future<double[]> future : pending) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    // the result is discarded anyway
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        pending.clear();
+        Releasables.close(sums, counts);
+    }
+
+    @Override
+    public double metric(long owningBucketOrd) {
+        if (owningBucketOrd >= counts.size()) {
+            return Double.NaN;
+        }
+        return sums.get(owningBucketOrd) / counts.get(owningBucketOrd);
+    }
+
+    @Override
+    public InternalAggregation buildAggregation(long owningBucketOrdinal) {
+        if (owningBucketOrdinal >= counts.size()) {
+            return buildEmptyAggregation();
+        }
+        return new InternalWeightedAvg(name, sums.get(owningBucketOrdinal), counts.get(owningBucketOrdinal), pipelineAggregators(),
+                metaData());
+    }
+
+    @Override
+    public InternalAggregation buildEmptyAggregation() {
+        return new InternalWeightedAvg(name, 0.0, 0L, pipelineAggregators(), metaData());
+    }
+
+    public static class Factory extends AggregatorFactory {
+
+        private final String[] fields;
+        private final double[] weights;
+        private final MultiValueMode mode;
+        private final ShardResultCache cache;
+        private final SegmentEvaluationService parallel;
+        private final ScoreColumnCache columnCache;
+
+        /**
+         * @param parallel    the pool evaluating the segments of a top level aggregation or {@code null} to evaluate them sequentially
+         * @param columnCache the cache of the weighted averages per segment, only passed for registered weight profiles
+         */
+        public Factory(String name, String[] fields, double[] weights, MultiValueMode mode, ShardResultCache cache,
+                       SegmentEvaluationService parallel, ScoreColumnCache columnCache) {
+            super(name, InternalWeightedAvg.TYPE.name());
+            this.fields = fields;
+            this.weights = weights;
+            this.mode = mode;
+            this.cache = cache;
+            this.parallel = parallel;
+            this.columnCache = columnCache;
+        }
+
+        @Override
+        protected Aggregator createInternal(AggregationContext context, Aggregator parent, boolean collectsFromSingleBucket,
+                                            List<PipelineAggregator> pipelineAggregators, Map<String, Object> metaData) throws IOException {
+            return new WeightedAvgAggregator(name, fields, resolveFieldData(context.searchContext(), name, fields), weights, mode,
+                    parent == null ? cache : null, parent == null ? parallel : null, columnCache, context, parent, pipelineAggregators,
+                    metaData);
+        }
+    }
+
+    /**
+     * Evaluates the collected documents of a doc id range of a segment with its own values, block and state.
+     */
+    static final class SegmentTask implements Callable<double[]> {
+
+        private final LeafReaderContext ctx;
+        private final DocIdSet docs;
+        private final int from;
+        private final int to;
+        private final IndexNumericFieldData[] fieldData;
+        private final double[] weights;
+        private final MultiValueMode mode;
+        private final AtomicBoolean cancelled;
+
+        SegmentTask(LeafReaderContext ctx, DocIdSet docs, int from, int to, IndexNumericFieldData[] fieldData, double[] weights,
+                    MultiValueMode mode, AtomicBoolean cancelled) {
+            this.ctx = ctx;
+            this.docs = docs;
+            this.from = from;
+            this.to = to;
+            this.fieldData = fieldData;
+            this.weights = weights;
+            this.mode = mode;
+            this.cancelled = cancelled;
+        }
+
+        /**
+         * @return the sum and count of the weighted averages of the range, partial if the aggregator was closed
+         */
+        @Override
+        public double[] call() throws IOException {
+            final double[] state = new double[2];
+            final DocIdSetIterator iterator = cancelled.get() ? null : docs.iterator();
+            if (iterator == null) {
+                return state;
+            }
+            final IndicatorValues values = IndicatorValues.load(ctx, fieldData, mode);
+            final IndicatorBlock block = new IndicatorBlock();
+            for (int doc = iterator.advance(from); doc < to; doc = iterator.nextDoc()) {
+                if (block.add(doc)) {
+                    evaluate(block, values, state);
+                    if (cancelled.get()) {
+                        return state;
+                    }
+                }
+            }
+            evaluate(block, values, state);
+            return state;
+        }
+
+        private void evaluate(IndicatorBlock block, IndicatorValues values, double[] state) {
+            final int size = block.size();
+            if (size == 0) {
+                return;
+            }
+            block.evaluate(values, weights);
+            for (int i = 0; i < size; i++) {
+                final double value = block.average(i);
+                if (!Double.isNaN(value)) {
+                    state[0] += value;
+                    state[1]++;
+                }
+            }
+            block.clear();
+        }
+    }
+
+    /**
+     * Resolves the numeric field data of the indicator fields, unmapped fields are {@code null}.
+     * Fields that are not mapped themselves can address an indicator of a vector field.
+     *
+     * @throws AggregationExecutionException if one of the fields is not numeric
+     */
+    public static IndexNumericFieldData[] resolveFieldData(SearchContext searchContext, String aggregationName, String[] fields) {
+        final IndexNumericFieldData[] fieldData = new IndexNumericFieldData[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            MappedFieldType fieldType = searchContext.smartNameFieldType(fields[i]);
+            if (fieldType != null) {
+                IndexFieldData<?> indexFieldData = searchContext.fieldData().getForField(fieldType);
+                if ((indexFieldData instanceof IndexNumericFieldData) == false) {
+                    throw new AggregationExecutionException("field [" + fields[i] + "] used in aggregation [" + aggregationName
+                            + "] must be numeric");
+                }
+                fieldData[i] = (IndexNumericFieldData) indexFieldData;
+            } else {
+                fieldData[i] = IndicatorVectorFieldData.forComponent(searchContext.mapperService(), fields[i]);
+            }
+        }
+        return fieldData;
+    }
+}
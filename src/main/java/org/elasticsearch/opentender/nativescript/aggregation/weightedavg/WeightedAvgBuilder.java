@@ -0,0 +1,99 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.aggregation.weightedavg;
+
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.search.aggregations.metrics.MetricsAggregationBuilder;
+
+import java.io.IOException;
+
+/**
+ * Builder for the weighted_avg aggregation
+ */
+public class WeightedAvgBuilder extends MetricsAggregationBuilder<WeightedAvgBuilder> {
+
+    private String[] fields;
+    private double[] weights;
+    private String profile;
+    private String multiValueMode;
+    private Boolean parallel;
+
+    public WeightedAvgBuilder(String name) {
+        super(name, InternalWeightedAvg.TYPE.name());
+    }
+
+    /**
+     * Sets the indicator fields the weighted average is computed from.
+     */
+    public WeightedAvgBuilder fields(String... fields) {
+        this.fields = fields;
+        return this;
+    }
+
+    /**
+     * Sets the weights of the indicator fields, in the same order as the fields.
+     */
+    public WeightedAvgBuilder weights(double... weights) {
+        this.weights = weights;
+        return this;
+    }
+
+    /**
+     * Sets the name of a registered weight profile to use instead of the fields and weights.
+     */
+    public WeightedAvgBuilder profile(String profile) {
+        this.profile = profile;
+        return this;
+    }
+
+    /**
+     * Sets how the value of multi-valued indicator fields is selected: first (default), min, max, avg or sum.
+     */
+    public WeightedAvgBuilder multiValueMode(String multiValueMode) {
+        this.multiValueMode = multiValueMode;
+        return this;
+    }
+
+    /**
+     * Sets whether the segments of a shard are evaluated concurrently, only top level aggregations use it.
+     */
+    public WeightedAvgBuilder parallel(boolean parallel) {
+        this.parallel = parallel;
+        return this;
+    }
+
+    @Override
+    protected void internalXContent(XContentBuilder builder, Params params) throws IOException {
+        if (fields != null) {
+            builder.array(WeightedAvgParser.FIELDS_FIELD.getPreferredName(), fields);
+        }
+        if (weights != null) {
+            builder.startArray(WeightedAvgParser.WEIGHTS_FIELD.getPreferredName());
+            for (double weight : weights) {
+                builder.value(weight);
+            }
+            builder.endArray();
+        }
+        if (profile != null) {
+            builder.field(WeightedAvgParser.PROFILE_FIELD.getPreferredName(), profile);
+        }
+        if (multiValueMode != null) {
+            builder.field(WeightedAvgParser.MULTI_VALUE_MODE_FIELD.getPreferredName(), multiValueMode);
+        }
+        if (parallel != null) {
+            builder.field(WeightedAvgParser.PARALLEL_FIELD.getPreferredName(), parallel);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.aggregation.weightedavg;
+
+import org.elasticsearch.common.ParseField;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.opentender.nativescript.aggregation.cache.ShardResultCache;
+import org.elasticsearch.opentender.nativescript.aggregation.parallel.SegmentEvaluationService;
+import org.elasticsearch.opentender.nativescript.profile.WeightProfileService;
+import org.elasticsearch.opentender.nativescript.script.weightedavg.ScoreColumnCache;
+import org.elasticsearch.search.SearchParseException;
+import org.elasticsearch.search.aggregations.Aggregator;
+import org.elasticsearch.search.aggregations.AggregatorFactory;
+import org.elasticsearch.search.internal.SearchContext;
+
+import java.io.IOException;
+
+/**
+ * Parses the weighted_avg aggregation:
+ *
+ * <pre>
+ * "weighted_avg": {
+ *     "fields": ["value1", "value2"],
+ *     "weights": [0.5, 1.0]
+ * }
+ * </pre>
+ *
+ * The weights are optional, every field has the weight 1 when they are omitted.
+ * Instead of the fields and weights a registered weight profile can be referenced
+ * with {@code "profile": "integrity_v3"}, the weighted averages of a profile are read from
+ * the {@link ScoreColumnCache}. The optional {@code "multi_value_mode"} selects
+ * the value of multi-valued indicator fields: first (default), min, max, avg or sum.
+ * With {@code "parallel": true} a top level aggregation evaluates the segments of a shard
+ * concurrently on the {@link SegmentEvaluationService} pool.
+ */
+public class WeightedAvgParser implements Aggregator.Parser {
+
+    public static final ParseField FIELDS_FIELD = IndicatorsParser.FIELDS_FIELD;
+    public static final ParseField WEIGHTS_FIELD = IndicatorsParser.WEIGHTS_FIELD;
+    public static final ParseField PROFILE_FIELD = IndicatorsParser.PROFILE_FIELD;
+    public static final ParseField MULTI_VALUE_MODE_FIELD = IndicatorsParser.MULTI_VALUE_MODE_FIELD;
+    public static final ParseField PARALLEL_FIELD = new ParseField("parallel");
+
+    private final WeightProfileService profileService;
+    private final ShardResultCache cache;
+    private final SegmentEvaluationService segmentEvaluationService;
+    private final ScoreColumnCache columnCache;
+
+    @Inject
+    public WeightedAvgParser(WeightProfileService profileService, ShardResultCache cache,
+                             SegmentEvaluationService segmentEvaluationService, ScoreColumnCache columnCache) {
+        this.profileService = profileService;
+        this.cache = cache;
+        this.segmentEvaluationService = segmentEvaluationService;
+        this.columnCache = columnCache;
+    }
+
+    @Override
+    public String type() {
+        return InternalWeightedAvg.TYPE.name();
+    }
+
+    @Override
+    public AggregatorFactory parse(String aggregationName, XContentParser parser, SearchContext context) throws IOException {
+        IndicatorsParser indicatorsParser = new IndicatorsParser(aggregationName, context, profileService);
+
+        boolean parallel = false;
+
+        XContentParser.Token token;
+        String currentFieldName = null;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                currentFieldName = parser.currentName();
+            } else if (indicatorsParser.token(currentFieldName, token, parser)) {
+                continue;
+            } else if (token == XContentParser.Token.VALUE_BOOLEAN && context.parseFieldMatcher().match(currentFieldName, PARALLEL_FIELD)) {
+                parallel = parser.booleanValue();
+            } else if (token == XContentParser.Token.START_ARRAY || token == XContentParser.Token.VALUE_STRING) {
+                throw new SearchParseException(context, "Unknown key for a " + token + " in [" + aggregationName + "]: ["
+                        + currentFieldName + "].", parser.getTokenLocation());
+            } else {
+                throw new SearchParseException(context, "Unexpected token " + token + " in [" + aggregationName + "].",
+                        parser.getTokenLocation());
+            }
+        }
+
+        indicatorsParser.resolve(parser);
+        return new WeightedAvgAggregator.Factory(aggregationName, indicatorsParser.fields(), indicatorsParser.weights(),
+                indicatorsParser.mode(), cache, parallel ? segmentEvaluationService : null,
+                indicatorsParser.isProfile() ? columnCache : null);
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.mapper;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SortedNumericDocValues;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.index.fielddata.AtomicNumericFieldData;
+import org.elasticsearch.index.fielddata.FieldData;
+import org.elasticsearch.index.fielddata.FieldDataType;
+import org.elasticsearch.index.fielddata.IndexNumericFieldData;
+import org.elasticsearch.index.fielddata.ScriptDocValues;
+import org.elasticsearch.index.fielddata.SortedBinaryDocValues;
+import org.elasticsearch.index.fielddata.SortedNumericDoubleValues;
+import org.elasticsearch.index.fielddata.fieldcomparator.DoubleValuesComparatorSource;
+import org.elasticsearch.index.mapper.MappedFieldType;
+import org.elasticsearch.index.mapper.MapperService;
+import org.elasticsearch.opentender.nativescript.mapper.IndicatorVectorFieldMapper.IndicatorVectorFieldType;
+import org.elasticsearch.search.MultiValueMode;
+import org.elasticsearch.search.lookup.LeafDocLookup;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Numeric field data of a single indicator of an {@code indicator_vector} field.
+ *
+ * An indicator is addressed as {@code <field>.<indicator>}, its values are read
+ * from the packed doc values of the vector field, see {@link IndicatorVectorValues}.
+ */
+public final class IndicatorVectorFieldData implements IndexNumericFieldData {
+
+    private static final FieldDataType FIELD_DATA_TYPE = new FieldDataType("double");
+
+    private final Index index;
+    private final MappedFieldType.Names names;
+    private final IndicatorVectorFieldType vectorFieldType;
+    private final int slot;
+
+    IndicatorVectorFieldData(Index index, String name, IndicatorVectorFieldType vectorFieldType, int slot) {
+        this.index = index;
+        this.names = new MappedFieldType.Names(name);
+        this.vectorFieldType = vectorFieldType;
+        this.slot = slot;
+    }
+
+    /**
+     * Resolves an indicator of a vector field.
+     *
+     * @return the field data of the indicator or {@code null} if the field does not address an indicator of a vector field
+     */
+    public static IndicatorVectorFieldData forComponent(MapperService mapperService, String field) {
+        final int dot = field.lastIndexOf('.');
+        if (dot <= 0) {
+            return null;
+        }
+        final MappedFieldType fieldType = mapperService.smartNameFieldType(field.substring(0, dot));
+        if ((fieldType instanceof IndicatorVectorFieldType) == false) {
+            return null;
+        }
+        final IndicatorVectorFieldType vectorFieldType = (IndicatorVectorFieldType) fieldType;
+        final int slot = vectorFieldType.slot(field.substring(dot + 1));
+        if (slot < 0) {
+            return null;
+        }
+        return new IndicatorVectorFieldData(mapperService.index(), field, vectorFieldType, slot);
+    }
+
+    /**
+     * @return the field type of the vector field holding the indicator
+     */
+    public IndicatorVectorFieldType vectorFieldType() {
+        return vectorFieldType;
+    }
+
+    /**
+     * Binds the indicator to a segment reader, the returned values decode the vector themselves.
+     */
+    public IndicatorVectorValues.Component load(LeafReader reader) {
+        final String field = vectorFieldType.names().indexName();
+        try {
+            return new IndicatorVectorValues(field, DocValues.getSorted(reader, field), vectorFieldType.indicators().length)
+                    .component(slot);
+        } catch (IOException e) {
+            throw new ElasticsearchException("failed to load indicator vector [" + field + "]", e);
+        }
+    }
+
+    /**
+     * Binds the indicator to the segment of a script doc lookup, the packed values are read
+     * through the string field data of the vector field.
+     */
+    public IndicatorVectorValues.Component load(LeafDocLookup doc) {
+        final String field = vectorFieldType.names().indexName();
+        final SortedBinaryDocValues packed = ((ScriptDocValues.Strings) doc.get(vectorFieldType.names().fullName())).getInternalValues();
+        final BinaryDocValues docValues = new BinaryDocValues() {
+            private final BytesRef missing = new BytesRef();
+
+            @Override
+            public BytesRef get(int docID) {
+                packed.setDocument(docID);
+                return packed.count() == 0 ? missing : packed.valueAt(0);
+            }
+        };
+        return new IndicatorVectorValues(field, docValues, vectorFieldType.indicators().length).component(slot);
+    }
+
+    @Override
+    public NumericType getNumericType() {
+        return NumericType.DOUBLE;
+    }
+
+    @Override
+    public MappedFieldType.Names getFieldNames() {
+        return names;
+    }
+
+    @Override
+    public FieldDataType getFieldDataType() {
+        return FIELD_DATA_TYPE;
+    }
+
+    @Override
+    public AtomicNumericFieldData load(final LeafReaderContext context) {
+        return new AtomicNumericFieldData() {
+            @Override
+            public SortedNumericDoubleValues getDoubleValues() {
+                return load(context.reader());
+            }
+
+            @Override
+            public SortedNumericDocValues getLongValues() {
+                return FieldData.castToLong(getDoubleValues());
+            }
+
+            @Override
+            public ScriptDocValues getScriptValues() {
+                return new ScriptDocValues.Doubles(getDoubleValues());
+            }
+
+            @Override
+            public SortedBinaryDocValues getBytesValues() {
+                return FieldData.toString(getDoubleValues());
+            }
+
+            @Override
+            public long ramBytesUsed() {
+                return 0;
+            }
+
+            @Override
+            public Collection<Accountable> getChildResources() {
+                return Collections.emptyList();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    @Override
+    public AtomicNumericFieldData loadDirect(LeafReaderContext context) {
+        return load(context);
+    }
+
+    @Override
+    public XFieldComparatorSource comparatorSource(Object missingValue, MultiValueMode sortMode, XFieldComparatorSource.Nested nested) {
+        return new DoubleValuesComparatorSource(this, missingValue, sortMode, nested);
+    }
+
+    @Override
+    public void clear() {
+    }
+
+    @Override
+    public Index index() {
+        return index;
+    }
+}
@@ -0,0 +1,395 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.mapper;
+
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.store.ByteArrayDataOutput;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.fielddata.FieldDataType;
+import org.elasticsearch.index.mapper.FieldMapper;
+import org.elasticsearch.index.mapper.MappedFieldType;
+import org.elasticsearch.index.mapper.Mapper;
+import org.elasticsearch.index.mapper.MapperParsingException;
+import org.elasticsearch.index.mapper.ParseContext;
+import org.elasticsearch.index.mapper.core.TypeParsers;
+import org.elasticsearch.index.mapper.object.ArrayValueMapperParser;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Maps all indicators of a document to a single packed doc value.
+ *
+ * The mapping lists the names of the indicators, their position in the list is
+ * the slot of the indicator in the packed value. Documents provide the field as
+ * an object of indicator names and numbers, missing and {@code null} indicators
+ * are left out of the presence mask. A packed value consists of
+ * <ul>
+ * <li>one byte with the {@link Quantization} of the values</li>
+ * <li>the number of slots as vInt</li>
+ * <li>the presence mask, one bit per slot</li>
+ * <li>the values of the present slots in slot order</li>
+ * </ul>
+ * Indicators can only be appended to the mapping, documents indexed before have
+ * fewer slots and are treated as missing the new indicators. A document holds at
+ * most one vector per field, arrays of vectors are rejected.
+ *
+ * The packed values are kept as sorted doc values, so scripts can read them
+ * through the string field data of their doc lookup as well.
+ *
+ * The indicators are addressed as {@code <field>.<indicator>} by the weighted
+ * average scripts, aggregations and queries, see {@link IndicatorVectorFieldData}.
+ */
+public class IndicatorVectorFieldMapper extends FieldMapper implements ArrayValueMapperParser {
+
+    public static final String CONTENT_TYPE = "indicator_vector";
+
+    public static final String INDICATORS_FIELD = "indicators";
+    public static final String QUANTIZATION_FIELD = "quantization";
+
+    /**
+     * Precision of the packed indicator values.
+     */
+    public enum Quantization {
+        /**
+         * 8 byte doubles, values are read back unchanged.
+         */
+        NONE,
+        /**
+         * 4 byte floats, values are rounded to the nearest float.
+         */
+        FLOAT;
+
+        public static Quantization fromString(String name) {
+            for (Quantization quantization : values()) {
+                if (quantization.name().equalsIgnoreCase(name)) {
+                    return quantization;
+                }
+            }
+            throw new IllegalArgumentException("unknown quantization [" + name + "], expected one of "
+                    + Arrays.toString(values()).toLowerCase(Locale.ROOT));
+        }
+
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    public static class Defaults {
+        public static final IndicatorVectorFieldType FIELD_TYPE = new IndicatorVectorFieldType();
+
+        static {
+            FIELD_TYPE.setIndexOptions(IndexOptions.NONE);
+            FIELD_TYPE.setHasDocValues(true);
+            FIELD_TYPE.setFieldDataType(new FieldDataType("string", Settings.builder().put(FieldDataType.FORMAT_KEY, "doc_values")));
+            FIELD_TYPE.freeze();
+        }
+    }
+
+    public static class Builder extends FieldMapper.Builder<Builder, IndicatorVectorFieldMapper> {
+
+        private String[] indicators;
+        private Quantization quantization = Quantization.NONE;
+
+        public Builder(String name) {
+            super(name, Defaults.FIELD_TYPE, Defaults.FIELD_TYPE);
+            builder = this;
+        }
+
+        public Builder indicators(String[] indicators) {
+            this.indicators = indicators;
+            return this;
+        }
+
+        public Builder quantization(Quantization quantization) {
+            this.quantization = quantization;
+            return this;
+        }
+
+        @Override
+        public IndicatorVectorFieldMapper build(BuilderContext context) {
+            setupFieldType(context);
+            // the packed values are only kept in doc values
+            fieldType.setIndexOptions(IndexOptions.NONE);
+            fieldType.setHasDocValues(true);
+            defaultFieldType.setHasDocValues(true);
+            IndicatorVectorFieldType vectorFieldType = (IndicatorVectorFieldType) fieldType;
+            vectorFieldType.setIndicators(indicators);
+            vectorFieldType.setQuantization(quantization);
+            return new IndicatorVectorFieldMapper(name, fieldType, defaultFieldType, context.indexSettings(),
+                    multiFieldsBuilder.build(this, context), copyTo);
+        }
+    }
+
+    public static class TypeParser implements Mapper.TypeParser {
+        @Override
+        public Mapper.Builder<?, ?> parse(String name, Map<String, Object> node, ParserContext parserContext) throws MapperParsingException {
+            Builder builder = new Builder(name);
+            for (Iterator<Map.Entry<String, Object>> iterator = node.entrySet().iterator(); iterator.hasNext(); ) {
+                Map.Entry<String, Object> entry = iterator.next();
+                if (INDICATORS_FIELD.equals(entry.getKey())) {
+                    builder.indicators(parseIndicators(name, entry.getValue()));
+                    iterator.remove();
+                } else if (QUANTIZATION_FIELD.equals(entry.getKey())) {
+                    try {
+                        builder.quantization(Quantization.fromString(entry.getValue().toString()));
+                    } catch (IllegalArgumentException e) {
+                        throw new MapperParsingException("[" + CONTENT_TYPE + "] field [" + name + "]: " + e.getMessage());
+                    }
+                    iterator.remove();
+                }
+            }
+            if (builder.indicators == null) {
+                throw new MapperParsingException("[" + CONTENT_TYPE + "] field [" + name + "] requires [" + INDICATORS_FIELD + "]");
+            }
+            TypeParsers.parseField(builder, name, node, parserContext);
+            return builder;
+        }
+
+        private static String[] parseIndicators(String name, Object value) {
+            if ((value instanceof List) == false || ((List<?>) value).isEmpty()) {
+                throw new MapperParsingException("[" + CONTENT_TYPE + "] field [" + name + "] requires a non empty list of ["
+                        + INDICATORS_FIELD + "]");
+            }
+            List<?> list = (List<?>) value;
+            String[] indicators = new String[list.size()];
+            for (int i = 0; i < indicators.length; i++) {
+                indicators[i] = list.get(i).toString();
+                if (indicators[i].isEmpty() || indicators[i].indexOf('.') >= 0) {
+                    throw new MapperParsingException("[" + CONTENT_TYPE + "] field [" + name + "] has an invalid indicator name ["
+                            + indicators[i] + "]");
+                }
+                for (int j = 0; j < i; j++) {
+                    if (indicators[i].equals(indicators[j])) {
+                        throw new MapperParsingException("[" + CONTENT_TYPE + "] field [" + name + "] lists indicator ["
+                                + indicators[i] + "] twice");
+                    }
+                }
+            }
+            return indicators;
+        }
+    }
+
+    public static final class IndicatorVectorFieldType extends MappedFieldType {
+
+        private String[] indicators = new String[0];
+        private Quantization quantization = Quantization.NONE;
+
+        public IndicatorVectorFieldType() {
+        }
+
+        protected IndicatorVectorFieldType(IndicatorVectorFieldType ref) {
+            super(ref);
+            this.indicators = ref.indicators;
+            this.quantization = ref.quantization;
+        }
+
+        @Override
+        public MappedFieldType clone() {
+            return new IndicatorVectorFieldType(this);
+        }
+
+        @Override
+        public String typeName() {
+            return CONTENT_TYPE;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (super.equals(o) == false) {
+                return false;
+            }
+            IndicatorVectorFieldType that = (IndicatorVectorFieldType) o;
+            return Arrays.equals(indicators, that.indicators) && quantization == that.quantization;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(super.hashCode(), Arrays.hashCode(indicators), quantization);
+        }
+
+        @Override
+        public void checkCompatibility(MappedFieldType fieldType, List<String> conflicts, boolean strict) {
+            super.checkCompatibility(fieldType, conflicts, strict);
+            String[] other = ((IndicatorVectorFieldType) fieldType).indicators;
+            if (other.length < indicators.length || Arrays.equals(indicators, Arrays.copyOf(other, indicators.length)) == false) {
+                conflicts.add("mapper [" + names().fullName() + "] can only append [" + INDICATORS_FIELD + "], has "
+                        + Arrays.toString(indicators) + " and got " + Arrays.toString(other));
+            }
+        }
+
+        /**
+         * @return the indicator names in slot order
+         */
+        public String[] indicators() {
+            return indicators;
+        }
+
+        public void setIndicators(String[] indicators) {
+            checkIfFrozen();
+            this.indicators = indicators;
+        }
+
+        /**
+         * @return the slot of the indicator or {@code -1} if the vector does not contain it
+         */
+        public int slot(String indicator) {
+            for (int i = 0; i < indicators.length; i++) {
+                if (indicators[i].equals(indicator)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @return the precision of newly indexed values, every packed value records its own
+         */
+        public Quantization quantization() {
+            return quantization;
+        }
+
+        public void setQuantization(Quantization quantization) {
+            checkIfFrozen();
+            this.quantization = quantization;
+        }
+    }
+
+    protected IndicatorVectorFieldMapper(String simpleName, MappedFieldType fieldType, MappedFieldType defaultFieldType,
+                                         Settings indexSettings, MultiFields multiFields, CopyTo copyTo) {
+        super(simpleName, fieldType, defaultFieldType, indexSettings, multiFields, copyTo);
+    }
+
+    @Override
+    public IndicatorVectorFieldType fieldType() {
+        return (IndicatorVectorFieldType) super.fieldType();
+    }
+
+    @Override
+    protected void parseCreateField(ParseContext context, List<Field> fields) throws IOException {
+        final XContentParser parser = context.parser();
+        if (parser.currentToken() == XContentParser.Token.VALUE_NULL) {
+            return;
+        }
+        final String name = fieldType().names().fullName();
+        if (parser.currentToken() == XContentParser.Token.START_ARRAY) {
+            // arrays are handed over as a whole, see ArrayValueMapperParser
+            throw new MapperParsingException("[" + CONTENT_TYPE + "] field [" + name + "] expects a single object of indicator values, "
+                    + "got an array");
+        }
+        if (parser.currentToken() != XContentParser.Token.START_OBJECT) {
+            throw new MapperParsingException("[" + CONTENT_TYPE + "] field [" + name + "] expects an object of indicator values");
+        }
+        final String[] indicators = fieldType().indicators();
+        final double[] values = new double[indicators.length];
+        Arrays.fill(values, Double.NaN);
+        String indicator = null;
+        int found = 0;
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                indicator = parser.currentName();
+                continue;
+            }
+            final int slot = fieldType().slot(indicator);
+            if (slot < 0) {
+                throw new MapperParsingException("[" + CONTENT_TYPE + "] field [" + name + "] has no indicator [" + indicator + "]");
+            }
+            if (token == XContentParser.Token.VALUE_NULL) {
+                continue;
+            }
+            if (token != XContentParser.Token.VALUE_NUMBER && token != XContentParser.Token.VALUE_STRING) {
+                throw new MapperParsingException("[" + CONTENT_TYPE + "] field [" + name + "] expects a single number for indicator ["
+                        + indicator + "], got [" + token + "]");
+            }
+            final double value;
+            try {
+                value = parser.doubleValue();
+            } catch (IllegalArgumentException e) {
+                throw new MapperParsingException("[" + CONTENT_TYPE + "] field [" + name + "] expects a number for indicator ["
+                        + indicator + "]", e);
+            }
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                throw new MapperParsingException("[" + CONTENT_TYPE + "] field [" + name + "] expects a finite number for indicator ["
+                        + indicator + "], got [" + value + "]");
+            }
+            if (Double.isNaN(values[slot]) == false) {
+                throw new MapperParsingException("[" + CONTENT_TYPE + "] field [" + name + "] has indicator [" + indicator + "] twice");
+            }
+            values[slot] = value;
+            found++;
+        }
+        if (found > 0) {
+            fields.add(new SortedDocValuesField(fieldType().names().indexName(), encode(values, fieldType().quantization())));
+        }
+    }
+
+    /**
+     * Packs the values of all slots, {@code NaN} stands for a missing indicator.
+     */
+    public static BytesRef encode(double[] values, Quantization quantization) {
+        final byte[] mask = new byte[(values.length + 7) >>> 3];
+        for (int slot = 0; slot < values.length; slot++) {
+            if (Double.isNaN(values[slot]) == false) {
+                mask[slot >>> 3] |= 1 << (slot & 7);
+            }
+        }
+        final byte[] bytes = new byte[1 + 5 + mask.length + values.length * 8];
+        final ByteArrayDataOutput out = new ByteArrayDataOutput(bytes);
+        try {
+            out.writeByte((byte) quantization.ordinal());
+            out.writeVInt(values.length);
+            out.writeBytes(mask, 0, mask.length);
+            for (int slot = 0; slot < values.length; slot++) {
+                if (Double.isNaN(values[slot])) {
+                    continue;
+                }
+                if (quantization == Quantization.FLOAT) {
+                    out.writeInt(Float.floatToIntBits((float) values[slot]));
+                } else {
+                    out.writeLong(Double.doubleToLongBits(values[slot]));
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot write to a byte array", e);
+        }
+        return new BytesRef(bytes, 0, out.getPosition());
+    }
+
+    @Override
+    protected String contentType() {
+        return CONTENT_TYPE;
+    }
+
+    @Override
+    protected void doXContentBody(XContentBuilder builder, boolean includeDefaults, Params params) throws IOException {
+        super.doXContentBody(builder, includeDefaults, params);
+        builder.field(INDICATORS_FIELD, fieldType().indicators());
+        if (includeDefaults || fieldType().quantization() != Quantization.NONE) {
+            builder.field(QUANTIZATION_FIELD, fieldType().quantization().toString());
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.mapper;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.index.fielddata.SortedNumericDoubleValues;
+import org.elasticsearch.opentender.nativescript.mapper.IndicatorVectorFieldMapper.Quantization;
+
+import java.util.Arrays;
+
+/**
+ * Decodes the packed indicator vectors of a segment.
+ *
+ * A vector is decoded once per document into a dense array, every
+ * {@link Component} reading from the same instance then only looks up
+ * its slot. Not thread safe, like all doc values.
+ */
+public final class IndicatorVectorValues {
+
+    private final String field;
+    private final BinaryDocValues docValues;
+    private final double[] values;
+    private final ByteArrayDataInput in = new ByteArrayDataInput();
+    private int doc = -1;
+
+    /**
+     * @param slots the number of indicators of the mapping, slots of older documents beyond their own length are missing
+     */
+    public IndicatorVectorValues(String field, BinaryDocValues docValues, int slots) {
+        this.field = field;
+        this.docValues = docValues;
+        this.values = new double[slots];
+    }
+
+    /**
+     * @return the index name of the vector field
+     */
+    public String field() {
+        return field;
+    }
+
+    /**
+     * Decodes the vector of the document unless it is already the current one.
+     */
+    public void setDocument(int doc) {
+        if (doc == this.doc) {
+            return;
+        }
+        this.doc = doc;
+        Arrays.fill(values, Double.NaN);
+        final BytesRef bytes = docValues.get(doc);
+        if (bytes.length == 0) {
+            return;
+        }
+        in.reset(bytes.bytes, bytes.offset, bytes.length);
+        final boolean quantized = in.readByte() == Quantization.FLOAT.ordinal();
+        final int slots = in.readVInt();
+        final int maskOffset = in.getPosition();
+        in.skipBytes((slots + 7) >>> 3);
+        for (int slot = 0; slot < slots; slot++) {
+            if ((bytes.bytes[maskOffset + (slot >>> 3)] & (1 << (slot & 7))) == 0) {
+                continue;
+            }
+            final double value = quantized ? Float.intBitsToFloat(in.readInt()) : Double.longBitsToDouble(in.readLong());
+            if (slot < values.length) {
+                values[slot] = value;
+            }
+        }
+    }
+
+    /**
+     * @return the value of the slot in the current document or {@code NaN} if it is missing
+     */
+    public double value(int slot) {
+        return values[slot];
+    }
+
+    /**
+     * @return the values of a single indicator reading from this decoder
+     */
+    public Component component(int slot) {
+        return new Component(this, slot);
+    }
+
+    /**
+     * The single valued doc values of one indicator of the vector.
+     *
+     * Components of the same vector can be linked to a {@link #shareDecoder shared decoder},
+     * so reading all indicators of a document decodes its vector once.
+     */
+    public static final class Component extends SortedNumericDoubleValues {
+
+        private final int slot;
+        private IndicatorVectorValues vector;
+        private double value;
+
+        Component(IndicatorVectorValues vector, int slot) {
+            this.vector = vector;
+            this.slot = slot;
+        }
+
+        /**
+         * @return the decoder of the vector this component reads from
+         */
+        public IndicatorVectorValues vector() {
+            return vector;
+        }
+
+        /**
+         * Reads from the decoder of another component of the same vector and segment from now on.
+         */
+        public void shareDecoder(IndicatorVectorValues vector) {
+            assert vector.field.equals(this.vector.field) && vector.values.length == this.vector.values.length;
+            this.vector = vector;
+        }
+
+        @Override
+        public void setDocument(int doc) {
+            vector.setDocument(doc);
+            value = vector.value(slot);
+        }
+
+        @Override
+        public double valueAt(int index) {
+            return value;
+        }
+
+        @Override
+        public int count() {
+            return Double.isNaN(value) ? 0 : 1;
+        }
+    }
+}
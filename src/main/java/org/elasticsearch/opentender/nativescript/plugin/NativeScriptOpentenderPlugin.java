@@ -14,13 +14,48 @@
 
 package org.elasticsearch.opentender.nativescript.plugin;
 
+import org.elasticsearch.opentender.nativescript.aggregation.cache.ShardResultCacheModule;
+import org.elasticsearch.opentender.nativescript.aggregation.histogram.InternalWeightedAvgHistogram;
+import org.elasticsearch.opentender.nativescript.aggregation.parallel.SegmentEvaluationModule;
+import org.elasticsearch.opentender.nativescript.aggregation.parallel.SegmentEvaluationService;
+import org.elasticsearch.opentender.nativescript.aggregation.histogram.WeightedAvgHistogramParser;
+import org.elasticsearch.opentender.nativescript.aggregation.percentiles.WeightedAvgPercentilesParser;
+import org.elasticsearch.opentender.nativescript.aggregation.stats.InternalWeightedAvgStats;
+import org.elasticsearch.opentender.nativescript.aggregation.stats.WeightedAvgStatsParser;
+import org.elasticsearch.opentender.nativescript.aggregation.top.InternalTopWeightedAvg;
+import org.elasticsearch.opentender.nativescript.aggregation.top.TopWeightedAvgParser;
+import org.elasticsearch.opentender.nativescript.aggregation.weightedavg.InternalWeightedAvg;
+import org.elasticsearch.opentender.nativescript.aggregation.weightedavg.WeightedAvgParser;
+import org.elasticsearch.opentender.nativescript.mapper.IndicatorVectorFieldMapper;
+import org.elasticsearch.opentender.nativescript.profile.WeightProfileModule;
+import org.elasticsearch.opentender.nativescript.profile.WeightProfileService;
+import org.elasticsearch.opentender.nativescript.query.MatchSetCacheModule;
+import org.elasticsearch.opentender.nativescript.query.WeightedAvgRangeQueryParser;
+import org.elasticsearch.opentender.nativescript.rest.RestOpentenderStatsAction;
 import org.elasticsearch.opentender.nativescript.script.WeightedAvgRangeScript;
+import org.elasticsearch.opentender.nativescript.script.WeightedAvgScoreScript;
 import org.elasticsearch.opentender.nativescript.script.weightedavg.CombineScriptFactory;
 import org.elasticsearch.opentender.nativescript.script.weightedavg.InitScriptFactory;
 import org.elasticsearch.opentender.nativescript.script.weightedavg.MapScriptFactory;
 import org.elasticsearch.opentender.nativescript.script.weightedavg.ReduceScriptFactory;
+import org.elasticsearch.opentender.nativescript.script.weightedavg.ScoreColumnCacheModule;
+import org.elasticsearch.opentender.nativescript.stats.OpentenderStatsAction;
+import org.elasticsearch.opentender.nativescript.stats.OpentenderStatsModule;
+import org.elasticsearch.opentender.nativescript.stats.OpentenderStatsService;
+import org.elasticsearch.opentender.nativescript.stats.TransportOpentenderStatsAction;
+import org.elasticsearch.action.ActionModule;
+import org.elasticsearch.cluster.ClusterModule;
+import org.elasticsearch.cluster.settings.Validator;
+import org.elasticsearch.common.component.LifecycleComponent;
+import org.elasticsearch.common.inject.Module;
+import org.elasticsearch.indices.IndicesModule;
 import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.rest.RestModule;
 import org.elasticsearch.script.ScriptModule;
+import org.elasticsearch.search.SearchModule;
+
+import java.util.Arrays;
+import java.util.Collection;
 
 /**
  * This class is instantiated when Elasticsearch loads the plugin for the
@@ -51,13 +86,62 @@ public class NativeScriptOpentenderPlugin extends Plugin {
         return "Opentender Plugins";
     }
 
+    @Override
+    public Collection<Module> nodeModules() {
+        return Arrays.<Module>asList(new WeightProfileModule(), new OpentenderStatsModule(), new ShardResultCacheModule(),
+                new MatchSetCacheModule(), new ScoreColumnCacheModule(), new SegmentEvaluationModule());
+    }
+
+    @Override
+    public Collection<Class<? extends LifecycleComponent>> nodeServices() {
+        return Arrays.<Class<? extends LifecycleComponent>>asList(SegmentEvaluationService.class);
+    }
+
+    public void onModule(ClusterModule module) {
+        //weight profiles
+        module.registerClusterDynamicSetting(WeightProfileService.WEIGHT_PROFILES_SETTING + ".*", WeightProfileService.VALIDATOR);
+        //script stats
+        module.registerClusterDynamicSetting(OpentenderStatsService.SLOWLOG_THRESHOLD_SETTING, Validator.TIME);
+        module.registerIndexDynamicSetting(OpentenderStatsService.INDEX_SLOWLOG_THRESHOLD_SETTING,
+                OpentenderStatsService.INDEX_SLOWLOG_THRESHOLD_VALIDATOR);
+    }
+
+    public void onModule(ActionModule module) {
+        module.registerAction(OpentenderStatsAction.INSTANCE, TransportOpentenderStatsAction.class);
+    }
+
+    public void onModule(RestModule module) {
+        module.addRestAction(RestOpentenderStatsAction.class);
+    }
+
     public void onModule(ScriptModule module) {
         //search scripts
         module.registerScript(WeightedAvgRangeScript.SCRIPT_NAME, WeightedAvgRangeScript.Factory.class);
+        module.registerScript(WeightedAvgScoreScript.SCRIPT_NAME, WeightedAvgScoreScript.Factory.class);
         //aggregation scripts
-        module.registerScript("weighted_avg_init", InitScriptFactory.class);
-        module.registerScript("weighted_avg_map", MapScriptFactory.class);
-        module.registerScript("weighted_avg_combine", CombineScriptFactory.class);
-        module.registerScript("weighted_avg_reduce", ReduceScriptFactory.class);
+        module.registerScript(InitScriptFactory.SCRIPT_NAME, InitScriptFactory.class);
+        module.registerScript(MapScriptFactory.SCRIPT_NAME, MapScriptFactory.class);
+        module.registerScript(CombineScriptFactory.SCRIPT_NAME, CombineScriptFactory.class);
+        module.registerScript(ReduceScriptFactory.SCRIPT_NAME, ReduceScriptFactory.class);
+    }
+
+    public void onModule(IndicesModule module) {
+        //queries
+        module.registerQueryParser(WeightedAvgRangeQueryParser.class);
+        //mappers
+        module.registerMapper(IndicatorVectorFieldMapper.CONTENT_TYPE, new IndicatorVectorFieldMapper.TypeParser());
+    }
+
+    public void onModule(SearchModule module) {
+        //aggregations
+        module.registerAggregatorParser(WeightedAvgParser.class);
+        InternalWeightedAvg.registerStreams();
+        module.registerAggregatorParser(WeightedAvgHistogramParser.class);
+        InternalWeightedAvgHistogram.registerStreams();
+        module.registerAggregatorParser(WeightedAvgPercentilesParser.class);
+        module.registerAggregatorParser(WeightedAvgStatsParser.class);
+        InternalWeightedAvgStats.registerStreams();
+        module.registerAggregatorParser(TopWeightedAvgParser.class);
+        InternalTopWeightedAvg.registerStreams();
     }
 }
@@ -0,0 +1,79 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.profile;
+
+import java.util.Arrays;
+
+/**
+ * A named, validated list of indicator fields with their weights.
+ *
+ * Profiles are shared by all shards and requests, the arrays returned by
+ * {@link #fields()} and {@link #weights()} must not be modified.
+ */
+public final class WeightProfile {
+
+    private final String name;
+    private final String[] fields;
+    private final double[] weights;
+
+    public WeightProfile(String name, String[] fields, double[] weights) {
+        if (fields == null || fields.length == 0) {
+            throw new IllegalArgumentException("weight profile [" + name + "] requires at least one field");
+        }
+        if (weights.length != fields.length) {
+            throw new IllegalArgumentException("fields and weights of weight profile [" + name + "] must have the same length");
+        }
+        this.name = name;
+        this.fields = fields;
+        this.weights = weights;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public String[] fields() {
+        return fields;
+    }
+
+    public double[] weights() {
+        return weights;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        WeightProfile other = (WeightProfile) obj;
+        return name.equals(other.name) && Arrays.equals(fields, other.fields) && Arrays.equals(weights, other.weights);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = name.hashCode();
+        result = 31 * result + Arrays.hashCode(fields);
+        result = 31 * result + Arrays.hashCode(weights);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return name + "(fields=" + Arrays.toString(fields) + ", weights=" + Arrays.toString(weights) + ")";
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.profile;
+
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.settings.Validator;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.node.settings.NodeSettingsService;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Registry of the named weight profiles.
+ *
+ * Profiles are read from the node settings and from the dynamic cluster settings,
+ * a profile in the cluster settings replaces the node profile with the same name:
+ *
+ * <pre>
+ * "opentender.weight_profiles.integrity_v3.fields": ["value1", "value2"],
+ * "opentender.weight_profiles.integrity_v3.weights": [0.5, 1.0]
+ * </pre>
+ *
+ * The weights are optional, every field has the weight 1 when they are omitted, and a
+ * profile is removed by setting its fields to an empty value. Array entries cannot be removed
+ * from the cluster settings, so a comma separated value of {@code fields} or {@code weights}
+ * replaces their array entries. Updates of the cluster settings are checked key by key by
+ * {@link #VALIDATOR}, profiles are parsed once when the settings change and profiles that are
+ * still invalid, like fields and weights of different lengths, are logged and ignored.
+ */
+public class WeightProfileService extends AbstractComponent {
+
+    public static final String WEIGHT_PROFILES_SETTING = "opentender.weight_profiles";
+
+    /**
+     * Rejects dynamic profile settings other than {@code fields} and {@code weights} and weights that are no numbers.
+     */
+    public static final Validator VALIDATOR = new Validator() {
+        @Override
+        public String validate(String setting, String value, ClusterState clusterState) {
+            String[] parts = setting.substring(WEIGHT_PROFILES_SETTING.length() + 1).split("\\.", -1);
+            if (parts.length < 2 || parts.length > 3 || (parts[1].equals("fields") == false && parts[1].equals("weights") == false)) {
+                return "unknown weight profile setting [" + setting + "], expected [" + WEIGHT_PROFILES_SETTING
+                        + ".<name>.fields] or [" + WEIGHT_PROFILES_SETTING + ".<name>.weights]";
+            }
+            if (parts.length == 3) {
+                try {
+                    Integer.parseInt(parts[2]);
+                } catch (NumberFormatException e) {
+                    return "unknown weight profile setting [" + setting + "], array entries must be numbered";
+                }
+                if (value.trim().isEmpty()) {
+                    return "empty entry of weight profile setting [" + setting + "]";
+                }
+            }
+            if (parts[1].equals("weights")) {
+                String[] weights = parts.length == 3 ? new String[]{value} : Strings.splitStringByCommaToArray(value);
+                try {
+                    for (String weight : weights) {
+                        parseWeight(parts[0], weight);
+                    }
+                } catch (IllegalArgumentException e) {
+                    return e.getMessage();
+                }
+            }
+            return null;
+        }
+    };
+
+    private volatile Map<String, WeightProfile> profiles;
+
+    @Inject
+    public WeightProfileService(Settings settings, NodeSettingsService nodeSettingsService) {
+        super(settings);
+        this.profiles = parseProfiles(Settings.EMPTY);
+        nodeSettingsService.addListener(new ApplySettings());
+    }
+
+    /**
+     * @return the profile with the given name or {@code null} if no such profile is registered
+     */
+    public WeightProfile getProfile(String name) {
+        return profiles.get(name);
+    }
+
+    /**
+     * @return all registered profiles by name
+     */
+    public Map<String, WeightProfile> getProfiles() {
+        return profiles;
+    }
+
+    private Map<String, WeightProfile> parseProfiles(Settings clusterSettings) {
+        Map<String, Settings> groups = new HashMap<>(settings.getGroups(WEIGHT_PROFILES_SETTING));
+        groups.putAll(clusterSettings.getGroups(WEIGHT_PROFILES_SETTING));
+
+        Map<String, WeightProfile> profiles = new HashMap<>();
+        for (Map.Entry<String, Settings> entry : groups.entrySet()) {
+            try {
+                if (values(entry.getKey(), entry.getValue(), "fields").length == 0) {
+                    // removed profile
+                    continue;
+                }
+                profiles.put(entry.getKey(), parseProfile(entry.getKey(), entry.getValue()));
+            } catch (IllegalArgumentException e) {
+                logger.warn("ignoring invalid weight profile [{}]: {}", entry.getKey(), e.getMessage());
+            }
+        }
+        return Collections.unmodifiableMap(profiles);
+    }
+
+    private static WeightProfile parseProfile(String name, Settings settings) {
+        String[] fields = values(name, settings, "fields");
+        String[] weights = values(name, settings, "weights");
+        double[] weightValues = new double[fields.length];
+        if (weights.length == 0) {
+            Arrays.fill(weightValues, 1);
+        } else if (weights.length != fields.length) {
+            throw new IllegalArgumentException("fields and weights of weight profile [" + name + "] must have the same length");
+        } else {
+            for (int i = 0; i < weights.length; i++) {
+                weightValues[i] = parseWeight(name, weights[i]);
+            }
+        }
+        return new WeightProfile(name, fields, weightValues);
+    }
+
+    /**
+     * @return the entries of a comma separated value, or else of an array
+     * @throws IllegalArgumentException if array entries are missing, for example because they were rejected by {@link #VALIDATOR}
+     */
+    private static String[] values(String name, Settings settings, String key) {
+        String value = settings.get(key);
+        if (value == null) {
+            String[] values = settings.getAsArray(key);
+            if (values.length != settings.getByPrefix(key + ".").getAsMap().size()) {
+                throw new IllegalArgumentException("[" + key + "] of weight profile [" + name + "] has missing array entries");
+            }
+            return values;
+        }
+        String[] values = Strings.splitStringByCommaToArray(value);
+        for (int i = 0; i < values.length; i++) {
+            values[i] = values[i].trim();
+        }
+        return values;
+    }
+
+    private static double parseWeight(String name, String weight) {
+        double value;
+        try {
+            value = Double.parseDouble(weight.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("weight [" + weight + "] of weight profile [" + name + "] is not a number");
+        }
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new IllegalArgumentException("weight [" + weight + "] of weight profile [" + name + "] must be finite");
+        }
+        return value;
+    }
+
+    class ApplySettings implements NodeSettingsService.Listener {
+        @Override
+        public void onRefreshSettings(Settings settings) {
+            Map<String, WeightProfile> profiles = parseProfiles(settings);
+            if (profiles.equals(WeightProfileService.this.profiles) == false) {
+                logger.info("updating weight profiles {}", profiles.keySet());
+                WeightProfileService.this.profiles = profiles;
+            }
+        }
+    }
+}
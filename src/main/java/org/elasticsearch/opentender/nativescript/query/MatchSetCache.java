@@ -0,0 +1,159 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.opentender.nativescript.query;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.search.DocIdSet;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches the documents of a segment that match a {@link WeightedAvgRangeQuery}.
+ *
+ * The entries are keyed by the core of the segment and the normalized filter, so
+ * the same filter of follow-up pages and refreshed dashboards is only evaluated on
+ * new segments. The cached sets ignore deletions, the searcher applies the live docs
+ * of the current reader. The entries of a segment are dropped when its core is
+ * closed, and the least recently used entries are evicted when the cached sets
+ * exceed {@value #SIZE_SETTING}, 1% of the heap by default.
+ */
+public class MatchSetCache extends AbstractComponent {
+
+    public static final String SIZE_SETTING = "opentender.match_cache.size";
+
+    /**
+     * Rough size of a cache entry without its doc id set.
+     */
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private final Cache<Key, DocIdSet> cache;
+    private final Set<Object> cores = Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+    private final LeafReader.CoreClosedListener closedListener = new LeafReader.CoreClosedListener() {
+        @Override
+        public void onClose(Object coreKey) {
+            cores.remove(coreKey);
+            for (Iterator<Key> keys = cache.asMap().keySet().iterator(); keys.hasNext(); ) {
+                if (keys.next().coreKey == coreKey) {
+                    keys.remove();
+                }
+            }
+        }
+    };
+    private final CounterMetric hits = new CounterMetric();
+    private final CounterMetric misses = new CounterMetric();
+
+    @Inject
+    public MatchSetCache(Settings settings) {
+        super(settings);
+        final ByteSizeValue size = settings.getAsMemory(SIZE_SETTING, "1%");
+        if (size.bytes() > 0) {
+            this.cache = CacheBuilder.newBuilder()
+                    .maximumWeight(size.bytes())
+                    .weigher(new Weigher<Key, DocIdSet>() {
+                        @Override
+                        public int weigh(Key key, DocIdSet value) {
+                            return (int) Math.min(Integer.MAX_VALUE, ENTRY_OVERHEAD + value.ramBytesUsed());
+                        }
+                    })
+                    .build();
+        } else {
+            this.cache = null;
+        }
+    }
+
+    public boolean isEnabled() {
+        return cache != null;
+    }
+
+    /**
+     * @return the cached matches of the filter in the segment or {@code null}
+     */
+    public DocIdSet get(LeafReader reader, Object filter) {
+        final DocIdSet matches = cache.getIfPresent(new Key(reader.getCoreCacheKey(), filter));
+        if (matches == null) {
+            misses.inc();
+        } else {
+            hits.inc();
+        }
+        return matches;
+    }
+
+    public void put(LeafReader reader, Object filter, DocIdSet matches) {
+        final Object coreKey = reader.getCoreCacheKey();
+        if (cores.add(coreKey)) {
+            reader.addCoreClosedListener(closedListener);
+        }
+        cache.put(new Key(coreKey, filter), matches);
+    }
+
+    public long hits() {
+        return hits.count();
+    }
+
+    public long misses() {
+        return misses.count();
+    }
+
+    /**
+     * @return the estimated memory used by the cached sets
+     */
+    public long sizeInBytes() {
+        long bytes = 0;
+        if (cache != null) {
+            for (DocIdSet matches : cache.asMap().values()) {
+                bytes += ENTRY_OVERHEAD + matches.ramBytesUsed();
+            }
+        }
+        return bytes;
+    }
+
+    private static final class Key {
+
+        private final Object coreKey;
+        private final Object filter;
+
+        Key(Object coreKey, Object filter) {
+            this.coreKey = coreKey;
+            this.filter = filter;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return coreKey == other.coreKey && filter.equals(other.filter);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(coreKey) + filter.hashCode();
+        }
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.query;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.ConstantScoreScorer;
+import org.apache.lucene.search.ConstantScoreWeight;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TwoPhaseIterator;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.DocIdSetBuilder;
+import org.elasticsearch.index.fielddata.IndexNumericFieldData;
+import org.elasticsearch.index.mapper.MappedFieldType;
+import org.elasticsearch.opentender.nativescript.script.weightedavg.IndicatorBlock;
+import org.elasticsearch.opentender.nativescript.script.weightedavg.IndicatorValues;
+import org.elasticsearch.opentender.nativescript.script.weightedavg.MultiValueMode;
+import org.elasticsearch.opentender.nativescript.script.weightedavg.ScoreColumnCache;
+import org.elasticsearch.opentender.nativescript.script.weightedavg.SegmentBounds;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Matches documents whose weighted average of the indicator fields lies within [gte, lte].
+ *
+ * The approximation only matches documents that have at least one of the
+ * indicator fields, the weighted average is computed in the two-phase
+ * {@link TwoPhaseIterator#matches()} check of the documents that remain after
+ * the other, cheaper clauses of the query.
+ *
+ * With non negative weights the weighted average of a document always lies between
+ * the smallest and the largest value of its indicators, so the min/max of the
+ * indexed terms bound the averages of a whole segment, see {@link SegmentBounds}.
+ * Segments whose bounds are completely inside the range match all their documents
+ * without evaluating them, segments whose bounds are outside the range are skipped.
+ *
+ * In block execution the approximation is read ahead in blocks of
+ * {@value IndicatorBlock#SIZE} documents that are evaluated together by an
+ * {@link IndicatorBlock}. This is faster when most documents of the index are
+ * evaluated, the two-phase execution is faster when other clauses of the query
+ * only leave a few documents to check.
+ *
+ * A query of a weight profile reads the weighted averages of a segment from the
+ * {@link ScoreColumnCache} if the column of the segment is cached or can be built,
+ * in both executions.
+ *
+ * With a {@link MatchSetCache} the matching documents of a segment are evaluated
+ * once in block execution and kept in a bitset or a sparse doc id set, depending
+ * on their density, and later executions of the same filter iterate the cached set.
+ */
+public class WeightedAvgRangeQuery extends Query {
+
+    private final String[] fields;
+    private final double[] weights;
+    private final MultiValueMode mode;
+    private final boolean blockExecution;
+    private final double gte;
+    private final double lte;
+    private final MappedFieldType[] fieldTypes;
+    private final IndexNumericFieldData[] fieldData;
+    private final Query approximation;
+    private final MatchSetCache cache;
+    private final ScoreColumnCache columnCache;
+
+    /**
+     * @param fieldTypes    field types of the fields, {@code null} for unmapped fields
+     * @param fieldData     resolved field data of the fields, {@code null} for unmapped fields
+     * @param approximation query matching the documents that have at least one of the fields
+     * @param cache         cache of the matching documents per segment, {@code null} to evaluate every execution
+     * @param columnCache   cache of the weighted averages per segment, only passed for registered weight profiles
+     */
+    public WeightedAvgRangeQuery(String[] fields, double[] weights, MultiValueMode mode, boolean blockExecution, double gte,
+                                 double lte, MappedFieldType[] fieldTypes, IndexNumericFieldData[] fieldData, Query approximation,
+                                 MatchSetCache cache, ScoreColumnCache columnCache) {
+        this.fields = fields;
+        this.weights = weights;
+        this.mode = mode;
+        this.blockExecution = blockExecution;
+        this.gte = gte;
+        this.lte = lte;
+        this.fieldTypes = fieldTypes;
+        this.fieldData = fieldData;
+        this.approximation = approximation;
+        this.cache = cache;
+        this.columnCache = columnCache;
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher, boolean needsScores) throws IOException {
+        final Weight approximationWeight = searcher.createNormalizedWeight(approximation, false);
+        return new ConstantScoreWeight(this) {
+            @Override
+            public Scorer scorer(LeafReaderContext context) throws IOException {
+                final double[] bounds = SegmentBounds.of(context.reader(), fieldTypes, weights, mode);
+                if (bounds != null && (bounds[1] < gte || bounds[0] > lte)) {
+                    // no document of the segment can match
+                    return null;
+                }
+                final FilterKey filterKey = cache == null ? null : new FilterKey(fields, weights, mode, gte, lte);
+                final DocIdSet cached = filterKey == null ? null : cache.get(context.reader(), filterKey);
+                if (cached != null) {
+                    return cachedScorer(cached);
+                }
+                final Scorer approximationScorer = approximationWeight.scorer(context);
+                if (approximationScorer == null) {
+                    return null;
+                }
+                final DocIdSetIterator approximation = approximationScorer.iterator();
+                if (bounds != null && bounds[0] >= gte && bounds[1] <= lte) {
+                    // every document with an indicator matches
+                    return new ConstantScoreScorer(this, score(), approximation);
+                }
+                final IndicatorValues values = IndicatorValues.load(context, fieldData, mode);
+                final double[] column = columnCache == null ? null
+                        : columnCache.column(context.reader(), values, fields, weights, mode);
+                final TwoPhaseIterator columnIterator = column == null ? null : new TwoPhaseIterator(approximation) {
+                    @Override
+                    public boolean matches() throws IOException {
+                        double value = column[approximation.docID()];
+                        // NaN never matches, documents without indicators are filtered out
+                        return value >= gte && value <= lte;
+                    }
+
+                    @Override
+                    public float matchCost() {
+                        // one array lookup
+                        return 1;
+                    }
+                };
+                if (filterKey != null) {
+                    // the builder switches from a sparse doc id set to a bitset for dense matches
+                    final DocIdSetBuilder builder = new DocIdSetBuilder(context.reader().maxDoc());
+                    builder.add(columnIterator != null ? TwoPhaseIterator.asDocIdSetIterator(columnIterator)
+                            : new BlockMatchingIterator(approximation, values));
+                    final DocIdSet matches = builder.build();
+                    cache.put(context.reader(), filterKey, matches);
+                    return cachedScorer(matches);
+                }
+                if (columnIterator != null) {
+                    return new ConstantScoreScorer(this, score(), columnIterator);
+                }
+                if (blockExecution) {
+                    return new ConstantScoreScorer(this, score(), new BlockMatchingIterator(approximation, values));
+                }
+                final TwoPhaseIterator twoPhaseIterator = new TwoPhaseIterator(approximation) {
+                    @Override
+                    public boolean matches() throws IOException {
+                        double value = values.weightedAverage(approximation.docID(), weights);
+                        // NaN never matches, documents without indicators are filtered out
+                        return value >= gte && value <= lte;
+                    }
+
+                    @Override
+                    public float matchCost() {
+                        // one doc values lookup per indicator field
+                        return fields.length;
+                    }
+                };
+                return new ConstantScoreScorer(this, score(), twoPhaseIterator);
+            }
+
+            private Scorer cachedScorer(DocIdSet matches) throws IOException {
+                final DocIdSetIterator iterator = matches.iterator();
+                return iterator == null ? null : new ConstantScoreScorer(this, score(), iterator);
+            }
+        };
+    }
+
+    /**
+     * The part of the query that determines the matching documents of a segment, independent
+     * of the execution and the field data instances of the request.
+     */
+    private static final class FilterKey {
+
+        private final String[] fields;
+        private final double[] weights;
+        private final MultiValueMode mode;
+        private final double gte;
+        private final double lte;
+
+        FilterKey(String[] fields, double[] weights, MultiValueMode mode, double gte, double lte) {
+            this.fields = fields;
+            this.weights = weights;
+            this.mode = mode;
+            this.gte = gte;
+            this.lte = lte;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            FilterKey other = (FilterKey) obj;
+            return Arrays.equals(fields, other.fields)
+                    && Arrays.equals(weights, other.weights)
+                    && mode == other.mode
+                    && Double.compare(gte, other.gte) == 0
+                    && Double.compare(lte, other.lte) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = Arrays.hashCode(fields);
+            result = 31 * result + Arrays.hashCode(weights);
+            result = 31 * result + Objects.hash(mode, gte, lte);
+            return result;
+        }
+    }
+
+    /**
+     * Iterates over the documents of the approximation whose weighted average lies within
+     * the range, the documents are evaluated in blocks ahead of the iteration.
+     */
+    private class BlockMatchingIterator extends DocIdSetIterator {
+
+        private final DocIdSetIterator approximation;
+        private final IndicatorValues values;
+        private final IndicatorBlock block = new IndicatorBlock();
+        private int index;
+        private int doc = -1;
+
+        BlockMatchingIterator(DocIdSetIterator approximation, IndicatorValues values) {
+            this.approximation = approximation;
+            this.values = values;
+        }
+
+        @Override
+        public int docID() {
+            return doc;
+        }
+
+        @Override
+        public int nextDoc() throws IOException {
+            return advance(doc + 1);
+        }
+
+        @Override
+        public int advance(int target) throws IOException {
+            while (true) {
+                while (++index < block.size()) {
+                    final int candidate = block.doc(index);
+                    final double value = block.average(index);
+                    // NaN never matches, documents without indicators are filtered out
+                    if (candidate >= target && value >= gte && value <= lte) {
+                        return doc = candidate;
+                    }
+                }
+                if (fill(target) == false) {
+                    return doc = NO_MORE_DOCS;
+                }
+            }
+        }
+
+        /**
+         * Reads and evaluates the next block of the approximation, starting at the target.
+         *
+         * @return {@code false} if the approximation is exhausted
+         */
+        private boolean fill(int target) throws IOException {
+            block.clear();
+            index = -1;
+            int next = approximation.docID();
+            if (next == NO_MORE_DOCS) {
+                return false;
+            }
+            next = next < target ? approximation.advance(target) : approximation.nextDoc();
+            while (next != NO_MORE_DOCS && block.add(next) == false) {
+                next = approximation.nextDoc();
+            }
+            if (block.size() == 0) {
+                return false;
+            }
+            block.evaluate(values, weights);
+            return true;
+        }
+
+        @Override
+        public long cost() {
+            return approximation.cost();
+        }
+    }
+
+    @Override
+    public String toString(String field) {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append(WeightedAvgRangeQueryParser.NAME).append("(");
+        buffer.append("fields=").append(Arrays.toString(fields));
+        buffer.append(", weights=").append(Arrays.toString(weights));
+        buffer.append(", multi_value_mode=").append(mode.getName());
+        if (blockExecution) {
+            buffer.append(", execution=block");
+        }
+        buffer.append(", gte=").append(gte);
+        buffer.append(", lte=").append(lte);
+        buffer.append(")");
+        return buffer.toString();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!super.equals(obj)) {
+            return false;
+        }
+        WeightedAvgRangeQuery other = (WeightedAvgRangeQuery) obj;
+        return Arrays.equals(fields, other.fields)
+                && Arrays.equals(weights, other.weights)
+                && mode == other.mode
+                && blockExecution == other.blockExecution
+                && Double.compare(gte, other.gte) == 0
+                && Double.compare(lte, other.lte) == 0
+                && Objects.equals(approximation, other.approximation);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = super.hashCode();
+        result = 31 * result + Arrays.hashCode(fields);
+        result = 31 * result + Arrays.hashCode(weights);
+        result = 31 * result + Objects.hash(mode, blockExecution, gte, lte, approximation);
+        return result;
+    }
+}
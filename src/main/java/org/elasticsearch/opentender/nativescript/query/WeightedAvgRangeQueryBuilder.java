@@ -0,0 +1,156 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.query;
+
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.query.BoostableQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+
+import java.io.IOException;
+
+/**
+ * Builder for the weighted_avg_range query
+ */
+public class WeightedAvgRangeQueryBuilder extends QueryBuilder implements BoostableQueryBuilder<WeightedAvgRangeQueryBuilder> {
+
+    private String[] fields;
+    private double[] weights;
+    private Double gte;
+    private Double lte;
+    private String profile;
+    private String multiValueMode;
+    private String execution;
+    private Boolean cache;
+    private float boost = -1;
+    private String queryName;
+
+    /**
+     * Sets the indicator fields the weighted average is computed from.
+     */
+    public WeightedAvgRangeQueryBuilder fields(String... fields) {
+        this.fields = fields;
+        return this;
+    }
+
+    /**
+     * Sets the weights of the indicator fields, in the same order as the fields.
+     */
+    public WeightedAvgRangeQueryBuilder weights(double... weights) {
+        this.weights = weights;
+        return this;
+    }
+
+    /**
+     * Sets the name of a registered weight profile to use instead of the fields and weights.
+     */
+    public WeightedAvgRangeQueryBuilder profile(String profile) {
+        this.profile = profile;
+        return this;
+    }
+
+    /**
+     * Sets how the value of multi-valued indicator fields is selected: first (default), min, max, avg or sum.
+     */
+    public WeightedAvgRangeQueryBuilder multiValueMode(String multiValueMode) {
+        this.multiValueMode = multiValueMode;
+        return this;
+    }
+
+    /**
+     * Sets the execution, {@code two_phase} (default) or {@code block}.
+     */
+    public WeightedAvgRangeQueryBuilder execution(String execution) {
+        this.execution = execution;
+        return this;
+    }
+
+    /**
+     * Sets whether the matching documents of every segment are cached, defaults to {@code false}.
+     */
+    public WeightedAvgRangeQueryBuilder cache(boolean cache) {
+        this.cache = cache;
+        return this;
+    }
+
+    /**
+     * Sets the inclusive lower bound of the weighted average.
+     */
+    public WeightedAvgRangeQueryBuilder gte(double gte) {
+        this.gte = gte;
+        return this;
+    }
+
+    /**
+     * Sets the inclusive upper bound of the weighted average.
+     */
+    public WeightedAvgRangeQueryBuilder lte(double lte) {
+        this.lte = lte;
+        return this;
+    }
+
+    @Override
+    public WeightedAvgRangeQueryBuilder boost(float boost) {
+        this.boost = boost;
+        return this;
+    }
+
+    /**
+     * Sets the query name for the query that can be used when searching for matched_queries per hit.
+     */
+    public WeightedAvgRangeQueryBuilder queryName(String queryName) {
+        this.queryName = queryName;
+        return this;
+    }
+
+    @Override
+    protected void doXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject(WeightedAvgRangeQueryParser.NAME);
+        if (fields != null) {
+            builder.array(WeightedAvgRangeQueryParser.FIELDS_FIELD.getPreferredName(), fields);
+        }
+        if (weights != null) {
+            builder.startArray(WeightedAvgRangeQueryParser.WEIGHTS_FIELD.getPreferredName());
+            for (double weight : weights) {
+                builder.value(weight);
+            }
+            builder.endArray();
+        }
+        if (profile != null) {
+            builder.field(WeightedAvgRangeQueryParser.PROFILE_FIELD.getPreferredName(), profile);
+        }
+        if (multiValueMode != null) {
+            builder.field(WeightedAvgRangeQueryParser.MULTI_VALUE_MODE_FIELD.getPreferredName(), multiValueMode);
+        }
+        if (execution != null) {
+            builder.field(WeightedAvgRangeQueryParser.EXECUTION_FIELD.getPreferredName(), execution);
+        }
+        if (cache != null) {
+            builder.field(WeightedAvgRangeQueryParser.CACHE_FIELD.getPreferredName(), cache);
+        }
+        if (gte != null) {
+            builder.field(WeightedAvgRangeQueryParser.GTE_FIELD.getPreferredName(), gte);
+        }
+        if (lte != null) {
+            builder.field(WeightedAvgRangeQueryParser.LTE_FIELD.getPreferredName(), lte);
+        }
+        if (boost != -1) {
+            builder.field("boost", boost);
+        }
+        if (queryName != null) {
+            builder.field("_name", queryName);
+        }
+        builder.endObject();
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.query;
+
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.elasticsearch.common.ParseField;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.lucene.search.Queries;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.fielddata.IndexFieldData;
+import org.elasticsearch.index.fielddata.IndexNumericFieldData;
+import org.elasticsearch.index.mapper.MappedFieldType;
+import org.elasticsearch.index.query.ExistsQueryParser;
+import org.elasticsearch.index.query.QueryParseContext;
+import org.elasticsearch.index.query.QueryParser;
+import org.elasticsearch.index.query.QueryParsingException;
+import org.elasticsearch.opentender.nativescript.mapper.IndicatorVectorFieldData;
+import org.elasticsearch.opentender.nativescript.profile.WeightProfile;
+import org.elasticsearch.opentender.nativescript.profile.WeightProfileService;
+import org.elasticsearch.opentender.nativescript.script.weightedavg.ScoreColumnCache;
+import org.elasticsearch.opentender.nativescript.script.weightedavg.MultiValueMode;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Parses the weighted_avg_range query:
+ *
+ * <pre>
+ * "weighted_avg_range": {
+ *     "fields": ["value1", "value2"],
+ *     "weights": [0.5, 1.0],
+ *     "gte": 65,
+ *     "lte": 100,
+ *     "multi_value_mode": "avg"
+ * }
+ * </pre>
+ *
+ * The weights are optional, every field has the weight 1 when they are omitted.
+ * Instead of the fields and weights a registered weight profile can be referenced
+ * with {@code "profile": "integrity_v3"}, the weighted averages of a profile are read from the
+ * {@link ScoreColumnCache}. A missing bound leaves the range open on that side.
+ * The optional {@code multi_value_mode} selects the value of multi-valued indicators, see {@link MultiValueMode}.
+ * {@code "execution": "block"} evaluates the documents in blocks instead of one by one in the default
+ * {@code two_phase} execution, see {@link WeightedAvgRangeQuery}. With {@code "cache": true} the matching
+ * documents of every segment are kept in the {@link MatchSetCache}. It is off by default because filling it
+ * evaluates every document of a segment, also those that the other clauses of the query exclude.
+ */
+public class WeightedAvgRangeQueryParser implements QueryParser {
+
+    public static final String NAME = "weighted_avg_range";
+
+    public static final ParseField FIELDS_FIELD = new ParseField("fields");
+    public static final ParseField WEIGHTS_FIELD = new ParseField("weights");
+    public static final ParseField GTE_FIELD = new ParseField("gte");
+    public static final ParseField LTE_FIELD = new ParseField("lte");
+    public static final ParseField PROFILE_FIELD = new ParseField("profile");
+    public static final ParseField MULTI_VALUE_MODE_FIELD = new ParseField("multi_value_mode");
+    public static final ParseField EXECUTION_FIELD = new ParseField("execution");
+    public static final ParseField CACHE_FIELD = new ParseField("cache");
+
+    public static final String EXECUTION_TWO_PHASE = "two_phase";
+    public static final String EXECUTION_BLOCK = "block";
+
+    private final WeightProfileService profileService;
+    private final MatchSetCache matchSetCache;
+    private final ScoreColumnCache columnCache;
+
+    @Inject
+    public WeightedAvgRangeQueryParser(WeightProfileService profileService, MatchSetCache matchSetCache,
+                                       ScoreColumnCache columnCache) {
+        this.profileService = profileService;
+        this.matchSetCache = matchSetCache;
+        this.columnCache = columnCache;
+    }
+
+    @Override
+    public String[] names() {
+        return new String[]{NAME, "weightedAvgRange"};
+    }
+
+    @Override
+    public Query parse(QueryParseContext parseContext) throws IOException, QueryParsingException {
+        XContentParser parser = parseContext.parser();
+
+        List<String> fields = null;
+        List<Double> weights = null;
+        Double gte = null;
+        Double lte = null;
+        String profileName = null;
+        MultiValueMode mode = MultiValueMode.FIRST;
+        boolean blockExecution = false;
+        boolean cache = false;
+        float boost = 1.0f;
+        String queryName = null;
+
+        XContentParser.Token token;
+        String currentFieldName = null;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                currentFieldName = parser.currentName();
+            } else if (token == XContentParser.Token.START_ARRAY) {
+                if (parseContext.parseFieldMatcher().match(currentFieldName, FIELDS_FIELD)) {
+                    fields = new ArrayList<>();
+                    while ((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
+                        fields.add(parser.text());
+                    }
+                } else if (parseContext.parseFieldMatcher().match(currentFieldName, WEIGHTS_FIELD)) {
+                    weights = new ArrayList<>();
+                    while ((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
+                        weights.add(parser.doubleValue());
+                    }
+                } else {
+                    throw new QueryParsingException(parseContext, "[" + NAME + "] query does not support [" + currentFieldName + "]");
+                }
+            } else if (token.isValue()) {
+                if (parseContext.parseFieldMatcher().match(currentFieldName, GTE_FIELD)) {
+                    gte = parser.doubleValue();
+                } else if (parseContext.parseFieldMatcher().match(currentFieldName, LTE_FIELD)) {
+                    lte = parser.doubleValue();
+                } else if (parseContext.parseFieldMatcher().match(currentFieldName, PROFILE_FIELD)) {
+                    profileName = parser.text();
+                } else if (parseContext.parseFieldMatcher().match(currentFieldName, MULTI_VALUE_MODE_FIELD)) {
+                    try {
+                        mode = MultiValueMode.fromString(parser.text());
+                    } catch (IllegalArgumentException e) {
+                        throw new QueryParsingException(parseContext, "[" + NAME + "] query: " + e.getMessage());
+                    }
+                } else if (parseContext.parseFieldMatcher().match(currentFieldName, EXECUTION_FIELD)) {
+                    String execution = parser.text();
+                    if (EXECUTION_BLOCK.equals(execution)) {
+                        blockExecution = true;
+                    } else if (EXECUTION_TWO_PHASE.equals(execution) == false) {
+                        throw new QueryParsingException(parseContext, "[" + NAME + "] query does not support ["
+                                + EXECUTION_FIELD.getPreferredName() + "] [" + execution + "], expected [" + EXECUTION_TWO_PHASE
+                                + "] or [" + EXECUTION_BLOCK + "]");
+                    }
+                } else if (parseContext.parseFieldMatcher().match(currentFieldName, CACHE_FIELD)) {
+                    cache = parser.booleanValue();
+                } else if ("boost".equals(currentFieldName)) {
+                    boost = parser.floatValue();
+                } else if ("_name".equals(currentFieldName)) {
+                    queryName = parser.text();
+                } else {
+                    throw new QueryParsingException(parseContext, "[" + NAME + "] query does not support [" + currentFieldName + "]");
+                }
+            } else {
+                throw new QueryParsingException(parseContext, "[" + NAME + "] query does not support [" + currentFieldName + "]");
+            }
+        }
+
+        if (gte == null && lte == null) {
+            throw new QueryParsingException(parseContext, "[" + NAME + "] query requires [" + GTE_FIELD.getPreferredName()
+                    + "] or [" + LTE_FIELD.getPreferredName() + "]");
+        }
+
+        final String[] fieldNames;
+        final double[] weightValues;
+        if (profileName != null) {
+            if (fields != null || weights != null) {
+                throw new QueryParsingException(parseContext, "[" + NAME + "] query does not support [" + FIELDS_FIELD.getPreferredName()
+                        + "] or [" + WEIGHTS_FIELD.getPreferredName() + "] together with [" + PROFILE_FIELD.getPreferredName() + "]");
+            }
+            WeightProfile profile = profileService.getProfile(profileName);
+            if (profile == null) {
+                throw new QueryParsingException(parseContext, "[" + NAME + "] query references unknown weight profile [" + profileName + "]");
+            }
+            fieldNames = profile.fields();
+            weightValues = profile.weights();
+        } else {
+            if (fields == null || fields.isEmpty()) {
+                throw new QueryParsingException(parseContext, "[" + NAME + "] query requires [" + FIELDS_FIELD.getPreferredName()
+                        + "] or [" + PROFILE_FIELD.getPreferredName() + "]");
+            }
+            if (weights != null && weights.size() != fields.size()) {
+                throw new QueryParsingException(parseContext, "[" + NAME + "] query requires [" + FIELDS_FIELD.getPreferredName()
+                        + "] and [" + WEIGHTS_FIELD.getPreferredName() + "] to have the same length");
+            }
+            fieldNames = fields.toArray(new String[fields.size()]);
+            weightValues = new double[fieldNames.length];
+            if (weights == null) {
+                Arrays.fill(weightValues, 1);
+            } else {
+                for (int i = 0; i < weightValues.length; i++) {
+                    weightValues[i] = weights.get(i);
+                }
+            }
+        }
+
+        final MappedFieldType[] fieldTypes = new MappedFieldType[fieldNames.length];
+        final IndexNumericFieldData[] fieldData = new IndexNumericFieldData[fieldNames.length];
+        BooleanQuery.Builder approximation = new BooleanQuery.Builder();
+        Set<String> approximatedVectors = new HashSet<>();
+        boolean hasIndicator = false;
+        for (int i = 0; i < fieldNames.length; i++) {
+            MappedFieldType fieldType = parseContext.fieldMapper(fieldNames[i]);
+            IndicatorVectorFieldData component = null;
+            if (fieldType == null) {
+                component = IndicatorVectorFieldData.forComponent(parseContext.mapperService(), fieldNames[i]);
+            }
+            if ((fieldType == null && component == null) || weightValues[i] == 0) {
+                // unmapped and zero weighted fields never contribute to the average
+                continue;
+            }
+            if (component != null) {
+                // all indicators of a vector field share its doc values and existence
+                fieldTypes[i] = component.vectorFieldType();
+                fieldData[i] = component;
+                if (approximatedVectors.add(fieldTypes[i].names().fullName())) {
+                    approximation.add(ExistsQueryParser.newFilter(parseContext, fieldTypes[i].names().fullName(), null),
+                            BooleanClause.Occur.SHOULD);
+                }
+                hasIndicator = true;
+                continue;
+            }
+            IndexFieldData<?> indexFieldData = parseContext.getForField(fieldType);
+            if ((indexFieldData instanceof IndexNumericFieldData) == false) {
+                throw new QueryParsingException(parseContext, "[" + NAME + "] query requires numeric fields, got [" + fieldNames[i] + "]");
+            }
+            fieldTypes[i] = fieldType;
+            fieldData[i] = (IndexNumericFieldData) indexFieldData;
+            approximation.add(ExistsQueryParser.newFilter(parseContext, fieldNames[i], null), BooleanClause.Occur.SHOULD);
+            hasIndicator = true;
+        }
+
+        Query query;
+        if (hasIndicator) {
+            query = new WeightedAvgRangeQuery(fieldNames, weightValues, mode, blockExecution,
+                    gte == null ? Double.NEGATIVE_INFINITY : gte, lte == null ? Double.POSITIVE_INFINITY : lte,
+                    fieldTypes, fieldData, approximation.build(), cache && matchSetCache.isEnabled() ? matchSetCache : null,
+                    profileName != null ? columnCache : null);
+        } else {
+            query = Queries.newMatchNoDocsQuery();
+        }
+        query.setBoost(boost);
+        if (queryName != null) {
+            parseContext.addNamedQuery(queryName, query);
+        }
+        return query;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.opentender.nativescript.rest;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.opentender.nativescript.stats.OpentenderStatsAction;
+import org.elasticsearch.opentender.nativescript.stats.OpentenderStatsRequest;
+import org.elasticsearch.opentender.nativescript.stats.OpentenderStatsResponse;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.action.support.RestToXContentListener;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+
+/**
+ * Returns the native script statistics of all nodes or of the given nodes:
+ *
+ * <pre>
+ * GET /_opentender/stats
+ * GET /_opentender/stats/{nodeId}
+ * </pre>
+ */
+public class RestOpentenderStatsAction extends BaseRestHandler {
+
+    @Inject
+    public RestOpentenderStatsAction(Settings settings, RestController controller, Client client) {
+        super(settings, controller, client);
+        controller.registerHandler(GET, "/_opentender/stats", this);
+        controller.registerHandler(GET, "/_opentender/stats/{nodeId}", this);
+    }
+
+    @Override
+    protected void handleRequest(RestRequest request, RestChannel channel, Client client) throws Exception {
+        OpentenderStatsRequest statsRequest = new OpentenderStatsRequest(Strings.splitStringByCommaToArray(request.param("nodeId")));
+        statsRequest.timeout(request.param("timeout"));
+        client.execute(OpentenderStatsAction.INSTANCE, statsRequest, new RestToXContentListener<OpentenderStatsResponse>(channel));
+    }
+
+    @Override
+    public boolean canTripCircuitBreaker() {
+        return false;
+    }
+}
@@ -20,21 +20,31 @@ import java.util.Map;
 import org.elasticsearch.script.ScriptException;
 
 import org.elasticsearch.common.Nullable;
-import org.elasticsearch.script.AbstractSearchScript;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.opentender.nativescript.profile.WeightProfile;
+import org.elasticsearch.opentender.nativescript.profile.WeightProfileService;
+import org.elasticsearch.opentender.nativescript.script.weightedavg.AbstractWeightedAvgScript;
+import org.elasticsearch.opentender.nativescript.script.weightedavg.IndicatorValues;
+import org.elasticsearch.opentender.nativescript.script.weightedavg.RangeEvaluator;
+import org.elasticsearch.opentender.nativescript.stats.OpentenderStatsService;
+import org.elasticsearch.opentender.nativescript.stats.ScriptMetrics;
 import org.elasticsearch.script.ExecutableScript;
 import org.elasticsearch.script.NativeScriptFactory;
 
-import static org.elasticsearch.opentender.nativescript.script.weightedavg.MapScriptFactory.calculateWeightedAverage;
-
 /**
  * Script that filters a by a range with a calculated weighted average
+ *
+ * With the {@value RangeEvaluator#BOUNDS_PARAM} parameter documents are decided as soon as the
+ * indicators read so far and the bounds of the remaining ones settle whether the average lies
+ * in the range, see {@link RangeEvaluator}.
  */
-public class WeightedAvgRangeScript extends AbstractSearchScript {
+public class WeightedAvgRangeScript extends AbstractWeightedAvgScript {
+
+    final double lte;
+    final double gte;
 
-    ArrayList<String> fields;
-    ArrayList<Number> weights;
-    Double lte;
-    Double gte;
+    private final double[][] bounds;
+    private RangeEvaluator evaluator;
 
     final static public String SCRIPT_NAME = "weighted_avg_range";
 
@@ -45,6 +55,15 @@ public class WeightedAvgRangeScript extends AbstractSearchScript {
      */
     public static class Factory implements NativeScriptFactory {
 
+        private final WeightProfileService profileService;
+        private final ScriptMetrics metrics;
+
+        @Inject
+        public Factory(WeightProfileService profileService, OpentenderStatsService statsService) {
+            this.profileService = profileService;
+            this.metrics = statsService.metrics(SCRIPT_NAME);
+        }
+
         /**
          * This method is called for every search on every shard.
          *
@@ -53,7 +72,12 @@ public class WeightedAvgRangeScript extends AbstractSearchScript {
          */
         @Override
         public ExecutableScript newScript(@Nullable Map<String, Object> params) throws ScriptException {
-            return new WeightedAvgRangeScript(params);
+            WeightProfile profile = resolveProfile(profileService, params, SCRIPT_NAME);
+            metrics.onSetup();
+            if (profile != null) {
+                return new WeightedAvgRangeScript(params, profile, metrics);
+            }
+            return new WeightedAvgRangeScript(params, metrics);
         }
 
         /**
@@ -72,29 +96,57 @@ public class WeightedAvgRangeScript extends AbstractSearchScript {
      *               them here.
      * @throws ScriptException
      */
-    private WeightedAvgRangeScript(Map<String, Object> params) throws ScriptException {
-        params.entrySet();
-        fields = (ArrayList<String>) params.get("fields");
-        weights = (ArrayList<Number>) params.get("weights");
-        Number _lte = (Number) params.get("lte");
-        Number _gte = (Number) params.get("gte");
-        if (fields == null || weights == null || _gte == null || _lte == null) {
+    private WeightedAvgRangeScript(Map<String, Object> params, ScriptMetrics metrics) throws ScriptException {
+        this(params, (ArrayList<String>) params.get("fields"), (ArrayList<Number>) params.get("weights"), metrics);
+    }
+
+    private WeightedAvgRangeScript(Map<String, Object> params, ArrayList<String> fields, ArrayList<Number> weights,
+                                   ScriptMetrics metrics) throws ScriptException {
+        super(toFieldArray(validate(params, fields, weights)), toWeightArray(weights, fields.size()),
+                resolveMultiValueMode(params, SCRIPT_NAME), metrics);
+        lte = ((Number) params.get("lte")).doubleValue();
+        gte = ((Number) params.get("gte")).doubleValue();
+        bounds = RangeEvaluator.parseBounds(params, this.fields, SCRIPT_NAME);
+    }
+
+    /**
+     * Uses the already validated fields and weights of a registered profile.
+     */
+    private WeightedAvgRangeScript(Map<String, Object> params, WeightProfile profile, ScriptMetrics metrics) throws ScriptException {
+        super(profile.fields(), profile.weights(), resolveMultiValueMode(params, SCRIPT_NAME), metrics);
+        if (params.get("gte") == null || params.get("lte") == null) {
+            throw new ScriptException("cannot initialize " + SCRIPT_NAME + ": gte or lte parameter missing!");
+        }
+        lte = ((Number) params.get("lte")).doubleValue();
+        gte = ((Number) params.get("gte")).doubleValue();
+        bounds = RangeEvaluator.parseBounds(params, fields, SCRIPT_NAME);
+    }
+
+    private static ArrayList<String> validate(Map<String, Object> params, ArrayList<String> fields, ArrayList<Number> weights) throws ScriptException {
+        if (fields == null || weights == null || params.get("gte") == null || params.get("lte") == null) {
             throw new ScriptException("cannot initialize " + SCRIPT_NAME + ": gte, lte, fields or weights parameter missing!");
         }
         if (weights.size() != fields.size()) {
             throw new ScriptException("cannot initialize " + SCRIPT_NAME + ": fields and weights array must have same length!");
         }
-        lte = _lte.doubleValue();
-        gte = _gte.doubleValue();
+        return fields;
+    }
+
+    @Override
+    protected void onSegment(IndicatorValues values) {
+        if (bounds != null) {
+            evaluator = RangeEvaluator.create(values, weights, mode, bounds, gte, lte);
+        }
     }
 
     @Override
     public Object run() {
-        Double value = calculateWeightedAverage(doc(), fields, weights);
-        if (value != null) {
-            return (value >= gte) && (value <= lte);
+        if (evaluator != null) {
+            return inRange(evaluator);
         }
-        return false;
+        double value = weightedAverage();
+        // NaN never matches, documents without indicators are filtered out
+        return (value >= gte) && (value <= lte);
     }
 
 }
@@ -0,0 +1,147 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.script;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+import org.elasticsearch.script.ScriptException;
+
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.opentender.nativescript.profile.WeightProfile;
+import org.elasticsearch.opentender.nativescript.profile.WeightProfileService;
+import org.elasticsearch.opentender.nativescript.script.weightedavg.AbstractWeightedAvgScript;
+import org.elasticsearch.opentender.nativescript.stats.OpentenderStatsService;
+import org.elasticsearch.opentender.nativescript.stats.ScriptMetrics;
+import org.elasticsearch.script.ExecutableScript;
+import org.elasticsearch.script.NativeScriptFactory;
+
+/**
+ * Script that returns the weighted average of a document as a double, for
+ * {@code _script} sorting and {@code function_score}.
+ *
+ * Documents without any indicator get the {@code missing} parameter, which is
+ * either a number (0 by default), {@code "_min"} or {@code "_max"}. {@code "_min"}
+ * and {@code "_max"} are the smallest and the largest finite float, so they stay
+ * finite when {@code function_score} converts the value to a float score.
+ */
+public class WeightedAvgScoreScript extends AbstractWeightedAvgScript {
+
+    final double missing;
+
+    final static public String SCRIPT_NAME = "weighted_avg_score";
+
+    final static public String MISSING_PARAM = "missing";
+
+    /**
+     * Factory that is registered in
+     * {@link org.elasticsearch.opentender.nativescript.plugin.NativeScriptOpentenderPlugin#onModule(org.elasticsearch.script.ScriptModule)}
+     * method when the plugin is loaded.
+     */
+    public static class Factory implements NativeScriptFactory {
+
+        private final WeightProfileService profileService;
+        private final ScriptMetrics metrics;
+
+        @Inject
+        public Factory(WeightProfileService profileService, OpentenderStatsService statsService) {
+            this.profileService = profileService;
+            this.metrics = statsService.metrics(SCRIPT_NAME);
+        }
+
+        /**
+         * This method is called for every search on every shard.
+         *
+         * @param params list of script parameters passed with the query
+         * @return new native script
+         */
+        @Override
+        public ExecutableScript newScript(@Nullable Map<String, Object> params) throws ScriptException {
+            WeightProfile profile = resolveProfile(profileService, params, SCRIPT_NAME);
+            metrics.onSetup();
+            if (profile != null) {
+                return new WeightedAvgScoreScript(profile.fields(), profile.weights(), params, metrics);
+            }
+            if (params == null || params.get("fields") == null || params.get("weights") == null) {
+                throw new ScriptException("cannot initialize " + SCRIPT_NAME + ": fields or weights parameter missing!");
+            }
+            ArrayList<String> fields = (ArrayList<String>) params.get("fields");
+            ArrayList<Number> weights = (ArrayList<Number>) params.get("weights");
+            if (weights.size() != fields.size()) {
+                throw new ScriptException("cannot initialize " + SCRIPT_NAME + ": fields and weights array must have same length!");
+            }
+            return new WeightedAvgScoreScript(toFieldArray(fields), toWeightArray(weights, fields.size()), params, metrics);
+        }
+
+        /**
+         * Indicates if document scores may be needed by the produced scripts.
+         *
+         * @return {@code true} if scores are needed.
+         */
+        @Override
+        public boolean needsScores() {
+            return false;
+        }
+    }
+
+    private WeightedAvgScoreScript(String[] fields, double[] weights, @Nullable Map<String, Object> params,
+                                   ScriptMetrics metrics) throws ScriptException {
+        super(fields, weights, resolveMultiValueMode(params, SCRIPT_NAME), metrics);
+        this.missing = parseMissing(params == null ? null : params.get(MISSING_PARAM));
+    }
+
+    private static double parseMissing(Object missing) throws ScriptException {
+        if (missing == null) {
+            return 0;
+        }
+        if (missing instanceof Number) {
+            return ((Number) missing).doubleValue();
+        }
+        if ("_min".equals(missing)) {
+            return -Float.MAX_VALUE;
+        }
+        if ("_max".equals(missing)) {
+            return Float.MAX_VALUE;
+        }
+        try {
+            return Double.parseDouble(missing.toString());
+        } catch (NumberFormatException e) {
+            throw new ScriptException("cannot initialize " + SCRIPT_NAME + ": missing must be a number, _min or _max!");
+        }
+    }
+
+    @Override
+    public double runAsDouble() {
+        double value = weightedAverage();
+        return Double.isNaN(value) ? missing : value;
+    }
+
+    @Override
+    public float runAsFloat() {
+        return (float) runAsDouble();
+    }
+
+    @Override
+    public long runAsLong() {
+        return (long) runAsDouble();
+    }
+
+    @Override
+    public Object run() {
+        return runAsDouble();
+    }
+
+}
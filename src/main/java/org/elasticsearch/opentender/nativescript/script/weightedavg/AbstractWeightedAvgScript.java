@@ -0,0 +1,242 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.script.weightedavg;
+
+import org.elasticsearch.opentender.nativescript.profile.WeightProfile;
+import org.elasticsearch.opentender.nativescript.profile.WeightProfileService;
+import org.elasticsearch.opentender.nativescript.stats.ScriptMetrics;
+import org.elasticsearch.script.AbstractSearchScript;
+import org.elasticsearch.script.ScriptException;
+import org.elasticsearch.search.lookup.LeafDocLookup;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Base class of the search scripts that compute the weighted average of indicator fields.
+ *
+ * Elasticsearch creates a new doc lookup for every segment, so the indicator
+ * fields are bound to their doc values whenever the lookup changes instead of
+ * being looked up for every document.
+ *
+ * Every evaluated document is counted in the {@link ScriptMetrics} of the
+ * script, one out of {@value ScriptMetrics#SAMPLE_INTERVAL} is timed. The scaled
+ * times add up to the time the script spent in the current segment, which is
+ * written to the slow log once it exceeds the threshold.
+ */
+public abstract class AbstractWeightedAvgScript extends AbstractSearchScript {
+
+    /**
+     * Script parameter referencing a registered weight profile instead of passing fields and weights.
+     */
+    public static final String PROFILE_PARAM = "profile";
+
+    /**
+     * Script parameter listing several registered weight profiles that are evaluated in one pass.
+     */
+    public static final String PROFILES_PARAM = "profiles";
+
+    /**
+     * Script parameter selecting the value of multi-valued indicator fields, see {@link MultiValueMode}.
+     */
+    public static final String MULTI_VALUE_MODE_PARAM = "multi_value_mode";
+
+    protected final String[] fields;
+    protected final double[] weights;
+    protected final MultiValueMode mode;
+
+    private final ScriptMetrics metrics;
+
+    private LeafDocLookup boundLookup;
+    private IndicatorValues values;
+    private int docId = -1;
+    private int untimed;
+    private int segmentDocs;
+    private long segmentNanos;
+    private boolean segmentLogged;
+
+    protected AbstractWeightedAvgScript(String[] fields, double[] weights, MultiValueMode mode, ScriptMetrics metrics) {
+        this.fields = fields;
+        this.weights = weights;
+        this.mode = mode;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void setDocument(int doc) {
+        super.setDocument(doc);
+        final LeafDocLookup lookup = doc();
+        if (lookup != boundLookup) {
+            values = IndicatorValues.bind(lookup, fields, mode);
+            boundLookup = lookup;
+            segmentDocs = 0;
+            segmentNanos = 0;
+            segmentLogged = false;
+            onSegment(values);
+        }
+        docId = doc;
+        segmentDocs++;
+    }
+
+    /**
+     * Called when the script moves to another segment, after the indicator fields are bound to it.
+     */
+    protected void onSegment(IndicatorValues values) {
+    }
+
+    /**
+     * @return the segment doc id of the current document
+     */
+    protected final int docId() {
+        return docId;
+    }
+
+    /**
+     * @return the weighted average of the current document or {@code NaN} if it has no indicator
+     */
+    protected final double weightedAverage() {
+        if (++untimed < ScriptMetrics.SAMPLE_INTERVAL) {
+            final double value = values.weightedAverage(docId, weights);
+            metrics.onDocument(Double.isNaN(value));
+            return value;
+        }
+        untimed = 0;
+        final long start = System.nanoTime();
+        final double value = values.weightedAverage(docId, weights);
+        onTimedDocument(Double.isNaN(value), System.nanoTime() - start);
+        return value;
+    }
+
+    /**
+     * Decides whether the weighted average of the current document lies in the range of the evaluator,
+     * see {@link RangeEvaluator#matches(int)}.
+     */
+    protected final boolean inRange(RangeEvaluator evaluator) {
+        if (++untimed < ScriptMetrics.SAMPLE_INTERVAL) {
+            final boolean matches = evaluator.matches(docId);
+            metrics.onDocument(evaluator.missing());
+            return matches;
+        }
+        untimed = 0;
+        final long start = System.nanoTime();
+        final boolean matches = evaluator.matches(docId);
+        onTimedDocument(evaluator.missing(), System.nanoTime() - start);
+        return matches;
+    }
+
+    /**
+     * Reads the indicators of the current document, see {@link IndicatorValues#read(int, double[])}.
+     *
+     * @return the number of indicators the document has
+     */
+    protected final int readIndicators(double[] buffer) {
+        if (++untimed < ScriptMetrics.SAMPLE_INTERVAL) {
+            final int found = values.read(docId, buffer);
+            metrics.onDocument(found == 0);
+            return found;
+        }
+        untimed = 0;
+        final long start = System.nanoTime();
+        final int found = values.read(docId, buffer);
+        onTimedDocument(found == 0, System.nanoTime() - start);
+        return found;
+    }
+
+    private void onTimedDocument(boolean missing, long nanos) {
+        segmentNanos += metrics.onTimedDocument(missing, nanos);
+        final String index = boundLookup.mapperService().index().name();
+        if (segmentLogged == false && metrics.isSlow(index, segmentNanos)) {
+            segmentLogged = true;
+            metrics.logSlow(segmentNanos, "index [" + index + "], [" + segmentDocs
+                    + "] documents of a segment of [" + indexLookup().maxDoc() + "] documents");
+        }
+    }
+
+    /**
+     * @return the weight profile referenced by the script parameters or {@code null} if none is referenced
+     * @throws ScriptException if the referenced profile is not registered
+     */
+    protected static WeightProfile resolveProfile(WeightProfileService profileService, Map<String, Object> params,
+                                                  String scriptName) throws ScriptException {
+        Object name = params == null ? null : params.get(PROFILE_PARAM);
+        if (name == null) {
+            return null;
+        }
+        WeightProfile profile = profileService.getProfile(name.toString());
+        if (profile == null) {
+            throw new ScriptException("cannot initialize " + scriptName + ": unknown weight profile [" + name + "]!");
+        }
+        return profile;
+    }
+
+    /**
+     * @return the weight profiles listed by the script parameters or {@code null} if none are listed
+     * @throws ScriptException if one of the listed profiles is not registered
+     */
+    protected static ProfileSet resolveProfiles(WeightProfileService profileService, Map<String, Object> params,
+                                                String scriptName) throws ScriptException {
+        List<?> names = params == null ? null : (List<?>) params.get(PROFILES_PARAM);
+        if (names == null) {
+            return null;
+        }
+        WeightProfile[] profiles = new WeightProfile[names.size()];
+        for (int i = 0; i < profiles.length; i++) {
+            profiles[i] = profileService.getProfile(names.get(i).toString());
+            if (profiles[i] == null) {
+                throw new ScriptException("cannot initialize " + scriptName + ": unknown weight profile [" + names.get(i) + "]!");
+            }
+        }
+        return new ProfileSet(profiles);
+    }
+
+    /**
+     * @return the multi value mode of the script parameters, {@link MultiValueMode#FIRST} by default
+     * @throws ScriptException if the mode is unknown
+     */
+    protected static MultiValueMode resolveMultiValueMode(Map<String, Object> params, String scriptName) throws ScriptException {
+        Object name = params == null ? null : params.get(MULTI_VALUE_MODE_PARAM);
+        if (name == null) {
+            return MultiValueMode.FIRST;
+        }
+        try {
+            return MultiValueMode.fromString(name.toString());
+        } catch (IllegalArgumentException e) {
+            throw new ScriptException("cannot initialize " + scriptName + ": " + e.getMessage());
+        }
+    }
+
+    protected static String[] toFieldArray(List<String> fields) {
+        if (fields == null) {
+            return new String[0];
+        }
+        return fields.toArray(new String[fields.size()]);
+    }
+
+    /**
+     * @return the weights as primitive array, every field has the weight 1 if no weights are given
+     */
+    protected static double[] toWeightArray(List<Number> weights, int size) {
+        final double[] values = new double[size];
+        if (weights == null) {
+            Arrays.fill(values, 1);
+        } else {
+            for (int i = 0; i < size; i++) {
+                values[i] = weights.get(i).doubleValue();
+            }
+        }
+        return values;
+    }
+}
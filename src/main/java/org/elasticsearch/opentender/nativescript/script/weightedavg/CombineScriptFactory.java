@@ -15,21 +15,50 @@
 package org.elasticsearch.opentender.nativescript.script.weightedavg;
 
 import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.opentender.nativescript.stats.OpentenderStatsService;
+import org.elasticsearch.opentender.nativescript.stats.ScriptMetrics;
+import org.elasticsearch.opentender.nativescript.stats.TimedExecutableScript;
 import org.elasticsearch.script.AbstractExecutableScript;
 import org.elasticsearch.script.ExecutableScript;
 import org.elasticsearch.script.NativeScriptFactory;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 /**
  * Combine script
+ *
+ * Returns the shard result as {@code [sum, count]} list, or as primitive
+ * {@code double[]{sum, count}} when the aggregation parameter {@value #COMPACT_PARAM}
+ * is {@code true}. The array is streamed as a fixed size double array instead of a
+ * list of boxed values and is understood by {@link ReduceScriptFactory}.
+ *
+ * With several profiles the shard result is a map of profile name to such a result.
+ *
+ * With {@link DocumentSampler sampling} the shard result is the sample accumulator
+ * {@code [docs, sampled, count, mean, m2]} followed by the confidence level,
+ * {@code max_docs} and the priorities and weighted averages of the documents in the
+ * reservoir of the shard, in the same list or compact form.
  */
 public class CombineScriptFactory implements NativeScriptFactory {
 
+    public static final String SCRIPT_NAME = "weighted_avg_combine";
+
+    public static final String COMPACT_PARAM = "compact";
+
+    private final ScriptMetrics metrics;
+
+    @Inject
+    public CombineScriptFactory(OpentenderStatsService statsService) {
+        this.metrics = statsService.metrics(SCRIPT_NAME);
+    }
+
     @Override
     public ExecutableScript newScript(final @Nullable Map<String, Object> params) {
-        return new CombineScript(params);
+        metrics.onSetup();
+        return new TimedExecutableScript(new CombineScript(params), metrics);
     }
 
     @Override
@@ -40,19 +69,46 @@ public class CombineScriptFactory implements NativeScriptFactory {
     private static class CombineScript extends AbstractExecutableScript {
 
         private final Map<String, Object> params;
+        private final boolean compact;
+        private final DocumentSampler sampler;
 
         public CombineScript(Map<String, Object> params) {
             this.params = params;
+            this.compact = params != null && Boolean.TRUE.equals(params.get(COMPACT_PARAM));
+            this.sampler = DocumentSampler.parse(params, SCRIPT_NAME);
         }
 
         @Override
         public Object run() {
             Map<String, Object> agg = (Map<String, Object>) params.get("_agg");
-            final Double sum = (Double) agg.get(InitScriptFactory.SUM_FIELD);
-            final Double count = (Double) agg.get(InitScriptFactory.COUNT_FIELD);
-            final ArrayList<Double> list = new ArrayList<Double>();
-            list.add(sum);
-            list.add(count);
+            final double[] sample = (double[]) agg.get(InitScriptFactory.SAMPLE_FIELD);
+            if (sample != null && sampler != null) {
+                final double[] result = sampler.shardResult(sample, (SampleReservoir) agg.get(InitScriptFactory.RESERVOIR_FIELD));
+                return compact ? result : toList(result);
+            }
+            final Map<String, double[]> profiles = (Map<String, double[]>) agg.get(InitScriptFactory.PROFILES_FIELD);
+            if (profiles != null) {
+                final Map<String, Object> results = new LinkedHashMap<String, Object>();
+                for (Map.Entry<String, double[]> profile : profiles.entrySet()) {
+                    results.put(profile.getKey(), result(profile.getValue()[0], profile.getValue()[1]));
+                }
+                return results;
+            }
+            return result((Double) agg.get(InitScriptFactory.SUM_FIELD), (Double) agg.get(InitScriptFactory.COUNT_FIELD));
+        }
+
+        private Object result(double sum, double count) {
+            if (compact) {
+                return new double[]{sum, count};
+            }
+            return toList(new double[]{sum, count});
+        }
+
+        private static ArrayList<Double> toList(double[] values) {
+            final ArrayList<Double> list = new ArrayList<Double>(values.length);
+            for (double value : values) {
+                list.add(value);
+            }
             return list;
         }
     }
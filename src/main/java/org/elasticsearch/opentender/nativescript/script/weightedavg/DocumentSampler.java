@@ -0,0 +1,376 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.script.weightedavg;
+
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.script.ScriptException;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Deterministic document sampling of the weighted average scripted metric.
+ *
+ * Every document gets a priority in [0, 1) from a seeded hash of a key that is cheap to
+ * read, the value of the numeric doc values field {@code field} or else the segment doc
+ * id, so repeated requests on an unchanged shard sample the same documents. Doc ids of
+ * different segments share their priorities, a key field makes the decisions independent
+ * of the segments and stable across merges. A document is sampled if its priority falls
+ * below the sampling rate. With {@code max_docs} a {@link SampleReservoir} of every
+ * shard keeps the sampled documents with the lowest priorities and the reduce keeps
+ * the {@code max_docs} lowest of all shards, a uniform sample of the collected
+ * documents. Skipped documents are not evaluated.
+ *
+ * The weighted averages of the sampled documents are accumulated with Welford's
+ * running variance in an accumulator of {@value #ACCUMULATOR_SIZE} values
+ * {@code [docs, sampled, count, mean, m2]}, where {@code docs} are all collected
+ * documents, {@code sampled} the sampled ones and {@code count} the sampled ones
+ * with indicators. The shard accumulators are merged with the parallel variance
+ * formula and the confidence interval of the mean is derived from the normal
+ * approximation with the finite population correction of the sampling fraction.
+ */
+public final class DocumentSampler {
+
+    /**
+     * Parameter of the init, map and combine scripts holding the sampling options.
+     */
+    public static final String SAMPLE_PARAM = "sample";
+
+    public static final String RATE_FIELD = "rate";
+    public static final String MAX_DOCS_FIELD = "max_docs";
+    public static final String SEED_FIELD = "seed";
+    public static final String CONFIDENCE_FIELD = "confidence";
+    public static final String FIELD_FIELD = "field";
+
+    /**
+     * The largest {@code max_docs}, every shard ships up to this many priorities and averages to the reduce.
+     */
+    public static final int MAX_DOCS_LIMIT = 100000;
+
+    public static final int ACCUMULATOR_SIZE = 5;
+
+    /**
+     * First value of a shard result, it tells the shard results of the sampler apart from the {@code [sum, count]}
+     * results of the combine script.
+     */
+    public static final double RESULT_MARKER = Double.NEGATIVE_INFINITY;
+
+    /**
+     * Size of a shard result without sampled documents, the marker and the accumulator followed by the confidence
+     * and {@code max_docs}.
+     */
+    public static final int RESULT_SIZE = ACCUMULATOR_SIZE + 3;
+
+    private static final int DOCS = 0;
+    private static final int SAMPLED = 1;
+    private static final int COUNT = 2;
+    private static final int MEAN = 3;
+    private static final int M2 = 4;
+
+    private static final int RESULT_ACCUMULATOR = 1;
+    private static final int CONFIDENCE = RESULT_ACCUMULATOR + ACCUMULATOR_SIZE;
+    private static final int MAX_DOCS = CONFIDENCE + 1;
+
+    private final double rate;
+    private final int maxDocs;
+    private final long seed;
+    private final double confidence;
+    private final String field;
+
+    /**
+     * @param maxDocs the number of sampled documents or {@code 0} to sample by the rate only
+     * @param field   the numeric field whose values are hashed or {@code null} to hash the doc ids
+     */
+    DocumentSampler(double rate, int maxDocs, long seed, double confidence, @Nullable String field) {
+        this.rate = rate;
+        this.maxDocs = maxDocs;
+        this.seed = seed;
+        this.confidence = confidence;
+        this.field = field;
+    }
+
+    /**
+     * @return the sampler configured by the script parameters or {@code null} if the parameters do not sample
+     * @throws ScriptException if the sampling options are invalid
+     */
+    public static DocumentSampler parse(Map<String, Object> params, String scriptName) throws ScriptException {
+        Object sample = params == null ? null : params.get(SAMPLE_PARAM);
+        if (sample == null) {
+            return null;
+        }
+        if ((sample instanceof Map) == false) {
+            throw new ScriptException("cannot initialize " + scriptName + ": [" + SAMPLE_PARAM + "] must be an object");
+        }
+        Map<?, ?> options = (Map<?, ?>) sample;
+        double rate = number(options, RATE_FIELD, 1, scriptName);
+        double maxDocs = number(options, MAX_DOCS_FIELD, 0, scriptName);
+        double seed = number(options, SEED_FIELD, 0, scriptName);
+        double confidence = number(options, CONFIDENCE_FIELD, 0.95, scriptName);
+        if (options.containsKey(RATE_FIELD) == false && options.containsKey(MAX_DOCS_FIELD) == false) {
+            throw new ScriptException("cannot initialize " + scriptName + ": [" + SAMPLE_PARAM + "] requires [" + RATE_FIELD
+                    + "] or [" + MAX_DOCS_FIELD + "]");
+        }
+        if (rate <= 0 || rate > 1) {
+            throw new ScriptException("cannot initialize " + scriptName + ": [" + RATE_FIELD + "] must be in (0, 1], got [" + rate + "]");
+        }
+        if (options.containsKey(MAX_DOCS_FIELD) && (maxDocs < 1 || maxDocs > MAX_DOCS_LIMIT)) {
+            throw new ScriptException("cannot initialize " + scriptName + ": [" + MAX_DOCS_FIELD + "] must be in [1, "
+                    + MAX_DOCS_LIMIT + "], got [" + (long) maxDocs + "]");
+        }
+        Object field = options.get(FIELD_FIELD);
+        if (field != null && (field instanceof String) == false) {
+            throw new ScriptException("cannot initialize " + scriptName + ": [" + FIELD_FIELD + "] must be a field name, got ["
+                    + field + "]");
+        }
+        if (confidence <= 0 || confidence >= 1) {
+            throw new ScriptException("cannot initialize " + scriptName + ": [" + CONFIDENCE_FIELD + "] must be in (0, 1), got ["
+                    + confidence + "]");
+        }
+        return new DocumentSampler(rate, (int) maxDocs, (long) seed, confidence, (String) field);
+    }
+
+    private static double number(Map<?, ?> options, String field, double defaultValue, String scriptName) {
+        Object value = options.get(field);
+        if (value == null) {
+            return defaultValue;
+        }
+        if ((value instanceof Number) == false) {
+            throw new ScriptException("cannot initialize " + scriptName + ": [" + field + "] must be a number, got [" + value + "]");
+        }
+        return ((Number) value).doubleValue();
+    }
+
+    /**
+     * @return a new empty accumulator
+     */
+    public static double[] newAccumulator() {
+        return new double[ACCUMULATOR_SIZE];
+    }
+
+    /**
+     * @return a new empty reservoir of the sampled documents or {@code null} if the sampler samples by the rate only
+     */
+    SampleReservoir newReservoir() {
+        return maxDocs > 0 ? new SampleReservoir(maxDocs) : null;
+    }
+
+    /**
+     * @return the numeric field whose values are hashed or {@code null} if the doc ids are hashed
+     */
+    @Nullable
+    public String field() {
+        return field;
+    }
+
+    /**
+     * @return the priority of a document in [0, 1), derived from its key and the seed (SplitMix64 finalizer)
+     */
+    public double priority(long key) {
+        long z = seed + (key + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        z = z ^ (z >>> 31);
+        return (z >>> 11) * 0x1.0p-53;
+    }
+
+    /**
+     * Counts the document and decides whether it is sampled.
+     *
+     * @param priority  the priority of the document
+     * @param reservoir the reservoir of the shard or {@code null} if the sampler samples by the rate only
+     */
+    boolean sample(double priority, double[] accumulator, @Nullable SampleReservoir reservoir) {
+        accumulator[DOCS]++;
+        return priority < rate && (reservoir == null || reservoir.competitive(priority));
+    }
+
+    /**
+     * Adds the weighted average of a sampled document, {@code NaN} for a document without indicators.
+     */
+    static void add(double[] accumulator, @Nullable SampleReservoir reservoir, double priority, double value) {
+        if (reservoir != null) {
+            reservoir.offer(priority, value);
+            return;
+        }
+        accumulator[SAMPLED]++;
+        if (Double.isNaN(value) == false) {
+            add(accumulator, value);
+        }
+    }
+
+    private static void add(double[] accumulator, double value) {
+        final double count = ++accumulator[COUNT];
+        final double delta = value - accumulator[MEAN];
+        accumulator[MEAN] += delta / count;
+        accumulator[M2] += delta * (value - accumulator[MEAN]);
+    }
+
+    /**
+     * @return the result of a shard, the {@link #RESULT_MARKER} and the accumulator followed by the confidence,
+     * {@code max_docs} and, with {@code max_docs}, the priorities and weighted averages of the sampled documents
+     * in priority order
+     */
+    double[] shardResult(double[] accumulator, @Nullable SampleReservoir reservoir) {
+        double[] sampled = accumulator;
+        double[] priorities = new double[0];
+        double[] values = new double[0];
+        int size = 0;
+        if (reservoir != null) {
+            priorities = new double[reservoir.size()];
+            values = new double[reservoir.size()];
+            size = reservoir.drain(priorities, values);
+            sampled = newAccumulator();
+            sampled[DOCS] = accumulator[DOCS];
+            for (int i = 0; i < size; i++) {
+                add(sampled, null, priorities[i], values[i]);
+            }
+        }
+        final double[] result = new double[RESULT_SIZE + 2 * size];
+        result[0] = RESULT_MARKER;
+        System.arraycopy(sampled, 0, result, RESULT_ACCUMULATOR, ACCUMULATOR_SIZE);
+        result[CONFIDENCE] = confidence;
+        result[MAX_DOCS] = maxDocs;
+        for (int i = 0; i < size; i++) {
+            result[RESULT_SIZE + 2 * i] = priorities[i];
+            result[RESULT_SIZE + 2 * i + 1] = values[i];
+        }
+        return result;
+    }
+
+    /**
+     * @return {@code true} if the values are a shard result of {@link #shardResult}
+     */
+    static boolean isShardResult(double[] values) {
+        return values.length >= RESULT_SIZE && values[0] == RESULT_MARKER;
+    }
+
+    /**
+     * Merges the results of the shards, the sampled documents of shards sampled with {@code max_docs} are
+     * merged in priority order up to {@code max_docs}.
+     *
+     * @return the estimate of the mean
+     */
+    static Map<String, Object> reduce(List<double[]> shards) {
+        final double[] total = newAccumulator();
+        double confidence = Double.NaN;
+        int maxDocs = 0;
+        for (double[] shard : shards) {
+            if (isShardResult(shard) == false) {
+                throw new IllegalArgumentException("expected sampled shard results, got " + Arrays.toString(shard));
+            }
+            confidence = shard[CONFIDENCE];
+            maxDocs = (int) shard[MAX_DOCS];
+        }
+        if (maxDocs == 0) {
+            for (double[] shard : shards) {
+                merge(total, Arrays.copyOfRange(shard, RESULT_ACCUMULATOR, RESULT_ACCUMULATOR + ACCUMULATOR_SIZE));
+            }
+            return estimate(total, confidence);
+        }
+        final int[] next = new int[shards.size()];
+        for (int i = 0; i < next.length; i++) {
+            next[i] = RESULT_SIZE;
+            total[DOCS] += shards.get(i)[RESULT_ACCUMULATOR + DOCS];
+        }
+        while (total[SAMPLED] < maxDocs) {
+            int lowest = -1;
+            for (int i = 0; i < next.length; i++) {
+                final double[] shard = shards.get(i);
+                if (next[i] < shard.length && (lowest == -1 || shard[next[i]] < shards.get(lowest)[next[lowest]])) {
+                    lowest = i;
+                }
+            }
+            if (lowest == -1) {
+                break;
+            }
+            add(total, null, shards.get(lowest)[next[lowest]], shards.get(lowest)[next[lowest] + 1]);
+            next[lowest] += 2;
+        }
+        return estimate(total, confidence);
+    }
+
+    /**
+     * Merges the accumulator of a shard into the total.
+     */
+    private static void merge(double[] total, double[] shard) {
+        final double count = total[COUNT] + shard[COUNT];
+        if (count > 0) {
+            final double delta = shard[MEAN] - total[MEAN];
+            total[M2] += shard[M2] + delta * delta * total[COUNT] * shard[COUNT] / count;
+            total[MEAN] += delta * shard[COUNT] / count;
+        }
+        total[DOCS] += shard[DOCS];
+        total[SAMPLED] += shard[SAMPLED];
+        total[COUNT] = count;
+    }
+
+    /**
+     * @return the estimated mean with its confidence interval, the bounds are {@code null} for less than two values
+     */
+    private static Map<String, Object> estimate(double[] total, double confidence) {
+        final Map<String, Object> estimate = new LinkedHashMap<String, Object>();
+        final double count = total[COUNT];
+        Double lower = null;
+        Double upper = null;
+        Double standardError = null;
+        if (count >= 2) {
+            final double variance = total[M2] / (count - 1);
+            final double sampledFraction = total[DOCS] > 0 ? total[SAMPLED] / total[DOCS] : 1;
+            standardError = Math.sqrt(variance / count * Math.max(0, 1 - sampledFraction));
+            final double margin = normalQuantile(0.5 + confidence / 2) * standardError;
+            lower = total[MEAN] - margin;
+            upper = total[MEAN] + margin;
+        }
+        estimate.put("value", count > 0 ? total[MEAN] : null);
+        estimate.put("lower", lower);
+        estimate.put("upper", upper);
+        estimate.put("std_error", standardError);
+        estimate.put(CONFIDENCE_FIELD, confidence);
+        estimate.put("count", (long) count);
+        estimate.put("sampled_docs", (long) total[SAMPLED]);
+        estimate.put("docs", (long) total[DOCS]);
+        return estimate;
+    }
+
+    /**
+     * @return the quantile of the standard normal distribution (Acklam's approximation, relative error below 1.2e-9)
+     */
+    static double normalQuantile(double p) {
+        final double[] a = {-3.969683028665376e+01, 2.209460984245205e+02, -2.759285104469687e+02,
+                1.383577518672690e+02, -3.066479806614716e+01, 2.506628277459239e+00};
+        final double[] b = {-5.447609879822406e+01, 1.615858368580409e+02, -1.556989798598866e+02,
+                6.680131188771972e+01, -1.328068155288572e+01};
+        final double[] c = {-7.784894002430293e-03, -3.223964580411365e-01, -2.400758277161838e+00,
+                -2.549732539343734e+00, 4.374664141464968e+00, 2.938163982698783e+00};
+        final double[] d = {7.784695709041462e-03, 3.224671290700398e-01, 2.445134137142996e+00, 3.754408661907416e+00};
+        final double low = 0.02425;
+        if (p < low) {
+            final double q = Math.sqrt(-2 * Math.log(p));
+            return (((((c[0] * q + c[1]) * q + c[2]) * q + c[3]) * q + c[4]) * q + c[5])
+                    / ((((d[0] * q + d[1]) * q + d[2]) * q + d[3]) * q + 1);
+        }
+        if (p > 1 - low) {
+            final double q = Math.sqrt(-2 * Math.log(1 - p));
+            return -(((((c[0] * q + c[1]) * q + c[2]) * q + c[3]) * q + c[4]) * q + c[5])
+                    / ((((d[0] * q + d[1]) * q + d[2]) * q + d[3]) * q + 1);
+        }
+        final double q = p - 0.5;
+        final double r = q * q;
+        return (((((a[0] * r + a[1]) * r + a[2]) * r + a[3]) * r + a[4]) * r + a[5]) * q
+                / (((((b[0] * r + b[1]) * r + b[2]) * r + b[3]) * r + b[4]) * r + 1);
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.opentender.nativescript.script.weightedavg;
+
+import java.util.Arrays;
+
+/**
+ * Evaluates the weighted averages of a block of documents column by column.
+ *
+ * The doc ids are gathered until the block is full, then every indicator is
+ * read into a primitive column with a presence mask (1 if the document has the
+ * indicator, 0 otherwise) and the weighted sums of all documents are
+ * accumulated in plain loops over the arrays, which the JIT can unroll and
+ * vectorize. The doc values are advanced in doc id order once per column.
+ *
+ * Indicators of vector fields are decoded once per document for all of their
+ * components, so {@link IndicatorValues#isRowWise() row wise} values are
+ * evaluated document by document instead.
+ *
+ * A block is not thread safe and is reused for every segment of a single
+ * aggregator or scorer.
+ */
+public final class IndicatorBlock {
+
+    /**
+     * Number of documents that are evaluated together.
+     */
+    public static final int SIZE = 256;
+
+    private final int[] docs = new int[SIZE];
+    private final double[] column = new double[SIZE];
+    private final double[] presence = new double[SIZE];
+    private final double[] sums = new double[SIZE];
+    private final double[] weightSums = new double[SIZE];
+    private final double[] averages = new double[SIZE];
+    private int size;
+
+    /**
+     * Adds a document, documents must be added in ascending doc id order. The same
+     * document can be added repeatedly, e.g. once for every bucket it falls into.
+     *
+     * @return {@code true} if the block is full and must be evaluated
+     */
+    public boolean add(int doc) {
+        docs[size++] = doc;
+        return size == SIZE;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int doc(int index) {
+        return docs[index];
+    }
+
+    /**
+     * @return the weighted average of the document at the index or {@code NaN} if it has no indicator,
+     * only valid after {@link #evaluate}
+     */
+    public double average(int index) {
+        return averages[index];
+    }
+
+    /**
+     * Computes the weighted averages of all documents of the block, the results are
+     * the same as {@link IndicatorValues#weightedAverage} for every single document.
+     */
+    public void evaluate(IndicatorValues values, double[] weights) {
+        final int size = this.size;
+        if (values.isRowWise()) {
+            for (int i = 0; i < size; i++) {
+                averages[i] = values.weightedAverage(docs[i], weights);
+            }
+            return;
+        }
+        Arrays.fill(sums, 0, size, 0);
+        Arrays.fill(weightSums, 0, size, 0);
+        for (int field = 0; field < weights.length; field++) {
+            if (values.readColumn(field, docs, size, column, presence) == false) {
+                continue;
+            }
+            final double weight = weights[field];
+            for (int i = 0; i < size; i++) {
+                sums[i] += column[i] * weight;
+                weightSums[i] += presence[i] * weight;
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            averages[i] = weightSums[i] > 0 ? sums[i] / weightSums[i] : Double.NaN;
+        }
+    }
+
+    public void clear() {
+        size = 0;
+    }
+}
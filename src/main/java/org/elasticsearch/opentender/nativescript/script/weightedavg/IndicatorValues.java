@@ -0,0 +1,222 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.script.weightedavg;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.elasticsearch.index.fielddata.FieldData;
+import org.elasticsearch.index.fielddata.IndexNumericFieldData;
+import org.elasticsearch.index.fielddata.ScriptDocValues;
+import org.elasticsearch.index.fielddata.SortedNumericDoubleValues;
+import org.elasticsearch.opentender.nativescript.mapper.IndicatorVectorFieldData;
+import org.elasticsearch.opentender.nativescript.mapper.IndicatorVectorValues;
+import org.elasticsearch.search.lookup.LeafDocLookup;
+
+/**
+ * Indicator field values bound to a single segment.
+ *
+ * The fields are resolved once per segment, a field that is not mapped is
+ * kept as {@code null} and skipped. Computing the weighted average of a
+ * document then only advances the doc values of the bound fields, the value
+ * of a multi-valued field is selected by the {@link MultiValueMode} in the
+ * same loop.
+ *
+ * Indicators of the same {@code indicator_vector} field share one decoder, so
+ * all of them are read with a single doc value lookup per document. Such values
+ * are {@link #isRowWise() row wise} and evaluated document by document.
+ */
+public final class IndicatorValues {
+
+    private final SortedNumericDoubleValues[] values;
+    private final MultiValueMode mode;
+    private final boolean empty;
+    private final boolean rowWise;
+
+    public IndicatorValues(SortedNumericDoubleValues[] values, MultiValueMode mode) {
+        this.values = values;
+        this.mode = mode;
+        boolean empty = true;
+        boolean rowWise = false;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                empty = false;
+            }
+            if (values[i] instanceof IndicatorVectorValues.Component) {
+                rowWise = true;
+                shareDecoder(values, i);
+            }
+        }
+        this.empty = empty;
+        this.rowWise = rowWise;
+    }
+
+    /**
+     * Links the vector component at the index to the decoder of the first component of the same vector.
+     */
+    private static void shareDecoder(SortedNumericDoubleValues[] values, int index) {
+        final IndicatorVectorValues.Component component = (IndicatorVectorValues.Component) values[index];
+        for (int i = 0; i < index; i++) {
+            if (values[i] instanceof IndicatorVectorValues.Component) {
+                final IndicatorVectorValues vector = ((IndicatorVectorValues.Component) values[i]).vector();
+                if (vector.field().equals(component.vector().field())) {
+                    component.shareDecoder(vector);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Binds the fields to the segment using already resolved field data,
+     * {@code null} field data entries stand for unmapped fields.
+     */
+    public static IndicatorValues load(LeafReaderContext ctx, IndexNumericFieldData[] fieldData, MultiValueMode mode) {
+        final SortedNumericDoubleValues[] values = new SortedNumericDoubleValues[fieldData.length];
+        for (int i = 0; i < fieldData.length; i++) {
+            if (fieldData[i] != null) {
+                values[i] = fieldData[i].load(ctx).getDoubleValues();
+            }
+        }
+        return new IndicatorValues(values, mode);
+    }
+
+    /**
+     * Binds the fields to the segment of a script doc lookup. The lookup is only
+     * used to resolve the fields, the returned values are read directly.
+     */
+    public static IndicatorValues bind(LeafDocLookup doc, String[] fields, MultiValueMode mode) {
+        final SortedNumericDoubleValues[] values = new SortedNumericDoubleValues[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            if (doc.containsKey(fields[i])) {
+                Object scriptValues = doc.get(fields[i]);
+                if (scriptValues instanceof ScriptDocValues.Doubles) {
+                    values[i] = ((ScriptDocValues.Doubles) scriptValues).getInternalValues();
+                } else if (scriptValues instanceof ScriptDocValues.Longs) {
+                    values[i] = FieldData.castToDouble(((ScriptDocValues.Longs) scriptValues).getInternalValues());
+                } else {
+                    throw new IllegalArgumentException("indicator field [" + fields[i] + "] must be numeric");
+                }
+            } else {
+                IndicatorVectorFieldData component = IndicatorVectorFieldData.forComponent(doc.mapperService(), fields[i]);
+                if (component != null) {
+                    values[i] = component.load(doc);
+                }
+            }
+        }
+        return new IndicatorValues(values, mode);
+    }
+
+    /**
+     * @return {@code true} if none of the fields is mapped in this segment
+     */
+    public boolean isEmpty() {
+        return empty;
+    }
+
+    /**
+     * @return {@code true} if some fields are read from vector fields, which are cheaper to read
+     * document by document than column by column
+     */
+    public boolean isRowWise() {
+        return rowWise;
+    }
+
+    /**
+     * Computes the weighted average of the selected value of every indicator the document has.
+     *
+     * @return the weighted average or {@code NaN} if the document has no indicator
+     */
+    public double weightedAverage(int doc, double[] weights) {
+        double sum = 0;
+        double count = 0;
+        for (int i = 0; i < values.length; i++) {
+            final SortedNumericDoubleValues value = values[i];
+            if (value != null) {
+                value.setDocument(doc);
+                final int valueCount = value.count();
+                if (valueCount > 0) {
+                    sum += mode.select(value, valueCount) * weights[i];
+                    count += weights[i];
+                }
+            }
+        }
+        return count > 0 ? sum / count : Double.NaN;
+    }
+
+    /**
+     * @return {@code true} if the field is mapped in this segment
+     */
+    boolean isMapped(int field) {
+        return values[field] != null;
+    }
+
+    /**
+     * @return the selected value of a single mapped indicator of the document or {@code NaN} if the document does not have it
+     */
+    double value(int field, int doc) {
+        final SortedNumericDoubleValues value = values[field];
+        value.setDocument(doc);
+        final int valueCount = value.count();
+        return valueCount > 0 ? mode.select(value, valueCount) : Double.NaN;
+    }
+
+    /**
+     * Reads the selected value of a single indicator for a block of documents, see {@link IndicatorBlock}.
+     * Missing values are stored as 0 with a presence of 0, present values with a presence of 1.
+     *
+     * @param docs ascending doc ids
+     * @return {@code false} if the field is not mapped in this segment, the column is left untouched
+     */
+    boolean readColumn(int field, int[] docs, int size, double[] column, double[] presence) {
+        final SortedNumericDoubleValues value = values[field];
+        if (value == null) {
+            return false;
+        }
+        for (int i = 0; i < size; i++) {
+            value.setDocument(docs[i]);
+            final int valueCount = value.count();
+            if (valueCount > 0) {
+                column[i] = mode.select(value, valueCount);
+                presence[i] = 1;
+            } else {
+                column[i] = 0;
+                presence[i] = 0;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads the selected value of every indicator of the document into the buffer,
+     * missing indicators are stored as {@code NaN}.
+     *
+     * @return the number of indicators the document has
+     */
+    public int read(int doc, double[] buffer) {
+        int found = 0;
+        for (int i = 0; i < values.length; i++) {
+            final SortedNumericDoubleValues value = values[i];
+            buffer[i] = Double.NaN;
+            if (value != null) {
+                value.setDocument(doc);
+                final int valueCount = value.count();
+                if (valueCount > 0) {
+                    buffer[i] = mode.select(value, valueCount);
+                    found++;
+                }
+            }
+        }
+        return found;
+    }
+}
@@ -15,25 +15,44 @@
 package org.elasticsearch.opentender.nativescript.script.weightedavg;
 
 import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.opentender.nativescript.stats.OpentenderStatsService;
+import org.elasticsearch.opentender.nativescript.stats.ScriptMetrics;
+import org.elasticsearch.opentender.nativescript.stats.TimedExecutableScript;
 import org.elasticsearch.script.AbstractExecutableScript;
 import org.elasticsearch.script.ExecutableScript;
 import org.elasticsearch.script.NativeScriptFactory;
 
-import java.util.ArrayList;
-import java.util.Map;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Init script
  */
 public class InitScriptFactory implements NativeScriptFactory {
 
+    public static final String SCRIPT_NAME = "weighted_avg_init";
+
     public static final String SUM_FIELD = "sum";
     public static final String COUNT_FIELD = "count";
+    public static final String PROFILES_FIELD = "profiles";
+    public static final String SAMPLE_FIELD = "sample";
+    public static final String RESERVOIR_FIELD = "reservoir";
+
+    private final ScriptMetrics metrics;
+
+    @Inject
+    public InitScriptFactory(OpentenderStatsService statsService) {
+        this.metrics = statsService.metrics(SCRIPT_NAME);
+    }
 
     @Override
     public ExecutableScript newScript(final @Nullable Map<String, Object> params) {
-        return new AbstractExecutableScript() {
+        metrics.onSetup();
+        final DocumentSampler sampler = DocumentSampler.parse(params, SCRIPT_NAME);
+        return new TimedExecutableScript(new AbstractExecutableScript() {
             @Override
             public Object run() {
                 double sum = 0;
@@ -45,9 +64,31 @@ public class InitScriptFactory implements NativeScriptFactory {
                 }
                 agg.put(SUM_FIELD, sum);
                 agg.put(COUNT_FIELD, count);
+                List<?> profiles = (List<?>) params.get(AbstractWeightedAvgScript.PROFILES_PARAM);
+                if (profiles != null) {
+                    agg.put(PROFILES_FIELD, newProfileAccumulators(profiles));
+                }
+                if (sampler != null) {
+                    agg.put(SAMPLE_FIELD, DocumentSampler.newAccumulator());
+                    final SampleReservoir reservoir = sampler.newReservoir();
+                    if (reservoir != null) {
+                        agg.put(RESERVOIR_FIELD, reservoir);
+                    }
+                }
                 return null;
             }
-        };
+        }, metrics);
+    }
+
+    /**
+     * @return one {@code [sum, count]} accumulator per profile name, in the order of the names
+     */
+    static Map<String, double[]> newProfileAccumulators(List<?> names) {
+        Map<String, double[]> accumulators = new LinkedHashMap<String, double[]>();
+        for (Object name : names) {
+            accumulators.put(name.toString(), new double[2]);
+        }
+        return accumulators;
     }
 
     @Override
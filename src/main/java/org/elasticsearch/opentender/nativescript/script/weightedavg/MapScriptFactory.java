@@ -14,15 +14,23 @@
 
 package org.elasticsearch.opentender.nativescript.script.weightedavg;
 
+import org.apache.lucene.index.SortedNumericDocValues;
 import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.index.fielddata.ScriptDocValues;
+import org.elasticsearch.index.fielddata.SortedNumericDoubleValues;
 import org.elasticsearch.index.mapper.MappedFieldType;
-import org.elasticsearch.script.AbstractSearchScript;
+import org.elasticsearch.opentender.nativescript.profile.WeightProfile;
+import org.elasticsearch.opentender.nativescript.profile.WeightProfileService;
+import org.elasticsearch.opentender.nativescript.stats.OpentenderStatsService;
+import org.elasticsearch.opentender.nativescript.stats.ScriptMetrics;
 import org.elasticsearch.script.ExecutableScript;
 import org.elasticsearch.script.NativeScriptFactory;
+import org.elasticsearch.script.ScriptException;
 import org.elasticsearch.search.lookup.LeafDocLookup;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Map;
 
 /**
@@ -30,11 +38,42 @@ import java.util.Map;
  */
 public class MapScriptFactory implements NativeScriptFactory {
 
+    public static final String SCRIPT_NAME = "weighted_avg_map";
+
+    private final WeightProfileService profileService;
+    private final ScriptMetrics metrics;
+
+    @Inject
+    public MapScriptFactory(WeightProfileService profileService, OpentenderStatsService statsService) {
+        this.profileService = profileService;
+        this.metrics = statsService.metrics(SCRIPT_NAME);
+    }
+
     @Override
     public ExecutableScript newScript(final @Nullable Map<String, Object> params) {
-        return new MapScript(params);
+        metrics.onSetup();
+        ProfileSet profiles = AbstractWeightedAvgScript.resolveProfiles(profileService, params, SCRIPT_NAME);
+        if (profiles != null) {
+            if (DocumentSampler.parse(params, SCRIPT_NAME) != null) {
+                throw new ScriptException("cannot initialize " + SCRIPT_NAME + ": [" + DocumentSampler.SAMPLE_PARAM
+                        + "] is not supported with [" + AbstractWeightedAvgScript.PROFILES_PARAM + "]");
+            }
+            return new MultiProfileMapScript(params, profiles, metrics);
+        }
+        WeightProfile profile = AbstractWeightedAvgScript.resolveProfile(profileService, params, SCRIPT_NAME);
+        if (profile != null) {
+            return new MapScript(params, profile.fields(), profile.weights(), metrics);
+        }
+        return new MapScript(params, metrics);
     }
 
+    /**
+     * Computes the weighted average of a single document through the script doc lookup.
+     *
+     * The scripts of this plugin bind the fields once per segment through
+     * {@link IndicatorValues} instead, which avoids the field lookups for every document
+     * and honours the {@link MultiValueMode}. This method only reads the first value.
+     */
     public final static Double calculateWeightedAverage(LeafDocLookup doc, ArrayList<String> fields, ArrayList<Number> weights) {
         double sum = 0;
         double count = 0;
@@ -67,25 +106,122 @@ public class MapScriptFactory implements NativeScriptFactory {
         return false;
     }
 
-    private static class MapScript extends AbstractSearchScript {
+    /**
+     * Adds the weighted average of every document to the sum and count of the shard, or with
+     * {@link DocumentSampler sampling} the weighted averages of the sampled documents to the
+     * running mean and variance or the reservoir of the shard.
+     */
+    private static class MapScript extends AbstractWeightedAvgScript {
 
         private final Map<String, Object> params;
+        private final DocumentSampler sampler;
+        private SortedNumericDocValues longKeys;
+        private SortedNumericDoubleValues doubleKeys;
+
+        public MapScript(Map<String, Object> params, ScriptMetrics metrics) {
+            this(params, toFieldArray((ArrayList<String>) params.get("fields")), metrics);
+        }
+
+        private MapScript(Map<String, Object> params, String[] fields, ScriptMetrics metrics) {
+            this(params, fields, toWeightArray((ArrayList<Number>) params.get("weights"), fields.length), metrics);
+        }
 
-        public MapScript(Map<String, Object> params) {
+        private MapScript(Map<String, Object> params, String[] fields, double[] weights, ScriptMetrics metrics) {
+            super(fields, weights, resolveMultiValueMode(params, SCRIPT_NAME), metrics);
             this.params = params;
+            this.sampler = DocumentSampler.parse(params, SCRIPT_NAME);
+        }
+
+        @Override
+        protected void onSegment(IndicatorValues values) {
+            longKeys = null;
+            doubleKeys = null;
+            if (sampler == null || sampler.field() == null || doc().containsKey(sampler.field()) == false) {
+                return;
+            }
+            final Object keys = doc().get(sampler.field());
+            if (keys instanceof ScriptDocValues.Longs) {
+                longKeys = ((ScriptDocValues.Longs) keys).getInternalValues();
+            } else if (keys instanceof ScriptDocValues.Doubles) {
+                doubleKeys = ((ScriptDocValues.Doubles) keys).getInternalValues();
+            } else {
+                throw new ScriptException("cannot sample by [" + sampler.field() + "], it is not a numeric field");
+            }
+        }
+
+        /**
+         * @return the value of the key field of the current document, its doc id if it has none
+         */
+        private long sampleKey() {
+            final int doc = docId();
+            if (longKeys != null) {
+                longKeys.setDocument(doc);
+                if (longKeys.count() > 0) {
+                    return longKeys.valueAt(0);
+                }
+            } else if (doubleKeys != null) {
+                doubleKeys.setDocument(doc);
+                if (doubleKeys.count() > 0) {
+                    return Double.doubleToLongBits(doubleKeys.valueAt(0));
+                }
+            }
+            return doc;
         }
 
         @Override
         public Object run() {
-            Map<String, Object> agg = (Map<String, Object>) params.get("_agg");
-            ArrayList<String> fields = (ArrayList<String>) params.get("fields");
-            ArrayList<Number> weights = (ArrayList<Number>) params.get("weights");
-            Double value = calculateWeightedAverage(doc(), fields, weights);
-            if (value != null) {
+            if (sampler != null) {
+                final Map<String, Object> agg = (Map<String, Object>) params.get("_agg");
+                final double[] accumulator = (double[]) agg.get(InitScriptFactory.SAMPLE_FIELD);
+                final SampleReservoir reservoir = (SampleReservoir) agg.get(InitScriptFactory.RESERVOIR_FIELD);
+                final double priority = sampler.priority(sampleKey());
+                if (sampler.sample(priority, accumulator, reservoir)) {
+                    DocumentSampler.add(accumulator, reservoir, priority, weightedAverage());
+                }
+                return null;
+            }
+            double value = weightedAverage();
+            if (!Double.isNaN(value)) {
+                Map<String, Object> agg = (Map<String, Object>) params.get("_agg");
                 agg.put(InitScriptFactory.SUM_FIELD, (Double) agg.get(InitScriptFactory.SUM_FIELD) + value);
                 agg.put(InitScriptFactory.COUNT_FIELD, (Double) agg.get(InitScriptFactory.COUNT_FIELD) + 1);
             }
             return null;
         }
     }
+
+    /**
+     * Updates the accumulators of all profiles from a single read of the indicators.
+     */
+    private static class MultiProfileMapScript extends AbstractWeightedAvgScript {
+
+        private final ProfileSet profiles;
+        private final double[][] accumulators;
+        private final double[] indicators;
+
+        public MultiProfileMapScript(Map<String, Object> params, ProfileSet profiles, ScriptMetrics metrics) {
+            super(profiles.fields(), null, resolveMultiValueMode(params, SCRIPT_NAME), metrics);
+            this.profiles = profiles;
+            this.indicators = new double[profiles.fields().length];
+
+            Map<String, Object> agg = (Map<String, Object>) params.get("_agg");
+            Map<String, double[]> profileAccumulators = (Map<String, double[]>) agg.get(InitScriptFactory.PROFILES_FIELD);
+            if (profileAccumulators == null) {
+                profileAccumulators = InitScriptFactory.newProfileAccumulators(Arrays.asList(profiles.names()));
+                agg.put(InitScriptFactory.PROFILES_FIELD, profileAccumulators);
+            }
+            this.accumulators = new double[profiles.names().length][];
+            for (int p = 0; p < accumulators.length; p++) {
+                accumulators[p] = profileAccumulators.get(profiles.names()[p]);
+            }
+        }
+
+        @Override
+        public Object run() {
+            if (readIndicators(indicators) > 0) {
+                profiles.collect(indicators, accumulators);
+            }
+            return null;
+        }
+    }
 }
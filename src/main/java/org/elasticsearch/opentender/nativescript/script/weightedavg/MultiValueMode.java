@@ -0,0 +1,91 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.opentender.nativescript.script.weightedavg;
+
+import org.elasticsearch.index.fielddata.SortedNumericDoubleValues;
+
+import java.util.Locale;
+
+/**
+ * Selects the value of a multi-valued indicator field, for example the lots of a tender,
+ * that goes into the weighted average of a document.
+ *
+ * The doc values of a document are sorted in ascending order, the order of the values in
+ * the source is not kept. {@link #FIRST} therefore reads the lowest value like {@link #MIN},
+ * it is the default and only skips the comparisons.
+ */
+public enum MultiValueMode {
+
+    FIRST {
+        @Override
+        double select(SortedNumericDoubleValues values, int count) {
+            return values.valueAt(0);
+        }
+    },
+
+    MIN {
+        @Override
+        double select(SortedNumericDoubleValues values, int count) {
+            return values.valueAt(0);
+        }
+    },
+
+    MAX {
+        @Override
+        double select(SortedNumericDoubleValues values, int count) {
+            return values.valueAt(count - 1);
+        }
+    },
+
+    AVG {
+        @Override
+        double select(SortedNumericDoubleValues values, int count) {
+            return SUM.select(values, count) / count;
+        }
+    },
+
+    SUM {
+        @Override
+        double select(SortedNumericDoubleValues values, int count) {
+            double sum = values.valueAt(0);
+            for (int i = 1; i < count; i++) {
+                sum += values.valueAt(i);
+            }
+            return sum;
+        }
+    };
+
+    /**
+     * @param values the doc values positioned on the document
+     * @param count  the number of values of the document, at least 1
+     * @return the selected value
+     */
+    abstract double select(SortedNumericDoubleValues values, int count);
+
+    public String getName() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the name is not one of first, min, max, avg or sum
+     */
+    public static MultiValueMode fromString(String name) {
+        for (MultiValueMode mode : values()) {
+            if (mode.getName().equals(name)) {
+                return mode;
+            }
+        }
+        throw new IllegalArgumentException("unknown multi_value_mode [" + name + "], expected one of [first, min, max, avg, sum]");
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.script.weightedavg;
+
+import org.elasticsearch.opentender.nativescript.profile.WeightProfile;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Several weight profiles evaluated together.
+ *
+ * The fields of all profiles are merged into one list, so every indicator is
+ * read once per document, and the weights of every profile are expanded to that
+ * list with 0 for the fields the profile does not use.
+ */
+public final class ProfileSet {
+
+    private final String[] names;
+    private final String[] fields;
+    private final double[][] weights;
+
+    public ProfileSet(WeightProfile... profiles) {
+        final Map<String, Integer> fieldIndex = new LinkedHashMap<>();
+        for (WeightProfile profile : profiles) {
+            for (String field : profile.fields()) {
+                if (fieldIndex.containsKey(field) == false) {
+                    fieldIndex.put(field, fieldIndex.size());
+                }
+            }
+        }
+        this.names = new String[profiles.length];
+        this.fields = fieldIndex.keySet().toArray(new String[fieldIndex.size()]);
+        this.weights = new double[profiles.length][fields.length];
+        for (int p = 0; p < profiles.length; p++) {
+            names[p] = profiles[p].name();
+            for (int i = 0; i < profiles[p].fields().length; i++) {
+                weights[p][fieldIndex.get(profiles[p].fields()[i])] += profiles[p].weights()[i];
+            }
+        }
+    }
+
+    /**
+     * @return the profile names in the order of the accumulators
+     */
+    public String[] names() {
+        return names;
+    }
+
+    /**
+     * @return the merged fields of all profiles
+     */
+    public String[] fields() {
+        return fields;
+    }
+
+    /**
+     * Adds the weighted average of a document under every profile to the
+     * {@code [sum, count]} accumulator of that profile.
+     *
+     * @param indicators   the indicators of the document read by {@link IndicatorValues#read(int, double[])}
+     *                     in the order of {@link #fields()}
+     * @param accumulators one {@code [sum, count]} array per profile
+     */
+    public void collect(double[] indicators, double[][] accumulators) {
+        for (int p = 0; p < weights.length; p++) {
+            final double[] profileWeights = weights[p];
+            double sum = 0;
+            double count = 0;
+            for (int i = 0; i < indicators.length; i++) {
+                if (profileWeights[i] != 0 && Double.isNaN(indicators[i]) == false) {
+                    sum += indicators[i] * profileWeights[i];
+                    count += profileWeights[i];
+                }
+            }
+            if (count > 0) {
+                accumulators[p][0] += sum / count;
+                accumulators[p][1] += 1;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        List<String> profiles = new ArrayList<>(names.length);
+        for (int p = 0; p < names.length; p++) {
+            profiles.add(names[p] + Arrays.toString(weights[p]));
+        }
+        return "profiles" + profiles + " over " + Arrays.toString(fields);
+    }
+}
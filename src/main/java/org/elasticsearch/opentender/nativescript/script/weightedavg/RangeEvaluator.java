@@ -0,0 +1,243 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.script.weightedavg;
+
+import org.elasticsearch.script.ScriptException;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides whether the weighted average of a document lies in a range without always reading all indicators.
+ *
+ * The values of the indicators are bounded by the {@value #BOUNDS_PARAM} script parameter, either
+ * one {@code [min, max]} pair for all indicators or an object with a pair for each field,
+ * scripts only see the doc lookup of a segment and cannot read its min/max terms like the
+ * {@code weighted_avg_range} query does. With the sum and weight of the indicators read so far
+ * and the remaining weight {@code R} whose values lie in {@code [min, max]}, the final
+ * average lies between {@code sum / weight} and {@code (sum + R * min) / (weight + R)},
+ * respectively {@code (sum + R * max) / (weight + R)}, whichever of the remaining
+ * indicators the document has. The evaluation stops as soon as these bounds lie
+ * completely inside or outside of the range.
+ *
+ * The indicators are read in the order of their possible influence {@code weight * (max - min)},
+ * fields without bounds first, so narrow ranges are mostly decided after a few fields.
+ * Documents that are read completely get exactly the average of
+ * {@link IndicatorValues#weightedAverage}.
+ *
+ * The bounds are not trusted once a value outside of them is read: that document and all
+ * further documents of the segment are read completely.
+ *
+ * Only non negative weights bound the average, and {@link MultiValueMode#SUM} can exceed
+ * the bounds of the values, no evaluator is created for them.
+ */
+public final class RangeEvaluator {
+
+    /**
+     * Script parameter with the {@code [min, max]} bounds of the values of all indicators,
+     * or an object with the {@code [min, max]} bounds of each field.
+     */
+    public static final String BOUNDS_PARAM = "bounds";
+
+    private final IndicatorValues values;
+    private final double[] weights;
+    private final double gte;
+    private final double lte;
+    private final int[] order;
+    private final double[] remainingWeight;
+    private final double[] remainingMin;
+    private final double[] remainingMax;
+    private final double[] fieldMin;
+    private final double[] fieldMax;
+    private final double[] buffer;
+    private boolean missing;
+    private boolean outOfBounds;
+
+    private RangeEvaluator(IndicatorValues values, double[] weights, double gte, double lte, int[] order,
+                           double[] fieldMin, double[] fieldMax) {
+        this.values = values;
+        this.weights = weights;
+        this.gte = gte;
+        this.lte = lte;
+        this.order = order;
+        this.fieldMin = fieldMin;
+        this.fieldMax = fieldMax;
+        this.remainingWeight = new double[order.length + 1];
+        this.remainingMin = new double[order.length + 1];
+        this.remainingMax = new double[order.length + 1];
+        remainingMin[order.length] = Double.POSITIVE_INFINITY;
+        remainingMax[order.length] = Double.NEGATIVE_INFINITY;
+        for (int k = order.length - 1; k >= 0; k--) {
+            final int field = order[k];
+            remainingWeight[k] = remainingWeight[k + 1] + weights[field];
+            remainingMin[k] = Math.min(remainingMin[k + 1], fieldMin[field]);
+            remainingMax[k] = Math.max(remainingMax[k + 1], fieldMax[field]);
+        }
+        this.buffer = new double[weights.length];
+        Arrays.fill(buffer, Double.NaN);
+    }
+
+    /**
+     * @param fields the fields of the script, an object of per field bounds must only name these
+     * @return the {@code [min, max]} bounds of each field or {@code null} if none are given,
+     * fields without bounds have {@code [-Infinity, Infinity]}
+     * @throws ScriptException if the bounds are invalid
+     */
+    public static double[][] parseBounds(Map<String, Object> params, String[] fields, String scriptName) throws ScriptException {
+        Object bounds = params == null ? null : params.get(BOUNDS_PARAM);
+        if (bounds == null) {
+            return null;
+        }
+        final double[][] fieldBounds = new double[fields.length][];
+        if (bounds instanceof Map) {
+            Arrays.fill(fieldBounds, new double[]{Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY});
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) bounds).entrySet()) {
+                final int field = Arrays.asList(fields).indexOf(entry.getKey());
+                if (field < 0) {
+                    throw new ScriptException("cannot initialize " + scriptName + ": [" + BOUNDS_PARAM + "] of unknown field ["
+                            + entry.getKey() + "]");
+                }
+                final double[] pair = parsePair(entry.getValue(), scriptName);
+                for (int i = field; i < fields.length; i++) {
+                    // a field may be listed more than once
+                    if (fields[i].equals(fields[field])) {
+                        fieldBounds[i] = pair;
+                    }
+                }
+            }
+        } else {
+            Arrays.fill(fieldBounds, parsePair(bounds, scriptName));
+        }
+        return fieldBounds;
+    }
+
+    private static double[] parsePair(Object bounds, String scriptName) throws ScriptException {
+        if ((bounds instanceof List) == false || ((List<?>) bounds).size() != 2
+                || (((List<?>) bounds).get(0) instanceof Number) == false || (((List<?>) bounds).get(1) instanceof Number) == false) {
+            throw new ScriptException("cannot initialize " + scriptName + ": [" + BOUNDS_PARAM + "] must be an array [min, max], got ["
+                    + bounds + "]");
+        }
+        final double min = ((Number) ((List<?>) bounds).get(0)).doubleValue();
+        final double max = ((Number) ((List<?>) bounds).get(1)).doubleValue();
+        if ((min <= max) == false) {
+            throw new ScriptException("cannot initialize " + scriptName + ": [" + BOUNDS_PARAM + "] min must not be greater than max, got ["
+                    + bounds + "]");
+        }
+        return new double[]{min, max};
+    }
+
+    /**
+     * Creates the evaluator of a segment.
+     *
+     * @param bounds the per field bounds of the script parameters
+     * @return the evaluator or {@code null} if the weights are negative or the mode is {@link MultiValueMode#SUM},
+     * the documents have to be evaluated completely then
+     */
+    public static RangeEvaluator create(IndicatorValues values, final double[] weights, MultiValueMode mode, double[][] bounds,
+                                        double gte, double lte) {
+        if (mode == MultiValueMode.SUM || values.isEmpty()) {
+            return null;
+        }
+        final double[] fieldMin = new double[weights.length];
+        final double[] fieldMax = new double[weights.length];
+        final double[] influence = new double[weights.length];
+        final Integer[] candidates = new Integer[weights.length];
+        int size = 0;
+        for (int i = 0; i < weights.length; i++) {
+            if (weights[i] < 0) {
+                // negative weights can push the average outside of the indicator values
+                return null;
+            }
+            if (values.isMapped(i) == false || weights[i] == 0) {
+                continue;
+            }
+            fieldMin[i] = bounds[i][0];
+            fieldMax[i] = bounds[i][1];
+            influence[i] = weights[i] * (fieldMax[i] - fieldMin[i]);
+            candidates[size++] = i;
+        }
+        Arrays.sort(candidates, 0, size, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                // the most influential indicators first, the sort is stable for equal influence
+                return Double.compare(influence[b], influence[a]);
+            }
+        });
+        final int[] order = new int[size];
+        for (int k = 0; k < size; k++) {
+            order[k] = candidates[k];
+        }
+        return new RangeEvaluator(values, weights, gte, lte, order, fieldMin, fieldMax);
+    }
+
+    /**
+     * @return {@code true} if the weighted average of the document lies in the range, documents without indicators never match
+     */
+    public boolean matches(int doc) {
+        double sum = 0;
+        double count = 0;
+        for (int k = 0; k < order.length; k++) {
+            final double rest = remainingWeight[k];
+            double lower = remainingMin[k];
+            double upper = remainingMax[k];
+            if (count > 0 && outOfBounds == false) {
+                final double average = sum / count;
+                lower = Math.min(average, (sum + rest * lower) / (count + rest));
+                upper = Math.max(average, (sum + rest * upper) / (count + rest));
+                if (lower >= gte && upper <= lte) {
+                    missing = false;
+                    return true;
+                }
+                if (upper < gte || lower > lte) {
+                    missing = false;
+                    return false;
+                }
+            }
+            // until an indicator is found the document may still have none, it is read further
+            final int field = order[k];
+            final double value = values.value(field, doc);
+            buffer[field] = value;
+            if (Double.isNaN(value) == false) {
+                if (value < fieldMin[field] || value > fieldMax[field]) {
+                    // the bounds are wrong, the remaining fields cannot be estimated by them
+                    outOfBounds = true;
+                }
+                sum += value * weights[field];
+                count += weights[field];
+            }
+        }
+        // read completely, sum up in the order of the fields like IndicatorValues#weightedAverage
+        sum = 0;
+        count = 0;
+        for (int i = 0; i < buffer.length; i++) {
+            if (Double.isNaN(buffer[i]) == false) {
+                sum += buffer[i] * weights[i];
+                count += weights[i];
+            }
+        }
+        missing = count == 0;
+        final double average = count > 0 ? sum / count : Double.NaN;
+        return average >= gte && average <= lte;
+    }
+
+    /**
+     * @return {@code true} if the last evaluated document had no indicator
+     */
+    public boolean missing() {
+        return missing;
+    }
+}
@@ -15,22 +15,43 @@
 package org.elasticsearch.opentender.nativescript.script.weightedavg;
 
 import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.opentender.nativescript.stats.OpentenderStatsService;
+import org.elasticsearch.opentender.nativescript.stats.ScriptMetrics;
+import org.elasticsearch.opentender.nativescript.stats.TimedExecutableScript;
 import org.elasticsearch.script.AbstractExecutableScript;
 import org.elasticsearch.script.ExecutableScript;
 import org.elasticsearch.script.NativeScriptFactory;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
  * Reduce script
+ *
+ * Accepts both the list and the compact {@code double[]} shard results of {@link CombineScriptFactory}.
+ * Shard results of several profiles are reduced to a map of profile name to average.
+ * Sampled shard results start with {@link DocumentSampler#RESULT_MARKER}, they are merged and reduced to the estimate of
+ * {@link DocumentSampler#reduce}, a map with the mean and its confidence interval.
  */
 public class ReduceScriptFactory implements NativeScriptFactory {
 
+    public static final String SCRIPT_NAME = "weighted_avg_reduce";
+
+    private final ScriptMetrics metrics;
+
+    @Inject
+    public ReduceScriptFactory(OpentenderStatsService statsService) {
+        this.metrics = statsService.metrics(SCRIPT_NAME);
+    }
+
     @Override
     public ExecutableScript newScript(final @Nullable Map<String, Object> params) {
-        final ArrayList<ArrayList<Double>> aggs = (ArrayList<ArrayList<Double>>) params.get("_aggs");
-        return new ReduceScript(aggs);
+        final List<Object> aggs = (List<Object>) params.get("_aggs");
+        metrics.onSetup();
+        return new TimedExecutableScript(new ReduceScript(aggs), metrics);
     }
 
     @Override
@@ -40,25 +61,96 @@ public class ReduceScriptFactory implements NativeScriptFactory {
 
     private static class ReduceScript extends AbstractExecutableScript {
 
-        private final ArrayList<ArrayList<Double>> aggs;
+        private final List<Object> aggs;
 
-        public ReduceScript(ArrayList<ArrayList<Double>> aggs) {
+        public ReduceScript(List<Object> aggs) {
             this.aggs = aggs;
         }
 
         @Override
         public Object run() {
-            double sum = 0;
-            double count = 0;
             if (aggs != null) {
-                for (ArrayList<Double> t : aggs) {
-                    if (t!=null && t.get(0) != null && t.get(1) != null) {
-                        sum += t.get(0);
-                        count += t.get(1);
+                for (Object agg : aggs) {
+                    if (agg instanceof Map) {
+                        return reduceProfiles();
+                    }
+                    if (DocumentSampler.isShardResult(toArray(agg))) {
+                        return reduceSample();
+                    }
+                }
+            }
+            final double[] total = new double[2];
+            if (aggs != null) {
+                for (Object agg : aggs) {
+                    add(total, agg);
+                }
+            }
+            return average(total);
+        }
+
+        private Map<String, Double> reduceProfiles() {
+            final Map<String, double[]> totals = new LinkedHashMap<String, double[]>();
+            for (Object agg : aggs) {
+                if (agg == null) {
+                    continue;
+                }
+                for (Map.Entry<String, Object> profile : ((Map<String, Object>) agg).entrySet()) {
+                    double[] total = totals.get(profile.getKey());
+                    if (total == null) {
+                        total = new double[2];
+                        totals.put(profile.getKey(), total);
                     }
+                    add(total, profile.getValue());
                 }
             }
-            return count > 0 ? (sum / count) : null;
+            final Map<String, Double> averages = new LinkedHashMap<String, Double>();
+            for (Map.Entry<String, double[]> total : totals.entrySet()) {
+                averages.put(total.getKey(), average(total.getValue()));
+            }
+            return averages;
+        }
+
+        private Map<String, Object> reduceSample() {
+            final List<double[]> shards = new ArrayList<double[]>(aggs.size());
+            for (Object agg : aggs) {
+                if (agg != null) {
+                    shards.add(toArray(agg));
+                }
+            }
+            return DocumentSampler.reduce(shards);
+        }
+
+        private static double[] toArray(Object agg) {
+            if (agg == null) {
+                return new double[0];
+            }
+            if (agg instanceof double[]) {
+                return (double[]) agg;
+            }
+            final List<Double> list = (List<Double>) agg;
+            final double[] values = new double[list.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = list.get(i) == null ? Double.NaN : list.get(i);
+            }
+            return values;
+        }
+
+        private static void add(double[] total, Object agg) {
+            if (agg instanceof double[]) {
+                final double[] t = (double[]) agg;
+                total[0] += t[0];
+                total[1] += t[1];
+            } else if (agg != null) {
+                final List<Double> t = (List<Double>) agg;
+                if (t.get(0) != null && t.get(1) != null) {
+                    total[0] += t.get(0);
+                    total[1] += t.get(1);
+                }
+            }
+        }
+
+        private static Double average(double[] total) {
+            return total[1] > 0 ? (total[0] / total[1]) : null;
         }
     }
 }
@@ -0,0 +1,129 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.script.weightedavg;
+
+import org.apache.lucene.util.ArrayUtil;
+
+import java.util.Arrays;
+
+/**
+ * Bounded max heap of sampled documents keyed by their hash priorities, keeps the
+ * weighted averages of the documents with the lowest priorities.
+ *
+ * The documents with the lowest hashes are a uniform sample of the collected
+ * documents whatever order they are collected in. The root is the document with the
+ * highest priority, the arrays start small and grow up to the capacity.
+ */
+final class SampleReservoir {
+
+    private final int capacity;
+    private double[] priorities;
+    private double[] values;
+    private int size;
+
+    SampleReservoir(int capacity) {
+        this.capacity = capacity;
+        final int initial = Math.min(capacity, 16);
+        this.priorities = new double[initial];
+        this.values = new double[initial];
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return {@code true} if a document with the priority would be added
+     */
+    boolean competitive(double priority) {
+        return size < capacity || priority < priorities[0];
+    }
+
+    /**
+     * Adds the document if it is competitive, replacing the one with the highest priority of a full heap.
+     */
+    void offer(double priority, double value) {
+        if (size < capacity) {
+            if (size == priorities.length) {
+                final int length = Math.min(capacity, ArrayUtil.oversize(size + 1, 8));
+                priorities = Arrays.copyOf(priorities, length);
+                values = Arrays.copyOf(values, length);
+            }
+            priorities[size] = priority;
+            values[size] = value;
+            upHeap(size++);
+        } else if (priority < priorities[0]) {
+            priorities[0] = priority;
+            values[0] = value;
+            downHeap(0);
+        }
+    }
+
+    /**
+     * Empties the heap into the arrays, lowest priority first.
+     *
+     * @return the number of documents
+     */
+    int drain(double[] sortedPriorities, double[] sortedValues) {
+        final int count = size;
+        for (int i = count - 1; i >= 0; i--) {
+            sortedPriorities[i] = priorities[0];
+            sortedValues[i] = values[0];
+            size--;
+            if (size > 0) {
+                priorities[0] = priorities[size];
+                values[0] = values[size];
+                downHeap(0);
+            }
+        }
+        return count;
+    }
+
+    private void upHeap(int i) {
+        while (i > 0) {
+            final int parent = (i - 1) >>> 1;
+            if (priorities[i] <= priorities[parent]) {
+                return;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void downHeap(int i) {
+        while (true) {
+            final int left = 2 * i + 1;
+            if (left >= size) {
+                return;
+            }
+            final int right = left + 1;
+            final int child = right < size && priorities[right] > priorities[left] ? right : left;
+            if (priorities[child] <= priorities[i]) {
+                return;
+            }
+            swap(i, child);
+            i = child;
+        }
+    }
+
+    private void swap(int a, int b) {
+        final double priority = priorities[a];
+        priorities[a] = priorities[b];
+        priorities[b] = priority;
+        final double value = values[a];
+        values[a] = values[b];
+        values[b] = value;
+    }
+}
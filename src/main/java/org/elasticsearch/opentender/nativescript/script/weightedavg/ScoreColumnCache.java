@@ -0,0 +1,262 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.opentender.nativescript.script.weightedavg;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.breaker.CircuitBreakingException;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.indices.breaker.CircuitBreakerService;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Caches the weighted averages of all documents of a segment as a primitive column.
+ *
+ * The {@code weighted_avg} aggregation and the {@code weighted_avg_range} query read
+ * the columns of the weight profiles they reference, scripts only see the doc lookup
+ * of a segment and always evaluate the documents. A column is keyed by the core of the
+ * segment and the fields, weights and multi value mode of a weight profile. The first
+ * request of a column only records the key and the request evaluates the collected
+ * documents as usual, so one off requests never pay for the documents they do not
+ * collect. The column is computed in blocks on the second request and holds
+ * {@code NaN} for documents without indicators, reading the weighted average of a
+ * document is then a single array lookup. The columns are accounted to the fielddata circuit breaker, a column that
+ * would trip the breaker is not cached and the documents are evaluated one by one
+ * instead. The columns of a segment are dropped when its core is closed, and the
+ * least recently used columns are evicted when they exceed {@value #SIZE_SETTING},
+ * 1% of the heap by default.
+ */
+public class ScoreColumnCache extends AbstractComponent {
+
+    public static final String SIZE_SETTING = "opentender.score_cache.size";
+
+    private final CircuitBreakerService breakerService;
+    private final Cache<Key, double[]> cache;
+    private final Set<Key> requested = Collections.newSetFromMap(new ConcurrentHashMap<Key, Boolean>());
+    private final Set<Object> cores = Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+    private final LeafReader.CoreClosedListener closedListener = new LeafReader.CoreClosedListener() {
+        @Override
+        public void onClose(Object coreKey) {
+            cores.remove(coreKey);
+            for (Iterator<Key> keys = requested.iterator(); keys.hasNext(); ) {
+                if (keys.next().coreKey == coreKey) {
+                    keys.remove();
+                }
+            }
+            for (Iterator<Key> keys = cache.asMap().keySet().iterator(); keys.hasNext(); ) {
+                if (keys.next().coreKey == coreKey) {
+                    keys.remove();
+                }
+            }
+        }
+    };
+    private final CounterMetric hits = new CounterMetric();
+    private final CounterMetric misses = new CounterMetric();
+
+    @Inject
+    public ScoreColumnCache(Settings settings, CircuitBreakerService breakerService) {
+        super(settings);
+        this.breakerService = breakerService;
+        final ByteSizeValue size = settings.getAsMemory(SIZE_SETTING, "1%");
+        if (size.bytes() > 0) {
+            this.cache = CacheBuilder.newBuilder()
+                    .maximumWeight(size.bytes())
+                    .weigher(new Weigher<Key, double[]>() {
+                        @Override
+                        public int weigh(Key key, double[] column) {
+                            return (int) Math.min(Integer.MAX_VALUE, sizeInBytes(column));
+                        }
+                    })
+                    .removalListener(new RemovalListener<Key, double[]>() {
+                        @Override
+                        public void onRemoval(RemovalNotification<Key, double[]> notification) {
+                            breaker().addWithoutBreaking(-sizeInBytes(notification.getValue()));
+                        }
+                    })
+                    .build();
+        } else {
+            this.cache = null;
+        }
+    }
+
+    /**
+     * @param values the indicator values of the fields bound to the segment
+     * @return the weighted averages of all documents of the segment or {@code null}
+     * if the cache is disabled, the column is requested for the first time or it does
+     * not fit into the circuit breaker
+     */
+    public double[] column(LeafReader reader, IndicatorValues values, String[] fields, double[] weights, MultiValueMode mode) {
+        if (cache == null) {
+            return null;
+        }
+        final Key key = new Key(reader.getCoreCacheKey(), fields, weights, mode);
+        double[] column = cache.getIfPresent(key);
+        if (column != null) {
+            hits.inc();
+            return column;
+        }
+        misses.inc();
+        if (cores.add(key.coreKey)) {
+            reader.addCoreClosedListener(closedListener);
+        }
+        if (requested.add(key)) {
+            // a column costs a pass over the whole segment, only build it once the profile is reused
+            return null;
+        }
+        try {
+            column = cache.get(key, new Loader(reader.maxDoc(), values, weights));
+        } catch (UncheckedExecutionException e) {
+            if (e.getCause() instanceof CircuitBreakingException) {
+                logger.debug("not caching the score column of {}: {}", Arrays.toString(fields), e.getCause().getMessage());
+                return null;
+            }
+            throw e;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("failed to compute the score column of " + Arrays.toString(fields), e.getCause());
+        }
+        requested.remove(key);
+        return column;
+    }
+
+    public long hits() {
+        return hits.count();
+    }
+
+    public long misses() {
+        return misses.count();
+    }
+
+    /**
+     * @return the memory used by the cached columns
+     */
+    public long sizeInBytes() {
+        long bytes = 0;
+        if (cache != null) {
+            for (double[] column : cache.asMap().values()) {
+                bytes += sizeInBytes(column);
+            }
+        }
+        return bytes;
+    }
+
+    private CircuitBreaker breaker() {
+        return breakerService.getBreaker(CircuitBreaker.FIELDDATA);
+    }
+
+    private static long sizeInBytes(double[] column) {
+        return RamUsageEstimator.sizeOf(column);
+    }
+
+    /**
+     * Computes the column of a segment in blocks and accounts it to the circuit breaker before it is cached.
+     */
+    private class Loader implements Callable<double[]> {
+
+        private final int maxDoc;
+        private final IndicatorValues values;
+        private final double[] weights;
+
+        Loader(int maxDoc, IndicatorValues values, double[] weights) {
+            this.maxDoc = maxDoc;
+            this.values = values;
+            this.weights = weights;
+        }
+
+        @Override
+        public double[] call() {
+            final long bytes = RamUsageEstimator.alignObjectSize(
+                    RamUsageEstimator.NUM_BYTES_ARRAY_HEADER + (long) RamUsageEstimator.NUM_BYTES_DOUBLE * maxDoc);
+            breaker().addEstimateBytesAndMaybeBreak(bytes, "opentender_score_column");
+            boolean success = false;
+            try {
+                final double[] column = new double[maxDoc];
+                final IndicatorBlock block = new IndicatorBlock();
+                for (int doc = 0; doc < maxDoc; doc++) {
+                    if (block.add(doc) || doc == maxDoc - 1) {
+                        block.evaluate(values, weights);
+                        for (int i = 0; i < block.size(); i++) {
+                            column[block.doc(i)] = block.average(i);
+                        }
+                        block.clear();
+                    }
+                }
+                assert sizeInBytes(column) == bytes;
+                success = true;
+                return column;
+            } finally {
+                if (success == false) {
+                    breaker().addWithoutBreaking(-bytes);
+                }
+            }
+        }
+    }
+
+    private static final class Key {
+
+        private final Object coreKey;
+        private final String[] fields;
+        private final double[] weights;
+        private final MultiValueMode mode;
+
+        Key(Object coreKey, String[] fields, double[] weights, MultiValueMode mode) {
+            this.coreKey = coreKey;
+            this.fields = fields;
+            this.weights = weights;
+            this.mode = mode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return coreKey == other.coreKey
+                    && mode == other.mode
+                    && Arrays.equals(fields, other.fields)
+                    && Arrays.equals(weights, other.weights);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = System.identityHashCode(coreKey);
+            result = 31 * result + Arrays.hashCode(fields);
+            result = 31 * result + Arrays.hashCode(weights);
+            result = 31 * result + Objects.hashCode(mode);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.script.weightedavg;
+
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.Terms;
+import org.elasticsearch.action.fieldstats.FieldStats;
+import org.elasticsearch.index.mapper.MappedFieldType;
+
+import java.io.IOException;
+
+/**
+ * Bounds of the weighted averages of all documents of a segment.
+ *
+ * With non negative weights the weighted average of a document always lies between
+ * the smallest and the largest value of its indicators, so the min/max of the
+ * indexed terms bound the averages of a whole segment. The bounds are unknown with
+ * {@link MultiValueMode#SUM}, the sum of a multi-valued indicator can exceed them,
+ * with negative weights and for doc values only fields.
+ */
+public final class SegmentBounds {
+
+    private SegmentBounds() {
+    }
+
+    /**
+     * Computes the bounds of the weighted averages of the documents of a segment
+     * from the min/max terms of the indicator fields.
+     *
+     * @param fieldTypes field types of the fields, {@code null} for unmapped fields
+     * @return {min, max} or {@code null} if the bounds are unknown, {+Infinity, -Infinity} if no document has an indicator
+     */
+    public static double[] of(LeafReader reader, MappedFieldType[] fieldTypes, double[] weights, MultiValueMode mode)
+            throws IOException {
+        if (mode == MultiValueMode.SUM) {
+            return null;
+        }
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < fieldTypes.length; i++) {
+            if (weights[i] < 0) {
+                // negative weights can push the average outside of the indicator values
+                return null;
+            }
+            final MappedFieldType fieldType = fieldTypes[i];
+            if (fieldType == null || weights[i] == 0) {
+                continue;
+            }
+            final double[] fieldBounds = ofField(reader, fieldType, mode);
+            if (fieldBounds == null) {
+                return null;
+            }
+            min = Math.min(min, fieldBounds[0]);
+            max = Math.max(max, fieldBounds[1]);
+        }
+        return new double[]{min, max};
+    }
+
+    /**
+     * Computes the bounds of the selected values of a single indicator field of a segment
+     * from its min/max terms.
+     *
+     * @return {min, max} or {@code null} if the bounds are unknown, {+Infinity, -Infinity} if no document has the indicator
+     */
+    public static double[] ofField(LeafReader reader, MappedFieldType fieldType, MultiValueMode mode) throws IOException {
+        if (mode == MultiValueMode.SUM || fieldType.indexOptions() == IndexOptions.NONE) {
+            // the sum of a multi-valued indicator can exceed the terms, doc values only fields have no terms
+            return null;
+        }
+        final Terms terms = reader.terms(fieldType.names().indexName());
+        if (terms == null) {
+            // no document of the segment has this indicator
+            return new double[]{Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        }
+        final FieldStats<?> stats = fieldType.stats(terms, reader.maxDoc());
+        if ((stats.getMinValue() instanceof Number) == false || (stats.getMaxValue() instanceof Number) == false) {
+            return null;
+        }
+        final double min = ((Number) stats.getMinValue()).doubleValue();
+        final double max = ((Number) stats.getMaxValue()).doubleValue();
+        if (Double.isNaN(min) || Double.isNaN(max)) {
+            return null;
+        }
+        return new double[]{min, max};
+    }
+}
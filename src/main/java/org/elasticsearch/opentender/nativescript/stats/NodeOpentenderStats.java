@@ -0,0 +1,95 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.opentender.nativescript.stats;
+
+import org.elasticsearch.action.support.nodes.BaseNodeResponse;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Native script statistics of a single node.
+ */
+public class NodeOpentenderStats extends BaseNodeResponse implements ToXContent {
+
+    private List<ScriptStats> scripts;
+
+    NodeOpentenderStats() {
+    } // for serialization
+
+    public NodeOpentenderStats(DiscoveryNode node, List<ScriptStats> scripts) {
+        super(node);
+        this.scripts = scripts;
+    }
+
+    public static NodeOpentenderStats readNodeStats(StreamInput in) throws IOException {
+        NodeOpentenderStats stats = new NodeOpentenderStats();
+        stats.readFrom(in);
+        return stats;
+    }
+
+    /**
+     * @return the statistics of the scripts that were used on the node, sorted by name
+     */
+    public List<ScriptStats> getScripts() {
+        return scripts;
+    }
+
+    /**
+     * @return the statistics of the script or {@code null} if it was not used on the node
+     */
+    public ScriptStats getScript(String scriptName) {
+        for (ScriptStats stats : scripts) {
+            if (stats.getScriptName().equals(scriptName)) {
+                return stats;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        int size = in.readVInt();
+        scripts = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            scripts.add(ScriptStats.readScriptStats(in));
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeVInt(scripts.size());
+        for (ScriptStats stats : scripts) {
+            stats.writeTo(out);
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.field("name", getNode().name());
+        builder.startObject("scripts");
+        for (ScriptStats stats : scripts) {
+            stats.toXContent(builder, params);
+        }
+        return builder.endObject();
+    }
+}
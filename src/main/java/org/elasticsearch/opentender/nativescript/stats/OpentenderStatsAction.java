@@ -0,0 +1,40 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.opentender.nativescript.stats;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.client.ElasticsearchClient;
+
+/**
+ * Collects the native script statistics of the nodes.
+ */
+public class OpentenderStatsAction extends Action<OpentenderStatsRequest, OpentenderStatsResponse, OpentenderStatsRequestBuilder> {
+
+    public static final OpentenderStatsAction INSTANCE = new OpentenderStatsAction();
+    public static final String NAME = "cluster:monitor/opentender/stats";
+
+    private OpentenderStatsAction() {
+        super(NAME);
+    }
+
+    @Override
+    public OpentenderStatsResponse newResponse() {
+        return new OpentenderStatsResponse();
+    }
+
+    @Override
+    public OpentenderStatsRequestBuilder newRequestBuilder(ElasticsearchClient client) {
+        return new OpentenderStatsRequestBuilder(client, this);
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.opentender.nativescript.stats;
+
+import org.elasticsearch.action.support.nodes.BaseNodesResponse;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+
+/**
+ * Native script statistics of the requested nodes, keyed by node id.
+ */
+public class OpentenderStatsResponse extends BaseNodesResponse<NodeOpentenderStats> implements ToXContent {
+
+    OpentenderStatsResponse() {
+    } // for serialization
+
+    public OpentenderStatsResponse(ClusterName clusterName, NodeOpentenderStats[] nodes) {
+        super(clusterName, nodes);
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        nodes = new NodeOpentenderStats[in.readVInt()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = NodeOpentenderStats.readNodeStats(in);
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeVInt(nodes.length);
+        for (NodeOpentenderStats node : nodes) {
+            node.writeTo(out);
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.field("cluster_name", getClusterName().value());
+        builder.startObject("nodes");
+        for (NodeOpentenderStats node : nodes) {
+            builder.startObject(node.getNode().id());
+            node.toXContent(builder, params);
+            builder.endObject();
+        }
+        return builder.endObject();
+    }
+}
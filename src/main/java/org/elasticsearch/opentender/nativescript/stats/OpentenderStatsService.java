@@ -0,0 +1,188 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.stats;
+
+import org.elasticsearch.ElasticsearchParseException;
+import org.elasticsearch.cluster.ClusterChangedEvent;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.ClusterStateListener;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.settings.Validator;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.node.settings.NodeSettingsService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the execution statistics of the native scripts on this node.
+ *
+ * Script executions that take longer than the dynamic
+ * {@value #SLOWLOG_THRESHOLD_SETTING} setting are written to the
+ * {@code opentender.slowlog} logger, a negative threshold disables the slow log.
+ * The time the per document scripts spend in a segment is compared with the dynamic
+ * {@value #INDEX_SLOWLOG_THRESHOLD_SETTING} index setting of the shard instead if it is set.
+ */
+public class OpentenderStatsService extends AbstractComponent {
+
+    public static final String SLOWLOG_THRESHOLD_SETTING = "opentender.stats.slowlog.threshold";
+    public static final String INDEX_SLOWLOG_THRESHOLD_SETTING = "index.opentender.slowlog.threshold";
+
+    /**
+     * Validates {@value #INDEX_SLOWLOG_THRESHOLD_SETTING}, {@link Validator#TIME} only accepts the index time settings
+     * of Elasticsearch itself.
+     */
+    public static final Validator INDEX_SLOWLOG_THRESHOLD_VALIDATOR = new Validator() {
+        @Override
+        public String validate(String setting, String value, ClusterState clusterState) {
+            try {
+                parseIndexThreshold(value);
+            } catch (ElasticsearchParseException e) {
+                return "failed to parse [" + setting + "] with value [" + value + "] as a time value";
+            }
+            return null;
+        }
+    };
+
+    private final ConcurrentMap<String, ScriptMetrics> metrics = new ConcurrentHashMap<>();
+    private final ESLogger slowLog;
+
+    private volatile long slowLogThresholdNanos;
+    private volatile Map<String, Long> indexSlowLogThresholdNanos = Collections.emptyMap();
+
+    @Inject
+    public OpentenderStatsService(Settings settings, NodeSettingsService nodeSettingsService, ClusterService clusterService) {
+        this(settings, nodeSettingsService);
+        clusterService.add(new ApplyIndexSettings());
+    }
+
+    /**
+     * Creates the service outside of a node, the index settings are not applied.
+     */
+    public OpentenderStatsService(Settings settings, NodeSettingsService nodeSettingsService) {
+        super(settings);
+        this.slowLog = Loggers.getLogger("opentender.slowlog", settings);
+        this.slowLogThresholdNanos = parseThreshold(settings, TimeValue.timeValueNanos(-1));
+        nodeSettingsService.addListener(new ApplySettings());
+    }
+
+    /**
+     * @return the live counters of the script, created on first use
+     */
+    public ScriptMetrics metrics(String scriptName) {
+        ScriptMetrics scriptMetrics = metrics.get(scriptName);
+        if (scriptMetrics == null) {
+            ScriptMetrics created = new ScriptMetrics(scriptName, this);
+            scriptMetrics = metrics.putIfAbsent(scriptName, created);
+            if (scriptMetrics == null) {
+                scriptMetrics = created;
+            }
+        }
+        return scriptMetrics;
+    }
+
+    /**
+     * @return the statistics of all scripts sorted by name
+     */
+    public List<ScriptStats> stats() {
+        List<ScriptStats> stats = new ArrayList<>(metrics.size());
+        for (ScriptMetrics scriptMetrics : metrics.values()) {
+            stats.add(scriptMetrics.stats());
+        }
+        Collections.sort(stats, new Comparator<ScriptStats>() {
+            @Override
+            public int compare(ScriptStats o1, ScriptStats o2) {
+                return o1.getScriptName().compareTo(o2.getScriptName());
+            }
+        });
+        return stats;
+    }
+
+    boolean isSlow(long nanos) {
+        final long threshold = slowLogThresholdNanos;
+        return threshold >= 0 && nanos > threshold;
+    }
+
+    boolean isSlow(String index, long nanos) {
+        final Long indexThreshold = indexSlowLogThresholdNanos.get(index);
+        final long threshold = indexThreshold == null ? slowLogThresholdNanos : indexThreshold;
+        return threshold >= 0 && nanos > threshold;
+    }
+
+    void logSlow(String scriptName, long nanos, String context) {
+        slowLog.warn("[{}] took [{}], {}", scriptName, new TimeValue(nanos, TimeUnit.NANOSECONDS), context);
+    }
+
+    private static long parseThreshold(Settings settings, TimeValue defaultValue) {
+        return settings.getAsTime(SLOWLOG_THRESHOLD_SETTING, defaultValue).nanos();
+    }
+
+    private static long parseIndexThreshold(String value) {
+        // TimeValue asserts that settings starting with "index." are known to the index upgrade
+        return TimeValue.parseTimeValue(value, null, INDEX_SLOWLOG_THRESHOLD_SETTING.substring("index.".length())).nanos();
+    }
+
+    class ApplySettings implements NodeSettingsService.Listener {
+        @Override
+        public void onRefreshSettings(Settings settings) {
+            long threshold = parseThreshold(settings, TimeValue.timeValueNanos(slowLogThresholdNanos));
+            if (threshold != slowLogThresholdNanos) {
+                logger.info("updating [{}] from [{}] to [{}]", SLOWLOG_THRESHOLD_SETTING,
+                        TimeValue.timeValueNanos(slowLogThresholdNanos), TimeValue.timeValueNanos(threshold));
+                slowLogThresholdNanos = threshold;
+            }
+        }
+    }
+
+    class ApplyIndexSettings implements ClusterStateListener {
+        @Override
+        public void clusterChanged(ClusterChangedEvent event) {
+            if (event.metaDataChanged() == false) {
+                return;
+            }
+            Map<String, Long> thresholds = new HashMap<>();
+            for (IndexMetaData indexMetaData : event.state().metaData()) {
+                String threshold = indexMetaData.getSettings().get(INDEX_SLOWLOG_THRESHOLD_SETTING);
+                if (threshold == null) {
+                    continue;
+                }
+                try {
+                    thresholds.put(indexMetaData.getIndex(), parseIndexThreshold(threshold));
+                } catch (ElasticsearchParseException e) {
+                    // index creation does not validate the setting
+                    logger.warn("ignoring invalid [{}] of index [{}]: [{}]", INDEX_SLOWLOG_THRESHOLD_SETTING, indexMetaData.getIndex(),
+                            threshold);
+                }
+            }
+            if (thresholds.equals(indexSlowLogThresholdNanos) == false) {
+                logger.info("updating [{}] of indices {}", INDEX_SLOWLOG_THRESHOLD_SETTING, thresholds.keySet());
+                indexSlowLogThresholdNanos = Collections.unmodifiableMap(thresholds);
+            }
+        }
+    }
+}
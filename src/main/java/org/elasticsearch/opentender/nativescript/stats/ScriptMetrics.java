@@ -0,0 +1,121 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.stats;
+
+import org.elasticsearch.common.metrics.CounterMetric;
+
+/**
+ * Live execution counters of a single native script.
+ *
+ * The counters are striped, so concurrent searches do not contend on them.
+ * Per document scripts only time every {@value #SAMPLE_INTERVAL}th document
+ * and add the scaled time, the counts are exact.
+ */
+public class ScriptMetrics {
+
+    /**
+     * Per document scripts time one out of this many documents.
+     */
+    public static final int SAMPLE_INTERVAL = 64;
+
+    private final String scriptName;
+    private final OpentenderStatsService statsService;
+
+    private final CounterMetric setups = new CounterMetric();
+    private final CounterMetric executions = new CounterMetric();
+    private final CounterMetric docs = new CounterMetric();
+    private final CounterMetric docsMissing = new CounterMetric();
+    private final CounterMetric timeInNanos = new CounterMetric();
+
+    ScriptMetrics(String scriptName, OpentenderStatsService statsService) {
+        this.scriptName = scriptName;
+        this.statsService = statsService;
+    }
+
+    public String scriptName() {
+        return scriptName;
+    }
+
+    /**
+     * Records that the factory created a new script.
+     */
+    public void onSetup() {
+        setups.inc();
+    }
+
+    /**
+     * Records an untimed document evaluation.
+     *
+     * @param missing whether the document had no usable indicator
+     */
+    public void onDocument(boolean missing) {
+        docs.inc();
+        if (missing) {
+            docsMissing.inc();
+        }
+    }
+
+    /**
+     * Records a sampled document evaluation, the time is scaled by {@link #SAMPLE_INTERVAL}.
+     *
+     * @return the scaled time of the evaluation
+     */
+    public long onTimedDocument(boolean missing, long nanos) {
+        onDocument(missing);
+        final long scaled = nanos * SAMPLE_INTERVAL;
+        timeInNanos.inc(scaled);
+        return scaled;
+    }
+
+    /**
+     * Records an execution of a script that runs once per shard or request.
+     *
+     * @return {@code true} if the execution took longer than the slow log threshold
+     */
+    public boolean onExecution(long nanos) {
+        executions.inc();
+        timeInNanos.inc(nanos);
+        return statsService.isSlow(nanos);
+    }
+
+    /**
+     * @return {@code true} if the time exceeds the slow log threshold
+     */
+    public boolean isSlow(long nanos) {
+        return statsService.isSlow(nanos);
+    }
+
+    /**
+     * @return {@code true} if the time exceeds the slow log threshold of the index
+     */
+    public boolean isSlow(String index, long nanos) {
+        return statsService.isSlow(index, nanos);
+    }
+
+    /**
+     * Writes a slow execution of this script to the slow log.
+     */
+    public void logSlow(long nanos, String context) {
+        statsService.logSlow(scriptName, nanos, context);
+    }
+
+    /**
+     * @return a point in time copy of the counters
+     */
+    public ScriptStats stats() {
+        return new ScriptStats(scriptName, setups.count(), executions.count() + docs.count(), docs.count(), docsMissing.count(),
+                timeInNanos.count());
+    }
+}
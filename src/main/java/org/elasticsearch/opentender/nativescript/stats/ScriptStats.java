@@ -0,0 +1,129 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.stats;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Streamable;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Point in time execution statistics of a single native script on a node.
+ */
+public class ScriptStats implements Streamable, ToXContent {
+
+    private String scriptName;
+    private long setups;
+    private long invocations;
+    private long docs;
+    private long docsMissing;
+    private long timeInNanos;
+
+    ScriptStats() {
+    } // for serialization
+
+    public ScriptStats(String scriptName, long setups, long invocations, long docs, long docsMissing, long timeInNanos) {
+        this.scriptName = scriptName;
+        this.setups = setups;
+        this.invocations = invocations;
+        this.docs = docs;
+        this.docsMissing = docsMissing;
+        this.timeInNanos = timeInNanos;
+    }
+
+    public static ScriptStats readScriptStats(StreamInput in) throws IOException {
+        ScriptStats stats = new ScriptStats();
+        stats.readFrom(in);
+        return stats;
+    }
+
+    public String getScriptName() {
+        return scriptName;
+    }
+
+    /**
+     * @return the number of scripts created by the factory
+     */
+    public long getSetups() {
+        return setups;
+    }
+
+    /**
+     * @return the number of script executions, once per document for the per document scripts
+     */
+    public long getInvocations() {
+        return invocations;
+    }
+
+    /**
+     * @return the number of evaluated documents
+     */
+    public long getDocs() {
+        return docs;
+    }
+
+    /**
+     * @return the number of evaluated documents without any usable indicator
+     */
+    public long getDocsMissing() {
+        return docsMissing;
+    }
+
+    /**
+     * @return the cumulative execution time, estimated from samples for the per document scripts
+     */
+    public long getTimeInNanos() {
+        return timeInNanos;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        scriptName = in.readString();
+        setups = in.readVLong();
+        invocations = in.readVLong();
+        docs = in.readVLong();
+        docsMissing = in.readVLong();
+        timeInNanos = in.readVLong();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeString(scriptName);
+        out.writeVLong(setups);
+        out.writeVLong(invocations);
+        out.writeVLong(docs);
+        out.writeVLong(docsMissing);
+        out.writeVLong(timeInNanos);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject(scriptName);
+        builder.field("setups", setups);
+        builder.field("invocations", invocations);
+        builder.field("docs", docs);
+        builder.field("docs_missing", docsMissing);
+        if (builder.humanReadable()) {
+            builder.field("time", new TimeValue(timeInNanos, TimeUnit.NANOSECONDS).toString());
+        }
+        builder.field("time_in_nanos", timeInNanos);
+        return builder.endObject();
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.opentender.nativescript.stats;
+
+import org.elasticsearch.script.ExecutableScript;
+
+/**
+ * Times every execution of a script that runs once per shard or request,
+ * such as the init, combine and reduce scripts of a scripted metric aggregation.
+ */
+public class TimedExecutableScript implements ExecutableScript {
+
+    private final ExecutableScript script;
+    private final ScriptMetrics metrics;
+
+    public TimedExecutableScript(ExecutableScript script, ScriptMetrics metrics) {
+        this.script = script;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void setNextVar(String name, Object value) {
+        script.setNextVar(name, value);
+    }
+
+    @Override
+    public Object run() {
+        final long start = System.nanoTime();
+        try {
+            return script.run();
+        } finally {
+            final long took = System.nanoTime() - start;
+            if (metrics.onExecution(took)) {
+                metrics.logSlow(took, "execution");
+            }
+        }
+    }
+
+    @Override
+    public Object unwrap(Object value) {
+        return script.unwrap(value);
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.opentender.nativescript.stats;
+
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.nodes.BaseNodeRequest;
+import org.elasticsearch.action.support.nodes.TransportNodesAction;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Reads the {@link OpentenderStatsService} of every requested node.
+ */
+public class TransportOpentenderStatsAction extends TransportNodesAction<OpentenderStatsRequest, OpentenderStatsResponse,
+        TransportOpentenderStatsAction.NodeRequest, NodeOpentenderStats> {
+
+    private final OpentenderStatsService statsService;
+
+    @Inject
+    public TransportOpentenderStatsAction(Settings settings, ClusterName clusterName, ThreadPool threadPool,
+                                          ClusterService clusterService, TransportService transportService,
+                                          OpentenderStatsService statsService, ActionFilters actionFilters,
+                                          IndexNameExpressionResolver indexNameExpressionResolver) {
+        super(settings, OpentenderStatsAction.NAME, clusterName, threadPool, clusterService, transportService, actionFilters,
+                indexNameExpressionResolver, OpentenderStatsRequest.class, NodeRequest.class, ThreadPool.Names.MANAGEMENT);
+        this.statsService = statsService;
+    }
+
+    @Override
+    protected OpentenderStatsResponse newResponse(OpentenderStatsRequest request, AtomicReferenceArray responses) {
+        final List<NodeOpentenderStats> nodeStats = new ArrayList<>();
+        for (int i = 0; i < responses.length(); i++) {
+            Object response = responses.get(i);
+            if (response instanceof NodeOpentenderStats) {
+                nodeStats.add((NodeOpentenderStats) response);
+            }
+        }
+        return new OpentenderStatsResponse(clusterName, nodeStats.toArray(new NodeOpentenderStats[nodeStats.size()]));
+    }
+
+    @Override
+    protected NodeRequest newNodeRequest(String nodeId, OpentenderStatsRequest request) {
+        return new NodeRequest(request, nodeId);
+    }
+
+    @Override
+    protected NodeOpentenderStats newNodeResponse() {
+        return new NodeOpentenderStats();
+    }
+
+    @Override
+    protected NodeOpentenderStats nodeOperation(NodeRequest request) {
+        return new NodeOpentenderStats(clusterService.localNode(), statsService.stats());
+    }
+
+    @Override
+    protected boolean accumulateExceptions() {
+        return false;
+    }
+
+    public static class NodeRequest extends BaseNodeRequest {
+
+        public NodeRequest() {
+        }
+
+        NodeRequest(OpentenderStatsRequest request, String nodeId) {
+            super(request, nodeId);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.aggregation.histogram;
+
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.opentender.nativescript.aggregation.weightedavg.WeightedAvg;
+import org.elasticsearch.opentender.nativescript.aggregation.weightedavg.WeightedAvgBuilder;
+import org.elasticsearch.opentender.nativescript.script.AbstractSearchScriptTestCase;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.elasticsearch.index.query.QueryBuilders.matchAllQuery;
+import static org.elasticsearch.search.aggregations.AggregationBuilders.terms;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertAcked;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertNoFailures;
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ * Tests for the weighted_avg_histogram aggregation
+ */
+public class WeightedAvgHistogramAggregationTests extends AbstractSearchScriptTestCase {
+
+    private void indexTransactions(int shards) throws Exception {
+        String stockMapping = XContentFactory.jsonBuilder().startObject().startObject("stock")
+                .startObject("properties")
+                .startObject("type").field("type", "string").field("index", "not_analyzed").endObject()
+                .startObject("value1").field("type", "double").endObject()
+                .startObject("value2").field("type", "long").endObject()
+                .endObject().endObject().endObject()
+                .string();
+
+        assertAcked(prepareCreate("transactions")
+                .setSettings(Settings.builder().put("index.number_of_shards", shards).put("index.number_of_replicas", 0))
+                .addMapping("stock", stockMapping));
+
+        List<IndexRequestBuilder> indexBuilders = new ArrayList<IndexRequestBuilder>();
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "1").setSource("type", "sale", "value1", 40, "value2", 80)); // 60
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "2").setSource("type", "cost", "value1", 10)); // 10
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "3").setSource("type", "cost", "value1", 30, "value2", 100)); // 65
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "4").setSource("type", "sale", "value1", 130, "value2", 50)); // 90
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "5").setSource("type", "sale"));
+        indexRandom(true, indexBuilders);
+    }
+
+    private static void assertBucket(WeightedAvgHistogram.Bucket bucket, double from, double to, long docCount) {
+        assertThat(bucket.getFrom(), equalTo(from));
+        assertThat(bucket.getTo(), equalTo(to));
+        assertThat(bucket.getDocCount(), equalTo(docCount));
+    }
+
+    @Test
+    public void testFixedWidthBuckets() throws Exception {
+        indexTransactions(1);
+
+        SearchResponse searchResponse = client().prepareSearch("transactions")
+                .setQuery(matchAllQuery())
+                .setSize(0)
+                .addAggregation(new WeightedAvgHistogramBuilder("scores").fields("value1", "value2").interval(25)
+                        .subAggregation(new WeightedAvgBuilder("avg").fields("value1", "value2")))
+                .execute().actionGet();
+
+        assertNoFailures(searchResponse);
+        WeightedAvgHistogram histogram = searchResponse.getAggregations().get("scores");
+        List<? extends WeightedAvgHistogram.Bucket> buckets = histogram.getBuckets();
+        assertThat(buckets.size(), equalTo(4));
+        assertBucket(buckets.get(0), 0, 25, 1);
+        assertBucket(buckets.get(1), 25, 50, 0);
+        assertBucket(buckets.get(2), 50, 75, 2);
+        assertBucket(buckets.get(3), 75, 100, 1);
+
+        WeightedAvg avg = buckets.get(2).getAggregations().get("avg");
+        assertThat(avg.getValue(), equalTo(62.5));
+    }
+
+    @Test
+    public void testFixedWidthBucketsMinDocCount() throws Exception {
+        indexTransactions(1);
+
+        SearchResponse searchResponse = client().prepareSearch("transactions")
+                .setQuery(matchAllQuery())
+                .setSize(0)
+                .addAggregation(new WeightedAvgHistogramBuilder("scores").fields("value1", "value2").interval(25).offset(5)
+                        .minDocCount(1))
+                .execute().actionGet();
+
+        assertNoFailures(searchResponse);
+        WeightedAvgHistogram histogram = searchResponse.getAggregations().get("scores");
+        List<? extends WeightedAvgHistogram.Bucket> buckets = histogram.getBuckets();
+        assertThat(buckets.size(), equalTo(3));
+        assertBucket(buckets.get(0), 5, 30, 1);
+        assertBucket(buckets.get(1), 55, 80, 2);
+        assertBucket(buckets.get(2), 80, 105, 1);
+    }
+
+    @Test
+    public void testExplicitRanges() throws Exception {
+        indexTransactions(1);
+
+        SearchResponse searchResponse = client().prepareSearch("transactions")
+                .setQuery(matchAllQuery())
+                .setSize(0)
+                .addAggregation(new WeightedAvgHistogramBuilder("scores").fields("value1", "value2")
+                        .addRange(null, 50.0)
+                        .addRange(50.0, 80.0)
+                        .addRange("high", 80.0, null)
+                        .addRange("none", 200.0, null))
+                .execute().actionGet();
+
+        assertNoFailures(searchResponse);
+        WeightedAvgHistogram histogram = searchResponse.getAggregations().get("scores");
+        List<? extends WeightedAvgHistogram.Bucket> buckets = histogram.getBuckets();
+        assertThat(buckets.size(), equalTo(4));
+        assertThat(buckets.get(0).getKeyAsString(), equalTo("*-50.0"));
+        assertBucket(buckets.get(0), Double.NEGATIVE_INFINITY, 50, 1);
+        assertThat(buckets.get(1).getKeyAsString(), equalTo("50.0-80.0"));
+        assertBucket(buckets.get(1), 50, 80, 2);
+        assertThat(buckets.get(2).getKeyAsString(), equalTo("high"));
+        assertBucket(buckets.get(2), 80, Double.POSITIVE_INFINITY, 1);
+        assertBucket(histogram.getBucketByKey("none"), 200, Double.POSITIVE_INFINITY, 0);
+    }
+
+    @Test
+    public void testUnderTermsAggregation() throws Exception {
+        indexTransactions(3);
+
+        SearchResponse searchResponse = client().prepareSearch("transactions")
+                .setQuery(matchAllQuery())
+                .setSize(0)
+                .addAggregation(terms("types").field("type").subAggregation(
+                        new WeightedAvgHistogramBuilder("scores").fields("value1", "value2").interval(25)))
+                .execute().actionGet();
+
+        assertNoFailures(searchResponse);
+        Terms types = searchResponse.getAggregations().get("types");
+
+        WeightedAvgHistogram sale = types.getBucketByKey("sale").getAggregations().get("scores");
+        assertThat(sale.getBuckets().size(), equalTo(2));
+        assertBucket(sale.getBuckets().get(0), 50, 75, 1);
+        assertBucket(sale.getBuckets().get(1), 75, 100, 1);
+
+        WeightedAvgHistogram cost = types.getBucketByKey("cost").getAggregations().get("scores");
+        assertThat(cost.getBuckets().size(), equalTo(3));
+        assertBucket(cost.getBuckets().get(0), 0, 25, 1);
+        assertBucket(cost.getBuckets().get(1), 25, 50, 0);
+        assertBucket(cost.getBuckets().get(2), 50, 75, 1);
+    }
+}
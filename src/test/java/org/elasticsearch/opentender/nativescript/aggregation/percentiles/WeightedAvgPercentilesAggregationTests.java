@@ -0,0 +1,118 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.aggregation.percentiles;
+
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.opentender.nativescript.script.AbstractSearchScriptTestCase;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.aggregations.metrics.percentiles.Percentiles;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.elasticsearch.index.query.QueryBuilders.matchAllQuery;
+import static org.elasticsearch.index.query.QueryBuilders.termQuery;
+import static org.elasticsearch.search.aggregations.AggregationBuilders.terms;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertAcked;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertNoFailures;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ * Tests for the weighted_avg_percentiles aggregation
+ */
+public class WeightedAvgPercentilesAggregationTests extends AbstractSearchScriptTestCase {
+
+    private void indexTransactions(int shards) throws Exception {
+        String stockMapping = XContentFactory.jsonBuilder().startObject().startObject("stock")
+                .startObject("properties")
+                .startObject("type").field("type", "string").field("index", "not_analyzed").endObject()
+                .startObject("value1").field("type", "double").endObject()
+                .startObject("value2").field("type", "long").endObject()
+                .endObject().endObject().endObject()
+                .string();
+
+        assertAcked(prepareCreate("transactions")
+                .setSettings(Settings.builder().put("index.number_of_shards", shards).put("index.number_of_replicas", 0))
+                .addMapping("stock", stockMapping));
+
+        List<IndexRequestBuilder> indexBuilders = new ArrayList<IndexRequestBuilder>();
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "1").setSource("type", "sale", "value1", 40, "value2", 80)); // 60
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "2").setSource("type", "cost", "value1", 10)); // 10
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "3").setSource("type", "cost", "value1", 30, "value2", 100)); // 65
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "4").setSource("type", "sale", "value1", 130, "value2", 50)); // 90
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "5").setSource("type", "sale"));
+        indexRandom(true, indexBuilders);
+    }
+
+    @Test
+    public void testPercentiles() throws Exception {
+        indexTransactions(3);
+
+        SearchResponse searchResponse = client().prepareSearch("transactions")
+                .setQuery(matchAllQuery())
+                .setSize(0)
+                .addAggregation(new WeightedAvgPercentilesBuilder("scores").fields("value1", "value2").percents(100, 0, 50))
+                .execute().actionGet();
+
+        assertNoFailures(searchResponse);
+        Percentiles percentiles = searchResponse.getAggregations().get("scores");
+        assertThat(percentiles.percentile(0), equalTo(10.0));
+        assertThat(percentiles.percentile(50), closeTo(62.5, 2.5));
+        assertThat(percentiles.percentile(100), equalTo(90.0));
+    }
+
+    @Test
+    public void testNoMatchingDocuments() throws Exception {
+        indexTransactions(1);
+
+        SearchResponse searchResponse = client().prepareSearch("transactions")
+                .setQuery(termQuery("type", "none"))
+                .setSize(0)
+                .addAggregation(new WeightedAvgPercentilesBuilder("scores").fields("value1", "value2").percents(50))
+                .execute().actionGet();
+
+        assertNoFailures(searchResponse);
+        Percentiles percentiles = searchResponse.getAggregations().get("scores");
+        assertThat(percentiles.percentile(50), equalTo(Double.NaN));
+    }
+
+    @Test
+    public void testUnderTermsAggregation() throws Exception {
+        indexTransactions(3);
+
+        SearchResponse searchResponse = client().prepareSearch("transactions")
+                .setQuery(matchAllQuery())
+                .setSize(0)
+                .addAggregation(terms("types").field("type").subAggregation(
+                        new WeightedAvgPercentilesBuilder("scores").fields("value1", "value2").weights(1, 0).percents(0, 100)))
+                .execute().actionGet();
+
+        assertNoFailures(searchResponse);
+        Terms types = searchResponse.getAggregations().get("types");
+
+        Percentiles sale = types.getBucketByKey("sale").getAggregations().get("scores");
+        assertThat(sale.percentile(0), equalTo(40.0));
+        assertThat(sale.percentile(100), equalTo(130.0));
+
+        Percentiles cost = types.getBucketByKey("cost").getAggregations().get("scores");
+        assertThat(cost.percentile(0), equalTo(10.0));
+        assertThat(cost.percentile(100), equalTo(30.0));
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.aggregation.stats;
+
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.opentender.nativescript.script.AbstractSearchScriptTestCase;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.aggregations.metrics.stats.extended.ExtendedStats;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.elasticsearch.index.query.QueryBuilders.matchAllQuery;
+import static org.elasticsearch.index.query.QueryBuilders.termQuery;
+import static org.elasticsearch.search.aggregations.AggregationBuilders.terms;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertAcked;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertNoFailures;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ * Tests for the weighted_avg_stats aggregation
+ */
+public class WeightedAvgStatsAggregationTests extends AbstractSearchScriptTestCase {
+
+    private void createIndex(int shards) throws Exception {
+        String stockMapping = XContentFactory.jsonBuilder().startObject().startObject("stock")
+                .startObject("properties")
+                .startObject("type").field("type", "string").field("index", "not_analyzed").endObject()
+                .startObject("value1").field("type", "double").endObject()
+                .startObject("value2").field("type", "long").endObject()
+                .endObject().endObject().endObject()
+                .string();
+
+        assertAcked(prepareCreate("transactions")
+                .setSettings(Settings.builder().put("index.number_of_shards", shards).put("index.number_of_replicas", 0))
+                .addMapping("stock", stockMapping));
+    }
+
+    private void indexTransactions(int shards) throws Exception {
+        createIndex(shards);
+
+        List<IndexRequestBuilder> indexBuilders = new ArrayList<IndexRequestBuilder>();
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "1").setSource("type", "sale", "value1", 40, "value2", 80)); // 60
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "2").setSource("type", "cost", "value1", 10)); // 10
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "3").setSource("type", "cost", "value1", 30, "value2", 100)); // 65
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "4").setSource("type", "sale", "value1", 130, "value2", 50)); // 90
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "5").setSource("type", "sale"));
+        indexRandom(true, indexBuilders);
+    }
+
+    @Test
+    public void testStats() throws Exception {
+        indexTransactions(3);
+
+        SearchResponse searchResponse = client().prepareSearch("transactions")
+                .setQuery(matchAllQuery())
+                .setSize(0)
+                .addAggregation(new WeightedAvgStatsBuilder("scores").fields("value1", "value2").sigma(1))
+                .execute().actionGet();
+
+        assertNoFailures(searchResponse);
+        ExtendedStats stats = searchResponse.getAggregations().get("scores");
+        assertThat(stats.getCount(), equalTo(4L));
+        assertThat(stats.getMin(), equalTo(10.0));
+        assertThat(stats.getMax(), equalTo(90.0));
+        assertThat(stats.getSum(), equalTo(225.0));
+        assertThat(stats.getAvg(), equalTo(56.25));
+        assertThat(stats.getVariance(), closeTo(842.1875, 0.000001));
+        assertThat(stats.getSumOfSquares(), closeTo(60 * 60 + 10 * 10 + 65 * 65 + 90 * 90, 0.000001));
+        assertThat(stats.getStdDeviationBound(ExtendedStats.Bounds.UPPER), closeTo(56.25 + Math.sqrt(842.1875), 0.000001));
+    }
+
+    @Test
+    public void testVarianceOfLargeValues() throws Exception {
+        createIndex(2);
+
+        List<IndexRequestBuilder> indexBuilders = new ArrayList<IndexRequestBuilder>();
+        long[] offsets = new long[]{4, 7, 13, 16};
+        for (int i = 0; i < offsets.length; i++) {
+            indexBuilders.add(client().prepareIndex("transactions", "stock", String.valueOf(i))
+                    .setSource("type", "sale", "value1", 1000000000d + offsets[i]));
+        }
+        indexRandom(true, indexBuilders);
+
+        SearchResponse searchResponse = client().prepareSearch("transactions")
+                .setQuery(matchAllQuery())
+                .setSize(0)
+                .addAggregation(new WeightedAvgStatsBuilder("scores").fields("value1"))
+                .execute().actionGet();
+
+        assertNoFailures(searchResponse);
+        ExtendedStats stats = searchResponse.getAggregations().get("scores");
+        assertThat(stats.getCount(), equalTo(4L));
+        assertThat(stats.getVariance(), closeTo(22.5, 0.000001));
+    }
+
+    @Test
+    public void testNoMatchingDocuments() throws Exception {
+        indexTransactions(1);
+
+        SearchResponse searchResponse = client().prepareSearch("transactions")
+                .setQuery(termQuery("type", "none"))
+                .setSize(0)
+                .addAggregation(new WeightedAvgStatsBuilder("scores").fields("value1", "value2"))
+                .execute().actionGet();
+
+        assertNoFailures(searchResponse);
+        ExtendedStats stats = searchResponse.getAggregations().get("scores");
+        assertThat(stats.getCount(), equalTo(0L));
+        assertThat(stats.getAvg(), equalTo(Double.NaN));
+    }
+
+    @Test
+    public void testUnderTermsAggregation() throws Exception {
+        indexTransactions(3);
+
+        SearchResponse searchResponse = client().prepareSearch("transactions")
+                .setQuery(matchAllQuery())
+                .setSize(0)
+                .addAggregation(terms("types").field("type").subAggregation(
+                        new WeightedAvgStatsBuilder("scores").fields("value1", "value2")))
+                .execute().actionGet();
+
+        assertNoFailures(searchResponse);
+        Terms types = searchResponse.getAggregations().get("types");
+
+        ExtendedStats sale = types.getBucketByKey("sale").getAggregations().get("scores");
+        assertThat(sale.getCount(), equalTo(2L));
+        assertThat(sale.getMin(), equalTo(60.0));
+        assertThat(sale.getMax(), equalTo(90.0));
+        assertThat(sale.getVariance(), closeTo(225.0, 0.000001));
+
+        ExtendedStats cost = types.getBucketByKey("cost").getAggregations().get("scores");
+        assertThat(cost.getCount(), equalTo(2L));
+        assertThat(cost.getAvg(), equalTo(37.5));
+        assertThat(cost.getVariance(), closeTo(756.25, 0.000001));
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.aggregation.top;
+
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.opentender.nativescript.script.AbstractSearchScriptTestCase;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.elasticsearch.index.query.QueryBuilders.matchAllQuery;
+import static org.elasticsearch.search.aggregations.AggregationBuilders.terms;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertAcked;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertNoFailures;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ * Tests for the top_weighted_avg aggregation
+ */
+public class TopWeightedAvgAggregationTests extends AbstractSearchScriptTestCase {
+
+    private void createTransactions(int shards) throws Exception {
+        String stockMapping = XContentFactory.jsonBuilder().startObject().startObject("stock")
+                .startObject("properties")
+                .startObject("type").field("type", "string").field("index", "not_analyzed").endObject()
+                .startObject("value1").field("type", "double").endObject()
+                .startObject("value2").field("type", "long").endObject()
+                .endObject().endObject().endObject()
+                .string();
+
+        assertAcked(prepareCreate("transactions")
+                .setSettings(Settings.builder().put("index.number_of_shards", shards).put("index.number_of_replicas", 0))
+                .addMapping("stock", stockMapping));
+    }
+
+    private void indexTransactions() throws Exception {
+        createTransactions(1);
+
+        List<IndexRequestBuilder> indexBuilders = new ArrayList<IndexRequestBuilder>();
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "1").setSource("type", "sale", "value1", 40, "value2", 80)); // 60
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "2").setSource("type", "cost", "value1", 10)); // 10
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "3").setSource("type", "cost", "value1", 30, "value2", 100)); // 65
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "4").setSource("type", "sale", "value1", 130, "value2", 50)); // 90
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "5").setSource("type", "sale"));
+        indexRandom(true, indexBuilders);
+    }
+
+    @Test
+    public void testTopWeightedAvg() throws Exception {
+        indexTransactions();
+
+        SearchResponse searchResponse = client().prepareSearch("transactions")
+                .setQuery(matchAllQuery())
+                .setSize(0)
+                .addAggregation(new TopWeightedAvgBuilder("riskiest").fields("value1", "value2").size(2))
+                .addAggregation(new TopWeightedAvgBuilder("safest").fields("value1", "value2").size(2).order("asc"))
+                .addAggregation(new TopWeightedAvgBuilder("all").fields("value1", "value2").size(10))
+                .execute().actionGet();
+
+        assertNoFailures(searchResponse);
+        assertHits(searchResponse.getAggregations().<TopWeightedAvg>get("riskiest"), "4", "3");
+        assertThat(searchResponse.getAggregations().<TopWeightedAvg>get("riskiest").getHits().get(0).getValue(), equalTo(90.0));
+        assertThat(searchResponse.getAggregations().<TopWeightedAvg>get("riskiest").getHits().get(0).getIndex(),
+                equalTo("transactions"));
+        assertHits(searchResponse.getAggregations().<TopWeightedAvg>get("safest"), "2", "1");
+        // the document without indicators is not returned
+        assertHits(searchResponse.getAggregations().<TopWeightedAvg>get("all"), "4", "3", "1", "2");
+    }
+
+    @Test
+    public void testTopWeightedAvgManyShards() throws Exception {
+        createTransactions(3);
+        List<IndexRequestBuilder> indexBuilders = new ArrayList<IndexRequestBuilder>();
+        for (int i = 0; i < 1000; i++) {
+            indexBuilders.add(client().prepareIndex("transactions", "stock", String.valueOf(i)).setSource("value1", (i * 7) % 1000));
+        }
+        indexRandom(true, indexBuilders);
+
+        SearchResponse searchResponse = client().prepareSearch("transactions")
+                .setSize(0)
+                .addAggregation(new TopWeightedAvgBuilder("top").fields("value1", "value2").size(5))
+                .addAggregation(new TopWeightedAvgBuilder("bottom").fields("value1", "value2").size(3).order("asc"))
+                .execute().actionGet();
+
+        assertNoFailures(searchResponse);
+        // value1 = 999 for i = 857, 998 for i = 714, ...
+        assertHits(searchResponse.getAggregations().<TopWeightedAvg>get("top"), "857", "714", "571", "428", "285");
+        assertHits(searchResponse.getAggregations().<TopWeightedAvg>get("bottom"), "0", "143", "286");
+    }
+
+    @Test
+    public void testTopWeightedAvgSubAggregation() throws Exception {
+        indexTransactions();
+
+        SearchResponse searchResponse = client().prepareSearch("transactions")
+                .setQuery(matchAllQuery())
+                .setSize(0)
+                .addAggregation(terms("types").field("type")
+                        .subAggregation(new TopWeightedAvgBuilder("top").fields("value1", "value2").size(1)))
+                .execute().actionGet();
+
+        assertNoFailures(searchResponse);
+        Terms types = searchResponse.getAggregations().get("types");
+        assertHits(types.getBucketByKey("sale").getAggregations().<TopWeightedAvg>get("top"), "4");
+        assertHits(types.getBucketByKey("cost").getAggregations().<TopWeightedAvg>get("top"), "3");
+    }
+
+    @Test
+    public void testTopWeightedAvgInvalidSize() throws Exception {
+        indexTransactions();
+
+        try {
+            client().prepareSearch("transactions")
+                    .addAggregation(new TopWeightedAvgBuilder("top").fields("value1", "value2").size(0))
+                    .execute().actionGet();
+            fail("size 0 must be rejected");
+        } catch (Exception e) {
+            assertThat(e.toString(), containsString("must be between 1 and 10000"));
+        }
+    }
+
+    private static void assertHits(TopWeightedAvg top, String... ids) {
+        List<String> actual = new ArrayList<String>();
+        for (TopWeightedAvg.Hit hit : top.getHits()) {
+            actual.add(hit.getId());
+        }
+        assertThat(actual.toString(), actual.size(), equalTo(ids.length));
+        for (int i = 0; i < ids.length; i++) {
+            assertThat(actual.toString(), actual.get(i), equalTo(ids[i]));
+        }
+    }
+}
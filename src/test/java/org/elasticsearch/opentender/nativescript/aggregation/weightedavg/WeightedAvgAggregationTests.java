@@ -0,0 +1,389 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.aggregation.weightedavg;
+
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.search.SearchPhaseExecutionException;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.opentender.nativescript.aggregation.cache.ShardResultCache;
+import org.elasticsearch.opentender.nativescript.script.AbstractSearchScriptTestCase;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.elasticsearch.index.query.QueryBuilders.matchAllQuery;
+import static org.elasticsearch.index.query.QueryBuilders.rangeQuery;
+import static org.elasticsearch.index.query.QueryBuilders.termQuery;
+import static org.elasticsearch.search.aggregations.AggregationBuilders.terms;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertAcked;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertHitCount;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertNoFailures;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ * Tests for the native weighted_avg aggregation
+ */
+public class WeightedAvgAggregationTests extends AbstractSearchScriptTestCase {
+
+    private void indexTransactions(boolean withDocuments) throws Exception {
+        String stockMapping = XContentFactory.jsonBuilder().startObject().startObject("stock")
+                .startObject("properties")
+                .startObject("type").field("type", "string").field("index", "not_analyzed").endObject()
+                .startObject("value1").field("type", "double").endObject()
+                .startObject("value2").field("type", "long").endObject()
+                .endObject().endObject().endObject()
+                .string();
+
+        assertAcked(prepareCreate("transactions")
+                .addMapping("stock", stockMapping));
+
+        List<IndexRequestBuilder> indexBuilders = new ArrayList<IndexRequestBuilder>();
+        if (withDocuments) {
+            indexBuilders.add(client().prepareIndex("transactions", "stock", "1").setSource("type", "sale", "value1", 40, "value2", 80));
+            indexBuilders.add(client().prepareIndex("transactions", "stock", "2").setSource("type", "cost", "value1", 10));
+            indexBuilders.add(client().prepareIndex("transactions", "stock", "3").setSource("type", "cost", "value1", 30, "value2", 100));
+            indexBuilders.add(client().prepareIndex("transactions", "stock", "4").setSource("type", "sale", "value1", 130, "value2", 50));
+            indexBuilders.add(client().prepareIndex("transactions", "stock", "5").setSource("type", "sale"));
+        }
+        indexRandom(true, indexBuilders);
+    }
+
+    @Test
+    public void testWeightedAvg() throws Exception {
+        indexTransactions(true);
+
+        SearchResponse searchResponse = client().prepareSearch("transactions")
+                .setQuery(matchAllQuery())
+                .setSize(0)
+                .addAggregation(new WeightedAvgBuilder("profit").fields("value1", "value2"))
+                .execute().actionGet();
+
+        assertNoFailures(searchResponse);
+        assertHitCount(searchResponse, 5);
+
+        WeightedAvg avg = searchResponse.getAggregations().get("profit");
+        // (60 + 10 + 65 + 90) / 4, the document without indicators is ignored
+        assertThat(avg.getValue(), equalTo(56.25));
+        assertThat(avg.getCount(), equalTo(4L));
+    }
+
+    @Test
+    public void testWeightedAvgWithWeights() throws Exception {
+        indexTransactions(true);
+
+        SearchResponse searchResponse = client().prepareSearch("transactions")
+                .setQuery(matchAllQuery())
+                .setSize(0)
+                .addAggregation(new WeightedAvgBuilder("profit").fields("value1", "value2").weights(0.5, 1.0))
+                .execute().actionGet();
+
+        assertNoFailures(searchResponse);
+
+        WeightedAvg avg = searchResponse.getAggregations().get("profit");
+        assertThat(avg.getValue(), equalTo(57.5));
+    }
+
+    @Test
+    public void testWeightedAvgUnmappedField() throws Exception {
+        indexTransactions(true);
+
+        SearchResponse searchResponse = client().prepareSearch("transactions")
+                .setQuery(matchAllQuery())
+                .setSize(0)
+                .addAggregation(new WeightedAvgBuilder("profit").fields("value1", "unknown").weights(1.0, 2.0))
+                .execute().actionGet();
+
+        assertNoFailures(searchResponse);
+
+        WeightedAvg avg = searchResponse.getAggregations().get("profit");
+        assertThat(avg.getValue(), equalTo(52.5));
+    }
+
+    @Test
+    public void testWeightedAvgSubAggregation() throws Exception {
+        indexTransactions(true);
+
+        SearchResponse searchResponse = client().prepareSearch("transactions")
+                .setQuery(matchAllQuery())
+                .setSize(0)
+                .addAggregation(terms("types").field("type")
+                        .subAggregation(new WeightedAvgBuilder("profit").fields("value1", "value2")))
+                .execute().actionGet();
+
+        assertNoFailures(searchResponse);
+
+        Terms types = searchResponse.getAggregations().get("types");
+        WeightedAvg sale = types.getBucketByKey("sale").getAggregations().get("profit");
+        assertThat(sale.getValue(), closeTo(75.0, 0.000001));
+        assertThat(sale.getCount(), equalTo(2L));
+        WeightedAvg cost = types.getBucketByKey("cost").getAggregations().get("profit");
+        assertThat(cost.getValue(), closeTo(37.5, 0.000001));
+    }
+
+    @Test
+    public void testWeightedAvgManyBuckets() throws Exception {
+        indexTransactions(false);
+        List<IndexRequestBuilder> indexBuilders = new ArrayList<IndexRequestBuilder>();
+        Map<String, double[]> expected = new HashMap<String, double[]>();
+        for (int i = 0; i < 900; i++) {
+            // every document falls into its own buyer bucket and the bucket of all documents
+            String buyer = "buyer" + (i % 300);
+            indexBuilders.add(client().prepareIndex("transactions", "stock", String.valueOf(i))
+                    .setSource("type", new String[]{buyer, "all"}, "value1", i % 100, "value2", i % 7));
+            double value = ((i % 100) * 0.5 + (i % 7) * 2.0) / 2.5;
+            for (String key : new String[]{buyer, "all"}) {
+                double[] state = expected.get(key);
+                if (state == null) {
+                    expected.put(key, state = new double[2]);
+                }
+                state[0] += value;
+                state[1]++;
+            }
+        }
+        indexRandom(true, indexBuilders);
+
+        SearchResponse searchResponse = client().prepareSearch("transactions")
+                .setSize(0)
+                .addAggregation(terms("types").field("type").size(0)
+                        .subAggregation(new WeightedAvgBuilder("avg").fields("value1", "value2").weights(0.5, 2.0)))
+                .execute().actionGet();
+
+        assertNoFailures(searchResponse);
+        Terms types = searchResponse.getAggregations().get("types");
+        assertThat(types.getBuckets().size(), equalTo(expected.size()));
+        for (Terms.Bucket bucket : types.getBuckets()) {
+            double[] state = expected.get(bucket.getKeyAsString());
+            WeightedAvg avg = bucket.getAggregations().get("avg");
+            assertThat(avg.getCount(), equalTo((long) state[1]));
+            assertThat(avg.getValue(), closeTo(state[0] / state[1], 1e-9));
+        }
+    }
+
+    @Test
+    public void testWeightedAvgEmptyIndex() throws Exception {
+        indexTransactions(false);
+
+        SearchResponse searchResponse = client().prepareSearch("transactions")
+                .setQuery(matchAllQuery())
+                .setSize(0)
+                .addAggregation(new WeightedAvgBuilder("profit").fields("value1", "value2"))
+                .execute().actionGet();
+
+        assertNoFailures(searchResponse);
+        assertHitCount(searchResponse, 0);
+
+        WeightedAvg avg = searchResponse.getAggregations().get("profit");
+        assertThat(avg.getCount(), equalTo(0L));
+        assertThat(Double.isNaN(avg.getValue()), equalTo(true));
+    }
+
+    @Test
+    public void testWeightedAvgMultiValueMode() throws Exception {
+        assertAcked(prepareCreate("lots").addMapping("lot", XContentFactory.jsonBuilder().startObject().startObject("lot")
+                .startObject("properties")
+                .startObject("value1").field("type", "double").endObject()
+                .startObject("value2").field("type", "long").endObject()
+                .endObject().endObject().endObject()));
+        List<IndexRequestBuilder> indexBuilders = new ArrayList<IndexRequestBuilder>();
+        indexBuilders.add(client().prepareIndex("lots", "lot", "1").setSource("value1", new double[]{30, 10, 20}, "value2", 40));
+        indexBuilders.add(client().prepareIndex("lots", "lot", "2").setSource("value1", 50));
+        indexRandom(true, indexBuilders);
+
+        String[] modes = {"first", "min", "max", "avg", "sum"};
+        // ((selected value1 + 40) / 2 + 50) / 2
+        double[] expected = {37.5, 37.5, 42.5, 40, 50};
+        for (int i = 0; i < modes.length; i++) {
+            SearchResponse searchResponse = client().prepareSearch("lots")
+                    .setSize(0)
+                    .addAggregation(new WeightedAvgBuilder("avg").fields("value1", "value2").multiValueMode(modes[i]))
+                    .execute().actionGet();
+
+            assertNoFailures(searchResponse);
+            WeightedAvg avg = searchResponse.getAggregations().get("avg");
+            assertThat(modes[i], avg.getValue(), equalTo(expected[i]));
+        }
+    }
+
+    @Test
+    public void testWeightedAvgUnknownMultiValueMode() throws Exception {
+        indexTransactions(true);
+
+        try {
+            client().prepareSearch("transactions")
+                    .setSize(0)
+                    .addAggregation(new WeightedAvgBuilder("avg").fields("value1", "value2").multiValueMode("median"))
+                    .execute().actionGet();
+            fail("expected an unknown multi_value_mode to be rejected");
+        } catch (SearchPhaseExecutionException e) {
+            assertThat(e.toString(), containsString("unknown multi_value_mode [median]"));
+        }
+    }
+
+    /**
+     * Indexes documents with and without indicators.
+     *
+     * @return the sum and count of the weighted averages with the weights 0.5 and 2.0
+     */
+    private double[] indexManyBlocks(int docs) throws Exception {
+        indexTransactions(false);
+        List<IndexRequestBuilder> indexBuilders = new ArrayList<IndexRequestBuilder>();
+        double sum = 0;
+        long count = 0;
+        for (int i = 0; i < docs; i++) {
+            if (i % 10 == 0) {
+                indexBuilders.add(client().prepareIndex("transactions", "stock", String.valueOf(i)).setSource("type", "sale"));
+            } else if (i % 10 == 1) {
+                indexBuilders.add(client().prepareIndex("transactions", "stock", String.valueOf(i)).setSource("value1", i));
+                sum += i;
+                count++;
+            } else {
+                indexBuilders.add(client().prepareIndex("transactions", "stock", String.valueOf(i))
+                        .setSource("value1", i % 100, "value2", i % 7));
+                sum += ((i % 100) * 0.5 + (i % 7) * 2.0) / 2.5;
+                count++;
+            }
+        }
+        indexRandom(true, indexBuilders);
+        return new double[]{sum, count};
+    }
+
+    @Test
+    public void testWeightedAvgManyBlocks() throws Exception {
+        double[] expected = indexManyBlocks(1000);
+
+        SearchResponse searchResponse = client().prepareSearch("transactions")
+                .setSize(0)
+                .addAggregation(new WeightedAvgBuilder("avg").fields("value1", "value2").weights(0.5, 2.0))
+                .execute().actionGet();
+
+        assertNoFailures(searchResponse);
+        WeightedAvg avg = searchResponse.getAggregations().get("avg");
+        assertThat(avg.getCount(), equalTo((long) expected[1]));
+        assertThat(avg.getValue(), closeTo(expected[0] / expected[1], 1e-9));
+    }
+
+    @Test
+    public void testWeightedAvgParallel() throws Exception {
+        double[] expected = indexManyBlocks(3000);
+
+        // the documents without indicators do not change the result, the query keeps the shard result cache out
+        SearchResponse searchResponse = client().prepareSearch("transactions")
+                .setQuery(rangeQuery("value1").gte(0))
+                .setSize(0)
+                .addAggregation(new WeightedAvgBuilder("avg").fields("value1", "value2").weights(0.5, 2.0).parallel(true))
+                .execute().actionGet();
+
+        assertNoFailures(searchResponse);
+        WeightedAvg avg = searchResponse.getAggregations().get("avg");
+        assertThat(avg.getCount(), equalTo((long) expected[1]));
+        assertThat(avg.getValue(), closeTo(expected[0] / expected[1], 1e-9));
+    }
+
+    @Test
+    public void testWeightedAvgShardResultCache() throws Exception {
+        indexTransactions(true);
+        ShardResultCache cache = internalCluster().getDataNodeInstance(ShardResultCache.class);
+
+        long hits = cache.hits();
+        WeightedAvg first = searchSales();
+        // (60 + 90) / 2
+        assertThat(first.getValue(), equalTo(75.0));
+        assertThat(cache.hits(), equalTo(hits));
+
+        WeightedAvg second = searchSales();
+        assertThat(second.getValue(), equalTo(first.getValue()));
+        assertThat(second.getCount(), equalTo(first.getCount()));
+        assertThat(cache.hits(), equalTo(hits + 1));
+
+        // a different query is not answered from the cache
+        SearchResponse searchResponse = client().prepareSearch("transactions")
+                .setRequestCache(false)
+                .setQuery(termQuery("type", "cost"))
+                .setSize(0)
+                .addAggregation(new WeightedAvgBuilder("profit").fields("value1", "value2"))
+                .execute().actionGet();
+        assertNoFailures(searchResponse);
+        WeightedAvg cost = searchResponse.getAggregations().get("profit");
+        assertThat(cost.getValue(), equalTo(37.5));
+        assertThat(cache.hits(), equalTo(hits + 1));
+
+        // the refresh opens a new reader and invalidates the cached result
+        client().prepareIndex("transactions", "stock", "6").setSource("type", "sale", "value1", 15, "value2", 15).get();
+        refresh();
+        WeightedAvg refreshed = searchSales();
+        assertThat(refreshed.getValue(), equalTo(55.0));
+        assertThat(cache.hits(), equalTo(hits + 1));
+    }
+
+    @Test
+    public void testWeightedAvgShardResultCacheNow() throws Exception {
+        String stockMapping = XContentFactory.jsonBuilder().startObject().startObject("stock")
+                .startObject("properties")
+                .startObject("published").field("type", "date").endObject()
+                .startObject("value1").field("type", "double").endObject()
+                .endObject().endObject().endObject()
+                .string();
+        assertAcked(prepareCreate("transactions").addMapping("stock", stockMapping));
+        indexRandom(true, client().prepareIndex("transactions", "stock", "1").setSource("published", "2016-01-01", "value1", 40));
+        ShardResultCache cache = internalCluster().getDataNodeInstance(ShardResultCache.class);
+
+        long size = cache.size();
+        for (int i = 0; i < 2; i++) {
+            SearchResponse searchResponse = client().prepareSearch("transactions")
+                    .setRequestCache(false)
+                    .setQuery(rangeQuery("published").lte("now-1d"))
+                    .setSize(0)
+                    .addAggregation(new WeightedAvgBuilder("profit").fields("value1"))
+                    .execute().actionGet();
+            assertNoFailures(searchResponse);
+            assertThat(((WeightedAvg) searchResponse.getAggregations().get("profit")).getValue(), equalTo(40.0));
+        }
+        // the date window moves with the current time, the result must not be cached
+        assertThat(cache.size(), equalTo(size));
+    }
+
+    @Test
+    public void testWeightedAvgShardResultCacheDeleteIndex() throws Exception {
+        indexTransactions(true);
+        ShardResultCache cache = internalCluster().getDataNodeInstance(ShardResultCache.class);
+
+        long size = cache.size();
+        searchSales();
+        assertThat(cache.size(), equalTo(size + 1));
+
+        // closing the reader of the deleted index drops its entries
+        assertAcked(client().admin().indices().prepareDelete("transactions"));
+        assertThat(cache.size(), equalTo(size));
+    }
+
+    private WeightedAvg searchSales() {
+        // the shard request cache of the index would answer a repeated request before the aggregation runs
+        SearchResponse searchResponse = client().prepareSearch("transactions")
+                .setRequestCache(false)
+                .setQuery(termQuery("type", "sale"))
+                .setSize(0)
+                .addAggregation(new WeightedAvgBuilder("profit").fields("value1", "value2"))
+                .execute().actionGet();
+        assertNoFailures(searchResponse);
+        return searchResponse.getAggregations().get("profit");
+    }
+}
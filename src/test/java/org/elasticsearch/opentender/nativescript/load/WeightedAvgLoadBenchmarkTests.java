@@ -0,0 +1,459 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.load;
+
+import org.elasticsearch.Version;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.io.PathUtils;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.opentender.nativescript.aggregation.weightedavg.WeightedAvg;
+import org.elasticsearch.opentender.nativescript.aggregation.weightedavg.WeightedAvgBuilder;
+import org.elasticsearch.opentender.nativescript.script.AbstractSearchScriptTestCase;
+import org.elasticsearch.opentender.nativescript.script.WeightedAvgRangeScript;
+import org.elasticsearch.opentender.nativescript.script.WeightedAvgScoreScript;
+import org.elasticsearch.opentender.nativescript.script.weightedavg.CombineScriptFactory;
+import org.elasticsearch.opentender.nativescript.script.weightedavg.InitScriptFactory;
+import org.elasticsearch.opentender.nativescript.script.weightedavg.MapScriptFactory;
+import org.elasticsearch.opentender.nativescript.script.weightedavg.ReduceScriptFactory;
+import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.script.groovy.GroovyPlugin;
+import org.elasticsearch.search.aggregations.metrics.scripted.ScriptedMetric;
+import org.elasticsearch.search.sort.SortBuilders;
+import org.elasticsearch.search.sort.SortOrder;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertAcked;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertNoFailures;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ * Load benchmark of the native scripts against the Groovy scripts they replace.
+ *
+ * Bulk loads synthetic tenders with sparse indicators into a multi-shard index of
+ * the embedded test cluster, then runs every scenario from several client threads
+ * and records the throughput and the latency percentiles. The Groovy scenarios run on
+ * the lang-groovy module, a test dependency of the plugin. The results are written as
+ * a JSON report that can be compared across releases.
+ *
+ * The benchmark is opt-in and takes minutes with the default settings:
+ *
+ * <pre>
+ * mvn test -Dtests.class=*WeightedAvgLoadBenchmarkTests -Dtests.load=true \
+ *     -Dtests.load.docs=2000000 -Dtests.load.report=/tmp/load-report.json
+ * </pre>
+ *
+ * Options: {@code tests.load.docs} (1000000), {@code tests.load.shards} (4),
+ * {@code tests.load.fields} (10), {@code tests.load.missing} share of missing
+ * indicators (0.3), {@code tests.load.iterations} measured requests per scenario (200),
+ * {@code tests.load.clients} concurrent clients (4) and {@code tests.load.report}
+ * (opentender-load-report.json in java.io.tmpdir, other paths need
+ * {@code -Dtests.security.manager=false}).
+ */
+public class WeightedAvgLoadBenchmarkTests extends AbstractSearchScriptTestCase {
+
+    private static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("tests.load", "false"));
+    private static final int DOCS = Integer.getInteger("tests.load.docs", 1000000);
+    private static final int SHARDS = Integer.getInteger("tests.load.shards", 4);
+    private static final int FIELDS = Integer.getInteger("tests.load.fields", 10);
+    private static final double MISSING = Double.parseDouble(System.getProperty("tests.load.missing", "0.3"));
+    private static final int ITERATIONS = Integer.getInteger("tests.load.iterations", 200);
+    private static final int CLIENTS = Integer.getInteger("tests.load.clients", 4);
+
+    private static final int BULK_SIZE = 5000;
+    private static final double GTE = 40;
+    private static final double LTE = 60;
+
+    private static final String GROOVY_INIT = "_agg['sum'] = 0; _agg['count'] = 0";
+    private static final String GROOVY_MAP = "sum = 0; sum_weights = 0;"
+            + " for (i = 0; i < _fields.size(); i++) {"
+            + "   weight = _weights[i]; indicator = doc[_fields[i]];"
+            + "   if (!indicator.empty) { sum += indicator.value * weight; sum_weights += weight; }"
+            + " }"
+            + " if (sum_weights > 0) { _agg['sum'] += sum / sum_weights; _agg['count'] += 1; }";
+    private static final String GROOVY_REDUCE = "sum = 0; count = 0;"
+            + " for (a in _aggs) { sum += a.sum; count += a.count; }"
+            + " return count > 0 ? (sum / count) : null;";
+    private static final String GROOVY_AVERAGE = "sum = 0; sum_weights = 0;"
+            + " for (i = 0; i < fields.size(); i++) {"
+            + "   indicator = doc[fields[i]];"
+            + "   if (!indicator.empty) { sum += indicator.value * weights[i]; sum_weights += weights[i]; }"
+            + " }";
+    private static final String GROOVY_RANGE = GROOVY_AVERAGE
+            + " if (sum_weights == 0) { return false; }"
+            + " avg = sum / sum_weights; return avg >= gte && avg <= lte;";
+    private static final String GROOVY_SCORE = GROOVY_AVERAGE + " return sum_weights > 0 ? sum / sum_weights : 0;";
+
+    @Override
+    protected Collection<Class<? extends Plugin>> nodePlugins() {
+        List<Class<? extends Plugin>> plugins = new ArrayList<Class<? extends Plugin>>(super.nodePlugins());
+        plugins.add(GroovyPlugin.class);
+        return plugins;
+    }
+
+    @Override
+    protected Settings nodeSettings(int nodeOrdinal) {
+        return Settings.builder().put(super.nodeSettings(nodeOrdinal))
+                .put("script.inline", "true")
+                .build();
+    }
+
+    @Test
+    public void testLoad() throws Exception {
+        assumeTrue("the load benchmark is opt-in, run it with -Dtests.load=true", ENABLED);
+
+        final List<String> fields = new ArrayList<String>();
+        final List<Double> weights = new ArrayList<Double>();
+        for (int i = 0; i < FIELDS; i++) {
+            fields.add("indicator" + i);
+            weights.add(1.0 + i % 3);
+        }
+        final long loadStart = System.nanoTime();
+        indexTenders(fields);
+        final long loadMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - loadStart);
+
+        final List<Scenario> scenarios = new ArrayList<Scenario>();
+        scenarios.add(new Scenario("weighted_avg_aggregation", "native") {
+            @Override
+            SearchRequestBuilder request() {
+                double[] primitiveWeights = new double[weights.size()];
+                for (int i = 0; i < primitiveWeights.length; i++) {
+                    primitiveWeights[i] = weights.get(i);
+                }
+                return search().addAggregation(new WeightedAvgBuilder("avg").fields(fields.toArray(new String[fields.size()]))
+                        .weights(primitiveWeights));
+            }
+
+            @Override
+            Object result(SearchResponse response) {
+                return response.getAggregations().<WeightedAvg>get("avg").getValue();
+            }
+        });
+        scenarios.add(new Scenario("weighted_avg_scripted_metric", "native") {
+            @Override
+            SearchRequestBuilder request() {
+                Map<String, Object> params = new HashMap<String, Object>();
+                params.put("fields", fields);
+                params.put("weights", weights);
+                return search().addAggregation(org.elasticsearch.search.aggregations.AggregationBuilders.scriptedMetric("avg")
+                        .params(params)
+                        .initScript(new Script(InitScriptFactory.SCRIPT_NAME, ScriptService.ScriptType.INLINE, "native", null))
+                        .mapScript(new Script(MapScriptFactory.SCRIPT_NAME, ScriptService.ScriptType.INLINE, "native", null))
+                        .combineScript(new Script(CombineScriptFactory.SCRIPT_NAME, ScriptService.ScriptType.INLINE, "native", null))
+                        .reduceScript(new Script(ReduceScriptFactory.SCRIPT_NAME, ScriptService.ScriptType.INLINE, "native", null)));
+            }
+
+            @Override
+            Object result(SearchResponse response) {
+                return response.getAggregations().<ScriptedMetric>get("avg").aggregation();
+            }
+        });
+        scenarios.add(new Scenario("weighted_avg_scripted_metric", "groovy") {
+            @Override
+            SearchRequestBuilder request() {
+                Map<String, Object> params = new HashMap<String, Object>();
+                params.put("_fields", fields);
+                params.put("_weights", weights);
+                params.put("_agg", new HashMap<String, Object>());
+                return search().addAggregation(org.elasticsearch.search.aggregations.AggregationBuilders.scriptedMetric("avg")
+                        .params(params)
+                        .initScript(new Script(GROOVY_INIT, ScriptService.ScriptType.INLINE, "groovy", null))
+                        .mapScript(new Script(GROOVY_MAP, ScriptService.ScriptType.INLINE, "groovy", null))
+                        .reduceScript(new Script(GROOVY_REDUCE, ScriptService.ScriptType.INLINE, "groovy", null)));
+            }
+
+            @Override
+            Object result(SearchResponse response) {
+                return response.getAggregations().<ScriptedMetric>get("avg").aggregation();
+            }
+        });
+        scenarios.add(new Scenario("weighted_avg_range", "native") {
+            @Override
+            SearchRequestBuilder request() {
+                return search().setQuery(QueryBuilders.scriptQuery(
+                        new Script(WeightedAvgRangeScript.SCRIPT_NAME, ScriptService.ScriptType.INLINE, "native", rangeParams(fields, weights))));
+            }
+
+            @Override
+            Object result(SearchResponse response) {
+                return response.getHits().getTotalHits();
+            }
+        });
+        scenarios.add(new Scenario("weighted_avg_range", "groovy") {
+            @Override
+            SearchRequestBuilder request() {
+                return search().setQuery(QueryBuilders.scriptQuery(
+                        new Script(GROOVY_RANGE, ScriptService.ScriptType.INLINE, "groovy", rangeParams(fields, weights))));
+            }
+
+            @Override
+            Object result(SearchResponse response) {
+                return response.getHits().getTotalHits();
+            }
+        });
+        scenarios.add(new Scenario("weighted_avg_score", "native") {
+            @Override
+            SearchRequestBuilder request() {
+                return search().setSize(100).addSort(SortBuilders.scriptSort(
+                        new Script(WeightedAvgScoreScript.SCRIPT_NAME, ScriptService.ScriptType.INLINE, "native", scoreParams(fields, weights)),
+                        "number").order(SortOrder.DESC));
+            }
+
+            @Override
+            Object result(SearchResponse response) {
+                return response.getHits().getAt(0).getSortValues()[0];
+            }
+        });
+        scenarios.add(new Scenario("weighted_avg_score", "groovy") {
+            @Override
+            SearchRequestBuilder request() {
+                return search().setSize(100).addSort(SortBuilders.scriptSort(
+                        new Script(GROOVY_SCORE, ScriptService.ScriptType.INLINE, "groovy", scoreParams(fields, weights)),
+                        "number").order(SortOrder.DESC));
+            }
+
+            @Override
+            Object result(SearchResponse response) {
+                return response.getHits().getAt(0).getSortValues()[0];
+            }
+        });
+
+        final Map<String, Object> nativeResults = new HashMap<String, Object>();
+        for (Scenario scenario : scenarios) {
+            scenario.run();
+            logger.info("[{}][{}] {} requests/s, p50 {} ms, p99 {} ms", scenario.name, scenario.lang, scenario.throughput(),
+                    scenario.percentile(0.5), scenario.percentile(0.99));
+            if (scenario.lang.equals("native")) {
+                nativeResults.put(scenario.name, scenario.result);
+            } else if (nativeResults.containsKey(scenario.name)) {
+                // the native scripts must compute the same values as the scripts they replace
+                Object expected = nativeResults.get(scenario.name);
+                if (expected instanceof Number && scenario.result instanceof Number) {
+                    assertThat(scenario.name, ((Number) scenario.result).doubleValue(), closeTo(((Number) expected).doubleValue(), 1e-6));
+                } else {
+                    assertThat(scenario.name, scenario.result, equalTo(expected));
+                }
+            }
+        }
+        writeReport(scenarios, loadMillis);
+    }
+
+    private void indexTenders(List<String> fields) throws Exception {
+        XContentBuilder mapping = XContentFactory.jsonBuilder().startObject().startObject("tender").startObject("properties");
+        mapping.startObject("buyer").field("type", "string").field("index", "not_analyzed").endObject();
+        for (String field : fields) {
+            mapping.startObject(field).field("type", "double").endObject();
+        }
+        mapping.endObject().endObject().endObject();
+        assertAcked(prepareCreate("tenders")
+                .setSettings(Settings.builder().put("index.number_of_shards", SHARDS).put("index.number_of_replicas", 0)
+                        .put("index.refresh_interval", -1))
+                .addMapping("tender", mapping));
+
+        final Random random = new Random(randomLong());
+        BulkRequestBuilder bulk = client().prepareBulk();
+        for (int doc = 0; doc < DOCS; doc++) {
+            XContentBuilder source = XContentFactory.jsonBuilder().startObject();
+            source.field("buyer", "buyer" + random.nextInt(10000));
+            for (String field : fields) {
+                if (random.nextDouble() >= MISSING) {
+                    // indicator values are scores between 0 and 100 in steps of 0.5
+                    source.field(field, random.nextInt(201) / 2.0);
+                }
+            }
+            bulk.add(client().prepareIndex("tenders", "tender", String.valueOf(doc)).setSource(source.endObject()));
+            if (bulk.numberOfActions() == BULK_SIZE || doc == DOCS - 1) {
+                BulkResponse response = bulk.get();
+                assertFalse(response.buildFailureMessage(), response.hasFailures());
+                bulk = client().prepareBulk();
+            }
+        }
+        client().admin().indices().prepareRefresh("tenders").get();
+    }
+
+    private static Map<String, Object> rangeParams(List<String> fields, List<Double> weights) {
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("fields", fields);
+        params.put("weights", weights);
+        params.put("gte", GTE);
+        params.put("lte", LTE);
+        return params;
+    }
+
+    private static Map<String, Object> scoreParams(List<String> fields, List<Double> weights) {
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("fields", fields);
+        params.put("weights", weights);
+        return params;
+    }
+
+    private void writeReport(List<Scenario> scenarios, long loadMillis) throws Exception {
+        XContentBuilder report = XContentFactory.jsonBuilder().prettyPrint().startObject();
+        report.field("elasticsearch", Version.CURRENT.toString());
+        report.startObject("config")
+                .field("docs", DOCS)
+                .field("shards", SHARDS)
+                .field("fields", FIELDS)
+                .field("missing", MISSING)
+                .field("iterations", ITERATIONS)
+                .field("clients", CLIENTS)
+                .field("load_millis", loadMillis)
+                .endObject();
+        report.startArray("scenarios");
+        for (Scenario scenario : scenarios) {
+            scenario.toXContent(report);
+        }
+        report.endArray().endObject();
+
+        String path = System.getProperty("tests.load.report");
+        Path file = path == null ? PathUtils.get(System.getProperty("java.io.tmpdir")).resolve("opentender-load-report.json")
+                : PathUtils.get(path);
+        Files.write(file, report.string().getBytes(StandardCharsets.UTF_8));
+        logger.info("load report written to [{}]", file);
+    }
+
+    /**
+     * A request that is measured from several concurrent clients.
+     */
+    private abstract class Scenario {
+
+        final String name;
+        final String lang;
+        Object result;
+        long[] latencies;
+        long wallNanos;
+
+        Scenario(String name, String lang) {
+            this.name = name;
+            this.lang = lang;
+        }
+
+        abstract SearchRequestBuilder request();
+
+        abstract Object result(SearchResponse response);
+
+        SearchRequestBuilder search() {
+            // size 0 requests would otherwise be answered by the shard request cache
+            return client().prepareSearch("tenders").setSize(0).setRequestCache(false);
+        }
+
+        void run() throws Exception {
+            // warm up the scripts, the field data and the JIT
+            for (int i = 0; i < Math.max(1, ITERATIONS / 10); i++) {
+                SearchResponse response = request().get();
+                assertNoFailures(response);
+                result = result(response);
+            }
+            latencies = new long[ITERATIONS];
+            final int perClient = (ITERATIONS + CLIENTS - 1) / CLIENTS;
+            final CountDownLatch start = new CountDownLatch(1);
+            final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+            final Thread[] clients = new Thread[CLIENTS];
+            for (int c = 0; c < CLIENTS; c++) {
+                final int from = c * perClient;
+                final int to = Math.min(ITERATIONS, from + perClient);
+                clients[c] = new Thread("load-client-" + c) {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                            for (int i = from; i < to; i++) {
+                                final long requestStart = System.nanoTime();
+                                SearchResponse response = request().get();
+                                latencies[i] = System.nanoTime() - requestStart;
+                                assertNoFailures(response);
+                            }
+                        } catch (Throwable t) {
+                            failure.compareAndSet(null, t);
+                        }
+                    }
+                };
+                clients[c].start();
+            }
+            final long wallStart = System.nanoTime();
+            start.countDown();
+            for (Thread client : clients) {
+                client.join();
+            }
+            wallNanos = System.nanoTime() - wallStart;
+            if (failure.get() != null) {
+                throw new AssertionError("scenario [" + name + "][" + lang + "] failed", failure.get());
+            }
+            Arrays.sort(latencies);
+        }
+
+        double throughput() {
+            return Math.round(latencies.length * 10e9 / wallNanos) / 10.0;
+        }
+
+        /**
+         * @return the latency percentile in milliseconds (nearest rank)
+         */
+        double percentile(double quantile) {
+            int rank = (int) Math.ceil(quantile * latencies.length) - 1;
+            return millis(latencies[Math.max(0, Math.min(latencies.length - 1, rank))]);
+        }
+
+        private double millis(long nanos) {
+            return Math.round(nanos / 1e4) / 100.0;
+        }
+
+        void toXContent(XContentBuilder builder) throws Exception {
+            builder.startObject();
+            builder.field("name", name);
+            builder.field("lang", lang);
+            if (latencies != null) {
+                long total = 0;
+                for (long latency : latencies) {
+                    total += latency;
+                }
+                Map<String, Object> latency = new LinkedHashMap<String, Object>();
+                latency.put("mean", millis(total / latencies.length));
+                latency.put("p50", percentile(0.5));
+                latency.put("p90", percentile(0.9));
+                latency.put("p99", percentile(0.99));
+                latency.put("max", millis(latencies[latencies.length - 1]));
+                builder.field("requests", latencies.length);
+                builder.field("throughput", throughput());
+                builder.field("latency_millis", latency);
+                builder.field("result", result);
+            }
+            builder.endObject();
+        }
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.mapper;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.opentender.nativescript.aggregation.weightedavg.WeightedAvg;
+import org.elasticsearch.opentender.nativescript.aggregation.weightedavg.WeightedAvgBuilder;
+import org.elasticsearch.opentender.nativescript.query.WeightedAvgRangeQueryBuilder;
+import org.elasticsearch.opentender.nativescript.script.AbstractSearchScriptTestCase;
+import org.elasticsearch.opentender.nativescript.script.WeightedAvgScoreScript;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.search.sort.SortBuilders;
+import org.elasticsearch.search.sort.SortOrder;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.elasticsearch.index.query.QueryBuilders.matchAllQuery;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertAcked;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertHitCount;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertNoFailures;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertOrderedSearchHits;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertSearchHits;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ * Tests the indicator_vector field with the weighted average aggregation, query and scripts.
+ */
+public class IndicatorVectorFieldMapperTests extends AbstractSearchScriptTestCase {
+
+    private void createTransactions(String quantization) throws Exception {
+        XContentBuilder vector = XContentFactory.jsonBuilder().startObject().startObject("stock")
+                .startObject("properties")
+                .startObject("type").field("type", "string").field("index", "not_analyzed").endObject()
+                .startObject("indicators").field("type", "indicator_vector").field("indicators", "value1", "value2");
+        if (quantization != null) {
+            vector.field("quantization", quantization);
+        }
+        String stockMapping = vector.endObject().endObject().endObject().endObject().string();
+
+        assertAcked(prepareCreate("transactions")
+                .addMapping("stock", stockMapping));
+    }
+
+    private void indexTransactions() throws Exception {
+        createTransactions(null);
+
+        List<IndexRequestBuilder> indexBuilders = new ArrayList<IndexRequestBuilder>();
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "1").setSource("type", "sale",
+                "indicators", indicators(40, 80)));
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "2").setSource("type", "cost",
+                "indicators", indicators(10, null)));
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "3").setSource("type", "cost",
+                "indicators", indicators(30, 100)));
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "4").setSource("type", "sale",
+                "indicators", indicators(130, 50)));
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "5").setSource("type", "sale"));
+        indexRandom(true, indexBuilders);
+    }
+
+    private static Map<String, Object> indicators(Number value1, Number value2) {
+        Map<String, Object> indicators = new HashMap<String, Object>();
+        indicators.put("value1", value1);
+        indicators.put("value2", value2);
+        return indicators;
+    }
+
+    @Test
+    public void testAggregation() throws Exception {
+        indexTransactions();
+
+        SearchResponse searchResponse = client().prepareSearch("transactions")
+                .setQuery(matchAllQuery())
+                .setSize(0)
+                .addAggregation(new WeightedAvgBuilder("profit").fields("indicators.value1", "indicators.value2"))
+                .execute().actionGet();
+
+        assertNoFailures(searchResponse);
+        WeightedAvg avg = searchResponse.getAggregations().get("profit");
+        // (60 + 10 + 65 + 90) / 4, the document without indicators is ignored
+        assertThat(avg.getValue(), equalTo(56.25));
+        assertThat(avg.getCount(), equalTo(4L));
+    }
+
+    @Test
+    public void testRangeQuery() throws Exception {
+        indexTransactions();
+
+        SearchResponse searchResponse = client().prepareSearch("transactions")
+                .setQuery(new WeightedAvgRangeQueryBuilder().fields("indicators.value1", "indicators.value2", "indicators.unknown")
+                        .weights(0.5, 1.0, 1.0).gte(65).lte(100))
+                .execute().actionGet();
+
+        assertNoFailures(searchResponse);
+        assertSearchHits(searchResponse, "1", "3", "4");
+    }
+
+    @Test
+    public void testScriptSort() throws Exception {
+        indexTransactions();
+
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("fields", Arrays.asList("indicators.value1", "indicators.value2"));
+        params.put("weights", Arrays.asList(1.0, 1.0));
+        params.put("missing", "_max");
+        SearchResponse searchResponse = client().prepareSearch("transactions")
+                .setQuery(matchAllQuery())
+                .addSort(SortBuilders.scriptSort(new Script(WeightedAvgScoreScript.SCRIPT_NAME, ScriptService.ScriptType.INLINE,
+                        "native", params), "number").order(SortOrder.ASC))
+                .execute().actionGet();
+
+        assertNoFailures(searchResponse);
+        assertOrderedSearchHits(searchResponse, "2", "1", "3", "4", "5");
+        assertThat((Double) searchResponse.getHits().getAt(2).getSortValues()[0], equalTo(65.0));
+    }
+
+    @Test
+    public void testFloatQuantization() throws Exception {
+        createTransactions("float");
+        indexRandom(true, client().prepareIndex("transactions", "stock", "1").setSource("indicators", indicators(0.1, 0.3)));
+
+        SearchResponse searchResponse = client().prepareSearch("transactions")
+                .setSize(0)
+                .addAggregation(new WeightedAvgBuilder("value1").fields("indicators.value1"))
+                .addAggregation(new WeightedAvgBuilder("value2").fields("indicators.value2"))
+                .execute().actionGet();
+
+        assertNoFailures(searchResponse);
+        assertThat(((WeightedAvg) searchResponse.getAggregations().get("value1")).getValue(), equalTo((double) 0.1f));
+        assertThat(((WeightedAvg) searchResponse.getAggregations().get("value2")).getValue(), closeTo(0.3, 0.0000001));
+    }
+
+    @Test
+    public void testAppendIndicators() throws Exception {
+        indexTransactions();
+
+        assertAcked(client().admin().indices().preparePutMapping("transactions").setType("stock")
+                .setSource(XContentFactory.jsonBuilder().startObject().startObject("stock").startObject("properties")
+                        .startObject("indicators").field("type", "indicator_vector").field("indicators", "value1", "value2", "value3")
+                        .endObject().endObject().endObject().endObject()));
+        Map<String, Object> indicators = indicators(20, null);
+        indicators.put("value3", 200);
+        indexRandom(true, false, client().prepareIndex("transactions", "stock", "6").setSource("indicators", indicators));
+
+        SearchResponse searchResponse = client().prepareSearch("transactions")
+                .setQuery(new WeightedAvgRangeQueryBuilder().fields("indicators.value1", "indicators.value3").gte(105).lte(115))
+                .execute().actionGet();
+
+        assertNoFailures(searchResponse);
+        // the documents indexed before only have the first two indicators
+        assertHitCount(searchResponse, 1);
+        assertSearchHits(searchResponse, "6");
+
+        try {
+            client().admin().indices().preparePutMapping("transactions").setType("stock")
+                    .setSource(XContentFactory.jsonBuilder().startObject().startObject("stock").startObject("properties")
+                            .startObject("indicators").field("type", "indicator_vector").field("indicators", "value2", "value1")
+                            .endObject().endObject().endObject().endObject()).get();
+            fail("reordering the indicators must fail");
+        } catch (Exception e) {
+            assertThat(ExceptionsHelper.detailedMessage(e), containsString("can only append [indicators]"));
+        }
+    }
+
+    @Test
+    public void testInvalidDocuments() throws Exception {
+        createTransactions(null);
+
+        try {
+            client().prepareIndex("transactions", "stock", "1").setSource("indicators", indicators(1, 2)).get();
+            Map<String, Object> unknown = indicators(1, 2);
+            unknown.put("value9", 3);
+            client().prepareIndex("transactions", "stock", "2").setSource("indicators", unknown).get();
+            fail("unknown indicators must be rejected");
+        } catch (Exception e) {
+            assertThat(ExceptionsHelper.detailedMessage(e), containsString("has no indicator [value9]"));
+        }
+        try {
+            client().prepareIndex("transactions", "stock", "3").setSource("indicators", 5).get();
+            fail("values that are not objects must be rejected");
+        } catch (Exception e) {
+            assertThat(ExceptionsHelper.detailedMessage(e), containsString("expects an object of indicator values"));
+        }
+    }
+
+    @Test
+    public void testArrayOfVectors() throws Exception {
+        createTransactions(null);
+
+        try {
+            client().prepareIndex("transactions", "stock", "1")
+                    .setSource("indicators", Arrays.asList(indicators(1, 2), indicators(3, 4))).get();
+            fail("arrays of vectors must be rejected");
+        } catch (Exception e) {
+            assertThat(ExceptionsHelper.detailedMessage(e), containsString("expects a single object of indicator values, got an array"));
+        }
+        try {
+            client().prepareIndex("transactions", "stock", "2")
+                    .setSource("indicators", Arrays.asList(indicators(1, 2))).get();
+            fail("arrays of a single vector must be rejected");
+        } catch (Exception e) {
+            assertThat(ExceptionsHelper.detailedMessage(e), containsString("expects a single object of indicator values, got an array"));
+        }
+        client().prepareIndex("transactions", "stock", "3").setSource("indicators", indicators(1, 2)).setRefresh(true).get();
+        assertHitCount(client().prepareSearch("transactions").setQuery(matchAllQuery()).get(), 1);
+    }
+}
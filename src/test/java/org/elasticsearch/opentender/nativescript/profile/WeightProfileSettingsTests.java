@@ -0,0 +1,107 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.profile;
+
+import org.elasticsearch.action.admin.cluster.settings.ClusterUpdateSettingsResponse;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.opentender.nativescript.script.AbstractSearchScriptTestCase;
+import org.elasticsearch.test.ESIntegTestCase.ClusterScope;
+import org.elasticsearch.test.ESIntegTestCase.Scope;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+
+/**
+ * Tests for the weight profiles of the dynamic cluster settings, the transient settings
+ * cannot be removed again so every test gets a new cluster
+ */
+@ClusterScope(scope = Scope.TEST, numDataNodes = 1)
+public class WeightProfileSettingsTests extends AbstractSearchScriptTestCase {
+
+    private static final String PROFILE = WeightProfileService.WEIGHT_PROFILES_SETTING + ".dynamic";
+
+    private ClusterUpdateSettingsResponse updateSettings(Settings settings) {
+        return client().admin().cluster().prepareUpdateSettings().setTransientSettings(settings).get();
+    }
+
+    private void assertProfile(final String name, final String[] fields, final double[] weights) throws Exception {
+        assertBusy(new Runnable() {
+            @Override
+            public void run() {
+                for (WeightProfileService profileService : internalCluster().getInstances(WeightProfileService.class)) {
+                    WeightProfile profile = profileService.getProfile(name);
+                    if (fields == null) {
+                        assertThat(profile, nullValue());
+                    } else {
+                        assertThat(profile.fields(), equalTo(fields));
+                        assertThat(profile.weights(), equalTo(weights));
+                    }
+                }
+            }
+        });
+    }
+
+    @Test
+    public void testDynamicProfileUpdates() throws Exception {
+        updateSettings(Settings.builder()
+                .putArray(PROFILE + ".fields", "value1", "value2")
+                .putArray(PROFILE + ".weights", "0.5", "1.0")
+                .build());
+        assertProfile("dynamic", new String[]{"value1", "value2"}, new double[]{0.5, 1.0});
+
+        updateSettings(Settings.builder()
+                .putArray(PROFILE + ".weights", "2.0", "1.0")
+                .build());
+        assertProfile("dynamic", new String[]{"value1", "value2"}, new double[]{2.0, 1.0});
+
+        updateSettings(Settings.builder()
+                .put(PROFILE + ".fields", "")
+                .build());
+        assertProfile("dynamic", null, null);
+
+        // the comma separated values replace the array entries that are still in the cluster settings
+        updateSettings(Settings.builder()
+                .put(PROFILE + ".fields", "value2,value3,value1")
+                .put(PROFILE + ".weights", "1, 3, 0.25")
+                .build());
+        assertProfile("dynamic", new String[]{"value2", "value3", "value1"}, new double[]{1.0, 3.0, 0.25});
+    }
+
+    @Test
+    public void testInvalidProfileRejected() throws Exception {
+        ClusterUpdateSettingsResponse response = updateSettings(Settings.builder()
+                .putArray(PROFILE + ".fields", "value1", "value2")
+                .putArray(PROFILE + ".weights", "heavy", "1.0")
+                .put(PROFILE + ".weight", "1.0")
+                .build());
+        assertThat(response.getTransientSettings().get(PROFILE + ".weights.0"), nullValue());
+        assertThat(response.getTransientSettings().get(PROFILE + ".weight"), nullValue());
+        assertThat(response.getTransientSettings().get(PROFILE + ".weights.1"), equalTo("1.0"));
+        // one weight for two fields
+        assertProfile("dynamic", null, null);
+
+        response = updateSettings(Settings.builder()
+                .put(PROFILE + ".weights", "0.5,NaN")
+                .build());
+        assertThat(response.getTransientSettings().get(PROFILE + ".weights"), nullValue());
+        assertProfile("dynamic", null, null);
+
+        updateSettings(Settings.builder()
+                .put(PROFILE + ".weights", "0.5,2")
+                .build());
+        assertProfile("dynamic", new String[]{"value1", "value2"}, new double[]{0.5, 2.0});
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.profile;
+
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.search.SearchPhaseExecutionException;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.breaker.NoopCircuitBreaker;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.indices.breaker.CircuitBreakerService;
+import org.elasticsearch.opentender.nativescript.aggregation.weightedavg.WeightedAvg;
+import org.elasticsearch.opentender.nativescript.aggregation.weightedavg.WeightedAvgBuilder;
+import org.elasticsearch.opentender.nativescript.query.WeightedAvgRangeQueryBuilder;
+import org.elasticsearch.opentender.nativescript.script.AbstractSearchScriptTestCase;
+import org.elasticsearch.opentender.nativescript.script.WeightedAvgRangeScript;
+import org.elasticsearch.opentender.nativescript.script.weightedavg.ScoreColumnCache;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.script.ScriptService;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.elasticsearch.search.aggregations.AggregationBuilders.scriptedMetric;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertAcked;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertHitCount;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertNoFailures;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertSearchHits;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+
+/**
+ * Tests for the named weight profiles
+ */
+public class WeightProfileTests extends AbstractSearchScriptTestCase {
+
+    @Override
+    protected Settings nodeSettings(int nodeOrdinal) {
+        return Settings.builder()
+                .put(super.nodeSettings(nodeOrdinal))
+                .putArray(WeightProfileService.WEIGHT_PROFILES_SETTING + ".test.fields", "value1", "value2")
+                .putArray(WeightProfileService.WEIGHT_PROFILES_SETTING + ".test.weights", "0.5", "1.0")
+                .putArray(WeightProfileService.WEIGHT_PROFILES_SETTING + ".second.fields", "value2")
+                .putArray(WeightProfileService.WEIGHT_PROFILES_SETTING + ".second.weights", "1.0")
+                .putArray(WeightProfileService.WEIGHT_PROFILES_SETTING + ".invalid.fields", "value1", "value2")
+                .putArray(WeightProfileService.WEIGHT_PROFILES_SETTING + ".invalid.weights", "0.5")
+                .build();
+    }
+
+    private void indexTransactions() throws Exception {
+        String stockMapping = XContentFactory.jsonBuilder().startObject().startObject("stock")
+                .startObject("properties")
+                .startObject("type").field("type", "string").field("index", "not_analyzed").endObject()
+                .startObject("value1").field("type", "double").endObject()
+                .startObject("value2").field("type", "double").endObject()
+                .endObject().endObject().endObject()
+                .string();
+
+        assertAcked(prepareCreate("transactions")
+                .addMapping("stock", stockMapping));
+
+        List<IndexRequestBuilder> indexBuilders = new ArrayList<IndexRequestBuilder>();
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "1").setSource("type", "sale", "value1", 40, "value2", 80)); // 66.66666666666667
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "2").setSource("type", "cost", "value1", 10));  // 10
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "3").setSource("type", "cost", "value1", 30, "value2", 100)); // 76.66666666666667
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "4").setSource("type", "sale", "value1", 130, "value2", 50)); // 76.66666666666667
+        indexRandom(true, indexBuilders);
+    }
+
+    @Test
+    public void testProfileRegistry() throws Exception {
+        WeightProfileService profileService = internalCluster().getInstance(WeightProfileService.class);
+
+        WeightProfile profile = profileService.getProfile("test");
+        assertThat(profile.fields(), equalTo(new String[]{"value1", "value2"}));
+        assertThat(profile.weights(), equalTo(new double[]{0.5, 1.0}));
+        assertThat(profileService.getProfile("invalid"), equalTo(null));
+    }
+
+    @Test
+    public void testWeightedAvgRangeQueryProfile() throws Exception {
+        indexTransactions();
+
+        SearchResponse searchResponse = client().prepareSearch("transactions")
+                .setQuery(QueryBuilders.boolQuery().filter(
+                        new WeightedAvgRangeQueryBuilder().profile("test").gte(65).lte(100)))
+                .execute().actionGet();
+
+        assertNoFailures(searchResponse);
+        assertSearchHits(searchResponse, "1", "3", "4");
+    }
+
+    @Test
+    public void testWeightedAvgRangeScriptProfile() throws Exception {
+        indexTransactions();
+
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("profile", "test");
+        params.put("lte", 100);
+        params.put("gte", 65);
+
+        SearchResponse searchResponse = client().prepareSearch("transactions")
+                .setQuery(QueryBuilders.boolQuery().filter(
+                        QueryBuilders.scriptQuery(new Script(WeightedAvgRangeScript.SCRIPT_NAME, ScriptService.ScriptType.INLINE, "native", params))))
+                .setSize(0)
+                .execute().actionGet();
+
+        assertNoFailures(searchResponse);
+        assertHitCount(searchResponse, 3);
+    }
+
+    @Test
+    public void testWeightedAvgAggregationProfile() throws Exception {
+        indexTransactions();
+
+        SearchResponse searchResponse = client().prepareSearch("transactions")
+                .setSize(0)
+                .addAggregation(new WeightedAvgBuilder("profit").profile("test"))
+                .execute().actionGet();
+
+        assertNoFailures(searchResponse);
+        WeightedAvg profit = searchResponse.getAggregations().get("profit");
+        assertThat(profit.getValue(), closeTo((66.66666666666667 + 10 + 76.66666666666667 + 76.66666666666667) / 4, 0.000001));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testScriptedMetricMultipleProfiles() throws Exception {
+        indexTransactions();
+
+        for (boolean compact : new boolean[]{false, true}) {
+            Map<String, Object> params = new HashMap<String, Object>();
+            params.put("profiles", Arrays.asList("test", "second"));
+            params.put("compact", compact);
+
+            SearchResponse searchResponse = client().prepareSearch("transactions")
+                    .setSize(0)
+                    .addAggregation(scriptedMetric("profit")
+                            .params(params)
+                            .initScript(new Script("weighted_avg_init", ScriptService.ScriptType.INLINE, "native", null))
+                            .mapScript(new Script("weighted_avg_map", ScriptService.ScriptType.INLINE, "native", null))
+                            .combineScript(new Script("weighted_avg_combine", ScriptService.ScriptType.INLINE, "native", null))
+                            .reduceScript(new Script("weighted_avg_reduce", ScriptService.ScriptType.INLINE, "native", null)))
+                    .execute().actionGet();
+
+            assertNoFailures(searchResponse);
+            Map<String, Double> averages = (Map<String, Double>) searchResponse.getAggregations().get("profit").getProperty("value");
+            assertThat(averages.size(), equalTo(2));
+            assertThat(averages.get("test"), closeTo((66.66666666666667 + 10 + 76.66666666666667 + 76.66666666666667) / 4, 0.000001));
+            assertThat(averages.get("second"), closeTo((80.0 + 100 + 50) / 3, 0.000001));
+        }
+    }
+
+    @Test
+    public void testUnknownProfile() throws Exception {
+        indexTransactions();
+
+        try {
+            client().prepareSearch("transactions")
+                    .setQuery(QueryBuilders.boolQuery().filter(
+                            new WeightedAvgRangeQueryBuilder().profile("unknown").gte(65)))
+                    .execute().actionGet();
+            fail("expected unknown weight profile to fail the search");
+        } catch (SearchPhaseExecutionException e) {
+            assertThat(e.toString().contains("unknown weight profile [unknown]"), equalTo(true));
+        }
+    }
+
+    @Test
+    public void testScoreColumnCache() throws Exception {
+        indexTransactions();
+
+        // scripts only see the doc lookup of a segment and evaluate the documents
+        long[] stats = columnCacheStats();
+        assertSearchHits(searchRangeScript("test", 65, 100), "1", "3", "4");
+        assertThat(columnCacheStats(), equalTo(stats));
+
+        SearchResponse searchResponse = client().prepareSearch("transactions")
+                .setQuery(QueryBuilders.boolQuery().filter(
+                        new WeightedAvgRangeQueryBuilder().profile("test").gte(65).lte(100)))
+                .execute().actionGet();
+        assertNoFailures(searchResponse);
+        assertSearchHits(searchResponse, "1", "3", "4");
+        // the first request of the profile only evaluates the collected documents
+        long[] queryStats = columnCacheStats();
+        assertThat(queryStats[1], greaterThan(stats[1]));
+        assertThat(queryStats[2], equalTo(stats[2]));
+
+        // the aggregation requests the same profile again and builds the columns
+        assertThat(searchWeightedAvg("test"), closeTo(57.5, 0.000001));
+        long[] aggStats = columnCacheStats();
+        assertThat(aggStats[1], greaterThan(queryStats[1]));
+        assertThat(aggStats[2], greaterThan(queryStats[2]));
+
+        // later requests read the cached columns, other bounds keep the query cache out of the way
+        searchResponse = client().prepareSearch("transactions")
+                .setQuery(QueryBuilders.boolQuery().filter(
+                        new WeightedAvgRangeQueryBuilder().profile("test").gte(65).lte(200)))
+                .execute().actionGet();
+        assertNoFailures(searchResponse);
+        assertSearchHits(searchResponse, "1", "3", "4");
+        assertThat(columnCacheStats()[0], greaterThan(aggStats[0]));
+
+        // the cached columns are accounted to the fielddata circuit breaker
+        long used = 0;
+        for (CircuitBreakerService breakerService : internalCluster().getDataNodeInstances(CircuitBreakerService.class)) {
+            CircuitBreaker breaker = breakerService.getBreaker(CircuitBreaker.FIELDDATA);
+            if (breaker instanceof NoopCircuitBreaker) {
+                // the test cluster randomly disables the breakers
+                return;
+            }
+            used += breaker.getUsed();
+        }
+        assertThat(used, greaterThanOrEqualTo(columnCacheStats()[2]));
+    }
+
+    private double searchWeightedAvg(String profile) {
+        SearchResponse searchResponse = client().prepareSearch("transactions")
+                .setSize(0)
+                .setRequestCache(false)
+                .addAggregation(new WeightedAvgBuilder("score").profile(profile))
+                .execute().actionGet();
+        assertNoFailures(searchResponse);
+        WeightedAvg avg = searchResponse.getAggregations().get("score");
+        return avg.getValue();
+    }
+
+    /**
+     * @return the hits, misses and size of the score column caches of all data nodes
+     */
+    private long[] columnCacheStats() {
+        long[] stats = new long[3];
+        for (ScoreColumnCache cache : internalCluster().getDataNodeInstances(ScoreColumnCache.class)) {
+            stats[0] += cache.hits();
+            stats[1] += cache.misses();
+            stats[2] += cache.sizeInBytes();
+        }
+        return stats;
+    }
+
+    private SearchResponse searchRangeScript(String profile, double gte, double lte) {
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("profile", profile);
+        params.put("gte", gte);
+        params.put("lte", lte);
+        SearchResponse searchResponse = client().prepareSearch("transactions")
+                .setQuery(QueryBuilders.boolQuery().filter(
+                        QueryBuilders.scriptQuery(new Script(WeightedAvgRangeScript.SCRIPT_NAME, ScriptService.ScriptType.INLINE, "native",
+                                params))))
+                .execute().actionGet();
+        assertNoFailures(searchResponse);
+        return searchResponse;
+    }
+}
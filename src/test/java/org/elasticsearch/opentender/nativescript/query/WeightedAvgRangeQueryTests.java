@@ -0,0 +1,309 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.query;
+
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.cache.IndexCacheModule;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.opentender.nativescript.script.AbstractSearchScriptTestCase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertAcked;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertHitCount;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertNoFailures;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertSearchHits;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+
+/**
+ * Tests for the weighted_avg_range query
+ */
+public class WeightedAvgRangeQueryTests extends AbstractSearchScriptTestCase {
+
+    private void indexTransactions() throws Exception {
+        indexTransactions(indexSettings());
+    }
+
+    private void indexTransactions(Settings settings) throws Exception {
+        String stockMapping = XContentFactory.jsonBuilder().startObject().startObject("stock")
+                .startObject("properties")
+                .startObject("type").field("type", "string").field("index", "not_analyzed").endObject()
+                .startObject("value1").field("type", "double").endObject()
+                .startObject("value2").field("type", "long").endObject()
+                .endObject().endObject().endObject()
+                .string();
+
+        assertAcked(prepareCreate("transactions")
+                .setSettings(settings)
+                .addMapping("stock", stockMapping));
+
+        List<IndexRequestBuilder> indexBuilders = new ArrayList<IndexRequestBuilder>();
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "1").setSource("type", "sale", "value1", 40, "value2", 80)); // 66.66666666666667
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "2").setSource("type", "cost", "value1", 10));  // 10
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "3").setSource("type", "cost", "value1", 30, "value2", 100)); // 76.66666666666667
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "4").setSource("type", "sale", "value1", 130, "value2", 50)); // 76.66666666666667
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "5").setSource("type", "sale"));
+        indexRandom(true, indexBuilders);
+    }
+
+    @Test
+    public void testWeightedAvgRange() throws Exception {
+        indexTransactions();
+
+        SearchResponse searchResponse = client().prepareSearch("transactions")
+                .setQuery(QueryBuilders.boolQuery().filter(
+                        new WeightedAvgRangeQueryBuilder().fields("value1", "value2").weights(0.5, 1.0).gte(65).lte(100)))
+                .execute().actionGet();
+
+        assertNoFailures(searchResponse);
+        assertSearchHits(searchResponse, "1", "3", "4");
+    }
+
+    @Test
+    public void testWeightedAvgRangeWithOtherFilter() throws Exception {
+        indexTransactions();
+
+        SearchResponse searchResponse = client().prepareSearch("transactions")
+                .setQuery(QueryBuilders.boolQuery()
+                        .filter(QueryBuilders.termQuery("type", "sale"))
+                        .filter(new WeightedAvgRangeQueryBuilder().fields("value1", "value2").weights(0.5, 1.0).gte(65).lte(70)))
+                .execute().actionGet();
+
+        assertNoFailures(searchResponse);
+        assertSearchHits(searchResponse, "1");
+    }
+
+    @Test
+    public void testWeightedAvgRangeOpenBound() throws Exception {
+        indexTransactions();
+
+        SearchResponse searchResponse = client().prepareSearch("transactions")
+                .setQuery(QueryBuilders.boolQuery().filter(
+                        new WeightedAvgRangeQueryBuilder().fields("value1", "value2").lte(60)))
+                .execute().actionGet();
+
+        assertNoFailures(searchResponse);
+        assertSearchHits(searchResponse, "1", "2");
+    }
+
+    @Test
+    public void testWeightedAvgRangeUnmappedFields() throws Exception {
+        indexTransactions();
+
+        SearchResponse searchResponse = client().prepareSearch("transactions")
+                .setQuery(QueryBuilders.boolQuery().filter(
+                        new WeightedAvgRangeQueryBuilder().fields("unknown1", "unknown2").gte(0)))
+                .execute().actionGet();
+
+        assertNoFailures(searchResponse);
+        assertHitCount(searchResponse, 0);
+    }
+
+    @Test
+    public void testWeightedAvgRangeSegmentBounds() throws Exception {
+        String stockMapping = XContentFactory.jsonBuilder().startObject().startObject("stock")
+                .startObject("properties")
+                .startObject("value1").field("type", "double").endObject()
+                .startObject("value2").field("type", "long").endObject()
+                .endObject().endObject().endObject()
+                .string();
+
+        assertAcked(prepareCreate("transactions")
+                .setSettings(Settings.builder().put("index.number_of_shards", 1).put("index.number_of_replicas", 0))
+                .addMapping("stock", stockMapping));
+
+        // segment completely inside the range
+        client().prepareIndex("transactions", "stock", "1").setSource("value1", 70, "value2", 80).get();
+        client().prepareIndex("transactions", "stock", "2").setSource("value1", 90).get();
+        refresh();
+        // segment completely outside the range
+        client().prepareIndex("transactions", "stock", "3").setSource("value1", 10, "value2", 20).get();
+        client().prepareIndex("transactions", "stock", "4").setSource("value2", 30).get();
+        refresh();
+        // segment straddling the range
+        client().prepareIndex("transactions", "stock", "5").setSource("value1", 40, "value2", 80).get();
+        client().prepareIndex("transactions", "stock", "6").setSource("value1", 100, "value2", 30).get();
+        client().prepareIndex("transactions", "stock", "7").setSource("value1", 60).get();
+        refresh();
+
+        SearchResponse searchResponse = client().prepareSearch("transactions")
+                .setQuery(QueryBuilders.boolQuery().filter(
+                        new WeightedAvgRangeQueryBuilder().fields("value1", "value2").gte(65).lte(90)))
+                .execute().actionGet();
+
+        assertNoFailures(searchResponse);
+        assertSearchHits(searchResponse, "1", "2", "6");
+
+        // negative weights disable the pruning, (70 * 2 - 80) / 1 = 60
+        searchResponse = client().prepareSearch("transactions")
+                .setQuery(QueryBuilders.boolQuery().filter(
+                        new WeightedAvgRangeQueryBuilder().fields("value1", "value2").weights(2, -1).gte(55).lte(65)))
+                .execute().actionGet();
+
+        assertNoFailures(searchResponse);
+        assertSearchHits(searchResponse, "1", "7");
+    }
+
+    @Test
+    public void testWeightedAvgRangeMultiValueMode() throws Exception {
+        assertAcked(prepareCreate("lots").addMapping("lot", XContentFactory.jsonBuilder().startObject().startObject("lot")
+                .startObject("properties")
+                .startObject("value1").field("type", "double").endObject()
+                .startObject("value2").field("type", "long").endObject()
+                .endObject().endObject().endObject()));
+        List<IndexRequestBuilder> indexBuilders = new ArrayList<IndexRequestBuilder>();
+        indexBuilders.add(client().prepareIndex("lots", "lot", "1").setSource("value1", new double[]{30, 40}));
+        indexBuilders.add(client().prepareIndex("lots", "lot", "2").setSource("value1", new double[]{10, 20}, "value2", 30));
+        indexRandom(true, indexBuilders);
+
+        // max: 40 and (20 + 30) / 2
+        SearchResponse searchResponse = client().prepareSearch("lots")
+                .setQuery(new WeightedAvgRangeQueryBuilder().fields("value1", "value2").multiValueMode("max").gte(25).lte(40))
+                .execute().actionGet();
+        assertNoFailures(searchResponse);
+        assertSearchHits(searchResponse, "1", "2");
+
+        // sum: 70 lies above all indexed values, the segment bounds must not skip it
+        searchResponse = client().prepareSearch("lots")
+                .setQuery(new WeightedAvgRangeQueryBuilder().fields("value1", "value2").multiValueMode("sum").gte(55))
+                .execute().actionGet();
+        assertNoFailures(searchResponse);
+        assertSearchHits(searchResponse, "1");
+
+        // first is the lowest value of the sorted doc values: 30 and (10 + 30) / 2
+        searchResponse = client().prepareSearch("lots")
+                .setQuery(new WeightedAvgRangeQueryBuilder().fields("value1", "value2").lte(20))
+                .execute().actionGet();
+        assertNoFailures(searchResponse);
+        assertSearchHits(searchResponse, "2");
+    }
+
+    @Test
+    public void testWeightedAvgRangeBlockExecution() throws Exception {
+        indexTransactions();
+        List<IndexRequestBuilder> indexBuilders = new ArrayList<IndexRequestBuilder>();
+        Set<String> expected = new HashSet<String>();
+        Set<String> expectedSales = new HashSet<String>();
+        for (int i = 0; i < 1000; i++) {
+            String id = "lot" + i;
+            String type = i % 3 == 0 ? "sale" : "cost";
+            if (i % 10 == 0) {
+                indexBuilders.add(client().prepareIndex("transactions", "stock", id).setSource("type", type));
+                continue;
+            }
+            double value1 = i % 100;
+            double value2 = (i * 7) % 100;
+            indexBuilders.add(client().prepareIndex("transactions", "stock", id).setSource("type", type, "value1", value1, "value2", value2));
+            double avg = (value1 + value2) / 2;
+            if (avg >= 30 && avg <= 60) {
+                expected.add(id);
+                if ("sale".equals(type)) {
+                    expectedSales.add(id);
+                }
+            }
+        }
+        indexRandom(true, indexBuilders);
+
+        for (String execution : new String[]{"two_phase", "block"}) {
+            SearchResponse searchResponse = client().prepareSearch("transactions")
+                    .setQuery(QueryBuilders.boolQuery()
+                            .filter(QueryBuilders.prefixQuery("_id", "lot"))
+                            .filter(new WeightedAvgRangeQueryBuilder().fields("value1", "value2").gte(30).lte(60)
+                                    .execution(execution).cache(false)))
+                    .setSize(1000)
+                    .execute().actionGet();
+            assertNoFailures(searchResponse);
+            assertSearchHits(searchResponse, expected.toArray(new String[expected.size()]));
+
+            searchResponse = client().prepareSearch("transactions")
+                    .setQuery(QueryBuilders.boolQuery()
+                            .filter(QueryBuilders.termQuery("type", "sale"))
+                            .filter(QueryBuilders.prefixQuery("_id", "lot"))
+                            .filter(new WeightedAvgRangeQueryBuilder().fields("value1", "value2").gte(30).lte(60)
+                                    .execution(execution).cache(false)))
+                    .setSize(1000)
+                    .execute().actionGet();
+            assertNoFailures(searchResponse);
+            assertSearchHits(searchResponse, expectedSales.toArray(new String[expectedSales.size()]));
+        }
+    }
+
+    @Test
+    public void testWeightedAvgRangeMatchSetCache() throws Exception {
+        // the query cache of the test cluster may answer a repeated filter before it reaches the match set cache
+        indexTransactions(Settings.builder().put(indexSettings())
+                .put(IndexCacheModule.QUERY_CACHE_TYPE, IndexCacheModule.NONE_QUERY_CACHE).build());
+        MatchSetCache cache = internalCluster().getDataNodeInstance(MatchSetCache.class);
+        WeightedAvgRangeQueryBuilder range = new WeightedAvgRangeQueryBuilder().fields("value1", "value2").weights(0.5, 1.0)
+                .gte(65).lte(100);
+
+        // the cache is opt-in
+        long hits = cache.hits();
+        long misses = cache.misses();
+        SearchResponse searchResponse = client().prepareSearch("transactions")
+                .setQuery(QueryBuilders.boolQuery().filter(range))
+                .execute().actionGet();
+        assertNoFailures(searchResponse);
+        assertSearchHits(searchResponse, "1", "3", "4");
+        assertThat(cache.hits(), equalTo(hits));
+        assertThat(cache.misses(), equalTo(misses));
+
+        range.cache(true);
+        searchResponse = client().prepareSearch("transactions")
+                .setQuery(QueryBuilders.boolQuery().filter(range))
+                .execute().actionGet();
+        assertNoFailures(searchResponse);
+        assertSearchHits(searchResponse, "1", "3", "4");
+        assertThat(cache.misses(), greaterThan(misses));
+        assertThat(cache.sizeInBytes(), greaterThan(0L));
+
+        // the block execution of the same filter uses the cached sets
+        hits = cache.hits();
+        searchResponse = client().prepareSearch("transactions")
+                .setQuery(QueryBuilders.boolQuery().filter(range.execution("block")))
+                .execute().actionGet();
+        assertNoFailures(searchResponse);
+        assertSearchHits(searchResponse, "1", "3", "4");
+        assertThat(cache.hits(), greaterThan(hits));
+
+        // deletes are applied on top of the cached sets, new segments are evaluated
+        client().prepareDelete("transactions", "stock", "3").get();
+        client().prepareIndex("transactions", "stock", "6").setSource("type", "sale", "value1", 70, "value2", 70).get();
+        refresh();
+        searchResponse = client().prepareSearch("transactions")
+                .setQuery(QueryBuilders.boolQuery().filter(range))
+                .execute().actionGet();
+        assertNoFailures(searchResponse);
+        assertSearchHits(searchResponse, "1", "4", "6");
+
+        hits = cache.hits();
+        misses = cache.misses();
+        searchResponse = client().prepareSearch("transactions")
+                .setQuery(QueryBuilders.boolQuery().filter(range.cache(false)))
+                .execute().actionGet();
+        assertNoFailures(searchResponse);
+        assertSearchHits(searchResponse, "1", "4", "6");
+        assertThat(cache.hits(), equalTo(hits));
+        assertThat(cache.misses(), equalTo(misses));
+    }
+}
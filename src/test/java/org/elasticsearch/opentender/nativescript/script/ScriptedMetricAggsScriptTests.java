@@ -15,21 +15,36 @@
 package org.elasticsearch.opentender.nativescript.script;
 
 import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.search.SearchPhaseExecutionException;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.opentender.nativescript.script.weightedavg.DocumentSampler;
+import org.elasticsearch.opentender.nativescript.script.weightedavg.MapScriptFactory;
+import org.elasticsearch.opentender.nativescript.script.weightedavg.ReduceScriptFactory;
+import org.elasticsearch.opentender.nativescript.stats.OpentenderStatsService;
 import org.elasticsearch.script.Script;
 import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
 import org.junit.Test;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
 
 import static org.elasticsearch.index.query.QueryBuilders.matchAllQuery;
 import static org.elasticsearch.search.aggregations.AggregationBuilders.scriptedMetric;
+import static org.elasticsearch.search.aggregations.AggregationBuilders.terms;
 import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.*;
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.lessThan;
 
 /**
  * Scripted Metric Agg Testss
@@ -203,6 +218,113 @@ public class ScriptedMetricAggsScriptTests extends AbstractSearchScriptTestCase
         assertThat((Double) searchResponse.getAggregations().get("profit").getProperty("value"), equalTo(57.5));
     }
 
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testScriptedMetricLongFieldAggs() throws Exception {
+
+        // Create a new lookup index, value2 is mapped as long
+        String stockMapping = XContentFactory.jsonBuilder().startObject().startObject("stock")
+                .startObject("properties")
+                .startObject("type").field("type", "string").field("index", "not_analyzed").endObject()
+                .startObject("value1").field("type", "double").endObject()
+                .startObject("value2").field("type", "long").endObject()
+                .endObject().endObject().endObject()
+                .string();
+
+        assertAcked(prepareCreate("transactions")
+                .addMapping("stock", stockMapping));
+
+        List<IndexRequestBuilder> indexBuilders = new ArrayList<IndexRequestBuilder>();
+        // Index stock records:
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "1").setSource("type", "sale", "value1", 40, "value2", 80)); // 60
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "2").setSource("type", "cost", "value1", 10));  // 10
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "3").setSource("type", "cost", "value1", 30, "value2", 100)); // 65
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "4").setSource("type", "sale", "value1", 130, "value2", 50)); // 90
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "5").setSource("type", "sale")); // no indicators
+
+        indexRandom(true, indexBuilders);
+
+        ArrayList<String> fields = new ArrayList<String>();
+        fields.add("value1");
+        fields.add("value2");
+        fields.add("unknown");
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("fields", fields);
+
+        SearchResponse searchResponse = client().prepareSearch("transactions")
+                .setTypes("stock")
+                .setQuery(matchAllQuery())
+                .setSize(0)
+                .addAggregation(scriptedMetric("profit")
+                        .params(params)
+                        .initScript(new Script("weighted_avg_init", ScriptService.ScriptType.INLINE, "native", null))
+                        .mapScript(new Script("weighted_avg_map", ScriptService.ScriptType.INLINE, "native", null))
+                        .combineScript(new Script("weighted_avg_combine", ScriptService.ScriptType.INLINE, "native", null))
+                        .reduceScript(new Script("weighted_avg_reduce", ScriptService.ScriptType.INLINE, "native", null)))
+                .execute().actionGet();
+
+        assertNoFailures(searchResponse);
+
+        assertHitCount(searchResponse, 5);
+
+        // The avg should be 56.25, unmapped fields and documents without indicators are ignored
+        assertThat((Double) searchResponse.getAggregations().get("profit").getProperty("value"), equalTo(56.25));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testScriptedMetricCompactAggs() throws Exception {
+
+        // Create a new lookup index with several shards, so that the compact shard results are streamed
+        String stockMapping = XContentFactory.jsonBuilder().startObject().startObject("stock")
+                .startObject("properties")
+                .startObject("type").field("type", "string").field("index", "not_analyzed").endObject()
+                .startObject("value1").field("type", "double").endObject()
+                .startObject("value2").field("type", "double").endObject()
+                .endObject().endObject().endObject()
+                .string();
+
+        assertAcked(prepareCreate("transactions")
+                .setSettings(Settings.builder().put("index.number_of_shards", 3).put("index.number_of_replicas", 0))
+                .addMapping("stock", stockMapping));
+
+        List<IndexRequestBuilder> indexBuilders = new ArrayList<IndexRequestBuilder>();
+        // Index stock records:
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "1").setSource("type", "sale", "value1", 40, "value2", 80)); // 60
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "2").setSource("type", "cost", "value1", 10));  // 10
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "3").setSource("type", "cost", "value1", 30, "value2", 100)); // 65
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "4").setSource("type", "sale", "value1", 130, "value2", 50)); // 90
+
+        indexRandom(true, indexBuilders);
+
+        ArrayList<String> fields = new ArrayList<String>();
+        fields.add("value1");
+        fields.add("value2");
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("fields", fields);
+        params.put("compact", true);
+
+        SearchResponse searchResponse = client().prepareSearch("transactions")
+                .setTypes("stock")
+                .setQuery(matchAllQuery())
+                .setSize(0)
+                .addAggregation(terms("types").field("type").subAggregation(scriptedMetric("profit")
+                        .params(params)
+                        .initScript(new Script("weighted_avg_init", ScriptService.ScriptType.INLINE, "native", null))
+                        .mapScript(new Script("weighted_avg_map", ScriptService.ScriptType.INLINE, "native", null))
+                        .combineScript(new Script("weighted_avg_combine", ScriptService.ScriptType.INLINE, "native", null))
+                        .reduceScript(new Script("weighted_avg_reduce", ScriptService.ScriptType.INLINE, "native", null))))
+                .execute().actionGet();
+
+        assertNoFailures(searchResponse);
+
+        assertHitCount(searchResponse, 4);
+
+        Terms types = searchResponse.getAggregations().get("types");
+        assertThat((Double) types.getBucketByKey("sale").getAggregations().get("profit").getProperty("value"), equalTo(75.0));
+        assertThat((Double) types.getBucketByKey("cost").getAggregations().get("profit").getProperty("value"), equalTo(37.5));
+    }
+
   @SuppressWarnings("unchecked")
     @Test
     public void testScriptedMetricNullAggs() throws Exception {
@@ -254,5 +376,135 @@ public class ScriptedMetricAggsScriptTests extends AbstractSearchScriptTestCase
         assertThat(searchResponse.getAggregations().get("profit").getProperty("value"), equalTo(null));
     }
 
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testScriptedMetricSampledAggs() throws Exception {
+
+        // Create a new lookup index with several shards, the samples of the shards are merged
+        String stockMapping = XContentFactory.jsonBuilder().startObject().startObject("stock")
+                .startObject("properties")
+                .startObject("value1").field("type", "double").endObject()
+                .startObject("value2").field("type", "double").endObject()
+                .startObject("key").field("type", "long").endObject()
+                .endObject().endObject().endObject()
+                .string();
+
+        assertAcked(prepareCreate("transactions")
+                .setSettings(Settings.builder().put("index.number_of_shards", 2).put("index.number_of_replicas", 0))
+                .addMapping("stock", stockMapping));
+
+        List<IndexRequestBuilder> indexBuilders = new ArrayList<IndexRequestBuilder>();
+        double sum = 0;
+        for (int i = 0; i < 400; i++) {
+            indexBuilders.add(client().prepareIndex("transactions", "stock", Integer.toString(i))
+                    .setSource("value1", i % 50, "value2", i % 50 + 10, "key", i * 7919L));
+            sum += i % 50 + 5;
+        }
+        indexRandom(true, indexBuilders);
+        final double mean = sum / 400;
+
+        // sampling every document is exact
+        Map<String, Object> exact = sampledAgg(Collections.<String, Object>singletonMap("rate", 1.0), false);
+        assertThat((Double) exact.get("value"), closeTo(mean, 0.000001));
+        assertThat((Double) exact.get("lower"), closeTo(mean, 0.000001));
+        assertThat((Double) exact.get("upper"), closeTo(mean, 0.000001));
+        assertThat(exact.get("sampled_docs"), equalTo((Object) 400L));
+
+        Map<String, Object> sample = new HashMap<String, Object>();
+        sample.put("rate", 0.25);
+        sample.put("seed", 7);
+        sample.put("confidence", 0.99);
+        long evaluated = mapScriptDocs();
+        Map<String, Object> estimate = sampledAgg(sample, true);
+        long sampled = (Long) estimate.get("sampled_docs");
+        // only the sampled documents are evaluated
+        assertThat(mapScriptDocs() - evaluated, equalTo(sampled));
+        assertThat(sampled, allOf(greaterThan(40L), lessThan(200L)));
+        assertThat(estimate.get("count"), equalTo((Object) sampled));
+        assertThat(estimate.get("docs"), equalTo((Object) 400L));
+        assertThat((Double) estimate.get("lower"), lessThan((Double) estimate.get("value")));
+        assertThat((Double) estimate.get("upper"), greaterThan((Double) estimate.get("value")));
+        // the standard error of the estimate is about 1.3, the 99% interval is 2.576 standard errors wide on either side
+        assertThat((Double) estimate.get("value"), closeTo(mean, 6));
+        assertThat((Double) estimate.get("upper") - (Double) estimate.get("value"),
+                closeTo(2.576 * (Double) estimate.get("std_error"), 0.001));
+        // the same documents are sampled again
+        assertThat(sampledAgg(sample, false), equalTo(estimate));
+
+        // max_docs keeps the documents with the lowest hashes of all shards
+        Map<String, Object> capped = sampledAgg(Collections.<String, Object>singletonMap("max_docs", 30), true);
+        assertThat(capped.get("sampled_docs"), equalTo((Object) 30L));
+        assertThat(capped.get("count"), equalTo((Object) 30L));
+        assertThat(capped.get("docs"), equalTo((Object) 400L));
+        assertThat((Double) capped.get("value"), closeTo(mean, 15));
+        assertThat(sampledAgg(Collections.<String, Object>singletonMap("max_docs", 30), false), equalTo(capped));
+        // the reservoir does not fill up on more documents than are collected
+        Map<String, Object> all = sampledAgg(Collections.<String, Object>singletonMap("max_docs", 1000), true);
+        assertThat(all.get("sampled_docs"), equalTo((Object) 400L));
+        assertThat((Double) all.get("value"), closeTo(mean, 0.000001));
+
+        // the values of a numeric field are hashed instead of the doc ids
+        Map<String, Object> keyed = new HashMap<String, Object>();
+        keyed.put("rate", 0.25);
+        keyed.put("field", "key");
+        Map<String, Object> keyedEstimate = sampledAgg(keyed, true);
+        assertThat((Long) keyedEstimate.get("sampled_docs"), allOf(greaterThan(40L), lessThan(200L)));
+        assertThat(sampledAgg(keyed, false), equalTo(keyedEstimate));
+
+        // the reservoirs of the shards are shipped to the reduce, max_docs is limited
+        try {
+            sampledAgg(Collections.<String, Object>singletonMap("max_docs", DocumentSampler.MAX_DOCS_LIMIT + 1), true);
+            fail("expected a max_docs above the limit to fail the search");
+        } catch (SearchPhaseExecutionException e) {
+            assertThat(e.toString(), containsString("[max_docs] must be in [1, " + DocumentSampler.MAX_DOCS_LIMIT + "]"));
+        }
+
+        // only shard results starting with the marker are reduced as samples, whatever their length
+        ReduceScriptFactory reduce = new ReduceScriptFactory(internalCluster().getInstance(OpentenderStatsService.class));
+        double[] plain = new double[DocumentSampler.RESULT_SIZE];
+        plain[0] = 30;
+        plain[1] = 2;
+        assertThat(reduce.newScript(Collections.<String, Object>singletonMap("_aggs",
+                Collections.<Object>singletonList(plain))).run(), equalTo((Object) 15.0));
+        double[] marked = new double[DocumentSampler.RESULT_SIZE];
+        marked[0] = DocumentSampler.RESULT_MARKER;
+        assertThat(reduce.newScript(Collections.<String, Object>singletonMap("_aggs",
+                Collections.<Object>singletonList(marked))).run(), instanceOf(Map.class));
+    }
+
+    /**
+     * @return the documents evaluated by the map script on all data nodes
+     */
+    private long mapScriptDocs() {
+        long docs = 0;
+        for (OpentenderStatsService statsService : internalCluster().getDataNodeInstances(OpentenderStatsService.class)) {
+            docs += statsService.metrics(MapScriptFactory.SCRIPT_NAME).stats().getDocs();
+        }
+        return docs;
+    }
+
+    private Map<String, Object> sampledAgg(Map<String, Object> sample, boolean compact) {
+        ArrayList<String> fields = new ArrayList<String>();
+        fields.add("value1");
+        fields.add("value2");
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("fields", fields);
+        params.put("sample", sample);
+        params.put("compact", compact);
+
+        SearchResponse searchResponse = client().prepareSearch("transactions")
+                .setTypes("stock")
+                .setQuery(matchAllQuery())
+                .setSize(0)
+                .addAggregation(scriptedMetric("profit")
+                        .params(params)
+                        .initScript(new Script("weighted_avg_init", ScriptService.ScriptType.INLINE, "native", null))
+                        .mapScript(new Script("weighted_avg_map", ScriptService.ScriptType.INLINE, "native", null))
+                        .combineScript(new Script("weighted_avg_combine", ScriptService.ScriptType.INLINE, "native", null))
+                        .reduceScript(new Script("weighted_avg_reduce", ScriptService.ScriptType.INLINE, "native", null)))
+                .execute().actionGet();
 
+        assertNoFailures(searchResponse);
+        return (Map<String, Object>) searchResponse.getAggregations().get("profit").getProperty("value");
+    }
 }
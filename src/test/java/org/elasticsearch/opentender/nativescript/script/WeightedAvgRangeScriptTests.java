@@ -17,12 +17,16 @@ package org.elasticsearch.opentender.nativescript.script;
 import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertAcked;
 import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertHitCount;
 import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertNoFailures;
+import static org.hamcrest.Matchers.containsString;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.elasticsearch.ExceptionsHelper;
 import org.elasticsearch.action.index.IndexRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.common.xcontent.XContentFactory;
@@ -197,5 +201,130 @@ public class WeightedAvgRangeScriptTests extends AbstractSearchScriptTestCase {
         assertHitCount(searchResponse, 1);
     }
 
+    @Test
+    public void testWeightedAvgRangeBounds() throws Exception {
+        // scripts only know the bounds parameter, value3 has doc values only
+        String stockMapping = XContentFactory.jsonBuilder().startObject().startObject("stock")
+                .startObject("properties")
+                .startObject("value1").field("type", "double").endObject()
+                .startObject("value2").field("type", "double").endObject()
+                .startObject("value3").field("type", "double").field("index", "no").field("doc_values", true).endObject()
+                .startObject("value4").field("type", "double").endObject()
+                .endObject().endObject().endObject()
+                .string();
+
+        assertAcked(prepareCreate("transactions")
+                .addMapping("stock", stockMapping));
 
+        String[] fields = {"value1", "value2", "value3", "value4"};
+        double[] weights = {0.5, 3.0, 1.0, 0.0};
+        double[][] docs = new double[300][];
+        List<IndexRequestBuilder> indexBuilders = new ArrayList<IndexRequestBuilder>();
+        for (int i = 0; i < docs.length; i++) {
+            docs[i] = new double[fields.length];
+            Map<String, Object> source = new HashMap<String, Object>();
+            for (int f = 0; f < fields.length; f++) {
+                docs[i][f] = randomInt(4) == 0 ? Double.NaN : randomIntBetween(0, 200) / 2.0;
+                if (Double.isNaN(docs[i][f]) == false) {
+                    source.put(fields[f], docs[i][f]);
+                }
+            }
+            indexBuilders.add(client().prepareIndex("transactions", "stock", String.valueOf(i)).setSource(source));
+        }
+        indexRandom(true, indexBuilders);
+
+        double[][] ranges = {{40, 60}, {49.5, 50.5}, {0, 100}, {-10, -1}, {90, 100}, {30, 30}};
+        for (double[] range : ranges) {
+            long expected = 0;
+            for (double[] doc : docs) {
+                double sum = 0;
+                double count = 0;
+                for (int f = 0; f < fields.length; f++) {
+                    if (Double.isNaN(doc[f]) == false) {
+                        sum += doc[f] * weights[f];
+                        count += weights[f];
+                    }
+                }
+                if (count > 0 && sum / count >= range[0] && sum / count <= range[1]) {
+                    expected++;
+                }
+            }
+            Map<String, Object> fieldBounds = new HashMap<String, Object>();
+            fieldBounds.put("value1", Arrays.asList(0, 100));
+            fieldBounds.put("value2", Arrays.asList(0, 100));
+            fieldBounds.put("value3", Arrays.asList(0, 100));
+            for (Object bounds : Arrays.<Object>asList(null, Arrays.<Number>asList(0, 100), fieldBounds)) {
+                Map<String, Object> params = new HashMap<String, Object>();
+                params.put("fields", Arrays.asList(fields));
+                params.put("weights", Arrays.asList(weights[0], weights[1], weights[2], weights[3]));
+                params.put("gte", range[0]);
+                params.put("lte", range[1]);
+                if (bounds != null) {
+                    params.put("bounds", bounds);
+                }
+                SearchResponse searchResponse = client().prepareSearch("transactions")
+                        .setQuery(QueryBuilders.boolQuery().filter(QueryBuilders.scriptQuery(
+                                new Script(WeightedAvgRangeScript.SCRIPT_NAME, ScriptService.ScriptType.INLINE, "native", params))))
+                        .setSize(0)
+                        .execute().actionGet();
+
+                assertNoFailures(searchResponse);
+                assertHitCount(searchResponse, expected);
+            }
+        }
+
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("fields", Arrays.asList(fields));
+        params.put("weights", Arrays.asList(weights[0], weights[1], weights[2], weights[3]));
+        params.put("gte", 40);
+        params.put("lte", 60);
+        params.put("bounds", Arrays.asList(100, 0));
+        try {
+            client().prepareSearch("transactions")
+                    .setQuery(QueryBuilders.scriptQuery(
+                            new Script(WeightedAvgRangeScript.SCRIPT_NAME, ScriptService.ScriptType.INLINE, "native", params)))
+                    .get();
+            fail("inverted bounds must be rejected");
+        } catch (Exception e) {
+            assertThat(ExceptionsHelper.detailedMessage(e), containsString("min must not be greater than max"));
+        }
+
+        params.put("bounds", Collections.singletonMap("value5", Arrays.asList(0, 100)));
+        try {
+            client().prepareSearch("transactions")
+                    .setQuery(QueryBuilders.scriptQuery(
+                            new Script(WeightedAvgRangeScript.SCRIPT_NAME, ScriptService.ScriptType.INLINE, "native", params)))
+                    .get();
+            fail("bounds of unknown fields must be rejected");
+        } catch (Exception e) {
+            assertThat(ExceptionsHelper.detailedMessage(e), containsString("of unknown field [value5]"));
+        }
+    }
+
+    public void testWeightedAvgRangeOutOfBounds() throws Exception {
+        assertAcked(prepareCreate("transactions")
+                .addMapping("stock", "value1", "type=double", "value2", "type=double"));
+
+        // the average is 50, value1 is read first and lies outside of the bounds
+        indexRandom(true, client().prepareIndex("transactions", "stock", "1").setSource("value1", 200, "value2", -100));
+
+        double[][] ranges = {{100, 200}, {40, 60}};
+        long[] expected = {0, 1};
+        for (int i = 0; i < ranges.length; i++) {
+            Map<String, Object> params = new HashMap<String, Object>();
+            params.put("fields", Arrays.asList("value1", "value2"));
+            params.put("weights", Arrays.asList(1, 1));
+            params.put("gte", ranges[i][0]);
+            params.put("lte", ranges[i][1]);
+            params.put("bounds", Arrays.asList(0, 10));
+            SearchResponse searchResponse = client().prepareSearch("transactions")
+                    .setQuery(QueryBuilders.boolQuery().filter(QueryBuilders.scriptQuery(
+                            new Script(WeightedAvgRangeScript.SCRIPT_NAME, ScriptService.ScriptType.INLINE, "native", params))))
+                    .setSize(0)
+                    .execute().actionGet();
+
+            assertNoFailures(searchResponse);
+            assertHitCount(searchResponse, expected[i]);
+        }
+    }
 }
@@ -0,0 +1,173 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.opentender.nativescript.script;
+
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertAcked;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertNoFailures;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertOrderedSearchHits;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.lucene.search.function.CombineFunction;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.query.functionscore.ScoreFunctionBuilders;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.search.sort.SortBuilders;
+import org.elasticsearch.search.sort.SortOrder;
+import org.junit.Test;
+
+/**
+ * Tests the weighted_avg_score script in script sorting and function_score.
+ */
+public class WeightedAvgScoreScriptTests extends AbstractSearchScriptTestCase {
+
+    private void indexTransactions() throws Exception {
+        String stockMapping = XContentFactory.jsonBuilder().startObject().startObject("stock")
+                .startObject("properties")
+                .startObject("type").field("type", "string").field("index", "not_analyzed").endObject()
+                .startObject("value1").field("type", "double").endObject()
+                .startObject("value2").field("type", "double").endObject()
+                .endObject().endObject().endObject()
+                .string();
+
+        assertAcked(prepareCreate("transactions")
+                .addMapping("stock", stockMapping));
+
+        List<IndexRequestBuilder> indexBuilders = new ArrayList<IndexRequestBuilder>();
+        // Index stock records:
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "1").setSource("type", "sale", "value1", 40, "value2", 80)); // 60
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "2").setSource("type", "cost", "value1", 10));  // 10
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "3").setSource("type", "cost", "value1", 30, "value2", 100)); // 65
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "4").setSource("type", "sale", "value1", 130, "value2", 50)); // 90
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "5").setSource("type", "sale"));
+
+        indexRandom(true, indexBuilders);
+    }
+
+    private static Map<String, Object> params(Object missing) {
+        ArrayList<String> fields = new ArrayList<String>();
+        fields.add("value1");
+        fields.add("value2");
+        ArrayList<Number> weights = new ArrayList<Number>();
+        weights.add(1.0);
+        weights.add(1.0);
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("fields", fields);
+        params.put("weights", weights);
+        if (missing != null) {
+            params.put("missing", missing);
+        }
+        return params;
+    }
+
+    @Test
+    public void testScriptSort() throws Exception {
+        indexTransactions();
+
+        SearchResponse searchResponse = client().prepareSearch("transactions")
+                .setTypes("stock")
+                .setQuery(QueryBuilders.matchAllQuery())
+                .addSort(SortBuilders.scriptSort(new Script(WeightedAvgScoreScript.SCRIPT_NAME, ScriptService.ScriptType.INLINE,
+                        "native", params("_max")), "number").order(SortOrder.ASC))
+                .execute().actionGet();
+
+        assertNoFailures(searchResponse);
+        assertOrderedSearchHits(searchResponse, "2", "1", "3", "4", "5");
+        assertThat((Double) searchResponse.getHits().getAt(2).getSortValues()[0], equalTo(65.0));
+    }
+
+    @Test
+    public void testScriptSortMissingValue() throws Exception {
+        indexTransactions();
+
+        SearchResponse searchResponse = client().prepareSearch("transactions")
+                .setTypes("stock")
+                .setQuery(QueryBuilders.matchAllQuery())
+                .addSort(SortBuilders.scriptSort(new Script(WeightedAvgScoreScript.SCRIPT_NAME, ScriptService.ScriptType.INLINE,
+                        "native", params(62)), "number").order(SortOrder.DESC))
+                .execute().actionGet();
+
+        assertNoFailures(searchResponse);
+        assertOrderedSearchHits(searchResponse, "4", "3", "5", "1", "2");
+    }
+
+    @Test
+    public void testFunctionScore() throws Exception {
+        indexTransactions();
+
+        SearchResponse searchResponse = client().prepareSearch("transactions")
+                .setTypes("stock")
+                .setQuery(QueryBuilders.functionScoreQuery(QueryBuilders.termQuery("type", "sale"),
+                        ScoreFunctionBuilders.scriptFunction(new Script(WeightedAvgScoreScript.SCRIPT_NAME,
+                                ScriptService.ScriptType.INLINE, "native", params(null))))
+                        .boostMode(CombineFunction.REPLACE))
+                .execute().actionGet();
+
+        assertNoFailures(searchResponse);
+        assertOrderedSearchHits(searchResponse, "4", "1", "5");
+        assertThat(searchResponse.getHits().getAt(0).getScore(), equalTo(90f));
+        assertThat(searchResponse.getHits().getAt(2).getScore(), equalTo(0f));
+    }
+
+    @Test
+    public void testFunctionScoreMissingMax() throws Exception {
+        indexTransactions();
+
+        SearchResponse searchResponse = client().prepareSearch("transactions")
+                .setTypes("stock")
+                .setQuery(QueryBuilders.functionScoreQuery(QueryBuilders.termQuery("type", "sale"),
+                        ScoreFunctionBuilders.scriptFunction(new Script(WeightedAvgScoreScript.SCRIPT_NAME,
+                                ScriptService.ScriptType.INLINE, "native", params("_max"))))
+                        .boostMode(CombineFunction.REPLACE))
+                .execute().actionGet();
+
+        assertNoFailures(searchResponse);
+        // the document without indicators scores the largest finite float instead of infinity
+        assertOrderedSearchHits(searchResponse, "5", "4", "1");
+        assertThat(searchResponse.getHits().getAt(0).getScore(), equalTo(Float.MAX_VALUE));
+    }
+
+    @Test
+    public void testScriptSortMultiValueMode() throws Exception {
+        assertAcked(prepareCreate("lots").addMapping("lot", XContentFactory.jsonBuilder().startObject().startObject("lot")
+                .startObject("properties")
+                .startObject("value1").field("type", "double").endObject()
+                .startObject("value2").field("type", "double").endObject()
+                .endObject().endObject().endObject()));
+        List<IndexRequestBuilder> indexBuilders = new ArrayList<IndexRequestBuilder>();
+        indexBuilders.add(client().prepareIndex("lots", "lot", "1").setSource("value1", new double[]{10, 90}, "value2", 20)); // avg 35
+        indexBuilders.add(client().prepareIndex("lots", "lot", "2").setSource("value1", 40, "value2", 20)); // 30
+        indexRandom(true, indexBuilders);
+
+        Map<String, Object> params = params(null);
+        params.put(WeightedAvgScoreScript.MULTI_VALUE_MODE_PARAM, "avg");
+        SearchResponse searchResponse = client().prepareSearch("lots")
+                .addSort(SortBuilders.scriptSort(new Script(WeightedAvgScoreScript.SCRIPT_NAME, ScriptService.ScriptType.INLINE,
+                        "native", params), "number").order(SortOrder.DESC))
+                .execute().actionGet();
+
+        assertNoFailures(searchResponse);
+        assertOrderedSearchHits(searchResponse, "1", "2");
+        assertThat((Double) searchResponse.getHits().getAt(0).getSortValues()[0], equalTo(35.0));
+    }
+}
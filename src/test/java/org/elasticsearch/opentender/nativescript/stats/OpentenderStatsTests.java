@@ -0,0 +1,195 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.opentender.nativescript.stats;
+
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertAcked;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertHitCount;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertNoFailures;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.opentender.nativescript.script.AbstractSearchScriptTestCase;
+import org.elasticsearch.opentender.nativescript.script.WeightedAvgRangeScript;
+import org.elasticsearch.opentender.nativescript.script.weightedavg.CombineScriptFactory;
+import org.elasticsearch.opentender.nativescript.script.weightedavg.InitScriptFactory;
+import org.elasticsearch.opentender.nativescript.script.weightedavg.MapScriptFactory;
+import org.elasticsearch.opentender.nativescript.script.weightedavg.ReduceScriptFactory;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.junit.Test;
+
+/**
+ * Tests the script statistics collected on the nodes.
+ */
+public class OpentenderStatsTests extends AbstractSearchScriptTestCase {
+
+    private void indexTransactions() throws Exception {
+        String stockMapping = XContentFactory.jsonBuilder().startObject().startObject("stock")
+                .startObject("properties")
+                .startObject("type").field("type", "string").field("index", "not_analyzed").endObject()
+                .startObject("value1").field("type", "double").endObject()
+                .startObject("value2").field("type", "double").endObject()
+                .endObject().endObject().endObject()
+                .string();
+
+        assertAcked(prepareCreate("transactions")
+                .addMapping("stock", stockMapping));
+
+        List<IndexRequestBuilder> indexBuilders = new ArrayList<IndexRequestBuilder>();
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "1").setSource("type", "sale", "value1", 40, "value2", 80));
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "2").setSource("type", "cost", "value1", 10));
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "3").setSource("type", "cost", "value1", 30, "value2", 100));
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "4").setSource("type", "sale", "value1", 130, "value2", 50));
+        indexBuilders.add(client().prepareIndex("transactions", "stock", "5").setSource("type", "sale"));
+
+        indexRandom(true, indexBuilders);
+    }
+
+    private static Map<String, Object> params() {
+        ArrayList<String> fields = new ArrayList<String>();
+        fields.add("value1");
+        fields.add("value2");
+        ArrayList<Number> weights = new ArrayList<Number>();
+        weights.add(1.0);
+        weights.add(1.0);
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("fields", fields);
+        params.put("weights", weights);
+        return params;
+    }
+
+    /**
+     * @return the statistics of the script summed over all nodes
+     */
+    private ScriptStats scriptStats(String scriptName) {
+        // the action is only registered on the nodes, the random test client may be a transport client
+        Client client = internalCluster().getInstance(Client.class);
+        OpentenderStatsResponse response = client.execute(OpentenderStatsAction.INSTANCE, new OpentenderStatsRequest()).actionGet();
+        assertThat(response.getNodes().length, equalTo(internalCluster().size()));
+        long setups = 0, invocations = 0, docs = 0, docsMissing = 0, timeInNanos = 0;
+        for (NodeOpentenderStats node : response.getNodes()) {
+            ScriptStats stats = node.getScript(scriptName);
+            if (stats != null) {
+                setups += stats.getSetups();
+                invocations += stats.getInvocations();
+                docs += stats.getDocs();
+                docsMissing += stats.getDocsMissing();
+                timeInNanos += stats.getTimeInNanos();
+            }
+        }
+        return new ScriptStats(scriptName, setups, invocations, docs, docsMissing, timeInNanos);
+    }
+
+    @Test
+    public void testRangeScriptStats() throws Exception {
+        indexTransactions();
+        ScriptStats before = scriptStats(WeightedAvgRangeScript.SCRIPT_NAME);
+
+        Map<String, Object> params = params();
+        params.put("gte", 50);
+        params.put("lte", 70);
+        SearchResponse searchResponse = client().prepareSearch("transactions")
+                .setTypes("stock")
+                .setQuery(QueryBuilders.scriptQuery(new Script(WeightedAvgRangeScript.SCRIPT_NAME, ScriptService.ScriptType.INLINE,
+                        "native", params)))
+                .execute().actionGet();
+        assertNoFailures(searchResponse);
+        assertHitCount(searchResponse, 2);
+
+        ScriptStats after = scriptStats(WeightedAvgRangeScript.SCRIPT_NAME);
+        assertThat(after.getSetups() - before.getSetups(), greaterThanOrEqualTo(1L));
+        assertThat(after.getDocs() - before.getDocs(), equalTo(5L));
+        assertThat(after.getInvocations() - before.getInvocations(), equalTo(5L));
+        assertThat(after.getDocsMissing() - before.getDocsMissing(), equalTo(1L));
+    }
+
+    @Test
+    public void testScriptedMetricStats() throws Exception {
+        indexTransactions();
+        ScriptStats mapBefore = scriptStats(MapScriptFactory.SCRIPT_NAME);
+        ScriptStats reduceBefore = scriptStats(ReduceScriptFactory.SCRIPT_NAME);
+
+        SearchResponse searchResponse = client().prepareSearch("transactions")
+                .setTypes("stock")
+                .setQuery(QueryBuilders.matchAllQuery())
+                .setSize(0)
+                .addAggregation(AggregationBuilders.scriptedMetric("weighted_avg")
+                        .params(params())
+                        .initScript(new Script(InitScriptFactory.SCRIPT_NAME, ScriptService.ScriptType.INLINE, "native", null))
+                        .mapScript(new Script(MapScriptFactory.SCRIPT_NAME, ScriptService.ScriptType.INLINE, "native", null))
+                        .combineScript(new Script(CombineScriptFactory.SCRIPT_NAME, ScriptService.ScriptType.INLINE, "native", null))
+                        .reduceScript(new Script(ReduceScriptFactory.SCRIPT_NAME, ScriptService.ScriptType.INLINE, "native", null)))
+                .execute().actionGet();
+        assertNoFailures(searchResponse);
+
+        ScriptStats mapAfter = scriptStats(MapScriptFactory.SCRIPT_NAME);
+        assertThat(mapAfter.getDocs() - mapBefore.getDocs(), equalTo(5L));
+        assertThat(mapAfter.getDocsMissing() - mapBefore.getDocsMissing(), equalTo(1L));
+
+        ScriptStats reduceAfter = scriptStats(ReduceScriptFactory.SCRIPT_NAME);
+        assertThat(reduceAfter.getSetups() - reduceBefore.getSetups(), equalTo(1L));
+        assertThat(reduceAfter.getInvocations() - reduceBefore.getInvocations(), equalTo(1L));
+        assertThat(reduceAfter.getDocs(), equalTo(0L));
+        assertThat(reduceAfter.getTimeInNanos() - reduceBefore.getTimeInNanos(), greaterThan(0L));
+    }
+
+    private void assertIndexSlowLog(final boolean slow, final boolean otherSlow) throws Exception {
+        assertBusy(new Runnable() {
+            @Override
+            public void run() {
+                for (OpentenderStatsService statsService : internalCluster().getInstances(OpentenderStatsService.class)) {
+                    assertThat(statsService.isSlow("transactions", 1), equalTo(slow));
+                    assertThat(statsService.isSlow("other", 1), equalTo(otherSlow));
+                }
+            }
+        });
+    }
+
+    @Test
+    public void testIndexSlowLogThreshold() throws Exception {
+        indexTransactions();
+        // the node threshold is disabled by default
+        assertIndexSlowLog(false, false);
+
+        assertAcked(client().admin().indices().prepareUpdateSettings("transactions")
+                .setSettings(Settings.builder().put(OpentenderStatsService.INDEX_SLOWLOG_THRESHOLD_SETTING, "0ms")));
+        assertIndexSlowLog(true, false);
+
+        assertAcked(client().admin().indices().prepareUpdateSettings("transactions")
+                .setSettings(Settings.builder().put(OpentenderStatsService.INDEX_SLOWLOG_THRESHOLD_SETTING, "-1")));
+        assertIndexSlowLog(false, false);
+
+        try {
+            client().admin().indices().prepareUpdateSettings("transactions")
+                    .setSettings(Settings.builder().put(OpentenderStatsService.INDEX_SLOWLOG_THRESHOLD_SETTING, "fast")).get();
+            fail("invalid thresholds must be rejected");
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage(), containsString(OpentenderStatsService.INDEX_SLOWLOG_THRESHOLD_SETTING));
+        }
+    }
+}